@@ -58,6 +58,7 @@ import com.android.dialer.app.calllog.CallLogFragment.CallLogFragmentListener;
 import com.android.dialer.app.calllog.CallLogGroupBuilder.GroupCreator;
 import com.android.dialer.app.calllog.calllogcache.CallLogCache;
 import com.android.dialer.app.contactinfo.ContactInfoCache;
+import com.android.dialer.app.contactinfo.NumberWithCountryIso;
 import com.android.dialer.app.voicemail.VoicemailPlaybackPresenter;
 import com.android.dialer.app.voicemail.VoicemailPlaybackPresenter.OnVoicemailDeletedListener;
 import com.android.dialer.blocking.FilteredNumberAsyncQueryHandler;
@@ -487,6 +488,9 @@ public class CallLogAdapter extends GroupingListAdapter
    */
   @NonNull private final Set<Uri> hiddenItemUris = new ArraySet<>();
 
+  /** Rows which are bound to a call log entry and not recycled yet. */
+  private final Set<CallLogListItemViewHolder> boundViewHolders = new ArraySet<>();
+
   private CallLogListItemViewHolder.OnClickListener blockReportSpamListener;
 
   /**
@@ -778,6 +782,7 @@ public class CallLogAdapter extends GroupingListAdapter
     if (viewHolder.getItemViewType() == VIEW_TYPE_CALLLOG) {
       CallLogListItemViewHolder views = (CallLogListItemViewHolder) viewHolder;
       updateCheckMarkedStatusOfEntry(views);
+      boundViewHolders.remove(views);
 
       if (views.asyncTask != null) {
         views.asyncTask.cancel(true);
@@ -785,6 +790,22 @@ public class CallLogAdapter extends GroupingListAdapter
     }
   }
 
+  /**
+   * Rebinds the rows showing one of {@code changedNumbers}, rather than the whole list. Rows which
+   * aren't bound look up the new contact info when they are.
+   */
+  @MainThread
+  public void onContactInfoChanged(Set<NumberWithCountryIso> changedNumbers) {
+    for (CallLogListItemViewHolder views : boundViewHolders) {
+      int position = views.getAdapterPosition();
+      if (position != RecyclerView.NO_POSITION
+          && changedNumbers.contains(
+              new NumberWithCountryIso(views.number + views.postDialDigits, views.countryIso))) {
+        notifyItemChanged(position);
+      }
+    }
+  }
+
   @Override
   public void onViewAttachedToWindow(ViewHolder viewHolder) {
     if (viewHolder.getItemViewType() == VIEW_TYPE_CALLLOG) {
@@ -812,6 +833,7 @@ public class CallLogAdapter extends GroupingListAdapter
     }
     CallLogListItemViewHolder views = (CallLogListItemViewHolder) viewHolder;
     updateCheckMarkedStatusOfEntry(views);
+    boundViewHolders.add(views);
 
     views.isLoaded = false;
     int groupSize = getGroupSize(position);
@@ -53,6 +53,7 @@ import com.android.dialer.app.calllog.calllogcache.CallLogCache;
 import com.android.dialer.app.contactinfo.ContactInfoCache;
 import com.android.dialer.app.contactinfo.ContactInfoCache.OnContactInfoChangedListener;
 import com.android.dialer.app.contactinfo.ExpirableCacheHeadlessFragment;
+import com.android.dialer.app.contactinfo.NumberWithCountryIso;
 import com.android.dialer.app.voicemail.VoicemailPlaybackPresenter;
 import com.android.dialer.blocking.FilteredNumberAsyncQueryHandler;
 import com.android.dialer.common.Assert;
@@ -74,6 +75,7 @@ import com.android.dialer.util.PermissionsUtil;
 import com.android.dialer.widget.EmptyContentView;
 import com.android.dialer.widget.EmptyContentView.OnEmptyViewActionButtonClickedListener;
 import java.util.Arrays;
+import java.util.Set;
 
 /**
  * Displays a list of call log entries. To filter for a particular kind of call (all, missed or
@@ -122,9 +124,9 @@ public class CallLogFragment extends Fragment
   private final OnContactInfoChangedListener onContactInfoChangedListener =
       new OnContactInfoChangedListener() {
         @Override
-        public void onContactInfoChanged() {
+        public void onContactInfoChanged(Set<NumberWithCountryIso> changedNumbers) {
           if (adapter != null) {
-            adapter.notifyDataSetChanged();
+            adapter.onContactInfoChanged(changedNumbers);
           }
         }
       };
@@ -308,6 +310,18 @@ public class CallLogFragment extends Fragment
             MetricsComponent.get(getContext()).metrics(), Metrics.OLD_CALL_LOG_JANK_EVENT_NAME));
     layoutManager = new LinearLayoutManager(getActivity());
     recyclerView.setLayoutManager(layoutManager);
+    recyclerView.addOnScrollListener(
+        new RecyclerView.OnScrollListener() {
+          @Override
+          public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+            // Also called after a layout, e.g. when the window was resized.
+            int first = layoutManager.findFirstVisibleItemPosition();
+            if (contactInfoCache != null && first != RecyclerView.NO_POSITION) {
+              contactInfoCache.setVisibleItemCount(
+                  layoutManager.findLastVisibleItemPosition() - first + 1);
+            }
+          }
+        });
     PerformanceReport.logOnScrollStateChange(recyclerView);
     emptyListView = (EmptyContentView) view.findViewById(R.id.empty_list_view);
     emptyListView.setImage(R.drawable.empty_call_log);
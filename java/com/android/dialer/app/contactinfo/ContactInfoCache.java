@@ -29,18 +29,29 @@ import com.android.dialer.phonenumbercache.ContactInfo;
 import com.android.dialer.phonenumbercache.ContactInfoHelper;
 import com.android.dialer.util.ExpirableCache;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This is a cache of contact details for the phone numbers in the call log. The key is the phone
  * number with the country in which the call was placed or received. The content of the cache is
  * expired (but not purged) whenever the application comes to the foreground.
  *
- * <p>This cache queues request for information and queries for information on a background thread,
- * so {@code start()} and {@code stop()} must be called to initiate or halt that thread's exeuction
- * as needed.
+ * <p>This cache queues request for information and queries for information on background threads,
+ * so {@code start()} and {@code stop()} must be called to initiate or halt their execution as
+ * needed. Local lookups and the slower remote directory lookups run on separate pools, so that
+ * remote lookups never hold up local ones. A number which is already queued or being looked up is
+ * not queued again, however many rows of the call log show it.
  *
  * <p>TODO: Explore whether there is a pattern to remove external dependencies for starting and
  * stopping the query thread.
@@ -51,13 +62,40 @@ public class ContactInfoCache {
   private static final int START_THREAD = 2;
   private static final int START_PROCESSING_REQUESTS_DELAY_MS = 1000;
 
+  private static final int LOCAL_LOOKUP_THREADS = 2;
+  private static final int REMOTE_LOOKUP_THREADS = 1;
+  private static final long LOOKUP_THREAD_KEEP_ALIVE_SECONDS = 10;
+
+  /** Number of screens of rows whose contact info is kept in the cache. */
+  private static final int CACHED_SCREENS = 4;
+
+  /** The size the cache is created with, it never shrinks below it. */
+  private static final int MIN_CACHE_SIZE = 100;
+  private static final int MAX_CACHE_SIZE = 500;
+
   private final ExpirableCache<NumberWithCountryIso, ContactInfo> cache;
   private final ContactInfoHelper contactInfoHelper;
   private final OnContactInfoChangedListener onContactInfoChangedListener;
+  /** Requests which are waiting for request processing to be started. */
   private final BlockingQueue<ContactInfoRequest> updateRequests;
+  /**
+   * Numbers with a local request which is queued or running, by request type. A number with a
+   * pending {@link ContactInfoRequest#TYPE_LOCAL} request can still get a {@link
+   * ContactInfoRequest#TYPE_LOCAL_AND_REMOTE} one, which may go on to look it up remotely.
+   */
+  private final Set<NumberWithCountryIso> pendingLocalRequests = ConcurrentHashMap.newKeySet();
+
+  private final Set<NumberWithCountryIso> pendingLocalAndRemoteRequests =
+      ConcurrentHashMap.newKeySet();
+  /** Numbers with a remote request which is queued or running. */
+  private final Set<NumberWithCountryIso> pendingRemoteRequests = ConcurrentHashMap.newKeySet();
+  /** Numbers whose contact info changed since the listener was last notified. */
+  private final Set<NumberWithCountryIso> changedNumbers = new HashSet<>();
+  private final ThreadPoolExecutor localLookupExecutor;
+  private final ThreadPoolExecutor remoteLookupExecutor;
   private final Handler handler;
   private CequintCallerIdManager cequintCallerIdManager;
-  private QueryThread contactInfoQueryThread;
+  private boolean requestProcessingStarted;
   private volatile boolean requestProcessingDisabled = false;
 
   private static class InnerHandler extends Handler {
@@ -76,7 +114,7 @@ public class ContactInfoCache {
       }
       switch (msg.what) {
         case REDRAW:
-          reference.onContactInfoChangedListener.onContactInfoChanged();
+          reference.notifyContactInfoChanged();
           break;
         case START_THREAD:
           reference.startRequestProcessing();
@@ -94,9 +132,37 @@ public class ContactInfoCache {
     this.contactInfoHelper = contactInfoHelper;
     onContactInfoChangedListener = listener;
     updateRequests = new PriorityBlockingQueue<>();
+    localLookupExecutor = createLookupExecutor("ContactInfoCache.LocalQuery", LOCAL_LOOKUP_THREADS);
+    remoteLookupExecutor =
+        createLookupExecutor("ContactInfoCache.RemoteQuery", REMOTE_LOOKUP_THREADS);
     handler = new InnerHandler(new WeakReference<>(this));
   }
 
+  private static ThreadPoolExecutor createLookupExecutor(String name, int threads) {
+    ThreadFactory threadFactory =
+        new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger();
+
+          @Override
+          public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+          }
+        };
+    ThreadPoolExecutor executor =
+        new ThreadPoolExecutor(
+            threads,
+            threads,
+            LOOKUP_THREAD_KEEP_ALIVE_SECONDS,
+            TimeUnit.SECONDS,
+            new PriorityBlockingQueue<>(),
+            threadFactory);
+    // Don't keep idle threads around once the call log has been looked up.
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
   public void setCequintCallerIdManager(CequintCallerIdManager cequintCallerIdManager) {
     this.cequintCallerIdManager = cequintCallerIdManager;
   }
@@ -223,44 +289,61 @@ public class ContactInfoCache {
   }
 
   /**
-   * After a delay, start the thread to begin processing requests. We perform lookups on a
-   * background thread, but this must be called to indicate the thread should be running.
+   * Adapts the size of the cache to the number of rows which fit on the screen, so that scrolling
+   * back and forth by a few screens doesn't look up the same numbers again.
+   */
+  public void setVisibleItemCount(int visibleItemCount) {
+    int size =
+        Math.max(MIN_CACHE_SIZE, Math.min(MAX_CACHE_SIZE, visibleItemCount * CACHED_SCREENS));
+    if (size != cache.maxSize()) {
+      LogUtil.i("ContactInfoCache.setVisibleItemCount", "resizing cache to %d", size);
+      cache.resize(size);
+    }
+  }
+
+  /**
+   * After a delay, start processing requests. We perform lookups on background threads, but this
+   * must be called to indicate they should be running.
    */
   public void start() {
-    // Schedule a thread-creation message if the thread hasn't been created yet, as an
-    // optimization to queue fewer messages.
-    if (contactInfoQueryThread == null) {
+    // Schedule a start message if processing hasn't been started yet, as an optimization to queue
+    // fewer messages.
+    if (!isRequestProcessingStarted()) {
       // TODO: Check whether this delay before starting to process is necessary.
       handler.sendEmptyMessageDelayed(START_THREAD, START_PROCESSING_REQUESTS_DELAY_MS);
     }
   }
 
   /**
-   * Stops the thread and clears the queue of messages to process. This cleans up the thread for
-   * lookups so that it is not perpetually running.
+   * Stops processing requests. Queued requests are kept until processing is started again, the
+   * idle lookup threads exit after a while.
    */
   public void stop() {
+    LogUtil.i("ContactInfoCache.stop", "%s", cache);
     stopRequestProcessing();
   }
 
-  /**
-   * Starts a background thread to process contact-lookup requests, unless one has already been
-   * started.
-   */
+  private synchronized boolean isRequestProcessingStarted() {
+    return requestProcessingStarted;
+  }
+
+  /** Starts processing contact-lookup requests, unless it has already been started. */
   private synchronized void startRequestProcessing() {
     // For unit-testing.
     if (requestProcessingDisabled) {
       return;
     }
 
-    // If a thread is already started, don't start another.
-    if (contactInfoQueryThread != null) {
+    if (requestProcessingStarted) {
       return;
     }
 
-    contactInfoQueryThread = new QueryThread();
-    contactInfoQueryThread.setPriority(Thread.MIN_PRIORITY);
-    contactInfoQueryThread.start();
+    requestProcessingStarted = true;
+    List<ContactInfoRequest> requests = new ArrayList<>();
+    updateRequests.drainTo(requests);
+    for (ContactInfoRequest request : requests) {
+      executeRequest(request);
+    }
   }
 
   public void invalidate() {
@@ -269,28 +352,77 @@ public class ContactInfoCache {
   }
 
   /**
-   * Stops the background thread that processes updates and cancels any pending requests to start
-   * it.
+   * Stops processing requests and cancels any pending requests to start it. Lookups which are
+   * already running are allowed to finish, the others are queued until processing is started again.
    */
   private synchronized void stopRequestProcessing() {
-    // Remove any pending requests to start the processing thread.
+    // Remove any pending requests to start processing.
     handler.removeMessages(START_THREAD);
-    if (contactInfoQueryThread != null) {
-      // Stop the thread; we are finished with it.
-      contactInfoQueryThread.stopProcessing();
-      contactInfoQueryThread.interrupt();
-      contactInfoQueryThread = null;
+    if (!requestProcessingStarted) {
+      return;
+    }
+    requestProcessingStarted = false;
+    requeueRequests(localLookupExecutor);
+    requeueRequests(remoteLookupExecutor);
+  }
+
+  private void requeueRequests(ThreadPoolExecutor executor) {
+    List<Runnable> tasks = new ArrayList<>();
+    executor.getQueue().drainTo(tasks);
+    for (Runnable task : tasks) {
+      updateRequests.offer(((LookupTask) task).request);
+    }
+  }
+
+  private void executeRequest(ContactInfoRequest request) {
+    ThreadPoolExecutor executor =
+        request.isLocalRequest() ? localLookupExecutor : remoteLookupExecutor;
+    executor.execute(new LookupTask(request));
+  }
+
+  private Set<NumberWithCountryIso> getPendingRequests(ContactInfoRequest request) {
+    switch (request.type) {
+      case ContactInfoRequest.TYPE_LOCAL:
+        return pendingLocalRequests;
+      case ContactInfoRequest.TYPE_LOCAL_AND_REMOTE:
+        return pendingLocalAndRemoteRequests;
+      default:
+        return pendingRemoteRequests;
+    }
+  }
+
+  /** Called on a lookup thread when the contact info of {@code numberCountryIso} changed. */
+  private void onContactInfoUpdated(NumberWithCountryIso numberCountryIso) {
+    synchronized (changedNumbers) {
+      changedNumbers.add(numberCountryIso);
+    }
+    // Lookups which finish before the main thread gets to the message share one redraw.
+    if (!handler.hasMessages(REDRAW)) {
+      handler.sendEmptyMessage(REDRAW);
+    }
+  }
+
+  private void notifyContactInfoChanged() {
+    Set<NumberWithCountryIso> numbers;
+    synchronized (changedNumbers) {
+      if (changedNumbers.isEmpty()) {
+        return;
+      }
+      numbers = new HashSet<>(changedNumbers);
+      changedNumbers.clear();
     }
+    onContactInfoChangedListener.onContactInfoChanged(numbers);
   }
 
   /**
    * Enqueues a request to look up the contact details for the given phone number.
    *
-   * <p>It also provides the current contact info stored in the call log for this number.
+   * <p>It also provides the current contact info stored in the call log for this number. Nothing is
+   * enqueued if a request of the same type for the number is already queued or running.
    *
-   * <p>If the {@code immediate} parameter is true, it will start immediately the thread that looks
-   * up the contact information (if it has not been already started). Otherwise, it will be started
-   * with a delay. See {@link #START_PROCESSING_REQUESTS_DELAY_MS}.
+   * <p>If the {@code immediate} parameter is true, it will start processing requests immediately
+   * (if it has not been already started). Otherwise, it will be started with a delay. See {@link
+   * #START_PROCESSING_REQUESTS_DELAY_MS}.
    */
   private void enqueueRequest(
       String number,
@@ -299,8 +431,14 @@ public class ContactInfoCache {
       boolean immediate,
       @ContactInfoRequest.TYPE int type) {
     ContactInfoRequest request = new ContactInfoRequest(number, countryIso, callLogInfo, type);
-    if (!updateRequests.contains(request)) {
-      updateRequests.offer(request);
+    if (getPendingRequests(request).add(new NumberWithCountryIso(number, countryIso))) {
+      synchronized (this) {
+        if (requestProcessingStarted) {
+          executeRequest(request);
+        } else {
+          updateRequests.offer(request);
+        }
+      }
     }
 
     if (immediate) {
@@ -329,46 +467,40 @@ public class ContactInfoCache {
 
   public interface OnContactInfoChangedListener {
 
-    void onContactInfoChanged();
+    /**
+     * Called on the main thread when the contact info of some numbers changed.
+     *
+     * @param changedNumbers the numbers, as passed to {@link ContactInfoCache#getValue}, whose rows
+     *     should be redrawn
+     */
+    void onContactInfoChanged(Set<NumberWithCountryIso> changedNumbers);
   }
 
-  /*
-   * Handles requests for contact name and number type.
-   */
-  private class QueryThread extends Thread {
-
-    private volatile boolean done = false;
+  /** Looks up the contact info of a request on one of the lookup threads. */
+  private class LookupTask implements Runnable, Comparable<LookupTask> {
 
-    public QueryThread() {
-      super("ContactInfoCache.QueryThread");
-    }
+    private final ContactInfoRequest request;
 
-    public void stopProcessing() {
-      done = true;
+    LookupTask(ContactInfoRequest request) {
+      this.request = request;
     }
 
     @Override
     public void run() {
-      boolean shouldRedraw = false;
-      while (true) {
-        // Check if thread is finished, and if so return immediately.
-        if (done) {
-          return;
-        }
-
-        try {
-          ContactInfoRequest request = updateRequests.take();
-          shouldRedraw |= queryContactInfo(request);
-          if (shouldRedraw
-              && (updateRequests.isEmpty()
-                  || (request.isLocalRequest() && !updateRequests.peek().isLocalRequest()))) {
-            shouldRedraw = false;
-            handler.sendEmptyMessage(REDRAW);
-          }
-        } catch (InterruptedException e) {
-          // Ignore and attempt to continue processing requests
+      NumberWithCountryIso numberCountryIso =
+          new NumberWithCountryIso(request.number, request.countryIso);
+      try {
+        if (queryContactInfo(request)) {
+          onContactInfoUpdated(numberCountryIso);
         }
+      } finally {
+        getPendingRequests(request).remove(numberCountryIso);
       }
     }
+
+    @Override
+    public int compareTo(LookupTask other) {
+      return request.compareTo(other.request);
+    }
   }
 }
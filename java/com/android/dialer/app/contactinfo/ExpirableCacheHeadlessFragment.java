@@ -32,6 +32,7 @@ import com.android.dialer.util.ExpirableCache;
 public class ExpirableCacheHeadlessFragment extends Fragment {
 
   private static final String FRAGMENT_TAG = "ExpirableCacheHeadlessFragment";
+  /** Initial size, {@link ContactInfoCache} adapts it to the number of rows on the screen. */
   private static final int CONTACT_INFO_CACHE_SIZE = 100;
 
   private ExpirableCache<NumberWithCountryIso, ContactInfo> retainedCache =
@@ -15,31 +15,47 @@
  */
 package com.android.dialer.app.filterednumber;
 
+import android.app.Activity;
 import android.app.ListFragment;
 import android.app.LoaderManager;
 import android.content.Context;
 import android.content.CursorLoader;
+import android.content.Intent;
 import android.content.Loader;
 import android.database.Cursor;
 import android.graphics.drawable.ColorDrawable;
+import android.net.Uri;
 import android.os.Bundle;
+import android.support.annotation.Nullable;
 import android.support.v7.app.ActionBar;
 import android.support.v7.app.AppCompatActivity;
 import android.view.LayoutInflater;
+import android.view.Menu;
+import android.view.MenuInflater;
+import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.TextView;
+import android.widget.Toast;
 import com.android.dialer.app.R;
+import com.android.dialer.blocking.BlockedNumbersImportExport;
 import com.android.dialer.blocking.BlockedNumbersMigrator;
 import com.android.dialer.blocking.BlockedNumbersMigrator.Listener;
 import com.android.dialer.blocking.FilteredNumberCompat;
 import com.android.dialer.blocking.FilteredNumbersUtil;
 import com.android.dialer.blocking.FilteredNumbersUtil.CheckForSendToVoicemailContactListener;
 import com.android.dialer.blocking.FilteredNumbersUtil.ImportSendToVoicemailContactsListener;
+import com.android.dialer.common.LogUtil;
+import com.android.dialer.common.concurrent.DialerExecutor;
+import com.android.dialer.common.concurrent.DialerExecutor.Worker;
+import com.android.dialer.common.concurrent.DialerExecutorComponent;
 import com.android.dialer.database.FilteredNumberContract;
 import com.android.dialer.lettertile.LetterTileDrawable;
 import com.android.dialer.theme.base.ThemeComponent;
 import com.android.dialer.voicemailstatus.VisualVoicemailEnabledChecker;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.io.OutputStream;
 
 /** TODO(calderwoodra): documentation */
 public class BlockedNumbersFragment extends ListFragment
@@ -48,6 +64,12 @@ public class BlockedNumbersFragment extends ListFragment
         VisualVoicemailEnabledChecker.Callback {
 
   private static final char ADD_BLOCKED_NUMBER_ICON_LETTER = '+';
+  private static final int REQUEST_IMPORT_NUMBERS = 1;
+  private static final int REQUEST_EXPORT_NUMBERS = 2;
+  private static final String EXPORT_FILE_NAME = "blocked_numbers.csv";
+  private static final String[] IMPORT_MIME_TYPES = {
+    "text/csv", "text/comma-separated-values", "text/plain", "text/vcard", "text/x-vcard"
+  };
   protected View migratePromoView;
   private BlockedNumbersMigrator blockedNumbersMigratorForTest;
   private TextView blockedNumbersText;
@@ -57,6 +79,8 @@ public class BlockedNumbersFragment extends ListFragment
   private View importSettings;
   private View blockedNumbersDisabledForEmergency;
   private View blockedNumberListDivider;
+  private DialerExecutor<Uri> importNumbersTask;
+  private DialerExecutor<Uri> exportNumbersTask;
 
   @Override
   public Context getContext() {
@@ -110,6 +134,84 @@ public class BlockedNumbersFragment extends ListFragment
   public void onCreate(Bundle savedInstanceState) {
     super.onCreate(savedInstanceState);
     getLoaderManager().initLoader(0, null, this);
+    setHasOptionsMenu(true);
+
+    Context appContext = getActivity().getApplicationContext();
+    importNumbersTask =
+        DialerExecutorComponent.get(getContext())
+            .dialerExecutorFactory()
+            .createUiTaskBuilder(
+                getFragmentManager(), "importBlockedNumbers", new ImportNumbersWorker(appContext))
+            .onSuccess(blocked -> showToast(R.plurals.blocked_numbers_imported, blocked))
+            .onFailure(this::onImportExportFailed)
+            .build();
+    exportNumbersTask =
+        DialerExecutorComponent.get(getContext())
+            .dialerExecutorFactory()
+            .createUiTaskBuilder(
+                getFragmentManager(), "exportBlockedNumbers", new ExportNumbersWorker(appContext))
+            .onSuccess(exported -> showToast(R.plurals.blocked_numbers_exported, exported))
+            .onFailure(this::onImportExportFailed)
+            .build();
+  }
+
+  @Override
+  public void onCreateOptionsMenu(Menu menu, MenuInflater inflater) {
+    inflater.inflate(R.menu.blocked_numbers_options, menu);
+  }
+
+  @Override
+  public boolean onOptionsItemSelected(MenuItem item) {
+    int itemId = item.getItemId();
+    if (itemId == R.id.menu_import_blocked_numbers) {
+      Intent intent =
+          new Intent(Intent.ACTION_OPEN_DOCUMENT)
+              .addCategory(Intent.CATEGORY_OPENABLE)
+              .setType("*/*")
+              .putExtra(Intent.EXTRA_MIME_TYPES, IMPORT_MIME_TYPES);
+      startActivityForResult(intent, REQUEST_IMPORT_NUMBERS);
+      return true;
+    } else if (itemId == R.id.menu_export_blocked_numbers) {
+      Intent intent =
+          new Intent(Intent.ACTION_CREATE_DOCUMENT)
+              .addCategory(Intent.CATEGORY_OPENABLE)
+              .setType("text/csv")
+              .putExtra(Intent.EXTRA_TITLE, EXPORT_FILE_NAME);
+      startActivityForResult(intent, REQUEST_EXPORT_NUMBERS);
+      return true;
+    }
+    return super.onOptionsItemSelected(item);
+  }
+
+  @Override
+  public void onActivityResult(int requestCode, int resultCode, Intent data) {
+    if (resultCode != Activity.RESULT_OK || data == null || data.getData() == null) {
+      return;
+    }
+    if (requestCode == REQUEST_IMPORT_NUMBERS) {
+      importNumbersTask.executeSerial(data.getData());
+    } else if (requestCode == REQUEST_EXPORT_NUMBERS) {
+      exportNumbersTask.executeSerial(data.getData());
+    }
+  }
+
+  private void showToast(int pluralsId, int count) {
+    if (getActivity() == null) {
+      return;
+    }
+    Toast.makeText(
+            getContext(),
+            getResources().getQuantityString(pluralsId, count, count),
+            Toast.LENGTH_SHORT)
+        .show();
+  }
+
+  private void onImportExportFailed(Throwable throwable) {
+    LogUtil.e("BlockedNumbersFragment.onImportExportFailed", "failed to access file", throwable);
+    if (getActivity() == null) {
+      return;
+    }
+    Toast.makeText(getContext(), R.string.blocked_numbers_file_error, Toast.LENGTH_SHORT).show();
   }
 
   @Override
@@ -260,4 +362,46 @@ public class BlockedNumbersFragment extends ListFragment
   void setBlockedNumbersMigratorForTest(BlockedNumbersMigrator blockedNumbersMigrator) {
     blockedNumbersMigratorForTest = blockedNumbersMigrator;
   }
+
+  /** Blocks the numbers of the file at the given URI. */
+  private static class ImportNumbersWorker implements Worker<Uri, Integer> {
+    private final Context appContext;
+
+    private ImportNumbersWorker(Context appContext) {
+      this.appContext = appContext;
+    }
+
+    @Nullable
+    @Override
+    public Integer doInBackground(@Nullable Uri uri) throws Throwable {
+      try (InputStream in = appContext.getContentResolver().openInputStream(uri)) {
+        if (in == null) {
+          throw new FileNotFoundException(String.valueOf(uri));
+        }
+        return new BlockedNumbersImportExport(appContext)
+            .importNumbers(in, /* countryIso = */ null, /* listener = */ null);
+      }
+    }
+  }
+
+  /** Writes the blocked numbers to the file at the given URI. */
+  private static class ExportNumbersWorker implements Worker<Uri, Integer> {
+    private final Context appContext;
+
+    private ExportNumbersWorker(Context appContext) {
+      this.appContext = appContext;
+    }
+
+    @Nullable
+    @Override
+    public Integer doInBackground(@Nullable Uri uri) throws Throwable {
+      try (OutputStream out = appContext.getContentResolver().openOutputStream(uri)) {
+        if (out == null) {
+          throw new FileNotFoundException(String.valueOf(uri));
+        }
+        return new BlockedNumbersImportExport(appContext)
+            .exportNumbers(out, /* listener = */ null);
+      }
+    }
+  }
 }
@@ -20,6 +20,7 @@ import android.app.Application;
 import android.os.Trace;
 import android.support.annotation.NonNull;
 import android.support.v4.os.BuildCompat;
+import com.android.dialer.blocking.BlockedNumberCache;
 import com.android.dialer.blocking.BlockedNumbersAutoMigrator;
 import com.android.dialer.blocking.FilteredNumberAsyncQueryHandler;
 import com.android.dialer.calllog.CallLogComponent;
@@ -48,6 +49,8 @@ public abstract class DialerApplication extends Application implements HasRootCo
             new FilteredNumberAsyncQueryHandler(this),
             DialerExecutorComponent.get(this).dialerExecutorFactory())
         .asyncAutoMigrate();
+    // Incoming calls are checked against the block list, load it before the first one.
+    BlockedNumberCache.get(this).warm();
     initializeAnnotatedCallLog();
     PersistentLogger.initialize(this);
 
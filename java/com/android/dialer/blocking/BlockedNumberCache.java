@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.blocking;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.provider.BlockedNumberContract.BlockedNumbers;
+import android.support.annotation.AnyThread;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import android.support.v4.os.UserManagerCompat;
+import android.text.TextUtils;
+import android.util.LruCache;
+import com.android.dialer.common.LogUtil;
+import com.android.dialer.common.concurrent.DialerExecutorComponent;
+import com.android.dialer.common.concurrent.ThreadUtil;
+import com.android.dialer.database.FilteredNumberContract.FilteredNumber;
+import com.android.dialer.database.FilteredNumberContract.FilteredNumberColumns;
+import com.android.dialer.database.FilteredNumberContract.FilteredNumberTypes;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Process-wide cache of whether numbers are blocked, shared by all {@link
+ * FilteredNumberAsyncQueryHandler}s.
+ *
+ * <p>Numbers are keyed the way they are looked up in the blocked number database: by their E164
+ * form if they have one, and as dialed otherwise. Once {@link #warm()} has loaded the whole block
+ * list, every number is answered from memory, including numbers which aren't blocked. Until then,
+ * or if the block list is too long to keep in memory, the results of individual lookups are kept
+ * in a bounded LRU cache.
+ *
+ * <p>The cache is invalidated, and reloaded if it was warmed, whenever either blocked number
+ * provider reports a change.
+ */
+public final class BlockedNumberCache {
+
+  /** Value cached for numbers which aren't blocked. */
+  static final int NOT_BLOCKED = FilteredNumberAsyncQueryHandler.BLOCKED_NUMBER_CACHE_NULL_ID;
+
+  /** Block lists longer than this are not loaded into memory. */
+  private static final int MAX_BLOCK_LIST_SIZE = 10000;
+
+  private static final int MAX_LOOKUP_RESULTS = 256;
+
+  /** Changes usually come in bursts, e.g. during a migration, so reloads are delayed a little. */
+  private static final long RELOAD_DELAY_MILLIS = 1000;
+
+  private static BlockedNumberCache instance;
+
+  private final Context appContext;
+  private final LruCache<String, Integer> lookupResults = new LruCache<>(MAX_LOOKUP_RESULTS);
+  private final Runnable scheduleReloadRunnable = this::scheduleReload;
+
+  /** The whole block list, or null if it isn't loaded. */
+  @Nullable private BlockList blockList;
+  /** Incremented on every invalidation, so that results of older queries are not cached. */
+  private int generation;
+
+  private boolean warmed;
+  private boolean observersRegistered;
+
+  public static synchronized BlockedNumberCache get(Context context) {
+    if (instance == null) {
+      instance = new BlockedNumberCache(context.getApplicationContext());
+    }
+    return instance;
+  }
+
+  private BlockedNumberCache(Context appContext) {
+    this.appContext = appContext;
+  }
+
+  /**
+   * Loads the whole block list in the background, and keeps it loaded from now on, so that
+   * checking an incoming call doesn't have to query the database.
+   */
+  @AnyThread
+  public void warm() {
+    synchronized (this) {
+      if (warmed) {
+        return;
+      }
+      warmed = true;
+      registerObservers();
+    }
+    scheduleReload();
+  }
+
+  private void scheduleReload() {
+    DialerExecutorComponent.get(appContext).backgroundExecutor().execute(this::loadBlockList);
+  }
+
+  /**
+   * Returns the cached ID of the blocked number, {@link #NOT_BLOCKED}, or null if it isn't known
+   * whether the number is blocked.
+   *
+   * @param isE164Number whether {@code blockableNumber} is the E164 form of the number
+   * @param blockableNumber the number, as returned by {@link
+   *     FilteredNumbersUtil#getBlockableNumber}
+   */
+  @AnyThread
+  @Nullable
+  synchronized Integer get(boolean isE164Number, String blockableNumber) {
+    if (blockList != null) {
+      Integer id = blockList.get(isE164Number, blockableNumber);
+      return id != null ? id : NOT_BLOCKED;
+    }
+    return lookupResults.get(getKey(isE164Number, blockableNumber));
+  }
+
+  /** Returns the value to pass to {@link #put}, to detect whether the cache changed meanwhile. */
+  @AnyThread
+  synchronized int getGeneration() {
+    return generation;
+  }
+
+  /**
+   * Caches the result of looking up a single number, unless the cache was invalidated since the
+   * lookup started.
+   *
+   * @param generation the value of {@link #getGeneration()} before the lookup
+   * @param id the ID of the blocked number, or {@link #NOT_BLOCKED}
+   */
+  @AnyThread
+  synchronized void put(int generation, boolean isE164Number, String blockableNumber, int id) {
+    if (generation == this.generation) {
+      lookupResults.put(getKey(isE164Number, blockableNumber), id);
+    }
+  }
+
+  /** Forgets all cached results, and reloads the block list if the cache was warmed. */
+  @AnyThread
+  public void invalidate() {
+    synchronized (this) {
+      generation++;
+      blockList = null;
+      lookupResults.evictAll();
+      if (!warmed) {
+        return;
+      }
+    }
+    ThreadUtil.getUiThreadHandler().removeCallbacks(scheduleReloadRunnable);
+    ThreadUtil.getUiThreadHandler().postDelayed(scheduleReloadRunnable, RELOAD_DELAY_MILLIS);
+  }
+
+  private void registerObservers() {
+    if (observersRegistered) {
+      return;
+    }
+    observersRegistered = true;
+    ContentObserver observer =
+        new ContentObserver(ThreadUtil.getUiThreadHandler()) {
+          @Override
+          public void onChange(boolean selfChange) {
+            invalidate();
+          }
+        };
+    // Both are observed, since migrating to the framework blocking switches between them.
+    appContext
+        .getContentResolver()
+        .registerContentObserver(FilteredNumber.CONTENT_URI, true, observer);
+    try {
+      appContext
+          .getContentResolver()
+          .registerContentObserver(BlockedNumbers.CONTENT_URI, true, observer);
+    } catch (SecurityException e) {
+      LogUtil.e("BlockedNumberCache.registerObservers", "can't observe blocked numbers", e);
+    }
+  }
+
+  @WorkerThread
+  private void loadBlockList() {
+    if (!FilteredNumberCompat.canAttemptBlockOperations(appContext)
+        || !UserManagerCompat.isUserUnlocked(appContext)) {
+      LogUtil.i("BlockedNumberCache.loadBlockList", "blocked numbers can't be read");
+      return;
+    }
+    int startGeneration = getGeneration();
+    boolean useNewFiltering = FilteredNumberCompat.useNewFiltering(appContext);
+    String idColumn = FilteredNumberCompat.getIdColumnName(appContext);
+    String e164Column = FilteredNumberCompat.getE164NumberColumnName(appContext);
+    String originalColumn = FilteredNumberCompat.getOriginalNumberColumnName(appContext);
+
+    BlockList newBlockList = new BlockList();
+    try (Cursor cursor =
+        appContext
+            .getContentResolver()
+            .query(
+                FilteredNumberCompat.getContentUri(appContext, null),
+                new String[] {idColumn, e164Column, originalColumn},
+                useNewFiltering
+                    ? null
+                    : FilteredNumberColumns.TYPE + "=" + FilteredNumberTypes.BLOCKED_NUMBER,
+                null,
+                null)) {
+      if (cursor == null) {
+        return;
+      }
+      if (cursor.getCount() > MAX_BLOCK_LIST_SIZE) {
+        LogUtil.i(
+            "BlockedNumberCache.loadBlockList",
+            "%d blocked numbers, too many to keep in memory",
+            cursor.getCount());
+        return;
+      }
+      while (cursor.moveToNext()) {
+        int id = cursor.getInt(0);
+        newBlockList.add(true, cursor.getString(1), id);
+        newBlockList.add(false, cursor.getString(2), id);
+      }
+    } catch (SecurityException e) {
+      LogUtil.e("BlockedNumberCache.loadBlockList", "failed to read blocked numbers", e);
+      return;
+    }
+
+    synchronized (this) {
+      if (generation != startGeneration) {
+        // Changed while loading, the invalidation has scheduled another load.
+        return;
+      }
+      blockList = newBlockList;
+      lookupResults.evictAll();
+    }
+    LogUtil.i("BlockedNumberCache.loadBlockList", "loaded %d numbers", newBlockList.size());
+  }
+
+  private static String getKey(boolean isE164Number, String blockableNumber) {
+    return (isE164Number ? "e164:" : "raw:") + blockableNumber;
+  }
+
+  /** All blocked numbers, by the column they are looked up in. */
+  private static final class BlockList {
+    private final Map<String, Integer> e164Numbers = new HashMap<>();
+    private final Map<String, Integer> originalNumbers = new HashMap<>();
+
+    void add(boolean isE164Number, @Nullable String number, int id) {
+      if (!TextUtils.isEmpty(number)) {
+        // Like the database lookups, use the first row if a number was blocked several times.
+        (isE164Number ? e164Numbers : originalNumbers).putIfAbsent(number, id);
+      }
+    }
+
+    @Nullable
+    Integer get(boolean isE164Number, String number) {
+      return (isE164Number ? e164Numbers : originalNumbers).get(number);
+    }
+
+    int size() {
+      return e164Numbers.size() + originalNumbers.size();
+    }
+  }
+}
@@ -0,0 +1,344 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.blocking;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+import android.support.annotation.WorkerThread;
+import android.telephony.PhoneNumberUtils;
+import android.text.TextUtils;
+import com.android.dialer.common.Assert;
+import com.android.dialer.common.LogUtil;
+import com.android.dialer.database.FilteredNumberContract.FilteredNumberColumns;
+import com.android.dialer.database.FilteredNumberContract.FilteredNumberTypes;
+import com.android.dialer.location.GeoUtil;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Imports block lists with many numbers, e.g. carrier spam lists, into whichever blocked number
+ * database is in use, and exports it.
+ *
+ * <p>Imported files are CSV files with the number in the first column, or vCard files. They are
+ * read as a stream, {@link #BATCH_SIZE} numbers at a time. The numbers of a batch are formatted to
+ * E164 in parallel, numbers which are already blocked are skipped, and the rest is inserted with a
+ * single {@link android.content.ContentResolver#bulkInsert}, which {@link FilteredNumberProvider}
+ * runs in one transaction.
+ */
+public final class BlockedNumbersImportExport {
+
+  @VisibleForTesting static final int BATCH_SIZE = 500;
+
+  private static final String VCARD_BEGIN = "BEGIN:VCARD";
+  private static final String VCARD_TEL = "TEL";
+  private static final String TEL_URI_SCHEME = "tel:";
+  private static final String CSV_HEADER = "number,e164";
+
+  /** Receives the progress of an import or export, on the thread running it. */
+  public interface ProgressListener {
+
+    /**
+     * Called after each batch of numbers.
+     *
+     * @param processed the number of numbers read so far for an import, or written for an export
+     * @param blocked the number of numbers blocked by an import so far, 0 for an export
+     */
+    void onProgress(int processed, int blocked);
+  }
+
+  private final Context context;
+
+  public BlockedNumbersImportExport(Context context) {
+    this.context = Objects.requireNonNull(context);
+  }
+
+  /**
+   * Blocks the numbers listed in {@code in}, which is not closed.
+   *
+   * @param countryIso the country to format numbers without a country code for, or null for the
+   *     current country
+   * @return the number of numbers which were blocked
+   */
+  @WorkerThread
+  public int importNumbers(
+      InputStream in, @Nullable String countryIso, @Nullable ProgressListener listener)
+      throws IOException {
+    Assert.isWorkerThread();
+    if (!FilteredNumberCompat.canAttemptBlockOperations(context)) {
+      LogUtil.i("BlockedNumbersImportExport.importNumbers", "can't block numbers");
+      return 0;
+    }
+    String importCountryIso =
+        countryIso != null ? countryIso : GeoUtil.getCurrentCountryIso(context);
+    Set<String> blockedNumbers = queryBlockedNumbers();
+
+    BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+    List<String> batch = new ArrayList<>(BATCH_SIZE);
+    boolean isVCard = false;
+    boolean firstLine = true;
+    int processed = 0;
+    int blocked = 0;
+    String line;
+    while ((line = reader.readLine()) != null) {
+      line = line.trim();
+      if (firstLine) {
+        // Strip the byte order mark some spreadsheet applications write.
+        if (line.startsWith("\uFEFF")) {
+          line = line.substring(1);
+        }
+        isVCard = line.equalsIgnoreCase(VCARD_BEGIN);
+        firstLine = false;
+      }
+      String number = isVCard ? parseVCardLine(line) : parseCsvLine(line);
+      if (number == null) {
+        continue;
+      }
+      batch.add(number);
+      if (batch.size() == BATCH_SIZE) {
+        blocked += blockNumbers(batch, importCountryIso, blockedNumbers);
+        processed += batch.size();
+        batch.clear();
+        if (listener != null) {
+          listener.onProgress(processed, blocked);
+        }
+      }
+    }
+    if (!batch.isEmpty()) {
+      blocked += blockNumbers(batch, importCountryIso, blockedNumbers);
+      processed += batch.size();
+      if (listener != null) {
+        listener.onProgress(processed, blocked);
+      }
+    }
+    LogUtil.i(
+        "BlockedNumbersImportExport.importNumbers",
+        "blocked %d of %d numbers",
+        blocked,
+        processed);
+    return blocked;
+  }
+
+  /**
+   * Writes all blocked numbers to {@code out} as CSV, with the number as entered in the first
+   * column and its E164 form, if any, in the second. {@code out} is flushed but not closed.
+   *
+   * @return the number of numbers written
+   */
+  @WorkerThread
+  public int exportNumbers(OutputStream out, @Nullable ProgressListener listener)
+      throws IOException {
+    Assert.isWorkerThread();
+    if (!FilteredNumberCompat.canAttemptBlockOperations(context)) {
+      LogUtil.i("BlockedNumbersImportExport.exportNumbers", "can't read blocked numbers");
+      return 0;
+    }
+    Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+    writer.write(CSV_HEADER);
+    writer.write('\n');
+    int written = 0;
+    try (Cursor cursor = queryBlockList()) {
+      while (cursor != null && cursor.moveToNext()) {
+        writer.write(toCsvField(cursor.getString(1)));
+        writer.write(',');
+        writer.write(toCsvField(cursor.getString(0)));
+        writer.write('\n');
+        written++;
+        if (listener != null && written % BATCH_SIZE == 0) {
+          listener.onProgress(written, 0);
+        }
+      }
+    }
+    writer.flush();
+    if (listener != null && written % BATCH_SIZE != 0) {
+      listener.onProgress(written, 0);
+    }
+    LogUtil.i("BlockedNumbersImportExport.exportNumbers", "exported %d numbers", written);
+    return written;
+  }
+
+  /**
+   * Blocks the numbers of a batch which aren't blocked yet.
+   *
+   * @param blockedNumbers the numbers which are blocked, updated with the numbers of the batch
+   * @return the number of numbers which were blocked
+   */
+  private int blockNumbers(List<String> numbers, String countryIso, Set<String> blockedNumbers) {
+    // Formatting is CPU bound and the numbers are independent, so it's spread over all cores.
+    List<Row> rows =
+        numbers
+            .parallelStream()
+            .map(number -> newRow(number, countryIso))
+            .filter(Objects::nonNull)
+            .collect(Collectors.toList());
+
+    List<ContentValues> newRows = new ArrayList<>(rows.size());
+    for (Row row : rows) {
+      // Skips numbers which are blocked already, or appear more than once in the file.
+      if (blockedNumbers.add(row.blockableNumber)) {
+        newRows.add(row.values);
+      }
+    }
+    if (newRows.isEmpty()) {
+      return 0;
+    }
+    int inserted =
+        context
+            .getContentResolver()
+            .bulkInsert(
+                FilteredNumberCompat.getContentUri(context, null),
+                newRows.toArray(new ContentValues[newRows.size()]));
+    LogUtil.d(
+        "BlockedNumbersImportExport.blockNumbers",
+        "inserted %d of %d rows",
+        inserted,
+        newRows.size());
+    return inserted;
+  }
+
+  /** Returns the row to insert to block {@code number}, or null if it can't be blocked. */
+  @Nullable
+  private Row newRow(String number, String countryIso) {
+    String e164Number = PhoneNumberUtils.formatNumberToE164(number, countryIso);
+    if (!FilteredNumbersUtil.canBlockNumber(context, e164Number, number)) {
+      return null;
+    }
+    return new Row(
+        FilteredNumbersUtil.getBlockableNumber(context, e164Number, number),
+        FilteredNumberCompat.newBlockNumberContentValues(context, number, e164Number, countryIso));
+  }
+
+  /** Returns the E164 and original forms of all blocked numbers. */
+  private Set<String> queryBlockedNumbers() {
+    Set<String> numbers = new HashSet<>();
+    try (Cursor cursor = queryBlockList()) {
+      while (cursor != null && cursor.moveToNext()) {
+        for (int i = 0; i < 2; i++) {
+          String number = cursor.getString(i);
+          if (!TextUtils.isEmpty(number)) {
+            numbers.add(number);
+          }
+        }
+      }
+    }
+    return numbers;
+  }
+
+  /** Queries the E164 and the original form of all blocked numbers, in that order. */
+  @Nullable
+  private Cursor queryBlockList() {
+    return context
+        .getContentResolver()
+        .query(
+            FilteredNumberCompat.getContentUri(context, null),
+            new String[] {
+              FilteredNumberCompat.getE164NumberColumnName(context),
+              FilteredNumberCompat.getOriginalNumberColumnName(context)
+            },
+            FilteredNumberCompat.useNewFiltering(context)
+                ? null
+                : FilteredNumberColumns.TYPE + "=" + FilteredNumberTypes.BLOCKED_NUMBER,
+            null,
+            null);
+  }
+
+  /** Returns the number of a vCard property line, or null if it isn't a phone number. */
+  @VisibleForTesting
+  @Nullable
+  static String parseVCardLine(String line) {
+    // e.g. "TEL;TYPE=cell:+1 650 253 0000" or, in vCard 4.0, "TEL;VALUE=uri:tel:+1-650-253-0000"
+    if (!line.regionMatches(true, 0, VCARD_TEL, 0, VCARD_TEL.length())
+        || line.length() == VCARD_TEL.length()
+        || (line.charAt(VCARD_TEL.length()) != ':' && line.charAt(VCARD_TEL.length()) != ';')) {
+      return null;
+    }
+    int separator = line.indexOf(':');
+    if (separator < 0) {
+      return null;
+    }
+    String value = line.substring(separator + 1).trim();
+    if (value.toLowerCase(Locale.US).startsWith(TEL_URI_SCHEME)) {
+      value = value.substring(TEL_URI_SCHEME.length());
+    }
+    return toNumber(value);
+  }
+
+  /** Returns the number in the first column of a CSV line, or null if there is none. */
+  @VisibleForTesting
+  @Nullable
+  static String parseCsvLine(String line) {
+    String field;
+    if (line.startsWith("\"")) {
+      int end = line.indexOf('"', 1);
+      field = end < 0 ? line.substring(1) : line.substring(1, end);
+    } else {
+      int end = line.indexOf(',');
+      field = end < 0 ? line : line.substring(0, end);
+    }
+    // Also skips the header line.
+    return toNumber(field.trim());
+  }
+
+  @Nullable
+  private static String toNumber(String value) {
+    for (int i = 0; i < value.length(); i++) {
+      if (Character.isDigit(value.charAt(i))) {
+        return value;
+      }
+    }
+    return null;
+  }
+
+  /** A number to block. */
+  private static final class Row {
+    /** The form of the number it is looked up by, see {@link FilteredNumbersUtil}. */
+    final String blockableNumber;
+
+    final ContentValues values;
+
+    Row(String blockableNumber, ContentValues values) {
+      this.blockableNumber = blockableNumber;
+      this.values = values;
+    }
+  }
+
+  private static String toCsvField(@Nullable String value) {
+    if (value == null) {
+      return "";
+    }
+    if (value.indexOf(',') < 0 && value.indexOf('"') < 0) {
+      return value;
+    }
+    return '"' + value.replace("\"", "\"\"") + '"';
+  }
+}
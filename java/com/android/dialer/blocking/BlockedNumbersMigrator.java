@@ -26,7 +26,11 @@ import com.android.dialer.common.LogUtil;
 import com.android.dialer.database.FilteredNumberContract;
 import com.android.dialer.database.FilteredNumberContract.FilteredNumber;
 import com.android.dialer.database.FilteredNumberContract.FilteredNumberColumns;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Objects;
+import java.util.Set;
 
 /**
  * Class which should be used to migrate numbers from {@link FilteredNumberContract} blocking to
@@ -63,11 +67,12 @@ public class BlockedNumbersMigrator {
           "BlockedNumbersMigrator.migrateToNewBlockingInBackground",
           "migrate - attempting to migrate " + cursor.getCount() + "numbers");
 
-      int numMigrated = 0;
+      Set<String> numbersInNewBlocking = getNumbersInNewBlocking(resolver);
+      List<ContentValues> newRows = new ArrayList<>();
       while (cursor.moveToNext()) {
         String originalNumber =
             cursor.getString(cursor.getColumnIndex(FilteredNumberColumns.NUMBER));
-        if (isNumberInNewBlocking(resolver, originalNumber)) {
+        if (!numbersInNewBlocking.add(originalNumber)) {
           LogUtil.i(
               "BlockedNumbersMigrator.migrateToNewBlockingInBackground",
               "migrate - number was already blocked in new blocking");
@@ -75,9 +80,13 @@ public class BlockedNumbersMigrator {
         }
         ContentValues values = new ContentValues();
         values.put(BlockedNumbers.COLUMN_ORIGINAL_NUMBER, originalNumber);
-        resolver.insert(BlockedNumbers.CONTENT_URI, values);
-        ++numMigrated;
+        newRows.add(values);
       }
+      int numMigrated =
+          newRows.isEmpty()
+              ? 0
+              : resolver.bulkInsert(
+                  BlockedNumbers.CONTENT_URI, newRows.toArray(new ContentValues[newRows.size()]));
       LogUtil.i(
           "BlockedNumbersMigrator.migrateToNewBlockingInBackground",
           "migrate - migration complete. " + numMigrated + " numbers migrated.");
@@ -85,16 +94,21 @@ public class BlockedNumbersMigrator {
     }
   }
 
-  private static boolean isNumberInNewBlocking(ContentResolver resolver, String originalNumber) {
+  /** Returns the original numbers of all numbers blocked in new blocking, with a single query. */
+  private static Set<String> getNumbersInNewBlocking(ContentResolver resolver) {
+    Set<String> numbers = new HashSet<>();
     try (Cursor cursor =
         resolver.query(
             BlockedNumbers.CONTENT_URI,
-            new String[] {BlockedNumbers.COLUMN_ID},
-            BlockedNumbers.COLUMN_ORIGINAL_NUMBER + " = ?",
-            new String[] {originalNumber},
+            new String[] {BlockedNumbers.COLUMN_ORIGINAL_NUMBER},
+            null,
+            null,
             null)) {
-      return cursor != null && cursor.getCount() != 0;
+      while (cursor != null && cursor.moveToNext()) {
+        numbers.add(cursor.getString(0));
+      }
     }
+    return numbers;
   }
 
   /**
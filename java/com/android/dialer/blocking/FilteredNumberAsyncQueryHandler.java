@@ -32,26 +32,23 @@ import com.android.dialer.common.Assert;
 import com.android.dialer.common.LogUtil;
 import com.android.dialer.database.FilteredNumberContract.FilteredNumberColumns;
 import com.android.dialer.database.FilteredNumberContract.FilteredNumberTypes;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
 /** TODO(calderwoodra): documentation */
 @Deprecated
 public class FilteredNumberAsyncQueryHandler extends AsyncQueryHandler {
 
   public static final int INVALID_ID = -1;
-  // Id used to replace null for blocked id since ConcurrentHashMap doesn't allow null key/value.
+  // Id used to replace null for blocked id since the cache doesn't allow null values.
   @VisibleForTesting static final int BLOCKED_NUMBER_CACHE_NULL_ID = -1;
 
-  @VisibleForTesting
-  static final Map<String, Integer> blockedNumberCache = new ConcurrentHashMap<>();
-
   private static final int NO_TOKEN = 0;
   private final Context context;
+  private final BlockedNumberCache blockedNumberCache;
 
   public FilteredNumberAsyncQueryHandler(Context context) {
     super(context.getContentResolver());
     this.context = context;
+    blockedNumberCache = BlockedNumberCache.get(context);
   }
 
   @Override
@@ -125,7 +122,14 @@ public class FilteredNumberAsyncQueryHandler extends AsyncQueryHandler {
       listener.onCheckComplete(null);
       return;
     }
-    Integer cachedId = blockedNumberCache.get(number);
+    String e164Number = PhoneNumberUtils.formatNumberToE164(number, countryIso);
+    String formattedNumber = FilteredNumbersUtil.getBlockableNumber(context, e164Number, number);
+    if (TextUtils.isEmpty(formattedNumber)) {
+      listener.onCheckComplete(INVALID_ID);
+      return;
+    }
+    final boolean isE164Number = e164Number != null;
+    Integer cachedId = blockedNumberCache.get(isE164Number, formattedNumber);
     if (cachedId != null) {
       if (listener == null) {
         return;
@@ -145,13 +149,7 @@ public class FilteredNumberAsyncQueryHandler extends AsyncQueryHandler {
       return;
     }
 
-    String e164Number = PhoneNumberUtils.formatNumberToE164(number, countryIso);
-    String formattedNumber = FilteredNumbersUtil.getBlockableNumber(context, e164Number, number);
-    if (TextUtils.isEmpty(formattedNumber)) {
-      listener.onCheckComplete(INVALID_ID);
-      blockedNumberCache.put(number, INVALID_ID);
-      return;
-    }
+    final int cacheGeneration = blockedNumberCache.getGeneration();
 
     startQuery(
         NO_TOKEN,
@@ -165,7 +163,8 @@ public class FilteredNumberAsyncQueryHandler extends AsyncQueryHandler {
              * and will be returned by this query.
              */
             if (cursor == null || cursor.getCount() == 0) {
-              blockedNumberCache.put(number, BLOCKED_NUMBER_CACHE_NULL_ID);
+              blockedNumberCache.put(
+                  cacheGeneration, isE164Number, formattedNumber, BLOCKED_NUMBER_CACHE_NULL_ID);
               listener.onCheckComplete(null);
               return;
             }
@@ -174,12 +173,13 @@ public class FilteredNumberAsyncQueryHandler extends AsyncQueryHandler {
             if (!FilteredNumberCompat.useNewFiltering(context)
                 && cursor.getInt(cursor.getColumnIndex(FilteredNumberColumns.TYPE))
                     != FilteredNumberTypes.BLOCKED_NUMBER) {
-              blockedNumberCache.put(number, BLOCKED_NUMBER_CACHE_NULL_ID);
+              blockedNumberCache.put(
+                  cacheGeneration, isE164Number, formattedNumber, BLOCKED_NUMBER_CACHE_NULL_ID);
               listener.onCheckComplete(null);
               return;
             }
             Integer blockedId = cursor.getInt(cursor.getColumnIndex(FilteredNumberColumns._ID));
-            blockedNumberCache.put(number, blockedId);
+            blockedNumberCache.put(cacheGeneration, isE164Number, formattedNumber, blockedId);
             listener.onCheckComplete(blockedId);
           }
         },
@@ -189,7 +189,7 @@ public class FilteredNumberAsyncQueryHandler extends AsyncQueryHandler {
               FilteredNumberCompat.getIdColumnName(context),
               FilteredNumberCompat.getTypeColumnName(context)
             }),
-        getIsBlockedNumberSelection(e164Number != null) + " = ?",
+        getIsBlockedNumberSelection(isE164Number) + " = ?",
         new String[] {formattedNumber},
         null);
   }
@@ -208,7 +208,13 @@ public class FilteredNumberAsyncQueryHandler extends AsyncQueryHandler {
     if (!FilteredNumberCompat.canAttemptBlockOperations(context)) {
       return null;
     }
-    Integer cachedId = blockedNumberCache.get(number);
+    String e164Number = PhoneNumberUtils.formatNumberToE164(number, countryIso);
+    String formattedNumber = FilteredNumbersUtil.getBlockableNumber(context, e164Number, number);
+    if (TextUtils.isEmpty(formattedNumber)) {
+      return null;
+    }
+    boolean isE164Number = e164Number != null;
+    Integer cachedId = blockedNumberCache.get(isE164Number, formattedNumber);
     if (cachedId != null) {
       if (cachedId == BLOCKED_NUMBER_CACHE_NULL_ID) {
         cachedId = null;
@@ -216,11 +222,7 @@ public class FilteredNumberAsyncQueryHandler extends AsyncQueryHandler {
       return cachedId;
     }
 
-    String e164Number = PhoneNumberUtils.formatNumberToE164(number, countryIso);
-    String formattedNumber = FilteredNumbersUtil.getBlockableNumber(context, e164Number, number);
-    if (TextUtils.isEmpty(formattedNumber)) {
-      return null;
-    }
+    int cacheGeneration = blockedNumberCache.getGeneration();
 
     try (Cursor cursor =
         context
@@ -232,7 +234,7 @@ public class FilteredNumberAsyncQueryHandler extends AsyncQueryHandler {
                       FilteredNumberCompat.getIdColumnName(context),
                       FilteredNumberCompat.getTypeColumnName(context)
                     }),
-                getIsBlockedNumberSelection(e164Number != null) + " = ?",
+                getIsBlockedNumberSelection(isE164Number) + " = ?",
                 new String[] {formattedNumber},
                 null)) {
       /*
@@ -242,12 +244,13 @@ public class FilteredNumberAsyncQueryHandler extends AsyncQueryHandler {
        * and will be returned by this query.
        */
       if (cursor == null || cursor.getCount() == 0) {
-        blockedNumberCache.put(number, BLOCKED_NUMBER_CACHE_NULL_ID);
+        blockedNumberCache.put(
+            cacheGeneration, isE164Number, formattedNumber, BLOCKED_NUMBER_CACHE_NULL_ID);
         return null;
       }
       cursor.moveToFirst();
       int blockedId = cursor.getInt(cursor.getColumnIndex(FilteredNumberColumns._ID));
-      blockedNumberCache.put(number, blockedId);
+      blockedNumberCache.put(cacheGeneration, isE164Number, formattedNumber, blockedId);
       return blockedId;
     } catch (SecurityException e) {
       LogUtil.e("FilteredNumberAsyncQueryHandler.getBlockedIdSynchronous", null, e);
@@ -257,7 +260,7 @@ public class FilteredNumberAsyncQueryHandler extends AsyncQueryHandler {
 
   @VisibleForTesting
   public void clearCache() {
-    blockedNumberCache.clear();
+    blockedNumberCache.invalidate();
   }
 
   /*
@@ -294,7 +297,7 @@ public class FilteredNumberAsyncQueryHandler extends AsyncQueryHandler {
    * performing the 'undo' action after unblocking.
    */
   public void blockNumber(final OnBlockNumberListener listener, ContentValues values) {
-    blockedNumberCache.clear();
+    blockedNumberCache.invalidate();
     if (!FilteredNumberCompat.canAttemptBlockOperations(context)) {
       if (listener != null) {
         listener.onBlockComplete(null);
@@ -337,7 +340,7 @@ public class FilteredNumberAsyncQueryHandler extends AsyncQueryHandler {
    * @param uri The uri of row to remove, from {@link FilteredNumberAsyncQueryHandler#blockNumber}.
    */
   public void unblock(@Nullable final OnUnblockNumberListener listener, final Uri uri) {
-    blockedNumberCache.clear();
+    blockedNumberCache.invalidate();
     if (!FilteredNumberCompat.canAttemptBlockOperations(context)) {
       if (listener != null) {
         listener.onUnblockComplete(0, null);
@@ -102,6 +102,43 @@ public class FilteredNumberProvider extends ContentProvider {
     return ContentUris.withAppendedId(uri, id);
   }
 
+  /**
+   * Inserts all rows in one transaction, and notifies observers once. Rows whose normalized number
+   * is already in the table are skipped.
+   *
+   * @return the number of rows inserted
+   */
+  @Override
+  public int bulkInsert(Uri uri, ContentValues[] valuesArray) {
+    if (uriMatcher.match(uri) != FILTERED_NUMBERS_TABLE) {
+      throw new IllegalArgumentException("Unknown uri: " + uri);
+    }
+    SQLiteDatabase db = dialerDatabaseHelper.getWritableDatabase();
+    int inserted = 0;
+    db.beginTransaction();
+    try {
+      for (ContentValues values : valuesArray) {
+        setDefaultValues(values);
+        long id =
+            db.insertWithOnConflict(
+                DialerDatabaseHelper.Tables.FILTERED_NUMBER_TABLE,
+                null,
+                values,
+                SQLiteDatabase.CONFLICT_IGNORE);
+        if (id >= 0) {
+          inserted++;
+        }
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+    if (inserted > 0) {
+      notifyChange(uri);
+    }
+    return inserted;
+  }
+
   @VisibleForTesting
   protected long getCurrentTimeMs() {
     return System.currentTimeMillis();
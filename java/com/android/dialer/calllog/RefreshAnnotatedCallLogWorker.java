@@ -179,26 +179,17 @@ public class RefreshAnnotatedCallLogWorker {
     String systemEventName = eventNameForFill(systemCallLogDataSource, isBuilt);
     futureTimer.applyTiming(fillFuture, systemEventName);
 
-    // After the system call log data source is filled, call fill sequentially on each remaining
-    // data source. This must be done sequentially because mutations are not threadsafe and are
-    // passed from source to source.
-    for (CallLogDataSource dataSource : dataSources.getDataSourcesExcludingSystemCallLog()) {
-      fillFuture =
-          Futures.transformAsync(
-              fillFuture,
-              unused -> {
-                ListenableFuture<Void> dataSourceFuture = dataSource.fill(mutations);
-                String eventName = eventNameForFill(dataSource, isBuilt);
-                futureTimer.applyTiming(dataSourceFuture, eventName);
-                return dataSourceFuture;
-              },
-              lightweightExecutorService);
-    }
+    // After the system call log data source is filled, fill the remaining data sources in
+    // parallel, each with its own copy of the mutations.
+    fillFuture =
+        Futures.transformAsync(
+            fillFuture,
+            unused -> fillRemainingDataSources(mutations, isBuilt),
+            backgroundExecutorService);
 
     futureTimer.applyTiming(fillFuture, eventNameForOverallFill(isBuilt));
 
-    // After all data sources are filled, apply mutations (at this point "fillFuture" is the result
-    // of filling the last data source).
+    // After all data sources are filled, apply mutations.
     ListenableFuture<Void> applyMutationsFuture =
         Futures.transformAsync(
             fillFuture,
@@ -250,6 +241,47 @@ public class RefreshAnnotatedCallLogWorker {
         backgroundExecutorService);
   }
 
+  /**
+   * Calls fill on every data source except the system call log at the same time.
+   *
+   * <p>Mutations are not threadsafe, so each data source fills its own {@link
+   * CallLogMutations#copy() copy} of the mutations produced by the system call log data source.
+   * Once all of them are done, their changes are merged into {@code mutations} in the order of
+   * {@link DataSources#getDataSourcesExcludingSystemCallLog()}, so that where two data sources set
+   * the same value, the later one wins as it did when they were filled one after another.
+   */
+  private ListenableFuture<Void> fillRemainingDataSources(
+      CallLogMutations mutations, boolean isBuilt) {
+    List<CallLogDataSource> remainingDataSources =
+        dataSources.getDataSourcesExcludingSystemCallLog();
+    List<CallLogMutations> shards = new ArrayList<>();
+    List<ListenableFuture<Void>> fillFutures = new ArrayList<>();
+    for (CallLogDataSource dataSource : remainingDataSources) {
+      CallLogMutations shard = mutations.copy();
+      shards.add(shard);
+      ListenableFuture<Void> dataSourceFuture = dataSource.fill(shard);
+      String eventName = eventNameForFill(dataSource, isBuilt);
+      futureTimer.applyTiming(dataSourceFuture, eventName);
+      fillFutures.add(dataSourceFuture);
+    }
+
+    return Futures.transform(
+        Futures.allAsList(fillFutures),
+        unused -> {
+          // Compute all changes before merging any, as changes are relative to the mutations the
+          // shards were copied from.
+          List<CallLogMutations> changes = new ArrayList<>();
+          for (CallLogMutations shard : shards) {
+            changes.add(mutations.getChanges(shard));
+          }
+          for (CallLogMutations shardChanges : changes) {
+            mutations.merge(shardChanges);
+          }
+          return null;
+        },
+        backgroundExecutorService);
+  }
+
   private static String eventNameForFill(CallLogDataSource dataSource, boolean isBuilt) {
     return String.format(
         !isBuilt ? Metrics.INITIAL_FILL_TEMPLATE : Metrics.FILL_TEMPLATE,
@@ -23,6 +23,7 @@ import com.android.dialer.calllog.database.contract.AnnotatedCallLogContract.Ann
 import com.android.dialer.common.Assert;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
+import java.util.Collection;
 import java.util.function.Predicate;
 
 /** Constraints for columns in the {@link AnnotatedCallLog}. */
@@ -49,6 +50,19 @@ final class AnnotatedCallLogConstraints {
     checkCallTypeColumn(contentValues, operationType);
   }
 
+  /**
+   * Checks all of the given {@link ContentValues}, so that an invalid value is reported before any
+   * of them is written.
+   *
+   * @see #check(ContentValues, int)
+   */
+  public static void checkAll(
+      Collection<ContentValues> allContentValues, @Operation int operationType) {
+    for (ContentValues contentValues : allContentValues) {
+      check(contentValues, operationType);
+    }
+  }
+
   /**
    * Checks a boolean column.
    *
@@ -182,6 +182,8 @@ public class AnnotatedCallLogContentProvider extends ContentProvider {
     }
     Uri insertedUri = ContentUris.withAppendedId(AnnotatedCallLog.CONTENT_URI, id);
     if (!isApplyingBatch()) {
+      // Batches enforce the limit once all operations are applied.
+      databaseHelper.enforceMaxRows(database);
       notifyChange(insertedUri);
     }
     return insertedUri;
@@ -305,16 +307,10 @@ public class AnnotatedCallLogContentProvider extends ContentProvider {
           }
         } else if (result.count == 0) {
           /*
-           * The batches built by MutationApplier happen to contain operations in order of:
-           *
-           * 1. Inserts
-           * 2. Updates
-           * 3. Deletes
-           *
-           * Let's say the last row in the table is row Z, and MutationApplier wishes to update it,
-           * as well as insert row A. When row A gets inserted, row Z will be deleted via the
-           * trigger if the table is full. Then later, when we try to process the update for row Z,
-           * it won't exist.
+           * Rows over the limit are only cleaned up once the whole batch has been applied (see
+           * below), so this shouldn't happen for rows in the table when the batch started. It is
+           * logged rather than treated as an error, as it used to be expected when the limit was
+           * enforced after every insert.
            */
           LogUtil.w(
               "AnnotatedCallLogContentProvider.applyBatch",
@@ -322,6 +318,8 @@ public class AnnotatedCallLogContentProvider extends ContentProvider {
         }
         results[i] = result;
       }
+      // Counting the rows is linear in the size of the table, so it is done once per batch.
+      databaseHelper.enforceMaxRows(database);
       database.setTransactionSuccessful();
     } finally {
       applyingBatch.set(false);
@@ -16,18 +16,36 @@
 
 package com.android.dialer.calllog.database;
 
+import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.provider.CallLog.Calls;
+import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
+import android.support.annotation.WorkerThread;
+import android.text.TextUtils;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import com.android.dialer.calllog.database.AnnotatedCallLogConstraints.Operation;
 import com.android.dialer.calllog.database.contract.AnnotatedCallLogContract.AnnotatedCallLog;
+import com.android.dialer.common.Assert;
 import com.android.dialer.common.LogUtil;
 import com.android.dialer.common.concurrent.Annotations.BackgroundExecutor;
 import com.android.dialer.inject.ApplicationContext;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
@@ -35,7 +53,7 @@ import javax.inject.Singleton;
 @Singleton
 public class AnnotatedCallLogDatabaseHelper extends SQLiteOpenHelper {
 
-  @VisibleForTesting static final int VERSION = 4;
+  @VisibleForTesting static final int VERSION = 5;
 
   private static final String FILENAME = "annotated_call_log.db";
 
@@ -43,6 +61,9 @@ public class AnnotatedCallLogDatabaseHelper extends SQLiteOpenHelper {
   private final int maxRows;
   private final ListeningExecutorService backgroundExecutor;
 
+  /** Columns of the AnnotatedCallLog table, read by {@link #hasColumns} on first use. */
+  @Nullable private volatile Set<String> tableColumns;
+
   @Inject
   public AnnotatedCallLogDatabaseHelper(
       @ApplicationContext Context appContext,
@@ -94,21 +115,17 @@ public class AnnotatedCallLogDatabaseHelper extends SQLiteOpenHelper {
           + (AnnotatedCallLog.CALL_MAPPING_ID + " text")
           + ");";
 
+  /** Selects the rows counted towards maxRows, i.e. all rows except voicemails. */
+  private static final String NON_VOICEMAIL_SELECTION =
+      AnnotatedCallLog.CALL_TYPE + " != " + Calls.VOICEMAIL_TYPE;
+
   /**
-   * Deletes all but the first maxRows rows (by timestamp, excluding voicemails) to keep the table a
-   * manageable size.
+   * Deletes the oldest %d rows (by timestamp, excluding voicemails).
+   *
+   * <p>Formatted with the number of rows to delete, see {@link #enforceMaxRows(SQLiteDatabase)}.
    */
-  private static final String CREATE_TRIGGER_SQL =
-      "create trigger delete_old_rows after insert on "
-          + AnnotatedCallLog.TABLE
-          + " when (select count(*) from "
-          + AnnotatedCallLog.TABLE
-          + " where "
-          + AnnotatedCallLog.CALL_TYPE
-          + " != "
-          + Calls.VOICEMAIL_TYPE
-          + ") > %d"
-          + " begin delete from "
+  private static final String DELETE_OLDEST_ROWS_SQL =
+      "delete from "
           + AnnotatedCallLog.TABLE
           + " where "
           + AnnotatedCallLog._ID
@@ -117,17 +134,14 @@ public class AnnotatedCallLogDatabaseHelper extends SQLiteOpenHelper {
           + " from "
           + AnnotatedCallLog.TABLE
           + " where "
-          + AnnotatedCallLog.CALL_TYPE
-          + " != "
-          + Calls.VOICEMAIL_TYPE
-          + " order by timestamp limit (select count(*)-%d"
-          + " from "
-          + AnnotatedCallLog.TABLE
-          + " where "
-          + AnnotatedCallLog.CALL_TYPE
-          + " != "
-          + Calls.VOICEMAIL_TYPE
-          + ")); end;";
+          + NON_VOICEMAIL_SELECTION
+          + " order by "
+          + AnnotatedCallLog.TIMESTAMP
+          + " limit %d);";
+
+  /** Trigger which used to enforce maxRows after every insert, dropped in version 5. */
+  private static final String DROP_DELETE_OLD_ROWS_TRIGGER_SQL =
+      "drop trigger if exists delete_old_rows;";
 
   private static final String CREATE_INDEX_ON_CALL_TYPE_SQL =
       "create index call_type_index on "
@@ -148,7 +162,6 @@ public class AnnotatedCallLogDatabaseHelper extends SQLiteOpenHelper {
     LogUtil.enterBlock("AnnotatedCallLogDatabaseHelper.onCreate");
     long startTime = System.currentTimeMillis();
     db.execSQL(CREATE_TABLE_SQL);
-    db.execSQL(String.format(Locale.US, CREATE_TRIGGER_SQL, maxRows, maxRows));
     db.execSQL(CREATE_INDEX_ON_CALL_TYPE_SQL);
     db.execSQL(CREATE_INDEX_ON_NUMBER_SQL);
     // TODO(zachh): Consider logging impression.
@@ -169,6 +182,10 @@ public class AnnotatedCallLogDatabaseHelper extends SQLiteOpenHelper {
     if (oldVersion < 4) {
       upgradeToV4(db);
     }
+
+    if (oldVersion < 5) {
+      upgradeToV5(db);
+    }
   }
 
   private static void upgradeToV2(SQLiteDatabase db) {
@@ -213,12 +230,222 @@ public class AnnotatedCallLogDatabaseHelper extends SQLiteOpenHelper {
             + " is null");
   }
 
+  private void upgradeToV5(SQLiteDatabase db) {
+    // Before v5, a trigger deleted the oldest rows after every insert once the table was full,
+    // counting the rows of the whole table twice per insert. The limit is now enforced once per
+    // batch by AnnotatedCallLogContentProvider, see enforceMaxRows.
+    db.execSQL(DROP_DELETE_OLD_ROWS_TRIGGER_SQL);
+    enforceMaxRows(db);
+  }
+
+  /**
+   * Deletes all but the first maxRows rows (by timestamp, excluding voicemails) to keep the table a
+   * manageable size.
+   *
+   * <p>This counts the rows of the table, so it should be called once after a batch of inserts
+   * rather than after each insert.
+   *
+   * @return the number of rows deleted
+   */
+  public int enforceMaxRows(SQLiteDatabase db) {
+    long rowCount =
+        DatabaseUtils.queryNumEntries(db, AnnotatedCallLog.TABLE, NON_VOICEMAIL_SELECTION);
+    if (rowCount <= maxRows) {
+      return 0;
+    }
+    int rowsToDelete = (int) (rowCount - maxRows);
+    db.execSQL(String.format(Locale.US, DELETE_OLDEST_ROWS_SQL, rowsToDelete));
+    LogUtil.i(
+        "AnnotatedCallLogDatabaseHelper.enforceMaxRows",
+        "deleted %d rows over the limit of %d",
+        rowsToDelete,
+        maxRows);
+    return rowsToDelete;
+  }
+
+  /**
+   * Returns true if the AnnotatedCallLog table has every column set in {@code values}, i.e. if
+   * {@link #bulkWrite} can write them. The columns are read once with "PRAGMA table_info", after
+   * the database has been created or upgraded.
+   */
+  @WorkerThread
+  boolean hasColumns(Iterable<ContentValues> values) {
+    Set<String> columns = tableColumns;
+    if (columns == null) {
+      columns = new ArraySet<>();
+      try (Cursor cursor =
+          getReadableDatabase()
+              .rawQuery("PRAGMA table_info(" + AnnotatedCallLog.TABLE + ")", null)) {
+        int nameColumn = cursor.getColumnIndexOrThrow("name");
+        while (cursor.moveToNext()) {
+          columns.add(cursor.getString(nameColumn));
+        }
+      }
+      tableColumns = columns;
+    }
+    for (ContentValues contentValues : values) {
+      if (!columns.containsAll(contentValues.keySet())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Applies inserts, updates and deletes to the AnnotatedCallLog table in a single transaction,
+   * with one compiled statement per distinct set of columns, and then enforces maxRows.
+   *
+   * <p>This bypasses AnnotatedCallLogContentProvider, so callers are responsible for checking the
+   * values with {@link AnnotatedCallLogConstraints} beforehand and for notifying observers
+   * afterwards.
+   *
+   * @param inserts values to insert, keyed by row ID.
+   * @param updates values to update, keyed by row ID.
+   * @param deletes IDs of the rows to delete.
+   */
+  @WorkerThread
+  void bulkWrite(
+      Map<Long, ContentValues> inserts,
+      Map<Long, ContentValues> updates,
+      Collection<Long> deletes) {
+    SQLiteDatabase db = getWritableDatabase();
+    Map<String, SQLiteStatement> statements = new ArrayMap<>();
+    db.beginTransaction();
+    try {
+      for (Entry<Long, ContentValues> entry : inserts.entrySet()) {
+        ContentValues values = entry.getValue();
+        Long idFromValues = values.getAsLong(AnnotatedCallLog._ID);
+        Assert.checkArgument(
+            idFromValues == null || idFromValues.equals(entry.getKey()),
+            "_ID from values %d does not match ID %d",
+            idFromValues,
+            entry.getKey());
+        List<String> columns = getBoundColumns(values);
+        SQLiteStatement insert = getStatement(db, statements, Operation.INSERT, columns);
+        int index = bindValues(insert, values, columns);
+        insert.bindLong(index, entry.getKey());
+        insert.executeInsert();
+      }
+
+      int missingRows = 0;
+      for (Entry<Long, ContentValues> entry : updates.entrySet()) {
+        ContentValues values = entry.getValue();
+        Assert.checkArgument(
+            !values.containsKey(AnnotatedCallLog._ID), "Do not specify _ID when updating by ID");
+        List<String> columns = getBoundColumns(values);
+        SQLiteStatement update = getStatement(db, statements, Operation.UPDATE, columns);
+        int index = bindValues(update, values, columns);
+        update.bindLong(index, entry.getKey());
+        if (update.executeUpdateDelete() == 0) {
+          missingRows++;
+        }
+      }
+
+      if (!deletes.isEmpty()) {
+        SQLiteStatement delete =
+            db.compileStatement(
+                "delete from "
+                    + AnnotatedCallLog.TABLE
+                    + " where "
+                    + AnnotatedCallLog._ID
+                    + " = ?");
+        statements.put("delete", delete);
+        for (long id : deletes) {
+          delete.bindLong(1, id);
+          if (delete.executeUpdateDelete() == 0) {
+            missingRows++;
+          }
+        }
+      }
+
+      if (missingRows > 0) {
+        LogUtil.w(
+            "AnnotatedCallLogDatabaseHelper.bulkWrite",
+            "%d updates or deletes failed, possibly because rows got cleaned up",
+            missingRows);
+      }
+      enforceMaxRows(db);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+      for (SQLiteStatement statement : statements.values()) {
+        statement.close();
+      }
+    }
+  }
+
+  /**
+   * Returns the statement inserting or updating {@code columns}, compiling it if this set of
+   * columns hasn't been seen yet. The row ID is bound after the columns.
+   */
+  private static SQLiteStatement getStatement(
+      SQLiteDatabase db,
+      Map<String, SQLiteStatement> statements,
+      @Operation int operation,
+      List<String> columns) {
+    String key = operation + ":" + TextUtils.join(",", columns);
+    SQLiteStatement statement = statements.get(key);
+    if (statement != null) {
+      return statement;
+    }
+
+    StringBuilder sql = new StringBuilder();
+    if (operation == Operation.INSERT) {
+      sql.append("insert into ").append(AnnotatedCallLog.TABLE).append(" (");
+      for (String column : columns) {
+        sql.append(column).append(", ");
+      }
+      sql.append(AnnotatedCallLog._ID).append(") values (");
+      for (int i = 0; i < columns.size(); i++) {
+        sql.append("?, ");
+      }
+      sql.append("?)");
+    } else {
+      sql.append("update ").append(AnnotatedCallLog.TABLE).append(" set ");
+      for (int i = 0; i < columns.size(); i++) {
+        sql.append(i == 0 ? "" : ", ").append(columns.get(i)).append(" = ?");
+      }
+      sql.append(" where ").append(AnnotatedCallLog._ID).append(" = ?");
+    }
+    statement = db.compileStatement(sql.toString());
+    statements.put(key, statement);
+    return statement;
+  }
+
+  /**
+   * Binds the values of {@code columns}, as returned by {@link #getBoundColumns(ContentValues)}.
+   *
+   * @return the index of the next parameter
+   */
+  private static int bindValues(
+      SQLiteStatement statement, ContentValues values, List<String> columns) {
+    statement.clearBindings();
+    int index = 1;
+    for (String column : columns) {
+      DatabaseUtils.bindObjectToProgram(statement, index++, values.get(column));
+    }
+    return index;
+  }
+
+  /** Returns the columns of {@code values} other than the row ID, in a stable order. */
+  private static List<String> getBoundColumns(ContentValues values) {
+    List<String> columns = new ArrayList<>(values.size());
+    for (String column : values.keySet()) {
+      if (!AnnotatedCallLog._ID.equals(column)) {
+        columns.add(column);
+      }
+    }
+    Collections.sort(columns);
+    return columns;
+  }
+
   /** Closes the database and deletes it. */
   public ListenableFuture<Void> delete() {
     return backgroundExecutor.submit(
         () -> {
           close();
           appContext.deleteDatabase(FILENAME);
+          tableColumns = null;
           return null;
         });
   }
@@ -19,6 +19,7 @@ import android.database.Cursor;
 import android.database.StaleDataException;
 import android.provider.CallLog.Calls;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.annotation.WorkerThread;
 import android.telecom.PhoneAccountHandle;
 import android.text.TextUtils;
@@ -28,6 +29,7 @@ import com.android.dialer.NumberAttributes;
 import com.android.dialer.calllog.database.contract.AnnotatedCallLogContract.AnnotatedCallLog;
 import com.android.dialer.calllog.model.CoalescedRow;
 import com.android.dialer.common.Assert;
+import com.android.dialer.common.LogUtil;
 import com.android.dialer.common.concurrent.Annotations.BackgroundExecutor;
 import com.android.dialer.compat.telephony.TelephonyManagerCompat;
 import com.android.dialer.metrics.FutureTimer;
@@ -35,15 +37,30 @@ import com.android.dialer.metrics.Metrics;
 import com.android.dialer.phonenumberproto.DialerPhoneNumberUtil;
 import com.android.dialer.telecom.TelecomUtil;
 import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.primitives.Ints;
+import com.google.common.primitives.Longs;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.SettableFuture;
 import com.google.protobuf.InvalidProtocolBufferException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
 import javax.inject.Inject;
 
 /** Combines adjacent rows in {@link AnnotatedCallLog}. */
 public class Coalescer {
 
+  /** Number of coalesced rows in a page, enough to fill the first screen of the call log. */
+  public static final int PAGE_SIZE = 20;
+
+  /** Hashes the rows of a group for {@link Checkpoint}. */
+  private static final HashFunction SIGNATURE_FUNCTION = Hashing.murmur3_128();
+
   private final FutureTimer futureTimer;
   private final ListeningExecutorService backgroundExecutorService;
 
@@ -66,57 +83,149 @@ public class Coalescer {
    */
   public ListenableFuture<ImmutableList<CoalescedRow>> coalesce(
       @NonNull Cursor allAnnotatedCallLogRowsSortedByTimestampDesc) {
+    return coalescePaged(allAnnotatedCallLogRowsSortedByTimestampDesc, null).allRows();
+  }
+
+  /**
+   * Like {@link #coalesce(Cursor)}, but also provides the first {@link #PAGE_SIZE} coalesced rows
+   * as soon as they are ready, and resumes from {@code checkpoint}.
+   *
+   * <p>Rows are coalesced newest first, so each page covers the window of time immediately before
+   * the previous page. The checkpoint is updated once coalescing completes or fails, with the
+   * groups coalesced so far. If the cursor is closed before coalescing completes, or a new cursor
+   * is loaded with the same rows at the top, coalescing the new cursor with the same checkpoint
+   * skips the groups coalesced previously.
+   *
+   * @param allAnnotatedCallLogRowsSortedByTimestampDesc {@link AnnotatedCallLog} rows sorted in
+   *     descending order of timestamp.
+   * @param checkpoint the checkpoint to resume from and update, or null to coalesce all rows.
+   */
+  public PagedCoalescing coalescePaged(
+      @NonNull Cursor allAnnotatedCallLogRowsSortedByTimestampDesc,
+      @Nullable Checkpoint checkpoint) {
+    SettableFuture<ImmutableList<CoalescedRow>> firstPageFuture = SettableFuture.create();
     ListenableFuture<ImmutableList<CoalescedRow>> coalescingFuture =
         backgroundExecutorService.submit(
-            () -> coalesceInternal(Assert.isNotNull(allAnnotatedCallLogRowsSortedByTimestampDesc)));
+            () -> {
+              try {
+                return coalesceInternal(
+                    Assert.isNotNull(allAnnotatedCallLogRowsSortedByTimestampDesc),
+                    checkpoint,
+                    firstPageFuture);
+              } catch (Throwable throwable) {
+                firstPageFuture.setException(throwable);
+                throw throwable;
+              }
+            });
     futureTimer.applyTiming(coalescingFuture, Metrics.NEW_CALL_LOG_COALESCE);
-    return coalescingFuture;
+    return new PagedCoalescing(firstPageFuture, coalescingFuture);
   }
 
   /**
-   * Reads the entire {@link AnnotatedCallLog} into memory from the provided cursor and then builds
-   * and returns a list of {@link CoalescedRow coalesced rows}, which is the result of combining
-   * adjacent rows which should be collapsed for display purposes.
+   * Reads the {@link AnnotatedCallLog} from the provided cursor and then builds and returns a list
+   * of {@link CoalescedRow coalesced rows}, which is the result of combining adjacent rows which
+   * should be collapsed for display purposes.
    *
    * @param allAnnotatedCallLogRowsSortedByTimestampDesc {@link AnnotatedCallLog} rows sorted in
    *     descending order of timestamp.
+   * @param checkpoint groups coalesced by a previous run which are reused if their rows haven't
+   *     changed. Updated with the groups of this run when it completes or fails.
+   * @param firstPageFuture set once the first {@link #PAGE_SIZE} rows are coalesced.
    * @return a list of {@link CoalescedRow coalesced rows}, which will be used to display call log
    *     entries.
    */
   @WorkerThread
   @NonNull
   private ImmutableList<CoalescedRow> coalesceInternal(
-      Cursor allAnnotatedCallLogRowsSortedByTimestampDesc) throws ExpectedCoalescerException {
+      Cursor allAnnotatedCallLogRowsSortedByTimestampDesc,
+      @Nullable Checkpoint checkpoint,
+      SettableFuture<ImmutableList<CoalescedRow>> firstPageFuture)
+      throws ExpectedCoalescerException {
     Assert.isWorkerThread();
 
-    ImmutableList.Builder<CoalescedRow> coalescedRowListBuilder = new ImmutableList.Builder<>();
+    List<CoalescedRow> coalescedRows = new ArrayList<>();
+    List<Integer> groupSizes = new ArrayList<>();
+    List<Long> groupSignatures = new ArrayList<>();
+    List<Long> groupLastRowIds = new ArrayList<>();
 
     try {
       if (!allAnnotatedCallLogRowsSortedByTimestampDesc.moveToFirst()) {
+        if (checkpoint != null) {
+          checkpoint.set(
+              new CheckpointState(
+                  coalescedRows, groupSizes, groupSignatures, groupLastRowIds, true));
+        }
+        firstPageFuture.set(ImmutableList.of());
         return ImmutableList.of();
       }
 
+      if (checkpoint != null) {
+        resume(
+            allAnnotatedCallLogRowsSortedByTimestampDesc,
+            checkpoint.get(),
+            coalescedRows,
+            groupSizes,
+            groupSignatures,
+            groupLastRowIds);
+      }
+      if (coalescedRows.size() >= PAGE_SIZE) {
+        firstPageFuture.set(ImmutableList.copyOf(coalescedRows.subList(0, PAGE_SIZE)));
+      }
+
       RowCombiner rowCombiner = new RowCombiner(allAnnotatedCallLogRowsSortedByTimestampDesc);
       rowCombiner.startNewGroup();
 
-      long coalescedRowId = 0;
-      do {
+      int idColumn =
+          allAnnotatedCallLogRowsSortedByTimestampDesc.getColumnIndexOrThrow(AnnotatedCallLog._ID);
+      long coalescedRowId = coalescedRows.size();
+      int groupSize = 0;
+      Hasher groupHasher = SIGNATURE_FUNCTION.newHasher();
+      long groupLastRowId = -1;
+      while (!allAnnotatedCallLogRowsSortedByTimestampDesc.isAfterLast()) {
         boolean isRowMerged = rowCombiner.mergeRow(allAnnotatedCallLogRowsSortedByTimestampDesc);
 
         if (isRowMerged) {
+          if (checkpoint != null) {
+            putRow(groupHasher, allAnnotatedCallLogRowsSortedByTimestampDesc);
+            groupLastRowId = allAnnotatedCallLogRowsSortedByTimestampDesc.getLong(idColumn);
+          }
+          groupSize++;
           allAnnotatedCallLogRowsSortedByTimestampDesc.moveToNext();
         }
 
         if (!isRowMerged || allAnnotatedCallLogRowsSortedByTimestampDesc.isAfterLast()) {
-          coalescedRowListBuilder.add(
-              rowCombiner.combine().toBuilder().setId(coalescedRowId++).build());
+          coalescedRows.add(rowCombiner.combine().toBuilder().setId(coalescedRowId++).build());
+          groupSizes.add(groupSize);
+          groupSignatures.add(groupHasher.hash().asLong());
+          groupLastRowIds.add(groupLastRowId);
           rowCombiner.startNewGroup();
+          groupSize = 0;
+          groupHasher = SIGNATURE_FUNCTION.newHasher();
+          groupLastRowId = -1;
+
+          if (coalescedRows.size() == PAGE_SIZE) {
+            firstPageFuture.set(ImmutableList.copyOf(coalescedRows));
+          }
         }
-      } while (!allAnnotatedCallLogRowsSortedByTimestampDesc.isAfterLast());
+      }
 
-      return coalescedRowListBuilder.build();
+      ImmutableList<CoalescedRow> allRows = ImmutableList.copyOf(coalescedRows);
+      if (checkpoint != null) {
+        checkpoint.set(
+            new CheckpointState(allRows, groupSizes, groupSignatures, groupLastRowIds, true));
+      }
+      firstPageFuture.set(allRows);
+      return allRows;
 
     } catch (Exception exception) {
+      // Keep the groups completed so far, so that the next run can skip them. Each group is added
+      // to the four lists after its last row is read, so they all hold the same groups.
+      if (checkpoint != null) {
+        checkpoint.set(
+            new CheckpointState(
+                coalescedRows, groupSizes, groupSignatures, groupLastRowIds, false));
+      }
+
       // Coalescing can fail if cursor "allAnnotatedCallLogRowsSortedByTimestampDesc" is closed by
       // its loader while the work is still in progress.
       //
@@ -154,6 +263,94 @@ public class Coalescer {
     }
   }
 
+  /**
+   * Copies the groups of {@code state} whose rows are unchanged in {@code cursor} into the given
+   * lists, and moves the cursor to the first row which isn't part of them.
+   *
+   * <p>Where a group ends depends on the row following it, so the last unchanged group is only
+   * reused if the group after it is unchanged too, or if it was the last group of a complete run
+   * and is still the last group.
+   */
+  private static void resume(
+      Cursor cursor,
+      @Nullable CheckpointState state,
+      List<CoalescedRow> coalescedRows,
+      List<Integer> groupSizes,
+      List<Long> groupSignatures,
+      List<Long> groupLastRowIds) {
+    if (state == null || state.rows.isEmpty()) {
+      return;
+    }
+
+    int idColumn = cursor.getColumnIndexOrThrow(AnnotatedCallLog._ID);
+    int unchangedGroups = 0;
+    int unchangedRows = 0;
+    while (unchangedGroups < state.rows.size()) {
+      Hasher groupHasher = SIGNATURE_FUNCTION.newHasher();
+      long groupLastRowId = -1;
+      int groupSize = state.groupSizes[unchangedGroups];
+      int rowsRead = 0;
+      for (; rowsRead < groupSize && !cursor.isAfterLast(); rowsRead++) {
+        putRow(groupHasher, cursor);
+        groupLastRowId = cursor.getLong(idColumn);
+        cursor.moveToNext();
+      }
+      if (rowsRead != groupSize
+          || groupLastRowId != state.groupLastRowIds[unchangedGroups]
+          || groupHasher.hash().asLong() != state.groupSignatures[unchangedGroups]) {
+        break;
+      }
+      unchangedGroups++;
+      unchangedRows += groupSize;
+      if (cursor.isAfterLast()) {
+        break;
+      }
+    }
+
+    boolean isFinalGroupReusable =
+        state.isComplete && unchangedGroups == state.rows.size() && cursor.isAfterLast();
+    int reusedGroups = isFinalGroupReusable ? unchangedGroups : Math.max(0, unchangedGroups - 1);
+    int reusedRows = unchangedRows;
+    if (reusedGroups < unchangedGroups) {
+      reusedRows -= state.groupSizes[reusedGroups];
+    }
+    for (int i = 0; i < reusedGroups; i++) {
+      coalescedRows.add(state.rows.get(i));
+      groupSizes.add(state.groupSizes[i]);
+      groupSignatures.add(state.groupSignatures[i]);
+      groupLastRowIds.add(state.groupLastRowIds[i]);
+    }
+    cursor.moveToPosition(reusedRows);
+    LogUtil.i("Coalescer.resume", "reused %d of %d groups", reusedGroups, state.rows.size());
+  }
+
+  /** Adds the type and value of every column of the cursor's current row to {@code hasher}. */
+  private static void putRow(Hasher hasher, Cursor cursor) {
+    for (int column = 0; column < cursor.getColumnCount(); column++) {
+      int type = cursor.getType(column);
+      hasher.putInt(type);
+      switch (type) {
+        case Cursor.FIELD_TYPE_INTEGER:
+          hasher.putLong(cursor.getLong(column));
+          break;
+        case Cursor.FIELD_TYPE_FLOAT:
+          hasher.putDouble(cursor.getDouble(column));
+          break;
+        case Cursor.FIELD_TYPE_STRING:
+          String string = cursor.getString(column);
+          hasher.putInt(string.length()).putString(string, StandardCharsets.UTF_8);
+          break;
+        case Cursor.FIELD_TYPE_BLOB:
+          byte[] blob = cursor.getBlob(column);
+          hasher.putInt(blob.length).putBytes(blob);
+          break;
+        case Cursor.FIELD_TYPE_NULL:
+        default:
+          break;
+      }
+    }
+  }
+
   /** Combines rows from {@link AnnotatedCallLog} into a {@link CoalescedRow}. */
   private static final class RowCombiner {
     private final CoalescedRow.Builder coalescedRowBuilder = CoalescedRow.newBuilder();
@@ -377,6 +574,81 @@ public class Coalescer {
     }
   }
 
+  /** Futures of a call to {@link #coalescePaged(Cursor, Checkpoint)}. */
+  public static final class PagedCoalescing {
+    private final ListenableFuture<ImmutableList<CoalescedRow>> firstPage;
+    private final ListenableFuture<ImmutableList<CoalescedRow>> allRows;
+
+    PagedCoalescing(
+        ListenableFuture<ImmutableList<CoalescedRow>> firstPage,
+        ListenableFuture<ImmutableList<CoalescedRow>> allRows) {
+      this.firstPage = firstPage;
+      this.allRows = allRows;
+    }
+
+    /**
+     * The first {@link #PAGE_SIZE} coalesced rows, or all of them if there are fewer. Fails if
+     * coalescing fails before the first page is ready.
+     */
+    public ListenableFuture<ImmutableList<CoalescedRow>> firstPage() {
+      return firstPage;
+    }
+
+    /** All coalesced rows. */
+    public ListenableFuture<ImmutableList<CoalescedRow>> allRows() {
+      return allRows;
+    }
+  }
+
+  /**
+   * Groups coalesced by a previous call to {@link #coalescePaged(Cursor, Checkpoint)}, so that a
+   * later call with a new cursor doesn't have to coalesce them again.
+   *
+   * <p>Each group is stored with the number of {@link AnnotatedCallLog} rows it was built from, the
+   * ID of its last row and a 64-bit murmur3 hash of their columns, which are compared with the rows
+   * of the new cursor to tell whether the group can be reused.
+   */
+  public static final class Checkpoint {
+    @Nullable private CheckpointState state;
+
+    @Nullable
+    synchronized CheckpointState get() {
+      return state;
+    }
+
+    synchronized void set(CheckpointState state) {
+      this.state = state;
+    }
+
+    /** Forgets all groups, e.g. when the rows are known to have changed. */
+    public synchronized void clear() {
+      state = null;
+    }
+  }
+
+  /** Immutable snapshot of a {@link Checkpoint}. */
+  private static final class CheckpointState {
+    private final ImmutableList<CoalescedRow> rows;
+    private final int[] groupSizes;
+    private final long[] groupSignatures;
+    private final long[] groupLastRowIds;
+    /** True if the groups cover every row of the cursor they were built from. */
+    private final boolean isComplete;
+
+    CheckpointState(
+        List<CoalescedRow> rows,
+        List<Integer> groupSizes,
+        List<Long> groupSignatures,
+        List<Long> groupLastRowIds,
+        boolean isComplete) {
+      this.rows = ImmutableList.copyOf(rows);
+      this.groupSizes = Ints.toArray(groupSizes);
+      this.groupSignatures = Longs.toArray(groupSignatures);
+      this.groupLastRowIds = Longs.toArray(groupLastRowIds);
+      this.isComplete = isComplete;
+    }
+  }
+
   /** A checked exception thrown when expected failure happens when coalescing is in progress. */
   public static final class ExpectedCoalescerException extends Exception {
     ExpectedCoalescerException(Throwable throwable) {
@@ -21,8 +21,10 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.content.OperationApplicationException;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.support.annotation.WorkerThread;
 import android.text.TextUtils;
+import com.android.dialer.calllog.database.AnnotatedCallLogConstraints.Operation;
 import com.android.dialer.calllog.database.contract.AnnotatedCallLogContract;
 import com.android.dialer.calllog.database.contract.AnnotatedCallLogContract.AnnotatedCallLog;
 import com.android.dialer.calllog.datasources.CallLogMutations;
@@ -43,10 +45,14 @@ import javax.inject.Inject;
 public class MutationApplier {
 
   private final ListeningExecutorService backgroundExecutorService;
+  private final AnnotatedCallLogDatabaseHelper annotatedCallLogDatabaseHelper;
 
   @Inject
-  public MutationApplier(@BackgroundExecutor ListeningExecutorService backgroundExecutorService) {
+  public MutationApplier(
+      @BackgroundExecutor ListeningExecutorService backgroundExecutorService,
+      AnnotatedCallLogDatabaseHelper annotatedCallLogDatabaseHelper) {
     this.backgroundExecutorService = backgroundExecutorService;
+    this.annotatedCallLogDatabaseHelper = annotatedCallLogDatabaseHelper;
   }
 
   /** Applies the provided {@link CallLogMutations} to the annotated call log. */
@@ -66,6 +72,61 @@ public class MutationApplier {
       throws RemoteException, OperationApplicationException {
     Assert.isWorkerThread();
 
+    long startTime = SystemClock.elapsedRealtime();
+    int rowCount =
+        mutations.getInserts().size()
+            + mutations.getUpdates().size()
+            + mutations.getDeletes().size();
+    if (applyWithBulkWriter(mutations, appContext)) {
+      LogUtil.i(
+          "MutationApplier.applyToDatabaseInternal",
+          "bulk writer applied %d mutations in %dms",
+          rowCount,
+          SystemClock.elapsedRealtime() - startTime);
+      return;
+    }
+
+    startTime = SystemClock.elapsedRealtime();
+    applyWithContentProvider(mutations, appContext);
+    LogUtil.i(
+        "MutationApplier.applyToDatabaseInternal",
+        "content provider applied %d mutations in %dms",
+        rowCount,
+        SystemClock.elapsedRealtime() - startTime);
+  }
+
+  /**
+   * Writes the mutations directly with {@link AnnotatedCallLogDatabaseHelper#bulkWrite}, which
+   * avoids building and dispatching a {@link ContentProviderOperation} per row.
+   *
+   * <p>The checks otherwise made by AnnotatedCallLogContentProvider are made here for all rows
+   * before anything is written, and observers are notified once.
+   *
+   * @return false without writing anything if the AnnotatedCallLog table doesn't have a column
+   *     the mutations set, in which case they should be applied through the content provider.
+   */
+  @WorkerThread
+  private boolean applyWithBulkWriter(CallLogMutations mutations, Context appContext) {
+    AnnotatedCallLogConstraints.checkAll(mutations.getInserts().values(), Operation.INSERT);
+    AnnotatedCallLogConstraints.checkAll(mutations.getUpdates().values(), Operation.UPDATE);
+    if (!annotatedCallLogDatabaseHelper.hasColumns(
+        Iterables.concat(mutations.getInserts().values(), mutations.getUpdates().values()))) {
+      LogUtil.w(
+          "MutationApplier.applyWithBulkWriter",
+          "table is missing columns, falling back to the content provider");
+      return false;
+    }
+    annotatedCallLogDatabaseHelper.bulkWrite(
+        mutations.getInserts(), mutations.getUpdates(), mutations.getDeletes());
+    appContext
+        .getContentResolver()
+        .notifyChange(AnnotatedCallLog.CONTENT_URI, /* observer = */ null);
+    return true;
+  }
+
+  @WorkerThread
+  private void applyWithContentProvider(CallLogMutations mutations, Context appContext)
+      throws RemoteException, OperationApplicationException {
     ArrayList<ContentProviderOperation> operations = new ArrayList<>();
 
     if (!mutations.getInserts().isEmpty()) {
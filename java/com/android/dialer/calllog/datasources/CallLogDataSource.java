@@ -66,7 +66,8 @@ public interface CallLogDataSource {
    * @see CallLogDataSource class doc for complete lifecyle information
    * @param mutations the set of mutations which this method should contribute to. Note that it may
    *     contain inserts from the system call log, and these inserts should be modified by each data
-   *     source.
+   *     source. Other than the system call log data source, data sources are filled at the same
+   *     time with separate copies of the mutations, so they don't see each other's changes.
    */
   ListenableFuture<Void> fill(CallLogMutations mutations);
 
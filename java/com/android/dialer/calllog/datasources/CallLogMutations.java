@@ -20,6 +20,8 @@ import android.content.ContentValues;
 import android.util.ArrayMap;
 import android.util.ArraySet;
 import com.android.dialer.common.Assert;
+import java.util.Map.Entry;
+import java.util.Objects;
 
 /** A collection of mutations to the annotated call log. */
 public final class CallLogMutations {
@@ -75,6 +77,89 @@ public final class CallLogMutations {
     deletes.add(id);
   }
 
+  /**
+   * Returns a copy of these mutations, with copies of their content values, which can be modified
+   * independently of these mutations.
+   *
+   * <p>Used to let several data sources fill mutations at the same time, see {@link
+   * #getChanges(CallLogMutations)}.
+   */
+  public CallLogMutations copy() {
+    CallLogMutations copy = new CallLogMutations();
+    for (Entry<Long, ContentValues> entry : inserts.entrySet()) {
+      copy.inserts.put(entry.getKey(), new ContentValues(entry.getValue()));
+    }
+    for (Entry<Long, ContentValues> entry : updates.entrySet()) {
+      copy.updates.put(entry.getKey(), new ContentValues(entry.getValue()));
+    }
+    copy.deletes.addAll(deletes);
+    return copy;
+  }
+
+  /**
+   * Returns the changes made to {@code shard}, a {@link #copy()} of these mutations, which can then
+   * be applied to these mutations with {@link #merge(CallLogMutations)}.
+   *
+   * <p>The changes contain the inserts, updates and deletes not present in these mutations, and for
+   * rows present in both, the values which were added or modified. Values set to the value they
+   * already had are not considered changed.
+   */
+  public CallLogMutations getChanges(CallLogMutations shard) {
+    CallLogMutations changes = new CallLogMutations();
+    putChangedValues(inserts, shard.inserts, changes.inserts);
+    putChangedValues(updates, shard.updates, changes.updates);
+    for (Long id : shard.deletes) {
+      if (!deletes.contains(id)) {
+        changes.deletes.add(id);
+      }
+    }
+    return changes;
+  }
+
+  private static void putChangedValues(
+      ArrayMap<Long, ContentValues> original,
+      ArrayMap<Long, ContentValues> modified,
+      ArrayMap<Long, ContentValues> changes) {
+    for (Entry<Long, ContentValues> entry : modified.entrySet()) {
+      ContentValues originalValues = original.get(entry.getKey());
+      if (originalValues == null) {
+        changes.put(entry.getKey(), entry.getValue());
+        continue;
+      }
+      ContentValues changedValues = new ContentValues(entry.getValue());
+      for (String key : entry.getValue().keySet()) {
+        if (originalValues.containsKey(key)
+            && Objects.deepEquals(originalValues.get(key), changedValues.get(key))) {
+          changedValues.remove(key);
+        }
+      }
+      if (changedValues.size() > 0) {
+        changes.put(entry.getKey(), changedValues);
+      }
+    }
+  }
+
+  /**
+   * Applies changes returned by {@link #getChanges(CallLogMutations)}. Values in {@code changes}
+   * overwrite existing values for the same row and column.
+   */
+  public void merge(CallLogMutations changes) {
+    for (Entry<Long, ContentValues> entry : changes.inserts.entrySet()) {
+      ContentValues existingContentValues = inserts.get(entry.getKey());
+      if (existingContentValues != null) {
+        existingContentValues.putAll(entry.getValue());
+      } else {
+        insert(entry.getKey(), entry.getValue());
+      }
+    }
+    for (Entry<Long, ContentValues> entry : changes.updates.entrySet()) {
+      update(entry.getKey(), entry.getValue());
+    }
+    for (Long id : changes.deletes) {
+      delete(id);
+    }
+  }
+
   public boolean isEmpty() {
     return inserts.isEmpty() && updates.isEmpty() && deletes.isEmpty();
   }
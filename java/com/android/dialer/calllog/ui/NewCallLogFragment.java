@@ -51,7 +51,6 @@ import com.android.dialer.widget.EmptyContentView;
 import com.android.dialer.widget.EmptyContentView.OnEmptyViewActionButtonClickedListener;
 import com.google.common.collect.ImmutableList;
 import com.google.common.util.concurrent.Futures;
-import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.MoreExecutors;
 import java.util.Arrays;
 import java.util.concurrent.TimeUnit;
@@ -69,6 +68,10 @@ public final class NewCallLogFragment extends Fragment implements LoaderCallback
   private EmptyContentView emptyContentView;
   private RefreshAnnotatedCallLogReceiver refreshAnnotatedCallLogReceiver;
   private SupportUiListener<ImmutableList<CoalescedRow>> coalesingAnnotatedCallLogListener;
+  private SupportUiListener<ImmutableList<CoalescedRow>> coalescingFirstPageListener;
+
+  /** Lets coalescing a reloaded cursor skip the groups whose rows haven't changed. */
+  private final Coalescer.Checkpoint coalescerCheckpoint = new Coalescer.Checkpoint();
 
   private boolean shouldMarkCallsRead = false;
   private final Runnable setShouldMarkCallsReadTrue = () -> shouldMarkCallsRead = true;
@@ -231,6 +234,11 @@ public final class NewCallLogFragment extends Fragment implements LoaderCallback
             .createUiListener(
                 getChildFragmentManager(),
                 /* taskId = */ "NewCallLogFragment.coalescingAnnotatedCallLog");
+    coalescingFirstPageListener =
+        DialerExecutorComponent.get(getContext())
+            .createUiListener(
+                getChildFragmentManager(),
+                /* taskId = */ "NewCallLogFragment.coalescingFirstPage");
 
     if (PermissionsUtil.hasCallLogReadPermissions(getContext())) {
       getLoaderManager().restartLoader(LOADER_ID, null, this);
@@ -306,34 +314,34 @@ public final class NewCallLogFragment extends Fragment implements LoaderCallback
 
     // Start combining adjacent rows which should be collapsed for display purposes.
     // This is a time-consuming process so we will do it in the background.
-    ListenableFuture<ImmutableList<CoalescedRow>> coalescedRowsFuture =
-        CallLogDatabaseComponent.get(getContext()).coalescer().coalesce(newCursor);
+    Coalescer.PagedCoalescing coalescing =
+        CallLogDatabaseComponent.get(getContext())
+            .coalescer()
+            .coalescePaged(newCursor, coalescerCheckpoint);
+
+    // When nothing is shown yet, show the first page as soon as it is ready. Otherwise keep
+    // showing the previous rows until all rows are ready, so that the list doesn't shrink.
+    if (recyclerView.getAdapter() == null) {
+      coalescingFirstPageListener.listen(
+          getContext(),
+          coalescing.firstPage(),
+          coalescedRows -> {
+            if (recyclerView.getAdapter() == null) {
+              LogUtil.i("NewCallLogFragment.onLoadFinished", "first page coalesced");
+              showCoalescedRows(coalescedRows);
+            }
+          },
+          throwable -> {
+            // Failures are handled by coalesingAnnotatedCallLogListener.
+          });
+    }
 
     coalesingAnnotatedCallLogListener.listen(
         getContext(),
-        coalescedRowsFuture,
+        coalescing.allRows(),
         coalescedRows -> {
           LogUtil.i("NewCallLogFragment.onLoadFinished", "coalescing succeeded");
-
-          // TODO(zachh): Handle empty cursor by showing empty view.
-          if (recyclerView.getAdapter() == null) {
-            recyclerView.setLayoutManager(new LinearLayoutManager(getContext()));
-            // Note: It's not clear if this callback can be invoked when there's no associated
-            // activity, but if crashes are observed here it may be possible to use getContext()
-            // instead.
-            Activity activity = Assert.isNotNull(getActivity());
-            recyclerView.setAdapter(
-                new NewCallLogAdapter(
-                    activity,
-                    coalescedRows,
-                    System::currentTimeMillis,
-                    PromotionComponent.get(getContext())
-                        .promotionManager()
-                        .getHighestPriorityPromotion(PromotionType.CARD)
-                        .orElse(null)));
-          } else {
-            ((NewCallLogAdapter) recyclerView.getAdapter()).updateRows(coalescedRows);
-          }
+          showCoalescedRows(coalescedRows);
         },
         throwable -> {
           // Coalescing can fail if the cursor passed to Coalescer is closed by the loader while
@@ -341,13 +349,36 @@ public final class NewCallLogFragment extends Fragment implements LoaderCallback
           // This can happen when the loader restarts and finishes loading data before the
           // coalescing work is completed.
           // This failure is identified by ExpectedCoalescerException and doesn't need to be
-          // thrown as coalescing will be restarted on the latest data obtained by the loader.
+          // thrown as coalescing will be restarted on the latest data obtained by the loader, and
+          // will resume from coalescerCheckpoint.
           if (!(throwable instanceof Coalescer.ExpectedCoalescerException)) {
             throw new AssertionError(throwable);
           }
         });
   }
 
+  private void showCoalescedRows(ImmutableList<CoalescedRow> coalescedRows) {
+    // TODO(zachh): Handle empty cursor by showing empty view.
+    if (recyclerView.getAdapter() == null) {
+      recyclerView.setLayoutManager(new LinearLayoutManager(getContext()));
+      // Note: It's not clear if this callback can be invoked when there's no associated
+      // activity, but if crashes are observed here it may be possible to use getContext()
+      // instead.
+      Activity activity = Assert.isNotNull(getActivity());
+      recyclerView.setAdapter(
+          new NewCallLogAdapter(
+              activity,
+              coalescedRows,
+              System::currentTimeMillis,
+              PromotionComponent.get(getContext())
+                  .promotionManager()
+                  .getHighestPriorityPromotion(PromotionType.CARD)
+                  .orElse(null)));
+    } else {
+      ((NewCallLogAdapter) recyclerView.getAdapter()).updateRows(coalescedRows);
+    }
+  }
+
   @Override
   public void onLoaderReset(Loader<Cursor> loader) {
     LogUtil.enterBlock("NewCallLogFragment.onLoaderReset");
@@ -135,7 +135,7 @@ class CallStatsAdapter extends RecyclerView.Adapter {
     mInfoLookup = new ConcurrentHashMap<>();
 
     mContactInfoCache = new ContactInfoCache(cache,
-        mContactInfoHelper, () -> notifyDataSetChanged());
+        mContactInfoHelper, changedNumbers -> notifyDataSetChanged());
     if (!PermissionsUtil.hasContactsReadPermissions(context)) {
       mContactInfoCache.disableRequestProcessing();
     }
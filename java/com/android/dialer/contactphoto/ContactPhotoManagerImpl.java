@@ -48,6 +48,7 @@ import android.support.annotation.WorkerThread;
 import android.support.v4.graphics.drawable.RoundedBitmapDrawable;
 import android.support.v4.graphics.drawable.RoundedBitmapDrawableFactory;
 import android.text.TextUtils;
+import android.util.ArrayMap;
 import android.util.LruCache;
 import android.view.View;
 import android.view.ViewGroup;
@@ -58,6 +59,7 @@ import com.android.dialer.constants.TrafficStatsTags;
 import com.android.dialer.util.PermissionsUtil;
 import com.android.dialer.util.UriUtils;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.ref.Reference;
@@ -65,18 +67,32 @@ import java.lang.ref.SoftReference;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
 
   private static final String LOADER_THREAD_NAME = "ContactPhotoLoader";
 
+  private static final String DECODER_THREAD_NAME = "ContactPhotoDecoder";
+
+  private static final int MAX_DECODE_THREADS = 2;
+
+  private static final long DECODE_THREAD_KEEP_ALIVE_SECONDS = 10;
+
   private static final int FADE_TRANSITION_DURATION = 200;
 
   /**
@@ -91,14 +107,32 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
 
   private static final String[] COLUMNS = new String[] {Photo._ID, Photo.PHOTO};
 
+  private static final String[] VERSION_COLUMNS = new String[] {Photo._ID, Data.DATA_VERSION};
+
   /**
    * Dummy object used to indicate that a bitmap for a given key could not be stored in the cache.
    */
   private static final BitmapHolder BITMAP_UNAVAILABLE;
-  /** Cache size for {@link #bitmapHolderCache} for devices with "large" RAM. */
+  /** Minimum cache size for {@link #bitmapHolderCache} for devices with "large" RAM. */
   private static final int HOLDER_CACHE_SIZE = 2000000;
-  /** Cache size for {@link #bitmapCache} for devices with "large" RAM. */
+  /** Minimum cache size for {@link #bitmapCache} for devices with "large" RAM. */
   private static final int BITMAP_CACHE_SIZE = 36864 * 48; // 1728K
+  /**
+   * Above the minimum, {@link #bitmapHolderCache} gets 1/96 and {@link #bitmapCache} 1/64 of the
+   * app's memory class, up to four times the minimum.
+   */
+  private static final int HOLDER_CACHE_MEMORY_DIVISOR = 96;
+
+  private static final int BITMAP_CACHE_MEMORY_DIVISOR = 64;
+  private static final int MAX_CACHE_SIZE_FACTOR = 4;
+
+  /** {@link BitmapHolder#diskCacheVersion} of holders which don't have to be stored on disk. */
+  private static final int NO_DISK_CACHE_VERSION = -1;
+
+  /** Size of {@link #diskCache} for devices with "large" RAM. */
+  private static final long DISK_CACHE_SIZE = 8 * 1024 * 1024;
+
+  private static final String DISK_CACHE_DIRECTORY = "contact_thumbnails";
   /** Height/width of a thumbnail image */
   private static int thumbnailSize;
 
@@ -133,10 +167,33 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
   private final AtomicInteger staleCacheOverwrite = new AtomicInteger();
   /** For debug: How many times we had to reload cached photo for a fresh entry. Should be 0. */
   private final AtomicInteger freshCacheOverwrite = new AtomicInteger();
+  /** Thumbnails of photos loaded by ID, surviving process restarts. */
+  private final ThumbnailDiskCache diskCache;
+  /** For stats: requests answered from memory, and requests which had to be loaded. */
+  private final AtomicInteger memoryHits = new AtomicInteger();
+
+  private final AtomicInteger memoryMisses = new AtomicInteger();
+  /** For stats: thumbnails found in {@link #diskCache}, and thumbnails read from the provider. */
+  private final AtomicInteger diskHits = new AtomicInteger();
+
+  private final AtomicInteger diskMisses = new AtomicInteger();
+  /** For stats: number of bitmaps decoded, and the total time spent decoding them. */
+  private final AtomicInteger decodeCount = new AtomicInteger();
+
+  private final AtomicLong decodeNanos = new AtomicLong();
   /** {@code true} if ALL entries in {@link #bitmapHolderCache} are NOT fresh. */
   private volatile boolean bitmapHolderCacheAllUnfresh = true;
   /** Thread responsible for loading photos from the database. Created upon the first request. */
   private LoaderThread loaderThread;
+  /** Decodes bitmaps, most recently requested first. */
+  private final ThreadPoolExecutor decodeExecutor;
+  /** Holders which are queued for or being decoded. */
+  private final Set<BitmapHolder> decodingHolders =
+      Collections.newSetFromMap(new ConcurrentHashMap<BitmapHolder, Boolean>());
+  /** For stats: decodes skipped because the view had been bound to another photo. */
+  private final AtomicInteger staleDecodes = new AtomicInteger();
+  /** Sequence number of the latest request. Only accessed on the UI thread. */
+  private long requestSequence;
   /** A gate to make sure we only send one instance of MESSAGE_PHOTOS_NEEDED at a time. */
   private boolean loadingRequested;
   /** Flag indicating if the image loading is paused. */
@@ -151,8 +208,12 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         ((ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE));
 
     final float cacheSizeAdjustment = (am.isLowRamDevice()) ? 0.5f : 1.0f;
+    final int memoryClassBytes = am.getMemoryClass() * 1024 * 1024;
 
-    final int bitmapCacheSize = (int) (cacheSizeAdjustment * BITMAP_CACHE_SIZE);
+    final int bitmapCacheSize =
+        (int)
+            (cacheSizeAdjustment
+                * getCacheSize(BITMAP_CACHE_SIZE, memoryClassBytes / BITMAP_CACHE_MEMORY_DIVISOR));
     bitmapCache =
         new LruCache<Object, Bitmap>(bitmapCacheSize) {
           @Override
@@ -168,7 +229,10 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             }
           }
         };
-    final int holderCacheSize = (int) (cacheSizeAdjustment * HOLDER_CACHE_SIZE);
+    final int holderCacheSize =
+        (int)
+            (cacheSizeAdjustment
+                * getCacheSize(HOLDER_CACHE_SIZE, memoryClassBytes / HOLDER_CACHE_MEMORY_DIVISOR));
     bitmapHolderCache =
         new LruCache<Object, BitmapHolder>(holderCacheSize) {
           @Override
@@ -185,17 +249,44 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
           }
         };
     bitmapHolderCacheRedZoneBytes = (int) (holderCacheSize * 0.75);
+    diskCache =
+        new ThumbnailDiskCache(
+            new File(context.getCacheDir(), DISK_CACHE_DIRECTORY),
+            (long) (cacheSizeAdjustment * DISK_CACHE_SIZE));
     LogUtil.i(
-        "ContactPhotoManagerImpl.ContactPhotoManagerImpl", "cache adj: " + cacheSizeAdjustment);
-    if (DEBUG) {
-      LogUtil.d(
-          "ContactPhotoManagerImpl.ContactPhotoManagerImpl",
-          "Cache size: " + btk(bitmapHolderCache.maxSize()) + " + " + btk(bitmapCache.maxSize()));
-    }
+        "ContactPhotoManagerImpl.ContactPhotoManagerImpl",
+        "cache adj: "
+            + cacheSizeAdjustment
+            + ", size: "
+            + btk(bitmapHolderCache.maxSize())
+            + " + "
+            + btk(bitmapCache.maxSize()));
 
     thumbnailSize =
         context.getResources().getDimensionPixelSize(R.dimen.contact_browser_list_item_photo_size);
 
+    int decodeThreads =
+        Math.max(1, Math.min(MAX_DECODE_THREADS, Runtime.getRuntime().availableProcessors() - 1));
+    decodeExecutor =
+        new ThreadPoolExecutor(
+            decodeThreads,
+            decodeThreads,
+            DECODE_THREAD_KEEP_ALIVE_SECONDS,
+            TimeUnit.SECONDS,
+            new PriorityBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+              private final AtomicInteger count = new AtomicInteger();
+
+              @Override
+              public Thread newThread(Runnable runnable) {
+                Thread thread =
+                    new Thread(runnable, DECODER_THREAD_NAME + "-" + count.incrementAndGet());
+                thread.setPriority(Thread.MIN_PRIORITY + 1);
+                return thread;
+              }
+            });
+    decodeExecutor.allowCoreThreadTimeOut(true);
+
     // Get a user agent string to use for URI photo requests.
     userAgent = Constants.get().getUserAgent(context);
     if (userAgent == null) {
@@ -208,6 +299,11 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     return ((bytes + 1023) / 1024) + "K";
   }
 
+  /** Returns {@code budget}, bounded by {@code minimum} and a few times {@code minimum}. */
+  private static int getCacheSize(int minimum, int budget) {
+    return Math.max(minimum, Math.min(budget, minimum * MAX_CACHE_SIZE_FACTOR));
+  }
+
   private static final int safeDiv(int dividend, int divisor) {
     return (divisor == 0) ? 0 : (dividend / divisor);
   }
@@ -224,7 +320,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
    * either by {@link #bitmapCache} or by a soft reference in the holder, it will not be necessary
    * to decode the bitmap.
    */
-  private static void inflateBitmap(BitmapHolder holder, int requestedExtent) {
+  private void inflateBitmap(BitmapHolder holder, int requestedExtent) {
     final int sampleSize =
         BitmapUtil.findOptimalSampleSize(holder.originalSmallerExtent, requestedExtent);
     byte[] bytes = holder.bytes;
@@ -244,7 +340,10 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     }
 
     try {
+      long startNanos = System.nanoTime();
       Bitmap bitmap = BitmapUtil.decodeBitmapFromBytes(bytes, sampleSize);
+      decodeNanos.addAndGet(System.nanoTime() - startNanos);
+      decodeCount.incrementAndGet();
 
       // TODO: As a temporary workaround while framework support is being added to
       // clip non-square bitmaps into a perfect circle, manually crop the bitmap into
@@ -296,8 +395,20 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     }
   }
 
-  /** Dump cache stats on logcat. */
+  /** Dump cache stats on logcat. The sizes of the caches are only logged in debug builds. */
   private void dumpStats() {
+    int decodes = decodeCount.get();
+    LogUtil.i(
+        "ContactPhotoManagerImpl.dumpStats",
+        "memory hits: %d, misses: %d, disk hits: %d, misses: %d, decodes: %d, avg: %d us,"
+            + " stale: %d",
+        memoryHits.get(),
+        memoryMisses.get(),
+        diskHits.get(),
+        diskMisses.get(),
+        decodes,
+        safeDiv((int) (decodeNanos.get() / 1000), decodes),
+        staleDecodes.get());
     if (!DEBUG) {
       return;
     }
@@ -369,9 +480,19 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
       LogUtil.d("ContactPhotoManagerImpl.onTrimMemory", "onTrimMemory: " + level);
     }
     if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
-      // Clear the caches.  Note all pending requests will be removed too.
+      // Clear the caches.  Note all pending requests will be removed too. Thumbnails loaded by ID
+      // are reloaded from the disk cache.
       clear();
-    }
+    } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+      bitmapCache.evictAll();
+      bitmapHolderCache.trimToSize(bitmapHolderCache.maxSize() / 2);
+    } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+      bitmapCache.trimToSize(bitmapCache.maxSize() / 2);
+    } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+      // The decoded bitmaps can be recreated from the bytes in bitmapHolderCache.
+      bitmapCache.evictAll();
+    }
+    dumpStats();
   }
 
   @Override
@@ -455,10 +576,13 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
   }
 
   private void loadPhotoByIdOrUri(ImageView view, Request request) {
+    request.sequence = ++requestSequence;
     boolean loaded = loadCachedPhoto(view, request, false);
     if (loaded) {
+      memoryHits.incrementAndGet();
       pendingRequests.remove(view);
     } else {
+      memoryMisses.incrementAndGet();
       pendingRequests.put(view, request);
       if (!paused) {
         // Send a request to start loading photos
@@ -691,8 +815,11 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     }
   }
 
-  /** Stores the supplied bitmap in cache. */
-  private void cacheBitmap(Object key, byte[] bytes, boolean preloading, int requestedExtent) {
+  /**
+   * Stores the supplied bitmap in cache. The bitmap is decoded by {@link #scheduleDecodes()} once a
+   * view still needs it.
+   */
+  private BitmapHolder cacheBitmap(Object key, byte[] bytes) {
     if (DEBUG) {
       BitmapHolder prev = bitmapHolderCache.get(key);
       if (prev != null && prev.bytes != null) {
@@ -712,12 +839,6 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     BitmapHolder holder =
         new BitmapHolder(bytes, bytes == null ? -1 : BitmapUtil.getSmallerExtentFromBytes(bytes));
 
-    // Unless this image is being preloaded, decode it right away while
-    // we are still on the background thread.
-    if (!preloading) {
-      inflateBitmap(holder, requestedExtent);
-    }
-
     if (bytes != null) {
       bitmapHolderCache.put(key, holder);
       if (bitmapHolderCache.get(key) != holder) {
@@ -729,6 +850,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     }
 
     bitmapHolderCacheAllUnfresh = false;
+    return holder;
   }
 
   /**
@@ -741,8 +863,6 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     photoIdsAsStrings.clear();
     uris.clear();
 
-    boolean jpegsDecoded = false;
-
     /*
      * Since the call is made from the loader thread, the map could be
      * changing during the iteration. That's not really a problem:
@@ -751,9 +871,10 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
      * concurrent change, we will need to check the map again once loading
      * is complete.
      */
-    Iterator<Request> iterator = pendingRequests.values().iterator();
+    Iterator<Entry<ImageView, Request>> iterator = pendingRequests.entrySet().iterator();
     while (iterator.hasNext()) {
-      Request request = iterator.next();
+      Entry<ImageView, Request> entry = iterator.next();
+      Request request = entry.getValue();
       final BitmapHolder holder = bitmapHolderCache.get(request.getKey());
       if (holder == BITMAP_UNAVAILABLE) {
         continue;
@@ -763,8 +884,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
           && holder.fresh
           && (holder.bitmapRef == null || holder.bitmapRef.get() == null)) {
         // This was previously loaded but we don't currently have the inflated Bitmap
-        inflateBitmap(holder, request.getRequestedExtent());
-        jpegsDecoded = true;
+        scheduleDecode(entry.getKey(), request, holder);
       } else {
         if (holder == null || !holder.fresh) {
           if (request.isUriRequest()) {
@@ -776,8 +896,36 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         }
       }
     }
+  }
 
-    if (jpegsDecoded) {
+  /**
+   * Schedules decoding the bitmaps which have been loaded for pending requests, but not decoded
+   * yet. Called on the loader thread whenever it loaded photos.
+   */
+  @WorkerThread
+  private void scheduleDecodes() {
+    for (Entry<ImageView, Request> entry : pendingRequests.entrySet()) {
+      Request request = entry.getValue();
+      BitmapHolder holder = bitmapHolderCache.get(request.getKey());
+      if (holder != null
+          && holder.bytes != null
+          && holder.bytes.length > 0
+          && (holder.bitmapRef == null || holder.bitmapRef.get() == null)) {
+        scheduleDecode(entry.getKey(), request, holder);
+      }
+    }
+  }
+
+  private void scheduleDecode(ImageView view, Request request, BitmapHolder holder) {
+    // Views showing the same photo share the holder, it only needs to be decoded once.
+    if (decodingHolders.add(holder)) {
+      decodeExecutor.execute(new DecodeTask(view, request, holder));
+    }
+  }
+
+  /** Tells the main thread to display decoded photos, unless it has already been told to. */
+  private void notifyPhotosLoaded() {
+    if (!mainThreadHandler.hasMessages(MESSAGE_PHOTOS_LOADED)) {
       mainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
     }
   }
@@ -788,9 +936,17 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     final byte[] bytes;
     final int originalSmallerExtent;
 
+    /**
+     * The photo the bytes were read from the provider for, and its version, to be stored in the
+     * disk cache once decoded. The version is {@link #NO_DISK_CACHE_VERSION} if there is nothing to
+     * store.
+     */
+    long diskCachePhotoId;
+    int diskCacheVersion = NO_DISK_CACHE_VERSION;
+
     volatile boolean fresh;
     Bitmap bitmap;
-    Reference<Bitmap> bitmapRef;
+    volatile Reference<Bitmap> bitmapRef;
     int decodedSampleSize;
 
     public BitmapHolder(byte[] bytes, int originalSmallerExtent) {
@@ -800,6 +956,61 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     }
   }
 
+  /**
+   * Stores the bitmap just decoded for {@code holder} in {@link #diskCache} if the holder was read
+   * from the provider, on the decode thread rather than the loader thread. Preloaded photos are
+   * only stored once they are displayed, as they aren't decoded until then.
+   */
+  @WorkerThread
+  private void storeThumbnailOnDisk(BitmapHolder holder) {
+    if (holder.diskCacheVersion == NO_DISK_CACHE_VERSION) {
+      return;
+    }
+    Bitmap bitmap = holder.bitmapRef == null ? null : holder.bitmapRef.get();
+    if (bitmap == null) {
+      return;
+    }
+    int version = holder.diskCacheVersion;
+    holder.diskCacheVersion = NO_DISK_CACHE_VERSION;
+    diskCache.put(holder.diskCachePhotoId, version, thumbnailSize, bitmap);
+  }
+
+  /** Decodes the photo of a request, unless its view has been bound to another photo since. */
+  private final class DecodeTask implements Runnable, Comparable<DecodeTask> {
+
+    private final ImageView view;
+    private final Request request;
+    private final BitmapHolder holder;
+
+    DecodeTask(ImageView view, Request request, BitmapHolder holder) {
+      this.view = view;
+      this.request = request;
+      this.holder = holder;
+    }
+
+    @Override
+    public void run() {
+      try {
+        if (pendingRequests.get(view) != request) {
+          staleDecodes.incrementAndGet();
+          return;
+        }
+        inflateBitmap(holder, request.getRequestedExtent());
+        storeThumbnailOnDisk(holder);
+      } finally {
+        decodingHolders.remove(holder);
+        // Also sent for stale requests, so that other views waiting for the holder are retried.
+        notifyPhotosLoaded();
+      }
+    }
+
+    /** The most recently requested photos are the ones on screen, decode them first. */
+    @Override
+    public int compareTo(DecodeTask other) {
+      return Long.compare(other.request.sequence, request.sequence);
+    }
+  }
+
   /**
    * A holder for either a Uri or an id and a flag whether this was requested for the dark or light
    * theme
@@ -813,6 +1024,8 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     private final DefaultImageProvider defaultProvider;
     /** Whether or not the contact photo is to be displayed as a circle */
     private final boolean isCircular;
+    /** Order in which the request was made, later requests are loaded first. */
+    private long sequence;
 
     private Request(
         long id,
@@ -1116,6 +1329,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
       }
       obtainPhotoIdsAndUrisToLoad(photoIds, photoIdsAsStrings, photoUris);
       loadThumbnails(false);
+      scheduleDecodes();
       loadUriBasedPhotos();
       requestPreloading();
     }
@@ -1138,15 +1352,11 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         }
       }
 
-      stringBuilder.setLength(0);
-      stringBuilder.append(Photo._ID + " IN(");
-      for (int i = 0; i < photoIds.size(); i++) {
-        if (i != 0) {
-          stringBuilder.append(',');
-        }
-        stringBuilder.append('?');
+      Map<Long, Integer> versions = loadThumbnailsFromDisk();
+      if (photoIds.isEmpty()) {
+        notifyPhotosLoaded();
+        return;
       }
-      stringBuilder.append(')');
 
       Cursor cursor = null;
       try {
@@ -1159,7 +1369,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             resolver.query(
                 Data.CONTENT_URI,
                 COLUMNS,
-                stringBuilder.toString(),
+                buildPhotoIdSelection(),
                 photoIdsAsStrings.toArray(EMPTY_STRING_ARRAY),
                 null);
 
@@ -1167,7 +1377,13 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
           while (cursor.moveToNext()) {
             Long id = cursor.getLong(0);
             byte[] bytes = cursor.getBlob(1);
-            cacheBitmap(id, bytes, preloading, -1);
+            BitmapHolder holder = cacheBitmap(id, bytes);
+            Integer version = versions.get(id);
+            if (version != null && bytes != null) {
+              // Stored by the DecodeTask, from the bitmap it decodes anyway.
+              holder.diskCachePhotoId = id;
+              holder.diskCacheVersion = version;
+            }
             photoIds.remove(id);
           }
         }
@@ -1186,10 +1402,10 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                 resolver.query(
                     ContentUris.withAppendedId(Data.CONTENT_URI, id), COLUMNS, null, null, null);
             if (profileCursor != null && profileCursor.moveToFirst()) {
-              cacheBitmap(profileCursor.getLong(0), profileCursor.getBlob(1), preloading, -1);
+              cacheBitmap(profileCursor.getLong(0), profileCursor.getBlob(1));
             } else {
               // Couldn't load a photo this way either.
-              cacheBitmap(id, null, preloading, -1);
+              cacheBitmap(id, null);
             }
           } finally {
             if (profileCursor != null) {
@@ -1198,11 +1414,62 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
           }
         } else {
           // Not a profile photo and not found - mark the cache accordingly
-          cacheBitmap(id, null, preloading, -1);
+          cacheBitmap(id, null);
         }
       }
 
-      mainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
+      notifyPhotosLoaded();
+    }
+
+    /**
+     * Loads the thumbnails in {@link #photoIds} which are in {@link #diskCache}, if their photo
+     * hasn't changed since, and removes them from {@link #photoIds}.
+     *
+     * @return the current version of the remaining photos.
+     */
+    @WorkerThread
+    private Map<Long, Integer> loadThumbnailsFromDisk() {
+      Map<Long, Integer> versions = new ArrayMap<>();
+      try (Cursor cursor =
+          resolver.query(
+              Data.CONTENT_URI,
+              VERSION_COLUMNS,
+              buildPhotoIdSelection(),
+              photoIdsAsStrings.toArray(EMPTY_STRING_ARRAY),
+              null)) {
+        if (cursor == null) {
+          return versions;
+        }
+        while (cursor.moveToNext()) {
+          long id = cursor.getLong(0);
+          int version = cursor.getInt(1);
+          byte[] bytes = diskCache.get(id, version, thumbnailSize);
+          if (bytes == null) {
+            diskMisses.incrementAndGet();
+            versions.put(id, version);
+            continue;
+          }
+          diskHits.incrementAndGet();
+          cacheBitmap(id, bytes);
+          photoIds.remove(id);
+          photoIdsAsStrings.remove(String.valueOf(id));
+        }
+      }
+      return versions;
+    }
+
+    /** Returns a selection matching the IDs in {@link #photoIdsAsStrings}. */
+    private String buildPhotoIdSelection() {
+      stringBuilder.setLength(0);
+      stringBuilder.append(Photo._ID + " IN(");
+      for (int i = 0; i < photoIdsAsStrings.size(); i++) {
+        if (i != 0) {
+          stringBuilder.append(',');
+        }
+        stringBuilder.append('?');
+      }
+      stringBuilder.append(')');
+      return stringBuilder.toString();
     }
 
     /**
@@ -1211,7 +1478,21 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
      */
     @WorkerThread
     private void loadUriBasedPhotos() {
-      for (Request uriRequest : photoUris) {
+      // Load the photos of the most recently bound views first, and skip those whose views have
+      // been bound to another photo in the meantime.
+      List<Request> requests = new ArrayList<>(photoUris);
+      Collections.sort(
+          requests,
+          new Comparator<Request>() {
+            @Override
+            public int compare(Request a, Request b) {
+              return Long.compare(b.sequence, a.sequence);
+            }
+          });
+      for (Request uriRequest : requests) {
+        if (!pendingRequests.containsValue(uriRequest)) {
+          continue;
+        }
         // Keep the original URI and use this to key into the cache.  Failure to do so will
         // result in an image being continually reloaded into cache if the original URI
         // has a contact type encodedFragment (eg nearby places business photo URLs).
@@ -1262,15 +1543,15 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             } finally {
               is.close();
             }
-            cacheBitmap(originalUri, baos.toByteArray(), false, uriRequest.getRequestedExtent());
-            mainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
+            cacheBitmap(originalUri, baos.toByteArray());
+            scheduleDecodes();
           } else {
             LogUtil.v("ContactPhotoManagerImpl.loadUriBasedPhotos", "cannot load photo " + uri);
-            cacheBitmap(originalUri, null, false, uriRequest.getRequestedExtent());
+            cacheBitmap(originalUri, null);
           }
         } catch (final Exception | OutOfMemoryError ex) {
           LogUtil.v("ContactPhotoManagerImpl.loadUriBasedPhotos", "cannot load photo " + uri, ex);
-          cacheBitmap(originalUri, null, false, uriRequest.getRequestedExtent());
+          cacheBitmap(originalUri, null);
         }
       }
     }
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.contactphoto;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+import android.media.ThumbnailUtils;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import com.android.dialer.common.LogUtil;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Locale;
+
+/**
+ * Stores contact thumbnails on disk, scaled to the size they are displayed at, so that they don't
+ * have to be read from the contacts provider and scaled again after the process was restarted.
+ *
+ * <p>Thumbnails are keyed by photo ID, the version of the photo's data row and the extent they were
+ * scaled to, so that an edited photo is never served from the cache. Once the cache exceeds its
+ * budget, the least recently used thumbnails are deleted.
+ */
+final class ThumbnailDiskCache {
+
+  private static final int JPEG_QUALITY = 90;
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  private final File directory;
+  private final long maxBytes;
+
+  /** Total size of the files in {@link #directory}, or -1 if it hasn't been computed yet. */
+  private long size = -1;
+
+  ThumbnailDiskCache(File directory, long maxBytes) {
+    this.directory = directory;
+    this.maxBytes = maxBytes;
+  }
+
+  /** Returns the encoded thumbnail, or null if it isn't cached. */
+  @WorkerThread
+  @Nullable
+  synchronized byte[] get(long photoId, int version, int extent) {
+    File file = getFile(photoId, version, extent);
+    if (!file.isFile()) {
+      return null;
+    }
+    byte[] bytes = new byte[(int) file.length()];
+    try (InputStream in = new FileInputStream(file)) {
+      int offset = 0;
+      int read;
+      while (offset < bytes.length && (read = in.read(bytes, offset, bytes.length - offset)) > 0) {
+        offset += read;
+      }
+      if (offset != bytes.length) {
+        return null;
+      }
+    } catch (IOException e) {
+      LogUtil.e("ThumbnailDiskCache.get", "failed to read " + file, e);
+      return null;
+    }
+    file.setLastModified(System.currentTimeMillis());
+    return bytes;
+  }
+
+  /**
+   * Scales {@code bitmap} down to {@code extent}, cropping it to a square like the thumbnails
+   * displayed in lists, and stores it.
+   */
+  @WorkerThread
+  synchronized void put(long photoId, int version, int extent, Bitmap bitmap) {
+    int dimension = Math.min(Math.min(bitmap.getWidth(), bitmap.getHeight()), extent);
+    Bitmap thumbnail = ThumbnailUtils.extractThumbnail(bitmap, dimension, dimension);
+
+    ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+    if (!thumbnail.compress(CompressFormat.JPEG, JPEG_QUALITY, encoded)) {
+      return;
+    }
+
+    ensureDirectory();
+    File file = getFile(photoId, version, extent);
+    File tempFile = new File(file.getPath() + TEMP_SUFFIX);
+    try (OutputStream out = new FileOutputStream(tempFile)) {
+      encoded.writeTo(out);
+    } catch (IOException e) {
+      LogUtil.e("ThumbnailDiskCache.put", "failed to write " + file, e);
+      tempFile.delete();
+      return;
+    }
+    long previousLength = file.length();
+    if (!tempFile.renameTo(file)) {
+      tempFile.delete();
+      return;
+    }
+    size += encoded.size() - previousLength;
+    if (size > maxBytes) {
+      trim();
+    }
+  }
+
+  /** Deletes all thumbnails. */
+  @WorkerThread
+  synchronized void clear() {
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    size = 0;
+  }
+
+  private void ensureDirectory() {
+    if (size >= 0) {
+      return;
+    }
+    directory.mkdirs();
+    size = 0;
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        size += file.length();
+      }
+    }
+  }
+
+  /** Deletes the least recently used thumbnails until the cache is at 3/4 of its budget. */
+  private void trim() {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
+    Arrays.sort(
+        files,
+        new Comparator<File>() {
+          @Override
+          public int compare(File a, File b) {
+            return Long.compare(a.lastModified(), b.lastModified());
+          }
+        });
+    long target = maxBytes * 3 / 4;
+    int deleted = 0;
+    for (File file : files) {
+      if (size <= target) {
+        break;
+      }
+      long length = file.length();
+      if (file.delete()) {
+        size -= length;
+        deleted++;
+      }
+    }
+    LogUtil.i("ThumbnailDiskCache.trim", "deleted %d thumbnails", deleted);
+  }
+
+  private File getFile(long photoId, int version, int extent) {
+    return new File(directory, String.format(Locale.US, "%d_%d_%d", photoId, version, extent));
+  }
+}
@@ -21,6 +21,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
@@ -32,6 +33,7 @@ import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.Data;
 import android.provider.ContactsContract.Directory;
+import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
 import android.support.annotation.WorkerThread;
 import android.text.TextUtils;
@@ -44,15 +46,27 @@ import com.android.dialer.common.database.Selection;
 import com.android.dialer.configprovider.ConfigProviderComponent;
 import com.android.dialer.contacts.resources.R;
 import com.android.dialer.database.FilteredNumberContract.FilteredNumberColumns;
+import com.android.dialer.i18n.LocaleUtils;
+import com.android.dialer.metrics.Metrics;
+import com.android.dialer.metrics.MetricsComponent;
+import com.android.dialer.smartdial.SmartDialTrieEngine;
+import com.android.dialer.smartdial.map.CompositeSmartDialMap;
 import com.android.dialer.smartdial.util.SmartDialNameMatcher;
 import com.android.dialer.smartdial.util.SmartDialPrefix;
+import com.android.dialer.smartdial.util.TransliteratedName;
 import com.android.dialer.util.PermissionsUtil;
 import com.google.android.collect.Lists;
 
+import com.google.common.collect.Iterables;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.MoreExecutors;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 
@@ -69,7 +83,7 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
    *   0-98   KitKat
    * </pre>
    */
-  public static final int DATABASE_VERSION = 70011;
+  public static final int DATABASE_VERSION = 70013;
 
   public static final String DATABASE_NAME = "dialer.db";
 
@@ -85,17 +99,41 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
   @VisibleForTesting
   static final String DEFAULT_LAST_UPDATED_CONFIG_KEY = "smart_dial_default_last_update_millis";
 
+  /**
+   * Config key enabling {@link SmartDialTrieEngine} for {@link #getLooseMatches(String,
+   * SmartDialNameMatcher)}. When disabled, matches are looked up in the prefix table with SQL.
+   */
+  @VisibleForTesting
+  static final String SMART_DIAL_TRIE_ENGINE_CONFIG_KEY = "smart_dial_trie_engine_enabled";
+
   private static final String DATABASE_VERSION_PROPERTY = "database_version";
+
+  /** Number of smart dial rows written or deleted since the tables were last analyzed. */
+  private static final String CHANGES_SINCE_ANALYZE_PROPERTY = "smartdial_changes_since_analyze";
+
+  /**
+   * Tables are re-analyzed only once the rows changed since the last ANALYZE reach this fraction of
+   * the smart dial table.
+   */
+  private static final double ANALYZE_CHANGE_RATIO_THRESHOLD = 0.1;
   private static final int MAX_ENTRIES = 40;
 
+  /** The maximum number of "?" arguments of an SQLite statement. */
+  private static final int MAX_SELECTION_ARGS = 999;
+
   private final Context context;
   private final DialerFutureSerializer dialerFutureSerializer = new DialerFutureSerializer();
+  private final SmartDialTrieEngine trieEngine;
+
+  /** Incremented whenever the contents of the smart dial tables change. */
+  private volatile int smartDialGeneration;
 
   private boolean isTestInstance = false;
 
   protected DialerDatabaseHelper(Context context, String databaseName, int dbVersion) {
     super(context, databaseName, null, dbVersion);
     this.context = Objects.requireNonNull(context, "Context must not be null");
+    this.trieEngine = new SmartDialTrieEngine(context);
   }
 
   public void setIsTestInstance(boolean isTestInstance) {
@@ -147,7 +185,11 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
             + SmartDialDbColumns.IS_PRIMARY
             + " INTEGER, "
             + SmartDialDbColumns.CARRIER_PRESENCE
-            + " INTEGER NOT NULL DEFAULT 0"
+            + " INTEGER NOT NULL DEFAULT 0, "
+            + SmartDialDbColumns.TRANSLITERATED_NAME
+            + " TEXT, "
+            + SmartDialDbColumns.TRANSLITERATION_OFFSETS
+            + " BLOB"
             + ");");
 
     db.execSQL(
@@ -162,6 +204,9 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
             + " INTEGER"
             + ");");
 
+    createSmartDialStampTable(db);
+    createSmartDialIndexes(db);
+
     db.execSQL(
         "CREATE TABLE "
             + Tables.PROPERTIES
@@ -208,9 +253,12 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
   public void dropTables(SQLiteDatabase db) {
     db.execSQL("DROP TABLE IF EXISTS " + Tables.PREFIX_TABLE);
     db.execSQL("DROP TABLE IF EXISTS " + Tables.SMARTDIAL_TABLE);
+    db.execSQL("DROP TABLE IF EXISTS " + Tables.SMARTDIAL_STAMP_TABLE);
     db.execSQL("DROP TABLE IF EXISTS " + Tables.PROPERTIES);
     db.execSQL("DROP TABLE IF EXISTS " + Tables.FILTERED_NUMBER_TABLE);
     db.execSQL("DROP TABLE IF EXISTS " + Tables.VOICEMAIL_ARCHIVE_TABLE);
+    trieEngine.invalidate();
+    smartDialGeneration++;
   }
 
   @Override
@@ -270,6 +318,17 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
       oldVersion = 70011;
     }
 
+    if (oldVersion < 70012) {
+      createSmartDialStampTable(db);
+      createSmartDialIndexes(db);
+      oldVersion = 70012;
+    }
+
+    if (oldVersion < 70013) {
+      upgradeToVersion70013(db);
+      oldVersion = 70013;
+    }
+
     if (oldVersion != DATABASE_VERSION) {
       throw new IllegalStateException(
           "error upgrading the database to version " + DATABASE_VERSION);
@@ -282,6 +341,93 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
     db.execSQL("ALTER TABLE smartdial_table ADD carrier_presence INTEGER NOT NULL DEFAULT 0");
   }
 
+  private void upgradeToVersion70013(SQLiteDatabase db) {
+    db.execSQL(
+        "ALTER TABLE "
+            + Tables.SMARTDIAL_TABLE
+            + " ADD "
+            + SmartDialDbColumns.TRANSLITERATED_NAME
+            + " TEXT");
+    db.execSQL(
+        "ALTER TABLE "
+            + Tables.SMARTDIAL_TABLE
+            + " ADD "
+            + SmartDialDbColumns.TRANSLITERATION_OFFSETS
+            + " BLOB");
+    // Existing rows have no transliteration, rebuild the smart dial tables on next update.
+    if (!isTestInstance) {
+      resetSmartDialLastUpdatedTime();
+    }
+  }
+
+  private static void createSmartDialStampTable(SQLiteDatabase db) {
+    db.execSQL(
+        "CREATE TABLE IF NOT EXISTS "
+            + Tables.SMARTDIAL_STAMP_TABLE
+            + " ("
+            + SmartDialStampColumns.CONTACT_ID
+            + " INTEGER PRIMARY KEY, "
+            + SmartDialStampColumns.STAMP
+            + " INTEGER NOT NULL"
+            + ");");
+  }
+
+  /**
+   * Creates the indexes used by smart dial queries. These used to be (re)created on every update
+   * of the smart dial database, and are now part of the schema.
+   */
+  private static void createSmartDialIndexes(SQLiteDatabase db) {
+    /** Creates index on contact_id for fast JOIN operation. */
+    db.execSQL(
+        "CREATE INDEX IF NOT EXISTS smartdial_contact_id_index ON "
+            + Tables.SMARTDIAL_TABLE
+            + " ("
+            + SmartDialDbColumns.CONTACT_ID
+            + ");");
+    /** Creates index on last_smartdial_update_time for fast SELECT operation. */
+    db.execSQL(
+        "CREATE INDEX IF NOT EXISTS smartdial_last_update_index ON "
+            + Tables.SMARTDIAL_TABLE
+            + " ("
+            + SmartDialDbColumns.LAST_SMARTDIAL_UPDATE_TIME
+            + ");");
+    /** Creates index on sorting fields for fast sort operation. */
+    db.execSQL(
+        "CREATE INDEX IF NOT EXISTS smartdial_sort_index ON "
+            + Tables.SMARTDIAL_TABLE
+            + " ("
+            + SmartDialDbColumns.STARRED
+            + ", "
+            + SmartDialDbColumns.IS_SUPER_PRIMARY
+            + ", "
+            + SmartDialDbColumns.LAST_TIME_USED
+            + ", "
+            + SmartDialDbColumns.TIMES_USED
+            + ", "
+            + SmartDialDbColumns.IN_VISIBLE_GROUP
+            + ", "
+            + SmartDialDbColumns.DISPLAY_NAME_PRIMARY
+            + ", "
+            + SmartDialDbColumns.CONTACT_ID
+            + ", "
+            + SmartDialDbColumns.IS_PRIMARY
+            + ");");
+    /** Creates index on prefix for fast SELECT operation. */
+    db.execSQL(
+        "CREATE INDEX IF NOT EXISTS nameprefix_index ON "
+            + Tables.PREFIX_TABLE
+            + " ("
+            + PrefixColumns.PREFIX
+            + ");");
+    /** Creates index on contact_id for fast JOIN operation. */
+    db.execSQL(
+        "CREATE INDEX IF NOT EXISTS nameprefix_contact_id_index ON "
+            + Tables.PREFIX_TABLE
+            + " ("
+            + PrefixColumns.CONTACT_ID
+            + ");");
+  }
+
   /** Stores a key-value pair in the {@link Tables#PROPERTIES} table. */
   public void setProperty(String key, String value) {
     setProperty(getWritableDatabase(), key, value);
@@ -343,6 +489,15 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
     editor.apply();
   }
 
+  /**
+   * Returns a counter which changes whenever the contents of the smart dial tables change. Results
+   * of {@link #getLooseMatches(String, SmartDialNameMatcher)} can be reused for as long as the
+   * generation doesn't change.
+   */
+  public int getSmartDialGeneration() {
+    return smartDialGeneration;
+  }
+
   /**
    * Starts the database upgrade process in the background.
    *
@@ -371,23 +526,17 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
    * other apps since last update.
    *
    * @param db Database to operate on.
-   * @param lastUpdatedTimeMillis the last time at which an update to the smart dial database was
-   *     run.
+   * @param deletedContactCursor Cursor pointing to the list of contacts deleted since the last
+   *     update.
+   * @return the number of rows removed from the smartdial table.
    */
-  private void removeDeletedContacts(SQLiteDatabase db, String lastUpdatedTimeMillis) {
-    Cursor deletedContactCursor = getDeletedContactCursor(lastUpdatedTimeMillis);
-
-    if (deletedContactCursor == null) {
-      return;
-    }
-
+  private int removeDeletedContacts(SQLiteDatabase db, Cursor deletedContactCursor) {
+    int removedRows = 0;
+    final List<Long> deletedContactIds = new ArrayList<>();
     db.beginTransaction();
     try {
-      if (!deletedContactCursor.moveToFirst()) {
-        return;
-      }
-
-      do {
+      deletedContactCursor.moveToPosition(-1);
+      while (deletedContactCursor.moveToNext()) {
         if (deletedContactCursor.isNull(DeleteContactQuery.DELETED_CONTACT_ID)) {
           LogUtil.i(
               "DialerDatabaseHelper.removeDeletedContacts",
@@ -396,13 +545,15 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
         }
 
         long deleteContactId = deletedContactCursor.getLong(DeleteContactQuery.DELETED_CONTACT_ID);
+        deletedContactIds.add(deleteContactId);
 
         Selection smartDialSelection =
             Selection.column(SmartDialDbColumns.CONTACT_ID).is("=", deleteContactId);
-        db.delete(
-            Tables.SMARTDIAL_TABLE,
-            smartDialSelection.getSelection(),
-            smartDialSelection.getSelectionArgs());
+        removedRows +=
+            db.delete(
+                Tables.SMARTDIAL_TABLE,
+                smartDialSelection.getSelection(),
+                smartDialSelection.getSelectionArgs());
 
         Selection prefixSelection =
             Selection.column(PrefixColumns.CONTACT_ID).is("=", deleteContactId);
@@ -410,13 +561,23 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
             Tables.PREFIX_TABLE,
             prefixSelection.getSelection(),
             prefixSelection.getSelectionArgs());
-      } while (deletedContactCursor.moveToNext());
+
+        Selection stampSelection =
+            Selection.column(SmartDialStampColumns.CONTACT_ID).is("=", deleteContactId);
+        db.delete(
+            Tables.SMARTDIAL_STAMP_TABLE,
+            stampSelection.getSelection(),
+            stampSelection.getSelectionArgs());
+      }
 
       db.setTransactionSuccessful();
     } finally {
-      deletedContactCursor.close();
       db.endTransaction();
     }
+    for (long contactId : deletedContactIds) {
+      trieEngine.removeContact(contactId);
+    }
+    return removedRows;
   }
 
   private Cursor getDeletedContactCursor(String lastUpdateMillis) {
@@ -437,11 +598,12 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
    *
    * @param db Database pointer to the dialer database.
    * @param last_update_time Time stamp of last successful update of the dialer database.
+   * @return the number of rows removed from the smartdial table.
    */
-  private void removePotentiallyCorruptedContacts(SQLiteDatabase db, String last_update_time) {
+  private int removePotentiallyCorruptedContacts(SQLiteDatabase db, String last_update_time) {
     db.delete(
-        Tables.PREFIX_TABLE,
-        PrefixColumns.CONTACT_ID
+        Tables.SMARTDIAL_STAMP_TABLE,
+        SmartDialStampColumns.CONTACT_ID
             + " IN "
             + "(SELECT "
             + SmartDialDbColumns.CONTACT_ID
@@ -454,9 +616,29 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
             + ")",
         null);
     db.delete(
-        Tables.SMARTDIAL_TABLE,
-        SmartDialDbColumns.LAST_SMARTDIAL_UPDATE_TIME + " > " + last_update_time,
+        Tables.PREFIX_TABLE,
+        PrefixColumns.CONTACT_ID
+            + " IN "
+            + "(SELECT "
+            + SmartDialDbColumns.CONTACT_ID
+            + " FROM "
+            + Tables.SMARTDIAL_TABLE
+            + " WHERE "
+            + SmartDialDbColumns.LAST_SMARTDIAL_UPDATE_TIME
+            + " > "
+            + last_update_time
+            + ")",
         null);
+    final int deleted =
+        db.delete(
+            Tables.SMARTDIAL_TABLE,
+            SmartDialDbColumns.LAST_SMARTDIAL_UPDATE_TIME + " > " + last_update_time,
+            null);
+    if (deleted > 0) {
+      // The deleted contact IDs are unknown at this point, so reload the trie on next query.
+      trieEngine.invalidate();
+    }
+    return deleted;
   }
 
   /**
@@ -467,6 +649,21 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
    */
   @VisibleForTesting
   void removeUpdatedContacts(SQLiteDatabase db, Cursor updatedContactCursor) {
+    synchronized (trieEngine) {
+      removeUpdatedContacts(db, updatedContactCursor, Collections.emptySet());
+    }
+  }
+
+  /**
+   * Same as {@link #removeUpdatedContacts(SQLiteDatabase, Cursor)}, but leaves the rows of {@code
+   * unchangedContactIds} in place.
+   *
+   * @return the number of rows removed from the smartdial table.
+   */
+  private int removeUpdatedContacts(
+      SQLiteDatabase db, Cursor updatedContactCursor, Set<Long> unchangedContactIds) {
+    int removedRows = 0;
+    final List<Long> updatedContactIds = new ArrayList<>();
     db.beginTransaction();
     try {
       updatedContactCursor.moveToPosition(-1);
@@ -479,15 +676,27 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
         }
 
         final Long contactId = updatedContactCursor.getLong(UpdatedContactQuery.UPDATED_CONTACT_ID);
+        if (unchangedContactIds.contains(contactId)) {
+          continue;
+        }
 
-        db.delete(Tables.SMARTDIAL_TABLE, SmartDialDbColumns.CONTACT_ID + "=" + contactId, null);
+        removedRows +=
+            db.delete(
+                Tables.SMARTDIAL_TABLE, SmartDialDbColumns.CONTACT_ID + "=" + contactId, null);
         db.delete(Tables.PREFIX_TABLE, PrefixColumns.CONTACT_ID + "=" + contactId, null);
+        db.delete(
+            Tables.SMARTDIAL_STAMP_TABLE, SmartDialStampColumns.CONTACT_ID + "=" + contactId, null);
+        updatedContactIds.add(contactId);
       }
 
       db.setTransactionSuccessful();
     } finally {
       db.endTransaction();
     }
+    for (long contactId : updatedContactIds) {
+      trieEngine.removeContact(contactId);
+    }
+    return removedRows;
   }
 
   /**
@@ -500,6 +709,28 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
   @VisibleForTesting
   protected void insertUpdatedContactsAndNumberPrefix(
       SQLiteDatabase db, Cursor updatedContactCursor, Long currentMillis) {
+    synchronized (trieEngine) {
+      insertUpdatedContactsAndNumberPrefix(
+          db, updatedContactCursor, currentMillis, Collections.emptySet(), new LinkedHashMap<>());
+    }
+  }
+
+  /**
+   * Same as {@link #insertUpdatedContactsAndNumberPrefix(SQLiteDatabase, Cursor, Long)}, but skips
+   * the rows of {@code unchangedContactIds}.
+   *
+   * @param insertedNames Populated with the display name of every contact rows were inserted for.
+   * @return the number of rows inserted into the smartdial table.
+   */
+  private int insertUpdatedContactsAndNumberPrefix(
+      SQLiteDatabase db,
+      Cursor updatedContactCursor,
+      Long currentMillis,
+      Set<Long> unchangedContactIds,
+      Map<Long, String> insertedNames) {
+    final List<SmartDialTrieEngine.Row> insertedRows = new ArrayList<>();
+    final List<Long> tokenContactIds = new ArrayList<>();
+    final List<String> tokens = new ArrayList<>();
     db.beginTransaction();
     try {
       final String sqlInsert =
@@ -533,8 +764,12 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
               + SmartDialDbColumns.CARRIER_PRESENCE
               + ", "
               + SmartDialDbColumns.LAST_SMARTDIAL_UPDATE_TIME
+              + ", "
+              + SmartDialDbColumns.TRANSLITERATED_NAME
+              + ", "
+              + SmartDialDbColumns.TRANSLITERATION_OFFSETS
               + ") "
-              + " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+              + " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
       final SQLiteStatement insert = db.compileStatement(sqlInsert);
 
       final String numberSqlInsert =
@@ -548,6 +783,9 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
               + " VALUES (?, ?)";
       final SQLiteStatement numberInsert = db.compileStatement(numberSqlInsert);
 
+      // Transliterations by display name, computed once for all numbers of a contact.
+      final Map<String, TransliteratedName> transliterations = new HashMap<>();
+
       updatedContactCursor.moveToPosition(-1);
       while (updatedContactCursor.moveToNext()) {
         insert.clearBindings();
@@ -559,6 +797,11 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
           continue;
         }
 
+        final long contactId = updatedContactCursor.getLong(PhoneQuery.PHONE_CONTACT_ID);
+        if (unchangedContactIds.contains(contactId)) {
+          continue;
+        }
+
         // Handle string columns which can possibly be null first. In the case of certain
         // null columns (due to malformed rows possibly inserted by third-party apps
         // or sync adapters), skip the phone number row.
@@ -593,23 +836,70 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
         insert.bindLong(12, updatedContactCursor.getInt(PhoneQuery.PHONE_IS_PRIMARY));
         insert.bindLong(13, updatedContactCursor.getInt(PhoneQuery.PHONE_CARRIER_PRESENCE));
         insert.bindLong(14, currentMillis);
-        insert.executeInsert();
+
+        final String storedDisplayName =
+            displayName == null
+                ? context.getResources().getString(R.string.missing_name)
+                : displayName;
+        if (!transliterations.containsKey(storedDisplayName)) {
+          transliterations.put(
+              storedDisplayName, CompositeSmartDialMap.transliterate(context, storedDisplayName));
+        }
+        final TransliteratedName transliteratedName = transliterations.get(storedDisplayName);
+        if (transliteratedName != null) {
+          insert.bindString(15, transliteratedName.name);
+          final byte[] sourceOffsets = transliteratedName.encodeSourceOffsets();
+          if (sourceOffsets != null) {
+            insert.bindBlob(16, sourceOffsets);
+          }
+        }
+        final long rowId = insert.executeInsert();
         final String contactPhoneNumber = updatedContactCursor.getString(PhoneQuery.PHONE_NUMBER);
         final ArrayList<String> numberPrefixes =
             SmartDialPrefix.parseToNumberTokens(context, contactPhoneNumber);
 
         for (String numberPrefix : numberPrefixes) {
-          numberInsert.bindLong(1, updatedContactCursor.getLong(PhoneQuery.PHONE_CONTACT_ID));
+          numberInsert.bindLong(1, contactId);
           numberInsert.bindString(2, numberPrefix);
           numberInsert.executeInsert();
           numberInsert.clearBindings();
+          tokenContactIds.add(contactId);
+          tokens.add(numberPrefix);
         }
+
+        insertedNames.put(contactId, storedDisplayName);
+        insertedRows.add(
+            new SmartDialTrieEngine.Row(
+                rowId,
+                updatedContactCursor.getLong(PhoneQuery.PHONE_ID),
+                storedDisplayName,
+                updatedContactCursor.getLong(PhoneQuery.PHONE_PHOTO_ID),
+                number,
+                contactId,
+                lookupKey,
+                updatedContactCursor.getInt(PhoneQuery.PHONE_CARRIER_PRESENCE),
+                updatedContactCursor.getInt(PhoneQuery.PHONE_STARRED),
+                updatedContactCursor.getInt(PhoneQuery.PHONE_IS_SUPER_PRIMARY),
+                updatedContactCursor.getLong(PhoneQuery.PHONE_LAST_TIME_USED),
+                updatedContactCursor.getInt(PhoneQuery.PHONE_TIMES_USED),
+                updatedContactCursor.getInt(PhoneQuery.PHONE_IN_VISIBLE_GROUP),
+                updatedContactCursor.getInt(PhoneQuery.PHONE_IS_PRIMARY),
+                transliteratedName));
       }
 
       db.setTransactionSuccessful();
     } finally {
       db.endTransaction();
     }
+    if (trieEngine.isLoaded()) {
+      for (SmartDialTrieEngine.Row row : insertedRows) {
+        trieEngine.addRow(row);
+      }
+      for (int i = 0; i < tokens.size(); i++) {
+        trieEngine.addToken(tokenContactIds.get(i), tokens.get(i));
+      }
+    }
+    return insertedRows.size();
   }
 
   /**
@@ -620,39 +910,91 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
    */
   @VisibleForTesting
   void insertNamePrefixes(SQLiteDatabase db, Cursor nameCursor) {
-    final int columnIndexName = nameCursor.getColumnIndex(SmartDialDbColumns.DISPLAY_NAME_PRIMARY);
-    final int columnIndexContactId = nameCursor.getColumnIndex(SmartDialDbColumns.CONTACT_ID);
+    synchronized (trieEngine) {
+      final int columnIndexName =
+          nameCursor.getColumnIndex(SmartDialDbColumns.DISPLAY_NAME_PRIMARY);
+      final int columnIndexContactId = nameCursor.getColumnIndex(SmartDialDbColumns.CONTACT_ID);
+      final List<Long> tokenContactIds = new ArrayList<>();
+      final List<String> tokens = new ArrayList<>();
+
+      db.beginTransaction();
+      try {
+        final String sqlInsert =
+            "INSERT INTO "
+                + Tables.PREFIX_TABLE
+                + " ("
+                + PrefixColumns.CONTACT_ID
+                + ", "
+                + PrefixColumns.PREFIX
+                + ") "
+                + " VALUES (?, ?)";
+        final SQLiteStatement insert = db.compileStatement(sqlInsert);
+
+        while (nameCursor.moveToNext()) {
+          if (nameCursor.isNull(columnIndexContactId)) {
+            LogUtil.i(
+                "DialerDatabaseHelper.insertNamePrefixes",
+                "contact_id column null. Row was deleted during iteration, skipping");
+            continue;
+          }
 
-    db.beginTransaction();
-    try {
-      final String sqlInsert =
-          "INSERT INTO "
-              + Tables.PREFIX_TABLE
-              + " ("
-              + PrefixColumns.CONTACT_ID
-              + ", "
-              + PrefixColumns.PREFIX
-              + ") "
-              + " VALUES (?, ?)";
-      final SQLiteStatement insert = db.compileStatement(sqlInsert);
+          /** Computes a list of prefixes of a given contact name. */
+          final ArrayList<String> namePrefixes =
+              SmartDialPrefix.generateNamePrefixes(context, nameCursor.getString(columnIndexName));
+
+          for (String namePrefix : namePrefixes) {
+            insert.bindLong(1, nameCursor.getLong(columnIndexContactId));
+            insert.bindString(2, namePrefix);
+            insert.executeInsert();
+            insert.clearBindings();
+            tokenContactIds.add(nameCursor.getLong(columnIndexContactId));
+            tokens.add(namePrefix);
+          }
+        }
 
-      while (nameCursor.moveToNext()) {
-        if (nameCursor.isNull(columnIndexContactId)) {
-          LogUtil.i(
-              "DialerDatabaseHelper.insertNamePrefixes",
-              "contact_id column null. Row was deleted during iteration, skipping");
-          continue;
+        db.setTransactionSuccessful();
+      } finally {
+        db.endTransaction();
+      }
+      if (trieEngine.isLoaded()) {
+        for (int i = 0; i < tokens.size(); i++) {
+          trieEngine.addToken(tokenContactIds.get(i), tokens.get(i));
         }
+      }
+    }
+  }
 
-        /** Computes a list of prefixes of a given contact name. */
-        final ArrayList<String> namePrefixes =
-            SmartDialPrefix.generateNamePrefixes(context, nameCursor.getString(columnIndexName));
+  /**
+   * Inserts prefixes of the given contact names to the prefix table.
+   *
+   * @param db Database pointer to the smartdial database.
+   * @param names Display names keyed by contact ID.
+   */
+  private void insertNamePrefixes(SQLiteDatabase db, Map<Long, String> names) {
+    final List<Long> tokenContactIds = new ArrayList<>();
+    final List<String> tokens = new ArrayList<>();
 
-        for (String namePrefix : namePrefixes) {
-          insert.bindLong(1, nameCursor.getLong(columnIndexContactId));
+    db.beginTransaction();
+    try {
+      final SQLiteStatement insert =
+          db.compileStatement(
+              "INSERT INTO "
+                  + Tables.PREFIX_TABLE
+                  + " ("
+                  + PrefixColumns.CONTACT_ID
+                  + ", "
+                  + PrefixColumns.PREFIX
+                  + ") "
+                  + " VALUES (?, ?)");
+
+      for (Map.Entry<Long, String> entry : names.entrySet()) {
+        for (String namePrefix : SmartDialPrefix.generateNamePrefixes(context, entry.getValue())) {
+          insert.bindLong(1, entry.getKey());
           insert.bindString(2, namePrefix);
           insert.executeInsert();
           insert.clearBindings();
+          tokenContactIds.add(entry.getKey());
+          tokens.add(namePrefix);
         }
       }
 
@@ -660,6 +1002,134 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
     } finally {
       db.endTransaction();
     }
+    if (trieEngine.isLoaded()) {
+      for (int i = 0; i < tokens.size(); i++) {
+        trieEngine.addToken(tokenContactIds.get(i), tokens.get(i));
+      }
+    }
+  }
+
+  /**
+   * Computes a stamp of the phone rows of every contact in the cursor. The stamp covers every
+   * column of {@link PhoneQuery#PROJECTION} and the locale, which decides how names are
+   * transliterated, so a contact whose stamp matches the stored one would have its smart dial rows
+   * rewritten unchanged.
+   *
+   * @param locale the locale the smart dial rows are built for.
+   * @return stamps keyed by contact ID.
+   */
+  private static Map<Long, Long> computeContactStamps(Cursor updatedPhoneCursor, String locale) {
+    long localeHash = 0xcbf29ce484222325L;
+    for (int i = 0; i < locale.length(); i++) {
+      localeHash = (localeHash ^ locale.charAt(i)) * 0x100000001b3L;
+    }
+    final Map<Long, Long> stamps = new HashMap<>();
+    updatedPhoneCursor.moveToPosition(-1);
+    while (updatedPhoneCursor.moveToNext()) {
+      if (updatedPhoneCursor.isNull(PhoneQuery.PHONE_CONTACT_ID)) {
+        continue;
+      }
+      final long contactId = updatedPhoneCursor.getLong(PhoneQuery.PHONE_CONTACT_ID);
+
+      // 64-bit FNV-1a over the locale and all columns, with a separator so that ("ab", "c") !=
+      // ("a", "bc").
+      long rowHash = localeHash;
+      for (int column = 0; column < PhoneQuery.PROJECTION.length; column++) {
+        final String value = updatedPhoneCursor.getString(column);
+        if (value != null) {
+          for (int i = 0; i < value.length(); i++) {
+            rowHash = (rowHash ^ value.charAt(i)) * 0x100000001b3L;
+          }
+        }
+        rowHash = (rowHash ^ (value == null ? 0xffff : 0)) * 0x100000001b3L;
+      }
+
+      // Row hashes are summed so that the stamp doesn't depend on the order of the cursor.
+      final Long stamp = stamps.get(contactId);
+      stamps.put(contactId, stamp == null ? rowHash : stamp + rowHash);
+    }
+    return stamps;
+  }
+
+  /**
+   * Returns the contacts whose stored stamp is equal to the one in {@code newStamps}. Only the
+   * stamps of those contacts are read, in batches of at most {@link #MAX_SELECTION_ARGS} IDs.
+   */
+  private static Set<Long> getUnchangedContactIds(SQLiteDatabase db, Map<Long, Long> newStamps) {
+    final Set<Long> unchangedContactIds = new HashSet<>();
+    for (List<Long> contactIds : Iterables.partition(newStamps.keySet(), MAX_SELECTION_ARGS)) {
+      final List<String> contactIdStrings = new ArrayList<>(contactIds.size());
+      for (Long contactId : contactIds) {
+        contactIdStrings.add(String.valueOf(contactId));
+      }
+      final Selection selection =
+          Selection.column(SmartDialStampColumns.CONTACT_ID).in(contactIdStrings);
+      try (Cursor cursor =
+          db.query(
+              Tables.SMARTDIAL_STAMP_TABLE,
+              new String[] {SmartDialStampColumns.CONTACT_ID, SmartDialStampColumns.STAMP},
+              selection.getSelection(),
+              selection.getSelectionArgs(),
+              null,
+              null,
+              null)) {
+        while (cursor.moveToNext()) {
+          final Long newStamp = newStamps.get(cursor.getLong(0));
+          if (newStamp != null && newStamp == cursor.getLong(1)) {
+            unchangedContactIds.add(cursor.getLong(0));
+          }
+        }
+      }
+    }
+    return unchangedContactIds;
+  }
+
+  /** Persists the stamps of every contact that isn't in {@code unchangedContactIds}. */
+  private static void writeContactStamps(
+      SQLiteDatabase db, Map<Long, Long> newStamps, Set<Long> unchangedContactIds) {
+    final SQLiteStatement insert =
+        db.compileStatement(
+            "INSERT OR REPLACE INTO "
+                + Tables.SMARTDIAL_STAMP_TABLE
+                + " ("
+                + SmartDialStampColumns.CONTACT_ID
+                + ", "
+                + SmartDialStampColumns.STAMP
+                + ") VALUES (?, ?)");
+    for (Map.Entry<Long, Long> entry : newStamps.entrySet()) {
+      if (unchangedContactIds.contains(entry.getKey())) {
+        continue;
+      }
+      insert.bindLong(1, entry.getKey());
+      insert.bindLong(2, entry.getValue());
+      insert.executeInsert();
+      insert.clearBindings();
+    }
+  }
+
+  /**
+   * Updates the index statistics if the number of rows changed since they were last computed
+   * reaches {@link #ANALYZE_CHANGE_RATIO_THRESHOLD} of the smartdial table.
+   *
+   * @return true if the tables were analyzed.
+   */
+  private boolean maybeAnalyzeTables(SQLiteDatabase db, int changedRows) {
+    final int pendingChanges =
+        getPropertyAsInt(db, CHANGES_SINCE_ANALYZE_PROPERTY, 0) + changedRows;
+    if (pendingChanges == 0) {
+      return false;
+    }
+    final long totalRows = DatabaseUtils.queryNumEntries(db, Tables.SMARTDIAL_TABLE);
+    if (totalRows > 0 && pendingChanges < totalRows * ANALYZE_CHANGE_RATIO_THRESHOLD) {
+      setProperty(db, CHANGES_SINCE_ANALYZE_PROPERTY, String.valueOf(pendingChanges));
+      return false;
+    }
+
+    /** Updates the database index statistics. Analyzing a table also analyzes its indexes. */
+    db.execSQL("ANALYZE " + Tables.SMARTDIAL_TABLE);
+    db.execSQL("ANALYZE " + Tables.PREFIX_TABLE);
+    setProperty(db, CHANGES_SINCE_ANALYZE_PROPERTY, "0");
+    return true;
   }
 
   /**
@@ -668,6 +1138,10 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
    * accordingly. It also queries the deleted contact database to remove newly deleted contacts
    * since last update.
    *
+   * <p>All contacts provider queries run before the write transaction is opened, and all deletes
+   * and inserts are then applied in a single transaction. Contacts whose data hasn't changed since
+   * their rows were written (see {@link #computeContactStamps(Cursor)}) are left untouched.
+   *
    * @param forceUpdate If set to true, update the database by reloading all contacts.
    */
   @WorkerThread
@@ -675,9 +1149,9 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
     LogUtil.enterBlock("DialerDatabaseHelper.updateSmartDialDatabase");
 
     final SQLiteDatabase db = getWritableDatabase();
+    final Metrics metrics = MetricsComponent.get(context).metrics();
 
     LogUtil.v("DialerDatabaseHelper.updateSmartDialDatabase", "starting to update database");
-    final StopWatch stopWatch = DEBUG ? StopWatch.start("Updating databases") : null;
 
     /** Gets the last update time on the database. */
     final SharedPreferences databaseLastUpdateSharedPref =
@@ -699,57 +1173,28 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
     /** Sets the time after querying the database as the current update time. */
     final Long currentMillis = System.currentTimeMillis();
 
-    if (DEBUG) {
-      stopWatch.lap("Queried the Contacts database");
-    }
-
-    /** Removes contacts that have been deleted. */
-    removeDeletedContacts(db, lastUpdateMillis);
-    removePotentiallyCorruptedContacts(db, lastUpdateMillis);
-
-    if (DEBUG) {
-      stopWatch.lap("Finished deleting deleted entries");
-    }
-
-    /**
-     * If the database did not exist before, jump through deletion as there is nothing to delete.
-     */
-    if (!lastUpdateMillis.equals("0")) {
-      /**
-       * Removes contacts that have been updated. Updated contact information will be inserted
-       * later. Note that this has to use a separate result set from updatePhoneCursor, since it is
-       * possible for a contact to be updated (e.g. phone number deleted), but have no results show
-       * up in updatedPhoneCursor (since all of its phone numbers have been deleted).
-       */
-      final Cursor updatedContactCursor =
-          context
-              .getContentResolver()
-              .query(
-                  UpdatedContactQuery.URI,
-                  UpdatedContactQuery.PROJECTION,
-                  UpdatedContactQuery.SELECT_UPDATED_CLAUSE,
-                  new String[] {lastUpdateMillis},
-                  null);
-      if (updatedContactCursor == null) {
-        LogUtil.e(
-            "DialerDatabaseHelper.updateSmartDialDatabase",
-            "smartDial query received null for cursor");
-        return;
-      }
-      try {
-        removeUpdatedContacts(db, updatedContactCursor);
-      } finally {
-        updatedContactCursor.close();
-      }
-      if (DEBUG) {
-        stopWatch.lap("Finished deleting entries belonging to updated contacts");
-      }
-    }
-
     /**
-     * Queries the contact database to get all phone numbers that have been updated since the last
-     * update time.
+     * If the database did not exist before, there are no updated contacts to delete.
+     *
+     * <p>Updated contacts have to be queried separately from updatedPhoneCursor, since it is
+     * possible for a contact to be updated (e.g. phone number deleted), but have no results show up
+     * in updatedPhoneCursor (since all of its phone numbers have been deleted).
      */
+    final boolean hasPreviousUpdate = !lastUpdateMillis.equals("0");
+
+    metrics.startTimer(Metrics.SMART_DIAL_UPDATE_QUERY_CONTACTS_EVENT_NAME);
+    final Cursor deletedContactCursor = getDeletedContactCursor(lastUpdateMillis);
+    final Cursor updatedContactCursor =
+        hasPreviousUpdate
+            ? context
+                .getContentResolver()
+                .query(
+                    UpdatedContactQuery.URI,
+                    UpdatedContactQuery.PROJECTION,
+                    UpdatedContactQuery.SELECT_UPDATED_CLAUSE,
+                    new String[] {lastUpdateMillis},
+                    null)
+            : null;
     final Cursor updatedPhoneCursor =
         context
             .getContentResolver()
@@ -759,124 +1204,90 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
                 PhoneQuery.SELECTION,
                 new String[] {lastUpdateMillis},
                 null);
-    if (updatedPhoneCursor == null) {
-      LogUtil.e(
-          "DialerDatabaseHelper.updateSmartDialDatabase",
-          "smartDial query received null for cursor");
-      return;
-    }
+    metrics.stopTimer(Metrics.SMART_DIAL_UPDATE_QUERY_CONTACTS_EVENT_NAME);
 
+    int changedRows = 0;
     try {
-      /** Inserts recently updated phone numbers to the smartdial database. */
-      insertUpdatedContactsAndNumberPrefix(db, updatedPhoneCursor, currentMillis);
-      if (DEBUG) {
-        stopWatch.lap("Finished building the smart dial table");
+      if ((hasPreviousUpdate && updatedContactCursor == null) || updatedPhoneCursor == null) {
+        LogUtil.e(
+            "DialerDatabaseHelper.updateSmartDialDatabase",
+            "smartDial query received null for cursor");
+        return;
       }
-    } finally {
-      updatedPhoneCursor.close();
-    }
 
-    /**
-     * Gets a list of distinct contacts which have been updated, and adds the name prefixes of these
-     * contacts to the prefix table.
-     */
-    final Cursor nameCursor =
-        db.rawQuery(
-            "SELECT DISTINCT "
-                + SmartDialDbColumns.DISPLAY_NAME_PRIMARY
-                + ", "
-                + SmartDialDbColumns.CONTACT_ID
-                + " FROM "
-                + Tables.SMARTDIAL_TABLE
-                + " WHERE "
-                + SmartDialDbColumns.LAST_SMARTDIAL_UPDATE_TIME
-                + " = "
-                + currentMillis,
-            new String[] {});
-    if (nameCursor != null) {
-      try {
-        if (DEBUG) {
-          stopWatch.lap("Queried the smart dial table for contact names");
-        }
+      final Map<Long, Long> newStamps =
+          computeContactStamps(
+              updatedPhoneCursor, String.valueOf(LocaleUtils.getLocale(context)));
 
-        /** Inserts prefixes of names into the prefix table. */
-        insertNamePrefixes(db, nameCursor);
-        if (DEBUG) {
-          stopWatch.lap("Finished building the name prefix table");
+      metrics.startTimer(Metrics.SMART_DIAL_UPDATE_WRITE_EVENT_NAME);
+      // Mirroring the changes into the trie is part of the write, see SmartDialTrieEngine.
+      try {
+        synchronized (trieEngine) {
+          boolean successful = false;
+          db.beginTransaction();
+          try {
+            /** Removes contacts that have been deleted. */
+            if (deletedContactCursor != null) {
+              changedRows += removeDeletedContacts(db, deletedContactCursor);
+            }
+            changedRows += removePotentiallyCorruptedContacts(db, lastUpdateMillis);
+
+            final Set<Long> unchangedContactIds = getUnchangedContactIds(db, newStamps);
+
+            /**
+             * Removes contacts that have been updated. Updated contact information will be inserted
+             * below.
+             */
+            if (updatedContactCursor != null) {
+              changedRows += removeUpdatedContacts(db, updatedContactCursor, unchangedContactIds);
+            }
+
+            /** Inserts recently updated phone numbers and their name prefixes. */
+            final Map<Long, String> insertedNames = new LinkedHashMap<>();
+            changedRows +=
+                insertUpdatedContactsAndNumberPrefix(
+                    db, updatedPhoneCursor, currentMillis, unchangedContactIds, insertedNames);
+            insertNamePrefixes(db, insertedNames);
+            writeContactStamps(db, newStamps, unchangedContactIds);
+
+            db.setTransactionSuccessful();
+            successful = true;
+            LogUtil.i(
+                "DialerDatabaseHelper.updateSmartDialDatabase",
+                "%d rows changed, %d updated contacts unchanged",
+                changedRows,
+                unchangedContactIds.size());
+          } finally {
+            db.endTransaction();
+            if (!successful) {
+              // Incremental changes were already mirrored into the trie, reload it instead.
+              trieEngine.invalidate();
+            }
+          }
         }
       } finally {
-        nameCursor.close();
+        metrics.stopTimer(Metrics.SMART_DIAL_UPDATE_WRITE_EVENT_NAME);
+      }
+    } finally {
+      if (deletedContactCursor != null) {
+        deletedContactCursor.close();
+      }
+      if (updatedContactCursor != null) {
+        updatedContactCursor.close();
+      }
+      if (updatedPhoneCursor != null) {
+        updatedPhoneCursor.close();
       }
     }
 
-    /** Creates index on contact_id for fast JOIN operation. */
-    db.execSQL(
-        "CREATE INDEX IF NOT EXISTS smartdial_contact_id_index ON "
-            + Tables.SMARTDIAL_TABLE
-            + " ("
-            + SmartDialDbColumns.CONTACT_ID
-            + ");");
-    /** Creates index on last_smartdial_update_time for fast SELECT operation. */
-    db.execSQL(
-        "CREATE INDEX IF NOT EXISTS smartdial_last_update_index ON "
-            + Tables.SMARTDIAL_TABLE
-            + " ("
-            + SmartDialDbColumns.LAST_SMARTDIAL_UPDATE_TIME
-            + ");");
-    /** Creates index on sorting fields for fast sort operation. */
-    db.execSQL(
-        "CREATE INDEX IF NOT EXISTS smartdial_sort_index ON "
-            + Tables.SMARTDIAL_TABLE
-            + " ("
-            + SmartDialDbColumns.STARRED
-            + ", "
-            + SmartDialDbColumns.IS_SUPER_PRIMARY
-            + ", "
-            + SmartDialDbColumns.LAST_TIME_USED
-            + ", "
-            + SmartDialDbColumns.TIMES_USED
-            + ", "
-            + SmartDialDbColumns.IN_VISIBLE_GROUP
-            + ", "
-            + SmartDialDbColumns.DISPLAY_NAME_PRIMARY
-            + ", "
-            + SmartDialDbColumns.CONTACT_ID
-            + ", "
-            + SmartDialDbColumns.IS_PRIMARY
-            + ");");
-    /** Creates index on prefix for fast SELECT operation. */
-    db.execSQL(
-        "CREATE INDEX IF NOT EXISTS nameprefix_index ON "
-            + Tables.PREFIX_TABLE
-            + " ("
-            + PrefixColumns.PREFIX
-            + ");");
-    /** Creates index on contact_id for fast JOIN operation. */
-    db.execSQL(
-        "CREATE INDEX IF NOT EXISTS nameprefix_contact_id_index ON "
-            + Tables.PREFIX_TABLE
-            + " ("
-            + PrefixColumns.CONTACT_ID
-            + ");");
-
-    if (DEBUG) {
-      stopWatch.lap(TAG + "Finished recreating index");
-    }
-
-    /** Updates the database index statistics. */
-    db.execSQL("ANALYZE " + Tables.SMARTDIAL_TABLE);
-    db.execSQL("ANALYZE " + Tables.PREFIX_TABLE);
-    db.execSQL("ANALYZE smartdial_contact_id_index");
-    db.execSQL("ANALYZE smartdial_last_update_index");
-    db.execSQL("ANALYZE nameprefix_index");
-    db.execSQL("ANALYZE nameprefix_contact_id_index");
-    if (DEBUG) {
-      stopWatch.stopAndLog(TAG + "Finished updating index stats", 0);
-    }
+    metrics.startTimer(Metrics.SMART_DIAL_UPDATE_ANALYZE_EVENT_NAME);
+    maybeAnalyzeTables(db, changedRows);
+    metrics.stopTimer(Metrics.SMART_DIAL_UPDATE_ANALYZE_EVENT_NAME);
 
     final SharedPreferences.Editor editor = databaseLastUpdateSharedPref.edit();
     editor.putLong(LAST_UPDATED_MILLIS, currentMillis);
     editor.apply();
+    smartDialGeneration++;
 
     LogUtil.i("DialerDatabaseHelper.updateSmartDialDatabase", "broadcasting smart dial update");
 
@@ -890,15 +1301,76 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
    * Returns a list of candidate contacts where the query is a prefix of the dialpad index of the
    * contact's name or phone number.
    *
+   * <p>A row matches if {@code nameMatcher} accepts its name or number. If the trie engine is
+   * enabled, a name is only accepted if one of the contact's tokens in the prefix table starts with
+   * the query, see {@link SmartDialTrieEngine}.
+   *
    * @param query The prefix of a contact's dialpad index.
    * @return A list of top candidate contacts that will be suggested to user to match their input.
    */
   @WorkerThread
   public synchronized ArrayList<ContactNumber> getLooseMatches(
       String query, SmartDialNameMatcher nameMatcher) {
+    return getLooseMatches(query, nameMatcher, /* distinctContacts = */ true, MAX_ENTRIES);
+  }
+
+  /**
+   * Returns the rows of the smartdial table whose name or number matches the query, in the same
+   * order as {@link #getLooseMatches(String, SmartDialNameMatcher)}, but without dropping other
+   * numbers of contacts which are already in the result.
+   *
+   * <p>Since a row matching a query also matches every prefix of it, the rows returned for a query
+   * can be narrowed in memory to answer any query that extends it, see {@link LooseMatchRows}.
+   *
+   * @param maxRows The maximum number of rows to return.
+   */
+  @WorkerThread
+  public synchronized LooseMatchRows getAllLooseMatchRows(
+      String query, SmartDialNameMatcher nameMatcher, int maxRows) {
+    final ArrayList<ContactNumber> rows =
+        getLooseMatches(query, nameMatcher, /* distinctContacts = */ false, maxRows + 1);
+    final boolean truncated = rows.size() > maxRows;
+    if (truncated) {
+      rows.subList(maxRows, rows.size()).clear();
+    }
+
+    final Set<Long> contactIds = new HashSet<>();
+    for (ContactNumber row : rows) {
+      contactIds.add(row.id);
+    }
+    if (!isTrieEngineEnabled() || !trieEngine.isLoaded()) {
+      // The SQL path accepts names without looking at the tokens.
+      return new LooseMatchRows(rows, truncated, /* tokens = */ null);
+    }
+    final Map<Long, List<String>> tokens = new HashMap<>();
+    for (long contactId : contactIds) {
+      final List<String> contactTokens = trieEngine.getTokens(contactId, query);
+      if (!contactTokens.isEmpty()) {
+        tokens.put(contactId, contactTokens);
+      }
+    }
+    return new LooseMatchRows(rows, truncated, tokens);
+  }
+
+  private boolean isTrieEngineEnabled() {
+    return ConfigProviderComponent.get(context)
+        .getConfigProvider()
+        .getBoolean(SMART_DIAL_TRIE_ENGINE_CONFIG_KEY, false);
+  }
+
+  /**
+   * Returns the rows matching the query, stopping after {@code limit} rows.
+   *
+   * @param distinctContacts If true, only the first matching row of each contact is returned.
+   */
+  private ArrayList<ContactNumber> getLooseMatches(
+      String query, SmartDialNameMatcher nameMatcher, boolean distinctContacts, int limit) {
     if (query.length() == 0) {
       return Lists.newArrayList();
     }
+    if (isTrieEngineEnabled()) {
+      return getLooseMatchesFromTrie(query, nameMatcher, distinctContacts, limit);
+    }
     final SQLiteDatabase db = getReadableDatabase();
 
     /** Uses SQL query wildcard '%' to represent prefix matching. */
@@ -932,6 +1404,10 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
                 + SmartDialDbColumns.LOOKUP_KEY
                 + ", "
                 + SmartDialDbColumns.CARRIER_PRESENCE
+                + ", "
+                + SmartDialDbColumns.TRANSLITERATED_NAME
+                + ", "
+                + SmartDialDbColumns.TRANSLITERATION_OFFSETS
                 + " FROM "
                 + Tables.SMARTDIAL_TABLE
                 + " WHERE "
@@ -967,57 +1443,40 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
       final int columnId = 4;
       final int columnLookupKey = 5;
       final int columnCarrierPresence = 6;
+      final int columnTransliteratedName = 7;
+      final int columnTransliterationOffsets = 8;
       if (DEBUG) {
         stopWatch.lap("Found column IDs");
       }
 
-      final Set<ContactMatch> duplicates = new HashSet<>();
-      int counter = 0;
+      final Set<ContactMatch> duplicates = distinctContacts ? new HashSet<>() : null;
       if (DEBUG) {
         stopWatch.lap("Moved cursor to start");
       }
       /** Iterates the cursor to find top contact suggestions without duplication. */
-      while ((cursor.moveToNext()) && (counter < MAX_ENTRIES)) {
+      while ((cursor.moveToNext()) && (result.size() < limit)) {
         if (cursor.isNull(columnDataId)) {
           LogUtil.i(
               "DialerDatabaseHelper.getLooseMatches",
               "_id column null. Row was deleted during iteration, skipping");
           continue;
         }
-        final long dataID = cursor.getLong(columnDataId);
-        final String displayName = cursor.getString(columnDisplayNamePrimary);
-        final String phoneNumber = cursor.getString(columnNumber);
-        final long id = cursor.getLong(columnId);
-        final long photoId = cursor.getLong(columnPhotoId);
-        final String lookupKey = cursor.getString(columnLookupKey);
-        final int carrierPresence = cursor.getInt(columnCarrierPresence);
-
-        /**
-         * If a contact already exists and another phone number of the contact is being processed,
-         * skip the second instance.
-         */
-        final ContactMatch contactMatch = new ContactMatch(lookupKey, id);
-        if (duplicates.contains(contactMatch)) {
-          continue;
-        }
-
-        /**
-         * If the contact has either the name or number that matches the query, add to the result.
-         */
-        final boolean nameMatches = nameMatcher.matches(context, displayName);
-        final boolean numberMatches =
-            (nameMatcher.matchesNumber(context, phoneNumber, query) != null);
-        if (nameMatches || numberMatches) {
-          /** If a contact has not been added, add it to the result and the hash set. */
-          duplicates.add(contactMatch);
-          result.add(
-              new ContactNumber(
-                  id, dataID, displayName, phoneNumber, lookupKey, photoId, carrierPresence));
-          counter++;
-          if (DEBUG) {
-            stopWatch.lap("Added one result: Name: " + displayName);
-          }
-        }
+        addIfMatches(
+            result,
+            duplicates,
+            query,
+            nameMatcher,
+            cursor.getLong(columnId),
+            cursor.getLong(columnDataId),
+            cursor.getString(columnDisplayNamePrimary),
+            cursor.getString(columnNumber),
+            cursor.getString(columnLookupKey),
+            cursor.getLong(columnPhotoId),
+            cursor.getInt(columnCarrierPresence),
+            TransliteratedName.fromStored(
+                cursor.getString(columnTransliteratedName),
+                cursor.getBlob(columnTransliterationOffsets)),
+            /* tokenMatch = */ true);
       }
 
       if (DEBUG) {
@@ -1029,6 +1488,149 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
     return result;
   }
 
+  /**
+   * Same as {@link #getLooseMatches(String, SmartDialNameMatcher, boolean, int)}, but resolves
+   * candidates with {@link SmartDialTrieEngine} instead of a LIKE scan of the prefix table. The
+   * engine is loaded from the database on first use, after which no SQL is run per query.
+   */
+  private ArrayList<ContactNumber> getLooseMatchesFromTrie(
+      String query, SmartDialNameMatcher nameMatcher, boolean distinctContacts, int limit) {
+    final StopWatch stopWatch = DEBUG ? StopWatch.start(":Trie query") : null;
+    if (!trieEngine.isLoaded()) {
+      trieEngine.load(
+          getReadableDatabase(),
+          "SELECT "
+              + SmartDialDbColumns._ID
+              + ", "
+              + SmartDialDbColumns.DATA_ID
+              + ", "
+              + SmartDialDbColumns.DISPLAY_NAME_PRIMARY
+              + ", "
+              + SmartDialDbColumns.PHOTO_ID
+              + ", "
+              + SmartDialDbColumns.NUMBER
+              + ", "
+              + SmartDialDbColumns.CONTACT_ID
+              + ", "
+              + SmartDialDbColumns.LOOKUP_KEY
+              + ", "
+              + SmartDialDbColumns.CARRIER_PRESENCE
+              + ", "
+              + SmartDialDbColumns.STARRED
+              + ", "
+              + SmartDialDbColumns.IS_SUPER_PRIMARY
+              + ", "
+              + SmartDialDbColumns.LAST_TIME_USED
+              + ", "
+              + SmartDialDbColumns.TIMES_USED
+              + ", "
+              + SmartDialDbColumns.IN_VISIBLE_GROUP
+              + ", "
+              + SmartDialDbColumns.IS_PRIMARY
+              + ", "
+              + SmartDialDbColumns.TRANSLITERATED_NAME
+              + ", "
+              + SmartDialDbColumns.TRANSLITERATION_OFFSETS
+              + " FROM "
+              + Tables.SMARTDIAL_TABLE
+              + " WHERE "
+              + SmartDialDbColumns.DATA_ID
+              + " IS NOT NULL",
+          "SELECT "
+              + PrefixColumns.CONTACT_ID
+              + ", "
+              + PrefixColumns.PREFIX
+              + " FROM "
+              + Tables.PREFIX_TABLE);
+      if (DEBUG) {
+        stopWatch.lap("Loaded trie");
+      }
+    }
+
+    final ArrayList<ContactNumber> result = new ArrayList<>();
+    if (limit <= 0) {
+      return result;
+    }
+    final Set<ContactMatch> duplicates = distinctContacts ? new HashSet<>() : null;
+    trieEngine.visitCandidates(
+        query,
+        System.currentTimeMillis(),
+        (row, tokenMatch) -> {
+          addIfMatches(
+              result,
+              duplicates,
+              query,
+              nameMatcher,
+              row.contactId,
+              row.dataId,
+              row.displayName,
+              row.number,
+              row.lookupKey,
+              row.photoId,
+              row.carrierPresence,
+              row.transliteratedName,
+              tokenMatch);
+          return result.size() < limit;
+        });
+    if (DEBUG) {
+      stopWatch.stopAndLog(TAG + "Finished matching trie candidates", 0);
+    }
+    return result;
+  }
+
+  /**
+   * Adds the candidate to {@code result} if its number matches the query, or if its name does and
+   * {@code tokenMatch} is set, skipping contacts which already have another number in the result
+   * unless {@code duplicates} is null.
+   *
+   * @param tokenMatch Whether the name may match, i.e. whether one of the contact's prefix table
+   *     tokens starts with the query for the trie engine. Always true for the SQL path.
+   */
+  private void addIfMatches(
+      List<ContactNumber> result,
+      @Nullable Set<ContactMatch> duplicates,
+      String query,
+      SmartDialNameMatcher nameMatcher,
+      long id,
+      long dataId,
+      String displayName,
+      String phoneNumber,
+      String lookupKey,
+      long photoId,
+      int carrierPresence,
+      @Nullable TransliteratedName transliteratedName,
+      boolean tokenMatch) {
+    /**
+     * If a contact already exists and another phone number of the contact is being processed, skip
+     * the second instance.
+     */
+    final ContactMatch contactMatch = new ContactMatch(lookupKey, id);
+    if (duplicates != null && duplicates.contains(contactMatch)) {
+      return;
+    }
+
+    /** If the contact has either the name or number that matches the query, add to the result. */
+    final boolean nameMatches =
+        tokenMatch && nameMatcher.matches(context, displayName, transliteratedName);
+    final boolean numberMatches = (nameMatcher.matchesNumber(context, phoneNumber, query) != null);
+    if (nameMatches || numberMatches) {
+      /** If a contact has not been added, add it to the result and the hash set. */
+      if (duplicates != null) {
+        duplicates.add(contactMatch);
+      }
+      result.add(
+          new ContactNumber(
+              id,
+              dataId,
+              displayName,
+              phoneNumber,
+              lookupKey,
+              photoId,
+              carrierPresence,
+              transliteratedName));
+    }
+  }
+
   public interface Tables {
 
     /** Saves a list of numbers to be blocked. */
@@ -1037,6 +1639,8 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
     String SMARTDIAL_TABLE = "smartdial_table";
     /** Saves all possible prefixes to refer to a contacts. */
     String PREFIX_TABLE = "prefix_table";
+    /** Saves a stamp of the contact data each contact's smart dial rows were built from. */
+    String SMARTDIAL_STAMP_TABLE = "smartdial_stamp_table";
     /** Saves all archived voicemail information. */
     String VOICEMAIL_ARCHIVE_TABLE = "voicemail_archive_table";
     /** Database properties for internal use */
@@ -1060,6 +1664,10 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
     String IS_PRIMARY = "is_primary";
     String CARRIER_PRESENCE = "carrier_presence";
     String LAST_SMARTDIAL_UPDATE_TIME = "last_smartdial_update_time";
+    /** The display name transliterated for smart dial matching, see {@link TransliteratedName}. */
+    String TRANSLITERATED_NAME = "transliterated_name";
+    /** Display name offsets of each character of {@link #TRANSLITERATED_NAME}. */
+    String TRANSLITERATION_OFFSETS = "transliteration_offsets";
   }
 
   public interface PrefixColumns extends BaseColumns {
@@ -1068,6 +1676,12 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
     String CONTACT_ID = "contact_id";
   }
 
+  public interface SmartDialStampColumns {
+
+    String CONTACT_ID = "contact_id";
+    String STAMP = "stamp";
+  }
+
   public interface PropertiesColumns {
 
     String PROPERTY_KEY = "property_key";
@@ -1255,6 +1869,8 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
     public final String lookupKey;
     public final long photoId;
     public final int carrierPresence;
+    /** The transliteration stored in the smart dial database, if any. */
+    @Nullable public final TransliteratedName transliteratedName;
 
     public ContactNumber(
         long id,
@@ -1264,6 +1880,19 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
         String lookupKey,
         long photoId,
         int carrierPresence) {
+      this(id, dataID, displayName, phoneNumber, lookupKey, photoId, carrierPresence, null);
+    }
+
+    public ContactNumber(
+        long id,
+        long dataID,
+        String displayName,
+        String phoneNumber,
+        String lookupKey,
+        long photoId,
+        int carrierPresence,
+        @Nullable TransliteratedName transliteratedName) {
+      this.transliteratedName = transliteratedName;
       this.dataId = dataID;
       this.id = id;
       this.displayName = displayName;
@@ -1298,6 +1927,33 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
     }
   }
 
+  /**
+   * Rows matching a query, see {@link #getAllLooseMatchRows(String, SmartDialNameMatcher, int)}.
+   *
+   * <p>The rows matching a longer query are the rows whose number matches it, or whose name matches
+   * it and, unless {@link #tokens} is null, whose contact has a token starting with it in {@link
+   * #tokens}. If {@link #truncated} is set, they are only the first matching rows of the longer
+   * query.
+   */
+  public static final class LooseMatchRows {
+
+    public final List<ContactNumber> rows;
+    /** Whether more rows matched the query than were returned. */
+    public final boolean truncated;
+    /**
+     * The prefix table tokens starting with the query, keyed by the contact ID of the rows, or null
+     * if names match regardless of the tokens, as on the SQL path.
+     */
+    @Nullable public final Map<Long, List<String>> tokens;
+
+    public LooseMatchRows(
+        List<ContactNumber> rows, boolean truncated, @Nullable Map<Long, List<String>> tokens) {
+      this.rows = rows;
+      this.truncated = truncated;
+      this.tokens = tokens;
+    }
+  }
+
   /** Data format for finding duplicated contacts. */
   private static class ContactMatch {
 
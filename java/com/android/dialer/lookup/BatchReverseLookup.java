@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2018 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.lookup;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.telephony.PhoneNumberUtils;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.android.dialer.location.GeoUtil;
+import com.android.dialer.phonenumbercache.ContactInfo;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Reverse lookup of many numbers at once, e.g. the unknown numbers of the call log.
+ *
+ * <p>Numbers which are in {@link LookupCache} are answered from it. The others are looked up with
+ * at most {@link #MAX_CONCURRENT_REQUESTS} requests in flight per provider, started no more often
+ * than every {@link #MIN_REQUEST_INTERVAL_MILLIS}, so that a long call log doesn't get the device
+ * rate limited by the provider. Numbers the provider didn't know are not looked up again for
+ * {@link #MISS_TTL_MILLIS}. If the provider can't be reached, the rest of the batch is dropped
+ * and nothing is remembered, so the numbers are looked up again by the next batch.
+ */
+public final class BatchReverseLookup {
+  private static final String TAG = BatchReverseLookup.class.getSimpleName();
+
+  private static final int MAX_CONCURRENT_REQUESTS = 2;
+  private static final long MIN_REQUEST_INTERVAL_MILLIS = 250;
+  private static final long KEEP_ALIVE_SECONDS = 30;
+
+  private static final long MISS_TTL_MILLIS = TimeUnit.HOURS.toMillis(6);
+  private static final int MAX_MISSES = 512;
+
+  /** Receives the results of a batch as they arrive. */
+  public interface Listener {
+    void onResult(String number, ContactInfo info);
+  }
+
+  private static BatchReverseLookup instance;
+
+  private final Context context;
+  private final Map<String, ProviderQueue> queues = new HashMap<>();
+  private final LruCache<String, Long> misses = new LruCache<>(MAX_MISSES);
+
+  public static synchronized BatchReverseLookup getInstance(Context context) {
+    if (instance == null) {
+      instance = new BatchReverseLookup(context.getApplicationContext());
+    }
+    return instance;
+  }
+
+  private BatchReverseLookup(Context context) {
+    this.context = context;
+  }
+
+  /**
+   * Look up the given numbers. Must not be called on the main thread.
+   *
+   * @param numbers E.164 numbers, duplicates are looked up once
+   * @param listener Called on the calling thread for every number found, as soon as it is found
+   * @return The numbers which were found, and their contact info
+   */
+  public Map<String, ContactInfo> lookupNumbers(Collection<String> numbers, Listener listener) {
+    Map<String, ContactInfo> results = new HashMap<>();
+    if (numbers.isEmpty() || !LookupSettings.isReverseLookupEnabled(context)) {
+      return results;
+    }
+
+    Set<String> pending = new LinkedHashSet<>();
+    for (String number : numbers) {
+      if (results.containsKey(number)) {
+        continue;
+      }
+      ContactInfo cached = getCachedContact(number);
+      if (cached != null) {
+        deliver(results, listener, number, cached);
+      } else if (!isRecentMiss(number)) {
+        pending.add(number);
+      }
+    }
+    if (pending.isEmpty()) {
+      return results;
+    }
+
+    final ReverseLookup reverseLookup = ReverseLookup.getInstance(context);
+    if (reverseLookup == null) {
+      return results;
+    }
+    final ProviderQueue queue =
+        getQueue(LookupSettings.getReverseLookupProvider(context));
+    final String countryIso = GeoUtil.getCurrentCountryIso(context);
+    final AtomicBoolean unreachable = new AtomicBoolean();
+
+    Log.d(TAG, "Looking up " + pending.size() + " of " + numbers.size() + " numbers");
+    CompletionService<ContactInfo> completionService =
+        new ExecutorCompletionService<>(queue.executor);
+    for (final String number : pending) {
+      completionService.submit(new Callable<ContactInfo>() {
+        @Override
+        public ContactInfo call() throws InterruptedException {
+          if (unreachable.get()) {
+            return null;
+          }
+          queue.awaitTurn();
+          if (unreachable.get()) {
+            return null;
+          }
+          return lookupNumber(reverseLookup, number, countryIso, unreachable);
+        }
+      });
+    }
+
+    try {
+      for (int i = 0; i < pending.size(); i++) {
+        Future<ContactInfo> future = completionService.take();
+        ContactInfo info;
+        try {
+          info = future.get();
+        } catch (ExecutionException e) {
+          // Only this number failed, keep collecting the others.
+          Log.w(TAG, "Lookup of a batched number failed", e);
+          continue;
+        }
+        if (info != null) {
+          deliver(results, listener, info.normalizedNumber, info);
+        }
+      }
+    } catch (InterruptedException e) {
+      Log.w(TAG, "Batch lookup was interrupted");
+      Thread.currentThread().interrupt();
+    }
+    return results;
+  }
+
+  private ContactInfo getCachedContact(String number) {
+    if (!LookupCache.hasCachedContact(context, number)) {
+      return null;
+    }
+    ContactInfo info = LookupCache.getCachedContact(context, number);
+    return info != null && !ContactInfo.EMPTY.equals(info) ? info : null;
+  }
+
+  /**
+   * Looks up a number, or returns null if it isn't known or the provider can't be reached, in
+   * which case {@code unreachable} is set.
+   */
+  private ContactInfo lookupNumber(ReverseLookup reverseLookup, String number,
+      String countryIso, AtomicBoolean unreachable) {
+    // Another batch or the in-call screen may have found it in the meantime.
+    ContactInfo info = getCachedContact(number);
+    if (info != null) {
+      return withNormalizedNumber(info, number);
+    }
+
+    String formattedNumber = PhoneNumberUtils.formatNumber(number, number, countryIso);
+    try {
+      info = reverseLookup.lookupNumber(context, number, formattedNumber);
+    } catch (IOException e) {
+      // Not a miss, but the provider is unlikely to be reachable for the next number either.
+      if (unreachable.compareAndSet(false, true)) {
+        Log.w(TAG, "Provider unreachable, dropping the rest of the batch", e);
+      }
+      return null;
+    }
+
+    if (info == null || ContactInfo.EMPTY.equals(info)) {
+      synchronized (misses) {
+        misses.put(number, SystemClock.elapsedRealtime());
+      }
+      return null;
+    }
+    LookupCache.cacheContact(context, info);
+    return withNormalizedNumber(info, number);
+  }
+
+  /** Results are reported for the number they were requested for. */
+  private static ContactInfo withNormalizedNumber(ContactInfo info, String number) {
+    info.normalizedNumber = number;
+    return info;
+  }
+
+  /** Returns true if the provider didn't know the number when it was last looked up. */
+  public boolean isRecentMiss(String number) {
+    synchronized (misses) {
+      Long time = misses.get(number);
+      if (time == null) {
+        return false;
+      }
+      if (SystemClock.elapsedRealtime() - time < MISS_TTL_MILLIS) {
+        return true;
+      }
+      misses.remove(number);
+      return false;
+    }
+  }
+
+  private static void deliver(Map<String, ContactInfo> results, Listener listener,
+      String number, ContactInfo info) {
+    results.put(number, info);
+    if (listener != null) {
+      listener.onResult(number, info);
+    }
+  }
+
+  private synchronized ProviderQueue getQueue(String provider) {
+    ProviderQueue queue = queues.get(provider);
+    if (queue == null) {
+      queue = new ProviderQueue();
+      queues.put(provider, queue);
+    }
+    return queue;
+  }
+
+  /** Requests to a single provider. */
+  private static final class ProviderQueue {
+    final ThreadPoolExecutor executor;
+    private long nextRequestTime;
+
+    ProviderQueue() {
+      executor = new ThreadPoolExecutor(MAX_CONCURRENT_REQUESTS, MAX_CONCURRENT_REQUESTS,
+          KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+      executor.allowCoreThreadTimeOut(true);
+    }
+
+    /** Wait until the next request may be started. */
+    void awaitTurn() throws InterruptedException {
+      long delay;
+      synchronized (this) {
+        long now = SystemClock.elapsedRealtime();
+        long start = Math.max(now, nextRequestTime);
+        nextRequestTime = start + MIN_REQUEST_INTERVAL_MILLIS;
+        delay = start - now;
+      }
+      if (delay > 0) {
+        Thread.sleep(delay);
+      }
+    }
+  }
+}
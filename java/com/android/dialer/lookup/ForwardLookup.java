@@ -36,6 +36,7 @@ public abstract class ForwardLookup {
 
     if (INSTANCE == null || !isInstance(provider)) {
       Log.d(TAG, "Chosen forward lookup provider: " + provider);
+      LookupUtils.enableResponseCache(context);
 
       if (provider.equals(LookupSettings.FLP_GOOGLE)) {
         INSTANCE = new GoogleForwardLookup(context);
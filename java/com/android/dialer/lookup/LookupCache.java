@@ -23,8 +23,6 @@ import android.net.Uri;
 import android.provider.ContactsContract.Contacts;
 import android.telephony.PhoneNumberUtils;
 import android.telephony.TelephonyManager;
-import android.util.JsonReader;
-import android.util.JsonWriter;
 import android.util.Log;
 
 import com.android.dialer.phonenumbercache.ContactInfo;
@@ -34,13 +32,7 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.InputStreamReader;
-import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.util.ArrayList;
-import java.util.List;
 
 public class LookupCache {
   private static final String TAG = LookupCache.class.getSimpleName();
@@ -60,60 +52,14 @@ public class LookupCache {
         return false;
     }
 
-    File file = getFilePath(context, normalizedNumber);
-    return file.exists();
+    return LookupCacheStore.getInstance(context).contains(normalizedNumber);
   }
 
   public static void cacheContact(Context context, ContactInfo info) {
-    File file = getFilePath(context, info.normalizedNumber);
-
-    if (file.exists()) {
-      file.delete();
-    }
-
-    FileOutputStream out = null;
-    JsonWriter writer = null;
-
-    try {
-      out = new FileOutputStream(file);
-      writer = new JsonWriter(new OutputStreamWriter(out, "UTF-8"));
-      writer.setIndent("  ");
-      List messages = new ArrayList();
-
-      writer.beginObject();
-      if (info.name != null) {
-        writer.name(NAME).value(info.name);
-      }
-      writer.name(TYPE).value(info.type);
-      if (info.label != null) {
-        writer.name(LABEL).value(info.label);
-      }
-      if (info.number != null) {
-        writer.name(NUMBER).value(info.number);
-      }
-      if (info.formattedNumber != null) {
-          writer.name(FORMATTED_NUMBER).value(info.formattedNumber);
-      }
-      if (info.normalizedNumber != null) {
-          writer.name(NORMALIZED_NUMBER).value(info.normalizedNumber);
-      }
-      writer.name(PHOTO_ID).value(info.photoId);
-
-      if (info.lookupUri != null) {
-          writer.name(LOOKUP_URI).value(info.lookupUri.toString());
-      }
-
-      // We do not save the photo URI. If there's a cached image, that
-      // will be used when the contact is retrieved. Otherwise, photoUri
-      // will be set to null.
-
-      writer.endObject();
-    } catch (IOException e) {
-      e.printStackTrace();
-    } finally {
-      DialerUtils.closeQuietly(writer);
-      DialerUtils.closeQuietly(out);
-    }
+    // We do not save the photo URI. If there's a cached image, that
+    // will be used when the contact is retrieved. Otherwise, photoUri
+    // will be set to null.
+    LookupCacheStore.getInstance(context).put(info);
   }
 
   public static ContactInfo getCachedContact(Context context, String number) {
@@ -122,78 +68,39 @@ public class LookupCache {
       return null;
     }
 
-    File file = getFilePath(context, normalizedNumber);
-    if (!file.exists()) {
+    ContactInfo info = LookupCacheStore.getInstance(context).get(normalizedNumber);
+    if (info == null) {
       // Whatever is calling this should probably check anyway
       return null;
     }
 
-    ContactInfo info = new ContactInfo();
-
-    FileInputStream in = null;
-    JsonReader reader = null;
-
-    try {
-      in = new FileInputStream(file);
-      reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
-
-      reader.beginObject();
-      while (reader.hasNext()) {
-        String name = reader.nextName();
-
-        if (NAME.equals(name)) {
-          info.name = reader.nextString();
-        } else if (TYPE.equals(name)) {
-          info.type = reader.nextInt();
-        } else if (LABEL.equals(name)) {
-          info.label = reader.nextString();
-        } else if (NUMBER.equals(name)) {
-          info.number = reader.nextString();
-        } else if (FORMATTED_NUMBER.equals(name)) {
-          info.formattedNumber = reader.nextString();
-        } else if (NORMALIZED_NUMBER.equals(name)) {
-          info.normalizedNumber = reader.nextString();
-        } else if (PHOTO_ID.equals(name)) {
-          info.photoId = reader.nextInt();
-        } else if (LOOKUP_URI.equals(name)) {
-          Uri lookupUri = Uri.parse(reader.nextString());
-
-          if (hasCachedImage(context, normalizedNumber)) {
-            // Insert cached photo URI
-            Uri image = Uri.withAppendedPath(LookupProvider.IMAGE_CACHE_URI,
-                Uri.encode(normalizedNumber));
-
-            String json = lookupUri.getEncodedFragment();
-            if (json != null) {
-              try {
-                JSONObject jsonObj = new JSONObject(json);
-                jsonObj.putOpt(Contacts.PHOTO_URI, image.toString());
-                lookupUri = lookupUri.buildUpon()
-                    .encodedFragment(jsonObj.toString())
-                    .build();
-              } catch (JSONException e) {
-                Log.e(TAG, "Failed to add image URI to json", e);
-              }
-            }
-
-            info.photoUri = image;
-          }
-
-          info.lookupUri = lookupUri;
+    if (info.lookupUri != null && hasCachedImage(context, normalizedNumber)) {
+      // Insert cached photo URI
+      Uri image = Uri.withAppendedPath(LookupProvider.IMAGE_CACHE_URI,
+          Uri.encode(normalizedNumber));
+
+      String json = info.lookupUri.getEncodedFragment();
+      if (json != null) {
+        try {
+          JSONObject jsonObj = new JSONObject(json);
+          jsonObj.putOpt(Contacts.PHOTO_URI, image.toString());
+          info.lookupUri = info.lookupUri.buildUpon()
+              .encodedFragment(jsonObj.toString())
+              .build();
+        } catch (JSONException e) {
+          Log.e(TAG, "Failed to add image URI to json", e);
         }
       }
-      reader.endObject();
-    } catch (IOException e) {
-      e.printStackTrace();
-    } finally {
-      DialerUtils.closeQuietly(reader);
-      DialerUtils.closeQuietly(in);
+
+      info.photoUri = image;
     }
 
     return info;
   }
 
   public static void deleteCachedContacts(Context context) {
+    LookupCacheStore.getInstance(context).clear();
+
     File dir = new File(context.getCacheDir(), "lookup");
     if (!dir.exists()) {
       Log.v(TAG, "Lookup cache directory does not exist. Not clearing it.");
@@ -216,15 +123,7 @@ public class LookupCache {
   }
 
   public static void deleteCachedContact(Context context, String normalizedNumber) {
-    File f = getFilePath(context, normalizedNumber);
-    if (f.exists()) {
-      f.delete();
-    }
-
-    f = getImagePath(context, normalizedNumber);
-    if (f.exists()) {
-      f.delete();
-    }
+    LookupCacheStore.getInstance(context).remove(normalizedNumber);
   }
 
   public static boolean hasCachedImage(Context context, String number) {
@@ -276,15 +175,6 @@ public class LookupCache {
     return PhoneNumberUtils.formatNumberToE164(number, countryIso);
   }
 
-  private static File getFilePath(Context context, String normalizedNumber) {
-    File dir = new File(context.getCacheDir(), "lookup");
-    if (!dir.exists()) {
-      dir.mkdirs();
-    }
-
-    return new File(dir, normalizedNumber + ".json");
-  }
-
   public static File getImagePath(Context context, String normalizedNumber) {
     File dir = new File(context.getCacheDir(), "lookup");
     if (!dir.exists()) {
@@ -0,0 +1,473 @@
+/*
+ * Copyright (C) 2018 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.lookup;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.net.Uri;
+import android.util.JsonReader;
+import android.util.LruCache;
+
+import com.android.dialer.common.LogUtil;
+import com.android.dialer.common.concurrent.DialerExecutorComponent;
+import com.android.dialer.phonenumbercache.ContactInfo;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stores reverse lookup results in a single SQLite database, keyed by E.164 number.
+ *
+ * <p>Each contact is stored as a compact binary record. Entries expire after {@link #TTL_MILLIS}
+ * and the least recently used entries are evicted once there are more than {@link #MAX_ENTRIES}.
+ * The most recently used records are also kept in memory, so that the usual
+ * hasCachedContact/getCachedContact sequence only reads the database once.
+ *
+ * <p>Lookup results used to be stored as one JSON file per number. Those files are moved into the
+ * database by a background task started with the store, so that the first lookup, which may be
+ * made for an incoming call, doesn't wait for them.
+ */
+final class LookupCacheStore {
+  private static final String DATABASE_NAME = "lookup_cache.db";
+  private static final int DATABASE_VERSION = 1;
+
+  private static final String TABLE = "lookup_cache";
+  private static final String COLUMN_NUMBER = "number";
+  private static final String COLUMN_RECORD = "record";
+  private static final String COLUMN_CREATED = "created";
+  private static final String COLUMN_LAST_ACCESS = "last_access";
+
+  /** Lookup results are looked up again after this long. */
+  static final long TTL_MILLIS = TimeUnit.DAYS.toMillis(30);
+  /**
+   * Maximum number of entries in the database. It is enforced every {@link #TRIM_INTERVAL} puts,
+   * so up to that many more entries may be stored in between.
+   */
+  static final int MAX_ENTRIES = 2000;
+  /** Number of puts between two trims of the database. */
+  private static final int TRIM_INTERVAL = 50;
+  /** Number of records kept in memory. */
+  private static final int HOT_ENTRIES = 32;
+  /** Minimum time between two updates of the last access time of the same entry. */
+  private static final long ACCESS_UPDATE_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+  private static final byte RECORD_VERSION = 1;
+
+  // Bits of the record header telling which nullable fields are present.
+  private static final int HAS_NAME = 1;
+  private static final int HAS_LABEL = 1 << 1;
+  private static final int HAS_NUMBER = 1 << 2;
+  private static final int HAS_FORMATTED_NUMBER = 1 << 3;
+  private static final int HAS_NORMALIZED_NUMBER = 1 << 4;
+  private static final int HAS_LOOKUP_URI = 1 << 5;
+
+  private static LookupCacheStore instance;
+
+  private final Context context;
+  private final OpenHelper openHelper;
+  private final LruCache<String, Entry> hotEntries = new LruCache<>(HOT_ENTRIES);
+  /** Starts one short of the interval, so that the first put of the process trims. */
+  private final AtomicInteger putsSinceTrim = new AtomicInteger(TRIM_INTERVAL - 1);
+
+  private LookupCacheStore(Context context) {
+    this.context = context;
+    openHelper = new OpenHelper(context);
+  }
+
+  static synchronized LookupCacheStore getInstance(Context context) {
+    if (instance == null) {
+      instance = new LookupCacheStore(context.getApplicationContext());
+      DialerExecutorComponent.get(context)
+          .backgroundExecutor()
+          .execute(instance::migrateLegacyFiles);
+    }
+    return instance;
+  }
+
+  /** Returns true if an unexpired entry exists for the number. */
+  boolean contains(String normalizedNumber) {
+    return getEntry(normalizedNumber) != null;
+  }
+
+  /**
+   * Returns the cached contact for the number, without its photo URI, or null if there is no
+   * unexpired entry.
+   */
+  ContactInfo get(String normalizedNumber) {
+    Entry entry = getEntry(normalizedNumber);
+    if (entry == null) {
+      return null;
+    }
+    try {
+      return decode(entry.record);
+    } catch (IOException e) {
+      LogUtil.e("LookupCacheStore.get", "failed to decode cached contact", e);
+      remove(normalizedNumber);
+      return null;
+    }
+  }
+
+  /** Stores the contact under its normalized number, replacing any existing entry. */
+  void put(ContactInfo info) {
+    put(info.normalizedNumber, info, System.currentTimeMillis());
+  }
+
+  private void put(String normalizedNumber, ContactInfo info, long createdMillis) {
+    if (normalizedNumber == null) {
+      return;
+    }
+    byte[] record;
+    try {
+      record = encode(info);
+    } catch (IOException e) {
+      LogUtil.e("LookupCacheStore.put", "failed to encode contact", e);
+      return;
+    }
+
+    long now = System.currentTimeMillis();
+    ContentValues values = new ContentValues();
+    values.put(COLUMN_NUMBER, normalizedNumber);
+    values.put(COLUMN_RECORD, record);
+    values.put(COLUMN_CREATED, createdMillis);
+    values.put(COLUMN_LAST_ACCESS, now);
+    try {
+      SQLiteDatabase db = openHelper.getWritableDatabase();
+      db.insertWithOnConflict(TABLE, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+      hotEntries.put(normalizedNumber, new Entry(record, createdMillis, now));
+      if (putsSinceTrim.incrementAndGet() >= TRIM_INTERVAL) {
+        putsSinceTrim.set(0);
+        trim(db);
+      }
+    } catch (SQLiteException e) {
+      LogUtil.e("LookupCacheStore.put", "failed to cache contact", e);
+    }
+  }
+
+  /** Removes the entry for the number, along with its cached image. */
+  void remove(String normalizedNumber) {
+    hotEntries.remove(normalizedNumber);
+    try {
+      openHelper.getWritableDatabase().delete(
+          TABLE, COLUMN_NUMBER + " = ?", new String[] { normalizedNumber });
+    } catch (SQLiteException e) {
+      LogUtil.e("LookupCacheStore.remove", "failed to remove cached contact", e);
+    }
+    deleteImage(normalizedNumber);
+  }
+
+  /** Removes all entries. Cached images are left to the caller. */
+  void clear() {
+    hotEntries.evictAll();
+    try {
+      openHelper.getWritableDatabase().delete(TABLE, null, null);
+    } catch (SQLiteException e) {
+      LogUtil.e("LookupCacheStore.clear", "failed to clear lookup cache", e);
+    }
+  }
+
+  private Entry getEntry(String normalizedNumber) {
+    if (normalizedNumber == null) {
+      return null;
+    }
+    long now = System.currentTimeMillis();
+    Entry entry = hotEntries.get(normalizedNumber);
+    if (entry == null) {
+      entry = query(normalizedNumber);
+      if (entry == null) {
+        return null;
+      }
+      hotEntries.put(normalizedNumber, entry);
+    }
+
+    if (now - entry.createdMillis > TTL_MILLIS) {
+      remove(normalizedNumber);
+      return null;
+    }
+    if (now - entry.lastAccessMillis > ACCESS_UPDATE_INTERVAL_MILLIS) {
+      entry.lastAccessMillis = now;
+      updateLastAccess(normalizedNumber, now);
+    }
+    return entry;
+  }
+
+  private Entry query(String normalizedNumber) {
+    try (Cursor cursor = openHelper.getReadableDatabase().query(
+        TABLE,
+        new String[] { COLUMN_RECORD, COLUMN_CREATED, COLUMN_LAST_ACCESS },
+        COLUMN_NUMBER + " = ?",
+        new String[] { normalizedNumber },
+        null, null, null)) {
+      if (cursor == null || !cursor.moveToFirst()) {
+        return null;
+      }
+      return new Entry(cursor.getBlob(0), cursor.getLong(1), cursor.getLong(2));
+    } catch (SQLiteException e) {
+      LogUtil.e("LookupCacheStore.query", "failed to read cached contact", e);
+      return null;
+    }
+  }
+
+  private void updateLastAccess(String normalizedNumber, long now) {
+    ContentValues values = new ContentValues();
+    values.put(COLUMN_LAST_ACCESS, now);
+    try {
+      openHelper.getWritableDatabase().update(
+          TABLE, values, COLUMN_NUMBER + " = ?", new String[] { normalizedNumber });
+    } catch (SQLiteException e) {
+      LogUtil.e("LookupCacheStore.updateLastAccess", "failed to update access time", e);
+    }
+  }
+
+  /**
+   * Deletes expired entries, then the least recently used ones over {@link #MAX_ENTRIES}, so that
+   * expired entries don't count towards the overflow.
+   */
+  private void trim(SQLiteDatabase db) {
+    long expiry = System.currentTimeMillis() - TTL_MILLIS;
+    List<String> evicted = new ArrayList<>();
+    db.beginTransaction();
+    try {
+      evict(db, "SELECT " + COLUMN_NUMBER + " FROM " + TABLE + " WHERE " + COLUMN_CREATED + " < ?",
+          String.valueOf(expiry), evicted);
+      long count = DatabaseUtils.queryNumEntries(db, TABLE);
+      if (count > MAX_ENTRIES) {
+        evict(db, "SELECT " + COLUMN_NUMBER + " FROM " + TABLE
+                + " ORDER BY " + COLUMN_LAST_ACCESS + " LIMIT ?",
+            String.valueOf(count - MAX_ENTRIES), evicted);
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+
+    for (String number : evicted) {
+      hotEntries.remove(number);
+      deleteImage(number);
+    }
+    if (!evicted.isEmpty()) {
+      LogUtil.v("LookupCacheStore.trim", "evicted %d cached contacts", evicted.size());
+    }
+  }
+
+  /** Deletes the entries whose numbers {@code query} selects and adds them to {@code evicted}. */
+  private static void evict(SQLiteDatabase db, String query, String arg, List<String> evicted) {
+    List<String> numbers = new ArrayList<>();
+    try (Cursor cursor = db.rawQuery(query, new String[] { arg })) {
+      while (cursor != null && cursor.moveToNext()) {
+        numbers.add(cursor.getString(0));
+      }
+    }
+    for (String number : numbers) {
+      db.delete(TABLE, COLUMN_NUMBER + " = ?", new String[] { number });
+    }
+    evicted.addAll(numbers);
+  }
+
+  private void deleteImage(String normalizedNumber) {
+    File image = LookupCache.getImagePath(context, normalizedNumber);
+    if (image.exists()) {
+      image.delete();
+    }
+  }
+
+  private static byte[] encode(ContactInfo info) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+    DataOutputStream out = new DataOutputStream(bytes);
+    int flags = (info.name != null ? HAS_NAME : 0)
+        | (info.label != null ? HAS_LABEL : 0)
+        | (info.number != null ? HAS_NUMBER : 0)
+        | (info.formattedNumber != null ? HAS_FORMATTED_NUMBER : 0)
+        | (info.normalizedNumber != null ? HAS_NORMALIZED_NUMBER : 0)
+        | (info.lookupUri != null ? HAS_LOOKUP_URI : 0);
+    out.writeByte(RECORD_VERSION);
+    out.writeByte(flags);
+    out.writeInt(info.type);
+    out.writeLong(info.photoId);
+    writeString(out, info.name);
+    writeString(out, info.label);
+    writeString(out, info.number);
+    writeString(out, info.formattedNumber);
+    writeString(out, info.normalizedNumber);
+    writeString(out, info.lookupUri != null ? info.lookupUri.toString() : null);
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  private static ContactInfo decode(byte[] record) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+    if (in.readByte() != RECORD_VERSION) {
+      throw new IOException("Unknown record version");
+    }
+    int flags = in.readByte();
+    ContactInfo info = new ContactInfo();
+    info.type = in.readInt();
+    info.photoId = in.readLong();
+    info.name = (flags & HAS_NAME) != 0 ? readString(in) : null;
+    info.label = (flags & HAS_LABEL) != 0 ? readString(in) : null;
+    info.number = (flags & HAS_NUMBER) != 0 ? readString(in) : null;
+    info.formattedNumber = (flags & HAS_FORMATTED_NUMBER) != 0 ? readString(in) : null;
+    info.normalizedNumber = (flags & HAS_NORMALIZED_NUMBER) != 0 ? readString(in) : null;
+    info.lookupUri = (flags & HAS_LOOKUP_URI) != 0 ? Uri.parse(readString(in)) : null;
+    return info;
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    if (value == null) {
+      return;
+    }
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Moves the JSON files written by previous versions into the database. Entries stored since the
+   * store was started are newer than the files and are kept.
+   */
+  private void migrateLegacyFiles() {
+    File dir = new File(context.getCacheDir(), "lookup");
+    File[] files = dir.listFiles((d, name) -> name.endsWith(".json"));
+    if (files == null || files.length == 0) {
+      return;
+    }
+
+    SQLiteDatabase db;
+    try {
+      db = openHelper.getWritableDatabase();
+    } catch (SQLiteException e) {
+      LogUtil.e("LookupCacheStore.migrateLegacyFiles", "failed to open lookup cache", e);
+      return;
+    }
+    int migrated = 0;
+    for (File file : files) {
+      String name = file.getName();
+      String normalizedNumber = name.substring(0, name.length() - ".json".length());
+      ContactInfo info = readLegacyFile(file);
+      if (info != null) {
+        try {
+          ContentValues values = new ContentValues();
+          values.put(COLUMN_NUMBER, normalizedNumber);
+          values.put(COLUMN_RECORD, encode(info));
+          values.put(COLUMN_CREATED, file.lastModified());
+          values.put(COLUMN_LAST_ACCESS, file.lastModified());
+          if (db.insertWithOnConflict(TABLE, null, values, SQLiteDatabase.CONFLICT_IGNORE) != -1) {
+            migrated++;
+          }
+        } catch (IOException | SQLiteException e) {
+          LogUtil.e(
+              "LookupCacheStore.migrateLegacyFiles", "failed to migrate legacy cached contact", e);
+        }
+      }
+      file.delete();
+    }
+    LogUtil.i("LookupCacheStore.migrateLegacyFiles",
+        "migrated %d of %d legacy cached contacts", migrated, files.length);
+  }
+
+  private static ContactInfo readLegacyFile(File file) {
+    ContactInfo info = new ContactInfo();
+    try (JsonReader reader = new JsonReader(
+        new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+      reader.beginObject();
+      while (reader.hasNext()) {
+        String name = reader.nextName();
+
+        if (LookupCache.NAME.equals(name)) {
+          info.name = reader.nextString();
+        } else if (LookupCache.TYPE.equals(name)) {
+          info.type = reader.nextInt();
+        } else if (LookupCache.LABEL.equals(name)) {
+          info.label = reader.nextString();
+        } else if (LookupCache.NUMBER.equals(name)) {
+          info.number = reader.nextString();
+        } else if (LookupCache.FORMATTED_NUMBER.equals(name)) {
+          info.formattedNumber = reader.nextString();
+        } else if (LookupCache.NORMALIZED_NUMBER.equals(name)) {
+          info.normalizedNumber = reader.nextString();
+        } else if (LookupCache.PHOTO_ID.equals(name)) {
+          info.photoId = reader.nextInt();
+        } else if (LookupCache.LOOKUP_URI.equals(name)) {
+          info.lookupUri = Uri.parse(reader.nextString());
+        } else {
+          reader.skipValue();
+        }
+      }
+      reader.endObject();
+    } catch (IOException | IllegalStateException e) {
+      LogUtil.w("LookupCacheStore.readLegacyFile", "failed to read %s: %s", file, e);
+      return null;
+    }
+    return info;
+  }
+
+  private static final class Entry {
+    final byte[] record;
+    final long createdMillis;
+    volatile long lastAccessMillis;
+
+    Entry(byte[] record, long createdMillis, long lastAccessMillis) {
+      this.record = record;
+      this.createdMillis = createdMillis;
+      this.lastAccessMillis = lastAccessMillis;
+    }
+  }
+
+  private static final class OpenHelper extends SQLiteOpenHelper {
+    OpenHelper(Context context) {
+      // Kept with the cached images, so that clearing the app's cache clears both.
+      super(context, new File(context.getCacheDir(), DATABASE_NAME).getPath(), null,
+          DATABASE_VERSION);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+      db.execSQL("CREATE TABLE " + TABLE + " ("
+          + COLUMN_NUMBER + " TEXT PRIMARY KEY, "
+          + COLUMN_RECORD + " BLOB NOT NULL, "
+          + COLUMN_CREATED + " INTEGER NOT NULL, "
+          + COLUMN_LAST_ACCESS + " INTEGER NOT NULL)");
+      db.execSQL("CREATE INDEX " + TABLE + "_" + COLUMN_LAST_ACCESS + "_index ON " + TABLE
+          + " (" + COLUMN_LAST_ACCESS + ")");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+    }
+  }
+}
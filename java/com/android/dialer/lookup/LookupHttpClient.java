@@ -0,0 +1,601 @@
+/*
+ * Copyright (C) 2018 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.lookup;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnsupportedCharsetException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * HTTP client shared by the lookup providers.
+ *
+ * <ul>
+ *   <li>Connections are not disconnected after a response was read completely, so that
+ *       {@link HttpURLConnection} keeps them alive and reuses them for the next request to the
+ *       same host.
+ *   <li>GET responses carrying an ETag or Last-Modified header are stored on disk and revalidated
+ *       with a conditional request, so that an unchanged page is not downloaded again.
+ *   <li>Responses are handed to a {@link ResponseParser} as a stream, and copied to the disk cache
+ *       while the parser reads them. Whether the body is held in memory is up to the parser:
+ *       {@link #stringParser()} and {@link #bytesParser()} read it whole, while providers with
+ *       large responses, like OpenStreetMap, parse the stream as it arrives.
+ *   <li>Every host has a circuit breaker: after {@link Policy#failureThreshold} consecutive
+ *       failures, requests to it fail immediately until {@link Policy#openMillis} have passed.
+ *       Then a single request is let through to probe the host.
+ * </ul>
+ */
+public final class LookupHttpClient {
+  private static final String TAG = LookupHttpClient.class.getSimpleName();
+
+  private static final String USER_AGENT =
+      "Mozilla/5.0 (X11; Linux x86_64; rv:42.0) Gecko/20100101 Firefox/42.0";
+
+  private static final int CACHE_VERSION = 1;
+  private static final long MAX_CACHE_BYTES = 4 * 1024 * 1024;
+  private static final String TEMP_SUFFIX = ".tmp";
+  /** Temporary files older than this were left behind by a crash and are deleted. */
+  private static final long TEMP_FILE_MAX_AGE_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+  private static final int BUFFER_SIZE = 8192;
+
+  /** Timeouts and circuit breaker settings of a provider. */
+  public static final class Policy {
+    public static final Policy DEFAULT = new Policy(
+        (int) TimeUnit.SECONDS.toMillis(10), (int) TimeUnit.SECONDS.toMillis(10),
+        3, TimeUnit.MINUTES.toMillis(1));
+
+    final int connectTimeoutMillis;
+    final int readTimeoutMillis;
+    final int failureThreshold;
+    final long openMillis;
+
+    /**
+     * @param connectTimeoutMillis Timeout for establishing the connection
+     * @param readTimeoutMillis Timeout for reading the response
+     * @param failureThreshold Consecutive failures after which a host is skipped
+     * @param openMillis How long a host is skipped for
+     */
+    public Policy(int connectTimeoutMillis, int readTimeoutMillis, int failureThreshold,
+        long openMillis) {
+      this.connectTimeoutMillis = connectTimeoutMillis;
+      this.readTimeoutMillis = readTimeoutMillis;
+      this.failureThreshold = failureThreshold;
+      this.openMillis = openMillis;
+    }
+  }
+
+  /** Reads a response body. */
+  public interface ResponseParser<T> {
+    T parse(InputStream in, Charset charset) throws IOException;
+  }
+
+  private static LookupHttpClient instance;
+
+  private final Map<String, CircuitBreaker> breakers = new HashMap<>();
+  private volatile File cacheDir;
+
+  public static synchronized LookupHttpClient getInstance() {
+    if (instance == null) {
+      instance = new LookupHttpClient();
+    }
+    return instance;
+  }
+
+  /** Enable the response cache, storing it in {@code dir}. */
+  public void setCacheDirectory(File dir) {
+    if (dir.equals(cacheDir)) {
+      return;
+    }
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      Log.w(TAG, "Failed to create response cache directory " + dir);
+      return;
+    }
+    cacheDir = dir;
+  }
+
+  public <T> T get(String url, Map<String, String> headers, Policy policy,
+      ResponseParser<T> parser) throws IOException {
+    String host = new URL(url).getHost();
+    checkCircuit(host);
+
+    File cacheFile = getCacheFile(url);
+    CachedResponse cached = cacheFile != null ? CachedResponse.read(cacheFile) : null;
+
+    HttpURLConnection connection = openConnection(url, headers, policy);
+    boolean success = false;
+    try {
+      if (cached != null) {
+        if (cached.etag != null) {
+          connection.setRequestProperty("If-None-Match", cached.etag);
+        }
+        if (cached.lastModified != null) {
+          connection.setRequestProperty("If-Modified-Since", cached.lastModified);
+        }
+      }
+
+      int code = connection.getResponseCode();
+      if (code == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+        drain(connection);
+        recordResult(host, policy, true);
+        success = true;
+        cacheFile.setLastModified(System.currentTimeMillis());
+        try (InputStream in = cached.openBody(cacheFile)) {
+          return parser.parse(in, cached.charset);
+        }
+      }
+      checkResponseCode(host, code);
+
+      String etag = connection.getHeaderField("ETag");
+      String lastModified = connection.getHeaderField("Last-Modified");
+      Charset charset = determineCharset(connection);
+      T result;
+      if (cacheFile != null && (etag != null || lastModified != null)) {
+        result = parseAndStore(connection, parser, charset, cacheFile,
+            new CachedResponse(etag, lastModified, charset));
+      } else {
+        try (InputStream in = new BufferedInputStream(connection.getInputStream())) {
+          result = parser.parse(in, charset);
+          drain(in);
+        }
+      }
+      recordResult(host, policy, true);
+      success = true;
+      return result;
+    } catch (ClientErrorException e) {
+      // The host is up, it just didn't like the request (e.g. no results).
+      recordResult(host, policy, true);
+      throw e;
+    } catch (IOException | RuntimeException e) {
+      recordResult(host, policy, false);
+      throw e;
+    } finally {
+      if (!success) {
+        connection.disconnect();
+      }
+    }
+  }
+
+  public <T> T post(String url, Map<String, String> headers, String postData, Policy policy,
+      ResponseParser<T> parser) throws IOException {
+    String host = new URL(url).getHost();
+    checkCircuit(host);
+
+    HttpURLConnection connection = openConnection(url, headers, policy);
+    boolean success = false;
+    try {
+      if (postData != null) {
+        connection.setDoOutput(true);
+        try (BufferedWriter bw = new BufferedWriter(
+            new OutputStreamWriter(connection.getOutputStream()))) {
+          bw.write(postData, 0, postData.length());
+        }
+      }
+      checkResponseCode(host, connection.getResponseCode());
+
+      T result;
+      try (InputStream in = new BufferedInputStream(connection.getInputStream())) {
+        result = parser.parse(in, determineCharset(connection));
+        drain(in);
+      }
+      recordResult(host, policy, true);
+      success = true;
+      return result;
+    } catch (ClientErrorException e) {
+      // The host is up, it just didn't like the request (e.g. no results).
+      recordResult(host, policy, true);
+      throw e;
+    } catch (IOException | RuntimeException e) {
+      recordResult(host, policy, false);
+      throw e;
+    } finally {
+      if (!success) {
+        connection.disconnect();
+      }
+    }
+  }
+
+  /**
+   * Returns a parser that decodes the whole response into a string, for providers which search it
+   * with regular expressions.
+   */
+  public static ResponseParser<String> stringParser() {
+    return new ResponseParser<String>() {
+      @Override
+      public String parse(InputStream in, Charset charset) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        Reader reader = new InputStreamReader(in, charset);
+        char[] buffer = new char[BUFFER_SIZE / 2];
+        int read;
+        while ((read = reader.read(buffer)) != -1) {
+          sb.append(buffer, 0, read);
+        }
+        return sb.toString();
+      }
+    };
+  }
+
+  /** Returns a parser that returns the raw response. */
+  public static ResponseParser<byte[]> bytesParser() {
+    return new ResponseParser<byte[]>() {
+      @Override
+      public byte[] parse(InputStream in, Charset charset) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int length = 0;
+        int read;
+        while ((read = in.read(buffer, length, buffer.length - length)) != -1) {
+          length += read;
+          if (length == buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+          }
+        }
+        return Arrays.copyOf(buffer, length);
+      }
+    };
+  }
+
+  private static HttpURLConnection openConnection(String url, Map<String, String> headers,
+      Policy policy) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+    connection.setConnectTimeout(policy.connectTimeoutMillis);
+    connection.setReadTimeout(policy.readTimeoutMillis);
+    // set user agent (default value is null)
+    connection.setRequestProperty("User-Agent", USER_AGENT);
+    if (headers != null) {
+      for (Map.Entry<String, String> header : headers.entrySet()) {
+        connection.setRequestProperty(header.getKey(), header.getValue());
+      }
+    }
+    return connection;
+  }
+
+  private static void checkResponseCode(String host, int code) throws IOException {
+    if (code >= HttpURLConnection.HTTP_INTERNAL_ERROR) {
+      throw new IOException("HTTP " + code + " from " + host);
+    } else if (code >= HttpURLConnection.HTTP_BAD_REQUEST) {
+      throw new ClientErrorException("HTTP " + code + " from " + host);
+    }
+  }
+
+  /**
+   * Parse the response while copying it into a temporary file, which replaces the cached response
+   * once the response has been read completely. Every request writes its own temporary file, so
+   * that concurrent requests for the same URL don't write into each other's copy.
+   */
+  private static <T> T parseAndStore(HttpURLConnection connection, ResponseParser<T> parser,
+      Charset charset, File cacheFile, CachedResponse header) throws IOException {
+    File tempFile =
+        File.createTempFile(cacheFile.getName(), TEMP_SUFFIX, cacheFile.getParentFile());
+    T result;
+    try (OutputStream out = new FileOutputStream(tempFile);
+        TeeInputStream in = new TeeInputStream(
+            new BufferedInputStream(connection.getInputStream()), out)) {
+      header.writeHeader(out);
+      result = parser.parse(in, charset);
+      drain(in);
+    } catch (IOException | RuntimeException e) {
+      tempFile.delete();
+      throw e;
+    }
+    if (!tempFile.renameTo(cacheFile)) {
+      tempFile.delete();
+    }
+    trimCache(cacheFile.getParentFile());
+    return result;
+  }
+
+  /** Read what the parser left, so that the connection can be reused. */
+  private static void drain(InputStream in) throws IOException {
+    byte[] buffer = new byte[BUFFER_SIZE];
+    while (in.read(buffer) != -1) {
+    }
+  }
+
+  private static void drain(HttpURLConnection connection) throws IOException {
+    try (InputStream in = connection.getInputStream()) {
+      drain(in);
+    }
+  }
+
+  private static Charset determineCharset(HttpURLConnection connection) {
+    String contentType = connection.getContentType();
+    if (contentType != null) {
+      String[] split = contentType.split(";");
+      for (int i = 0; i < split.length; i++) {
+        String trimmed = split[i].trim();
+        if (trimmed.startsWith("charset=")) {
+          try {
+            return Charset.forName(trimmed.substring(8));
+          } catch (IllegalCharsetNameException | UnsupportedCharsetException e) {
+            // we don't know about this charset -> ignore
+          }
+        }
+      }
+    }
+    return Charset.defaultCharset();
+  }
+
+  private File getCacheFile(String url) {
+    File dir = cacheDir;
+    if (dir == null) {
+      return null;
+    }
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-1")
+          .digest(url.getBytes(StandardCharsets.UTF_8));
+      StringBuilder name = new StringBuilder(digest.length * 2);
+      for (byte b : digest) {
+        name.append(Character.forDigit((b >> 4) & 0xf, 16));
+        name.append(Character.forDigit(b & 0xf, 16));
+      }
+      return new File(dir, name.toString());
+    } catch (NoSuchAlgorithmException e) {
+      return null;
+    }
+  }
+
+  /** Delete the least recently used responses until the cache fits in its budget. */
+  private static synchronized void trimCache(File dir) {
+    File[] files = dir.listFiles();
+    if (files == null) {
+      return;
+    }
+    long total = 0;
+    long now = System.currentTimeMillis();
+    for (File file : files) {
+      if (file.getName().endsWith(TEMP_SUFFIX)
+          && now - file.lastModified() > TEMP_FILE_MAX_AGE_MILLIS) {
+        file.delete();
+        continue;
+      }
+      total += file.length();
+    }
+    if (total <= MAX_CACHE_BYTES) {
+      return;
+    }
+    Arrays.sort(files, new Comparator<File>() {
+      @Override
+      public int compare(File a, File b) {
+        return Long.compare(a.lastModified(), b.lastModified());
+      }
+    });
+    for (File file : files) {
+      if (total <= MAX_CACHE_BYTES) {
+        break;
+      }
+      if (file.getName().endsWith(TEMP_SUFFIX)) {
+        continue;
+      }
+      long length = file.length();
+      if (file.delete()) {
+        total -= length;
+      }
+    }
+  }
+
+  private void checkCircuit(String host) throws IOException {
+    synchronized (breakers) {
+      CircuitBreaker breaker = breakers.get(host);
+      if (breaker != null && !breaker.allowRequest()) {
+        throw new IOException("Skipping " + host + " after "
+            + breaker.failures + " consecutive failures");
+      }
+    }
+  }
+
+  private void recordResult(String host, Policy policy, boolean success) {
+    synchronized (breakers) {
+      CircuitBreaker breaker = breakers.get(host);
+      if (success) {
+        if (breaker != null) {
+          breakers.remove(host);
+        }
+        return;
+      }
+      if (breaker == null) {
+        breaker = new CircuitBreaker();
+        breakers.put(host, breaker);
+      }
+      breaker.failures++;
+      if (breaker.failures >= policy.failureThreshold) {
+        Log.w(TAG, "Skipping " + host + " for " + policy.openMillis + " ms");
+        breaker.openUntil = SystemClock.elapsedRealtime() + policy.openMillis;
+        breaker.probing.set(false);
+      }
+    }
+  }
+
+  /** A 4xx response, which doesn't count as a failure of the host. */
+  private static final class ClientErrorException extends IOException {
+    ClientErrorException(String message) {
+      super(message);
+    }
+  }
+
+  private static final class CircuitBreaker {
+    int failures;
+    long openUntil;
+    /** Set while the request probing a host that was skipped is running. */
+    final AtomicBoolean probing = new AtomicBoolean();
+
+    /**
+     * Once the host was skipped long enough, a single request is let through to probe it. Other
+     * requests keep failing until the probe succeeds, which removes the breaker, or fails, which
+     * skips the host again.
+     */
+    boolean allowRequest() {
+      if (openUntil == 0) {
+        return true;
+      }
+      return SystemClock.elapsedRealtime() >= openUntil && probing.compareAndSet(false, true);
+    }
+  }
+
+  /** Header of a cached response, followed by the response body in the same file. */
+  private static final class CachedResponse {
+    final String etag;
+    final String lastModified;
+    final Charset charset;
+    private int headerLength;
+
+    CachedResponse(String etag, String lastModified, Charset charset) {
+      this.etag = etag;
+      this.lastModified = lastModified;
+      this.charset = charset;
+    }
+
+    static CachedResponse read(File file) {
+      if (!file.isFile()) {
+        return null;
+      }
+      try (DataInputStream in = new DataInputStream(
+          new BufferedInputStream(new FileInputStream(file)))) {
+        if (in.readInt() != CACHE_VERSION) {
+          return null;
+        }
+        CachedResponse response = new CachedResponse(
+            readString(in), readString(in), Charset.forName(in.readUTF()));
+        response.headerLength = in.readInt();
+        return response;
+      } catch (IOException | IllegalArgumentException e) {
+        Log.w(TAG, "Failed to read cached response " + file, e);
+        file.delete();
+        return null;
+      }
+    }
+
+    void writeHeader(OutputStream out) throws IOException {
+      DataOutputStream data = new DataOutputStream(out);
+      byte[] etagBytes = etag != null ? etag.getBytes(StandardCharsets.UTF_8) : null;
+      byte[] lastModifiedBytes =
+          lastModified != null ? lastModified.getBytes(StandardCharsets.UTF_8) : null;
+      byte[] charsetBytes = charset.name().getBytes(StandardCharsets.UTF_8);
+      int length = 4 + stringLength(etagBytes) + stringLength(lastModifiedBytes)
+          + 2 + charsetBytes.length + 4;
+      data.writeInt(CACHE_VERSION);
+      writeString(data, etagBytes);
+      writeString(data, lastModifiedBytes);
+      data.writeUTF(charset.name());
+      data.writeInt(length);
+      data.flush();
+    }
+
+    InputStream openBody(File file) throws IOException {
+      InputStream in = new BufferedInputStream(new FileInputStream(file));
+      long skipped = 0;
+      while (skipped < headerLength) {
+        long n = in.skip(headerLength - skipped);
+        if (n <= 0) {
+          in.close();
+          throw new IOException("Truncated cached response " + file);
+        }
+        skipped += n;
+      }
+      return in;
+    }
+
+    private static int stringLength(byte[] bytes) {
+      return 4 + (bytes != null ? bytes.length : 0);
+    }
+
+    private static void writeString(DataOutputStream out, byte[] bytes) throws IOException {
+      if (bytes == null) {
+        out.writeInt(-1);
+      } else {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+      }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+      int length = in.readInt();
+      if (length < 0) {
+        return null;
+      }
+      byte[] bytes = new byte[length];
+      in.readFully(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+    }
+  }
+
+  /** Copies everything read from a stream into another stream. */
+  private static final class TeeInputStream extends FilterInputStream {
+    private final OutputStream copy;
+
+    TeeInputStream(InputStream in, OutputStream copy) {
+      super(in);
+      this.copy = copy;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b != -1) {
+        copy.write(b);
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+      int read = super.read(buffer, offset, count);
+      if (read > 0) {
+        copy.write(buffer, offset, read);
+      }
+      return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      byte[] buffer = new byte[(int) Math.min(n, BUFFER_SIZE)];
+      int read = read(buffer, 0, buffer.length);
+      return Math.max(read, 0);
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+  }
+}
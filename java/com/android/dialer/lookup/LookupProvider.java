@@ -32,6 +32,7 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.CommonDataKinds.StructuredPostal;
 import android.provider.ContactsContract.Contacts;
@@ -48,17 +49,13 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
+import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.util.concurrent.Callable;
-import java.util.concurrent.CancellationException;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.FutureTask;
-import java.util.concurrent.TimeoutException;
-import java.util.concurrent.TimeUnit;
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
 
 public class LookupProvider extends ContentProvider {
@@ -78,7 +75,8 @@ public class LookupProvider extends ContentProvider {
       Uri.withAppendedPath(AUTHORITY_URI, "images");
 
   private static final UriMatcher uriMatcher = new UriMatcher(-1);
-  private final LinkedList<FutureTask> activeTasks = new LinkedList<>();
+
+  private static final long LOOKUP_TIMEOUT_MILLIS = 10000;
 
   private static final int NEARBY = 0;
   private static final int PEOPLE = 1;
@@ -92,36 +90,6 @@ public class LookupProvider extends ContentProvider {
     uriMatcher.addURI(AUTHORITY, "images/*", IMAGE);
   }
 
-  private class FutureCallable<T> implements Callable<T> {
-    private final Callable<T> callable;
-    private volatile FutureTask<T> future;
-
-    public FutureCallable(Callable<T> callable) {
-      future = null;
-      this.callable = callable;
-    }
-
-    public T call() throws Exception {
-      Log.v(TAG, "Future called for " + Thread.currentThread().getName());
-
-      T result = callable.call();
-      if (future == null) {
-        return result;
-      }
-
-      synchronized (activeTasks) {
-        activeTasks.remove(future);
-      }
-
-      future = null;
-      return result;
-    }
-
-    public void setFuture(FutureTask<T> future) {
-      this.future = future;
-    }
-  }
-
   @Override
   public boolean onCreate() {
     return true;
@@ -167,13 +135,7 @@ public class LookupProvider extends ContentProvider {
 
         final Location finalLastLocation = lastLocation;
         final int finalMaxResults = maxResults;
-
-        return execute(new Callable<Cursor>() {
-          @Override
-          public Cursor call() {
-            return handleFilter(match, projection, filter, finalMaxResults, finalLastLocation);
-          }
-        }, "FilterThread");
+        return handleFilter(match, projection, filter, finalMaxResults, finalLastLocation);
     }
 
     return null;
@@ -231,6 +193,11 @@ public class LookupProvider extends ContentProvider {
     }
   }
 
+  @Override
+  public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+    LookupScheduler.getInstance().dump(pw);
+  }
+
   /**
    * Check if the location services is on.
    *
@@ -303,17 +270,40 @@ public class LookupProvider extends ContentProvider {
     } catch (UnsupportedEncodingException e) {
     }
 
-    ArrayList<ContactInfo> results = null;
+    final Context context = getContext();
+    final String query = filter;
+    LookupScheduler scheduler = LookupScheduler.getInstance();
+    // Both lookups share the timeout, so that the query doesn't block for twice as long.
+    final long deadline = SystemClock.elapsedRealtime() + LOOKUP_TIMEOUT_MILLIS;
+
+    ArrayList<ContactInfo> results = new ArrayList<>();
     if ((type == NEARBY || type == NEARBY_AND_PEOPLE) && lastLocation != null) {
-      ForwardLookup fl = ForwardLookup.getInstance(getContext());
-      List<ContactInfo> nearby = fl.lookup(getContext(), filter, lastLocation);
+      final ForwardLookup fl = ForwardLookup.getInstance(context);
+      final Location location = lastLocation;
+      List<ContactInfo> nearby = scheduler.lookup(
+          LookupSettings.getForwardLookupProvider(context), query,
+          LookupScheduler.getLocationBucket(location),
+          new Callable<List<ContactInfo>>() {
+            @Override
+            public List<ContactInfo> call() {
+              return fl.lookup(context, query, location);
+            }
+          }, deadline - SystemClock.elapsedRealtime());
       if (nearby != null) {
         results.addAll(nearby);
       }
     }
     if (type == PEOPLE || type == NEARBY_AND_PEOPLE) {
-      PeopleLookup pl = PeopleLookup.getInstance(getContext());
-      List<ContactInfo> people = pl.lookup(getContext(), filter);
+      final PeopleLookup pl = PeopleLookup.getInstance(context);
+      List<ContactInfo> people = scheduler.lookup(
+          LookupSettings.getPeopleLookupProvider(context), query,
+          LookupScheduler.getLocationBucket(null),
+          new Callable<List<ContactInfo>>() {
+            @Override
+            public List<ContactInfo> call() {
+              return pl.lookup(context, query);
+            }
+          }, deadline - SystemClock.elapsedRealtime());
       if (people != null) {
         results.addAll(people);
       }
@@ -415,48 +405,4 @@ public class LookupProvider extends ContentProvider {
       return null;
     }
   }
-
-  /**
-   * Execute thread that is killed after a specified amount of time.
-   *
-   * @param callable The thread
-   * @param name Name of the thread
-   * @return Instance of the thread
-   */
-  private <T> T execute(Callable<T> callable, String name) {
-    FutureCallable<T> futureCallable = new FutureCallable<T>(callable);
-    FutureTask<T> future = new FutureTask<T>(futureCallable);
-    futureCallable.setFuture(future);
-
-    synchronized (activeTasks) {
-      activeTasks.addLast(future);
-      Log.v(TAG, "Currently running tasks: " + activeTasks.size());
-
-      while (activeTasks.size() > 8) {
-        Log.w(TAG, "Too many tasks, canceling one");
-        activeTasks.removeFirst().cancel(true);
-      }
-    }
-
-    Log.v(TAG, "Starting task " + name);
-
-    new Thread(future, name).start();
-
-    try {
-      Log.v(TAG, "Getting future " + name);
-      return future.get(10000, TimeUnit.MILLISECONDS);
-    } catch (InterruptedException e) {
-      Log.w(TAG, "Task was interrupted: " + name);
-      Thread.currentThread().interrupt();
-    } catch (ExecutionException e) {
-      Log.w(TAG, "Task threw an exception: " + name, e);
-    } catch (TimeoutException e) {
-      Log.w(TAG, "Task timed out: " + name);
-      future.cancel(true);
-    } catch (CancellationException e) {
-      Log.w(TAG, "Task was cancelled: " + name);
-    }
-
-    return null;
-  }
 }
@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2018 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.lookup;
+
+import android.location.Location;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.android.dialer.phonenumbercache.ContactInfo;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the forward and people lookups of {@link LookupProvider} on a small pool of threads.
+ *
+ * <p>Searching while typing issues one query per keystroke, so most queries are obsolete before
+ * they finish. The scheduler therefore:
+ *
+ * <ul>
+ *   <li>runs the most recent query first;
+ *   <li>shares one lookup between identical queries which are in flight at the same time;
+ *   <li>drops a query which hasn't started yet once a longer query of the same provider arrives,
+ *       so that it never reaches the network;
+ *   <li>remembers results for {@link #CACHE_MILLIS}, keyed by provider, query and the area the
+ *       user is in.
+ * </ul>
+ */
+final class LookupScheduler {
+  private static final String TAG = LookupScheduler.class.getSimpleName();
+
+  private static final int POOL_SIZE = 2;
+  private static final long KEEP_ALIVE_SECONDS = 30;
+
+  /** How long results are reused for identical queries. */
+  private static final long CACHE_MILLIS = TimeUnit.MINUTES.toMillis(2);
+  private static final int CACHE_ENTRIES = 32;
+
+  /** Locations are rounded to this many degrees (roughly 1 km) for caching. */
+  private static final double LOCATION_BUCKET_DEGREES = 0.01;
+
+  private static LookupScheduler instance;
+
+  private final ThreadPoolExecutor executor;
+  private final Map<String, Request> inFlight = new HashMap<>();
+  private final LruCache<String, CachedResult> cache = new LruCache<>(CACHE_ENTRIES);
+  private long sequence;
+
+  private final AtomicInteger spawned = new AtomicInteger();
+  private final AtomicInteger coalesced = new AtomicInteger();
+  private final AtomicInteger cancelled = new AtomicInteger();
+  private final AtomicInteger cacheHits = new AtomicInteger();
+
+  static synchronized LookupScheduler getInstance() {
+    if (instance == null) {
+      instance = new LookupScheduler();
+    }
+    return instance;
+  }
+
+  private LookupScheduler() {
+    ThreadFactory threadFactory = new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable runnable) {
+        return new Thread(runnable, "LookupThread-" + count.incrementAndGet());
+      }
+    };
+    executor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE,
+        KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(),
+        threadFactory);
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Returns the area {@code location} is in, for use as part of a cache key.
+   *
+   * @return The bucket, or an empty string if there is no location
+   */
+  static String getLocationBucket(Location location) {
+    if (location == null) {
+      return "";
+    }
+    return String.format(Locale.US, "%d,%d",
+        Math.round(location.getLatitude() / LOCATION_BUCKET_DEGREES),
+        Math.round(location.getLongitude() / LOCATION_BUCKET_DEGREES));
+  }
+
+  /**
+   * Run a lookup, or join an identical lookup which is already running, and wait for its results.
+   *
+   * @param provider Name of the lookup provider, queries of a provider supersede each other
+   * @param query The query, as typed
+   * @param locationBucket Area of the query as returned by {@link #getLocationBucket}
+   * @param callable The lookup
+   * @param timeoutMillis How long to wait for the results. If it isn't positive, only cached
+   *     results are returned.
+   * @return The results, or null if the lookup failed, timed out or was superseded
+   */
+  List<ContactInfo> lookup(String provider, String query, String locationBucket,
+      Callable<List<ContactInfo>> callable, long timeoutMillis) {
+    String key = provider + '\n' + locationBucket + '\n' + query;
+
+    Request request;
+    synchronized (this) {
+      CachedResult cached = cache.get(key);
+      if (cached != null) {
+        if (SystemClock.elapsedRealtime() - cached.timestamp < CACHE_MILLIS) {
+          cacheHits.incrementAndGet();
+          return new ArrayList<>(cached.results);
+        }
+        cache.remove(key);
+      }
+      if (timeoutMillis <= 0) {
+        return null;
+      }
+
+      request = inFlight.get(key);
+      if (request != null) {
+        coalesced.incrementAndGet();
+        Log.v(TAG, "Joining running lookup for " + provider);
+      } else {
+        cancelSupersededRequests(provider, query);
+        request = new Request(key, provider, query, sequence++, callable);
+        inFlight.put(key, request);
+        spawned.incrementAndGet();
+        executor.execute(request);
+      }
+      request.waiters++;
+    }
+
+    boolean timedOut = false;
+    try {
+      List<ContactInfo> results = request.get(timeoutMillis, TimeUnit.MILLISECONDS);
+      return results != null ? new ArrayList<>(results) : null;
+    } catch (InterruptedException e) {
+      Log.w(TAG, "Lookup was interrupted");
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      Log.w(TAG, "Lookup threw an exception", e);
+    } catch (TimeoutException e) {
+      Log.w(TAG, "Lookup timed out");
+      timedOut = true;
+    } catch (CancellationException e) {
+      Log.v(TAG, "Lookup was cancelled");
+    } finally {
+      // Callers which joined the lookup may still be waiting for it, only the last one cancels it.
+      boolean isLastWaiter;
+      synchronized (this) {
+        isLastWaiter = --request.waiters == 0;
+      }
+      if (timedOut && isLastWaiter && request.cancel(true)) {
+        cancelled.incrementAndGet();
+      }
+    }
+    return null;
+  }
+
+  /** Cancel the queued requests of {@code provider} whose query is a prefix of {@code query}. */
+  private void cancelSupersededRequests(String provider, String query) {
+    // Cancelling removes the request from inFlight, so collect them first.
+    List<Request> superseded = new ArrayList<>();
+    for (Request request : inFlight.values()) {
+      if (!request.started && request.provider.equals(provider)
+          && query.startsWith(request.query)) {
+        superseded.add(request);
+      }
+    }
+    for (Request request : superseded) {
+      if (request.cancel(false)) {
+        executor.remove(request);
+        cancelled.incrementAndGet();
+      }
+    }
+  }
+
+  void dump(PrintWriter pw) {
+    pw.println("Lookup scheduler:");
+    pw.println("  spawned: " + spawned.get());
+    pw.println("  coalesced: " + coalesced.get());
+    pw.println("  cancelled: " + cancelled.get());
+    pw.println("  cache hits: " + cacheHits.get());
+    synchronized (this) {
+      pw.println("  in flight: " + inFlight.size());
+    }
+  }
+
+  private final class Request extends FutureTask<List<ContactInfo>>
+      implements Comparable<Request> {
+    final String key;
+    final String provider;
+    final String query;
+    final long sequence;
+    volatile boolean started;
+    /** Number of callers waiting for the results, guarded by the scheduler. */
+    int waiters;
+
+    Request(String key, String provider, String query, long sequence,
+        Callable<List<ContactInfo>> callable) {
+      super(callable);
+      this.key = key;
+      this.provider = provider;
+      this.query = query;
+      this.sequence = sequence;
+    }
+
+    @Override
+    public void run() {
+      started = true;
+      super.run();
+    }
+
+    @Override
+    protected void done() {
+      synchronized (LookupScheduler.this) {
+        if (inFlight.get(key) == this) {
+          inFlight.remove(key);
+        }
+        if (isCancelled()) {
+          return;
+        }
+        try {
+          List<ContactInfo> results = get();
+          if (results != null) {
+            cache.put(key, new CachedResult(new ArrayList<>(results)));
+          }
+        } catch (InterruptedException | ExecutionException e) {
+          // Failed lookups are not cached, the callers see the failure.
+        }
+      }
+    }
+
+    /** Newer requests run first. */
+    @Override
+    public int compareTo(Request other) {
+      return Long.compare(other.sequence, sequence);
+    }
+  }
+
+  private static final class CachedResult {
+    final List<ContactInfo> results;
+    final long timestamp = SystemClock.elapsedRealtime();
+
+    CachedResult(List<ContactInfo> results) {
+      this.results = results;
+    }
+  }
+}
@@ -16,19 +16,12 @@
 
 package com.android.dialer.lookup;
 
+import android.content.Context;
 import android.text.Html;
+import android.util.LruCache;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedWriter;
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStreamWriter;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.nio.charset.Charset;
-import java.nio.charset.IllegalCharsetNameException;
-import java.nio.charset.UnsupportedCharsetException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -36,112 +29,58 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class LookupUtils {
-  private static final String USER_AGENT =
-      "Mozilla/5.0 (X11; Linux x86_64; rv:42.0) Gecko/20100101 Firefox/42.0";
-
-  private static HttpURLConnection prepareHttpConnection(String url, Map<String, String> headers)
-      throws IOException {
-    // open connection
-    HttpURLConnection urlConnection = (HttpURLConnection) new URL(url).openConnection();
-    // set user agent (default value is null)
-    urlConnection.setRequestProperty("User-Agent", USER_AGENT);
-    // set all other headers if not null
-    if (headers != null) {
-      for (Map.Entry<String, String> header : headers.entrySet()) {
-        urlConnection.setRequestProperty(header.getKey(), header.getValue());
-      }
-    }
+  private static final String RESPONSE_CACHE_DIR = "lookup_http";
+
+  /** Compiled patterns of the regular expressions used by the providers. */
+  private static final LruCache<String, Pattern> patterns = new LruCache<>(64);
+
+  /**
+   * Enable the on-disk cache of HTTP responses. Responses are only cached if the server allows
+   * revalidating them (ETag or Last-Modified).
+   */
+  public static void enableResponseCache(Context context) {
+    LookupHttpClient.getInstance().setCacheDirectory(
+        new File(context.getCacheDir(), RESPONSE_CACHE_DIR));
+  }
 
-    return urlConnection;
+  /** Reads the whole response into a string, see {@link LookupHttpClient#stringParser()}. */
+  public static String httpGet(String url, Map<String, String> headers) throws IOException {
+    return httpGet(url, headers, LookupHttpClient.Policy.DEFAULT);
   }
 
-  private static byte[] httpFetch(HttpURLConnection urlConnection) throws IOException {
-    // query url, read and return buffered response body
-    // we want to make sure that the connection gets closed here
-    InputStream is = new BufferedInputStream(urlConnection.getInputStream());
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    byte[] result = null;
-    try {
-      byte[] partial = new byte[4096];
-      int read;
-      while ((read = is.read(partial, 0, 4096)) != -1) {
-        baos.write(partial, 0, read);
-      }
-      result = baos.toByteArray();
-    } finally {
-      is.close();
-      baos.close();
-    }
-    return result;
+  public static String httpGet(String url, Map<String, String> headers,
+      LookupHttpClient.Policy policy) throws IOException {
+    return LookupHttpClient.getInstance().get(url, headers, policy,
+        LookupHttpClient.stringParser());
   }
 
-  private static Charset determineCharset(HttpURLConnection connection) {
-    String contentType = connection.getContentType();
-    if (contentType != null) {
-      String[] split = contentType.split(";");
-      for (int i = 0; i < split.length; i++) {
-        String trimmed = split[i].trim();
-        if (trimmed.startsWith("charset=")) {
-          try {
-            return Charset.forName(trimmed.substring(8));
-          } catch (IllegalCharsetNameException | UnsupportedCharsetException e) {
-            // we don't know about this charset -> ignore
-          }
-        }
-      }
-    }
-    return Charset.defaultCharset();
+  public static byte[] httpGetBytes(String url, Map<String, String> headers) throws IOException {
+    return LookupHttpClient.getInstance().get(url, headers, LookupHttpClient.Policy.DEFAULT,
+        LookupHttpClient.bytesParser());
   }
 
-  public static String httpGet(String url, Map<String, String> headers) throws IOException {
-    HttpURLConnection connection = prepareHttpConnection(url, headers);
-    try {
-      byte[] response = httpFetch(connection);
-      return new String(response, determineCharset(connection));
-    } finally {
-      connection.disconnect();
-    }
+  public static String httpPost(String url, Map<String, String> headers, String postData)
+      throws IOException {
+    return httpPost(url, headers, postData, LookupHttpClient.Policy.DEFAULT);
   }
 
-  public static byte[] httpGetBytes(String url, Map<String, String> headers) throws IOException {
-    HttpURLConnection connection = prepareHttpConnection(url, headers);
-    try {
-      return httpFetch(connection);
-    } finally {
-      connection.disconnect();
-    }
+  public static String httpPost(String url, Map<String, String> headers, String postData,
+      LookupHttpClient.Policy policy) throws IOException {
+    return httpPost(url, headers, postData, policy, LookupHttpClient.stringParser());
   }
 
-  public static String httpPost(String url, Map<String, String> headers, String postData)
+  /** Hands the response to {@code parser} as a stream, without reading it into memory first. */
+  public static <T> T httpPost(String url, Map<String, String> headers, String postData,
+      LookupHttpClient.Policy policy, LookupHttpClient.ResponseParser<T> parser)
       throws IOException {
-    HttpURLConnection connection = prepareHttpConnection(url, headers);
-
-    try {
-      // write postData to buffered output stream
-      if (postData != null) {
-        connection.setDoOutput(true);
-        BufferedWriter bw = new BufferedWriter(
-            new OutputStreamWriter(connection.getOutputStream()));
-        try {
-          bw.write(postData, 0, postData.length());
-          // close connection and re-throw exception
-        } finally {
-          bw.close();
-        }
-      }
-      byte[] response = httpFetch(connection);
-      return new String(response, determineCharset(connection));
-    } finally {
-      connection.disconnect();
-    }
+    return LookupHttpClient.getInstance().post(url, headers, postData, policy, parser);
   }
 
   public static List<String> allRegexResults(String input, String regex, boolean dotall) {
     if (input == null) {
       return null;
     }
-    Pattern pattern = Pattern.compile(regex, dotall ? Pattern.DOTALL : 0);
-    Matcher matcher = pattern.matcher(input);
+    Matcher matcher = getPattern(regex, dotall).matcher(input);
 
     List<String> regexResults = new ArrayList<String>();
     while (matcher.find()) {
@@ -154,11 +93,20 @@ public class LookupUtils {
     if (input == null) {
       return null;
     }
-    Pattern pattern = Pattern.compile(regex, dotall ? Pattern.DOTALL : 0);
-    Matcher m = pattern.matcher(input);
+    Matcher m = getPattern(regex, dotall).matcher(input);
     return m.find() ? m.group(1).trim() : null;
   }
 
+  private static Pattern getPattern(String regex, boolean dotall) {
+    String key = (dotall ? "s:" : ":") + regex;
+    Pattern pattern = patterns.get(key);
+    if (pattern == null) {
+      pattern = Pattern.compile(regex, dotall ? Pattern.DOTALL : 0);
+      patterns.put(key, pattern);
+    }
+    return pattern;
+  }
+
   public static String fromHtml(String input) {
     if (input == null) {
       return null;
@@ -34,6 +34,7 @@ public abstract class PeopleLookup {
 
     if (INSTANCE == null || !isInstance(provider)) {
       Log.d(TAG, "Chosen people lookup provider: " + provider);
+      LookupUtils.enableResponseCache(context);
 
       if (provider.equals(LookupSettings.PLP_AUSKUNFT)) {
         INSTANCE = new AuskunftPeopleLookup(context);
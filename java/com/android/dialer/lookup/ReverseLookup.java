@@ -40,6 +40,7 @@ public abstract class ReverseLookup {
 
     if (INSTANCE == null || !isInstance(provider)) {
       Log.d(TAG, "Chosen reverse lookup provider: " + provider);
+      LookupUtils.enableResponseCache(context);
 
       if (provider.equals(LookupSettings.RLP_OPENCNAM)) {
         INSTANCE = new OpenCnamReverseLookup(context);
@@ -24,12 +24,14 @@ import android.util.Log;
 
 import com.android.dialer.phonenumbercache.ContactInfo;
 import com.android.dialer.lookup.ContactBuilder;
+import com.android.dialer.lookup.LookupHttpClient;
 import com.android.dialer.lookup.LookupUtils;
 import com.android.dialer.lookup.ReverseLookup;
 
 import lineageos.providers.LineageSettings;
 
 import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 
 public class OpenCnamReverseLookup extends ReverseLookup {
   private static final String TAG = OpenCnamReverseLookup.class.getSimpleName();
@@ -42,6 +44,11 @@ public class OpenCnamReverseLookup extends ReverseLookup {
   private static final String ACCOUNT_SID = "account_sid";
   private static final String AUTH_TOKEN = "auth_token";
 
+  /** The API answers quickly, don't hold up the incoming call screen if it doesn't. */
+  private static final LookupHttpClient.Policy HTTP_POLICY = new LookupHttpClient.Policy(
+      (int) TimeUnit.SECONDS.toMillis(5), (int) TimeUnit.SECONDS.toMillis(5),
+      3, TimeUnit.MINUTES.toMillis(5));
+
   public OpenCnamReverseLookup(Context context) {
   }
 
@@ -99,6 +106,6 @@ public class OpenCnamReverseLookup extends ReverseLookup {
       builder.appendQueryParameter(AUTH_TOKEN, authToken);
     }
 
-    return LookupUtils.httpGet(builder.build().toString(), null);
+    return LookupUtils.httpGet(builder.build().toString(), null, HTTP_POLICY);
   }
 }
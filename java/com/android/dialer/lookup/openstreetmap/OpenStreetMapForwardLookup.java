@@ -23,21 +23,26 @@ import android.content.Context;
 import android.location.Location;
 import android.provider.ContactsContract.CommonDataKinds.StructuredPostal;
 import android.provider.ContactsContract.CommonDataKinds.Website;
+import android.util.JsonReader;
+import android.util.JsonToken;
 import android.util.Log;
 
 import com.android.dialer.phonenumbercache.ContactInfo;
 import com.android.dialer.lookup.ContactBuilder;
 import com.android.dialer.lookup.ForwardLookup;
+import com.android.dialer.lookup.LookupHttpClient;
 import com.android.dialer.lookup.LookupUtils;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Locale;
+import java.util.concurrent.TimeUnit;
 
 public class OpenStreetMapForwardLookup extends ForwardLookup {
   private static final String TAG = OpenStreetMapForwardLookup.class.getSimpleName();
@@ -50,6 +55,11 @@ public class OpenStreetMapForwardLookup extends ForwardLookup {
   private static final String LOOKUP_QUERY =
       "[out:json];node[name~\"%s\"][phone](around:%d,%f,%f);out body;";
 
+  /** The public Overpass instance is often overloaded, back off sooner than other providers. */
+  private static final LookupHttpClient.Policy HTTP_POLICY = new LookupHttpClient.Policy(
+      (int) TimeUnit.SECONDS.toMillis(10), (int) TimeUnit.SECONDS.toMillis(10),
+      2, TimeUnit.MINUTES.toMillis(5));
+
   private static final String RESULT_ELEMENTS = "elements";
   private static final String RESULT_TAGS = "tags";
   private static final String TAG_NAME = "name";
@@ -77,80 +87,127 @@ public class OpenStreetMapForwardLookup extends ForwardLookup {
         RADIUS, lastLocation.getLatitude(), lastLocation.getLongitude());
 
     try {
-      return getEntries(new JSONObject(LookupUtils.httpPost(LOOKUP_URL, null, request)));
+      return LookupUtils.httpPost(LOOKUP_URL, null, request, HTTP_POLICY, RESPONSE_PARSER);
     } catch (IOException e) {
       Log.e(TAG, "Failed to execute query", e);
-    } catch (JSONException e) {
-      Log.e(TAG, "JSON error", e);
     }
 
     return null;
   }
 
-  private List<ContactInfo> getEntries(JSONObject results) throws JSONException {
-    ArrayList<ContactInfo> details = new ArrayList<>();
-    JSONArray elements = results.getJSONArray(RESULT_ELEMENTS);
-
-    for (int i = 0; i < elements.length(); i++) {
-      try {
-        JSONObject element = elements.getJSONObject(i);
-        JSONObject tags = element.getJSONObject(RESULT_TAGS);
-
-        String displayName = tags.getString(TAG_NAME);
-        String phoneNumber = tags.getString(TAG_PHONE);
-
-        // Take the first number if there are multiple
-        if (phoneNumber.contains(";")) {
-          phoneNumber = phoneNumber.split(";")[0];
-          phoneNumber = phoneNumber.trim();
+  /**
+   * Reads the elements of the response as they arrive, so that a large result is never held in
+   * memory as a whole, neither as text nor as a JSON tree.
+   */
+  private static final LookupHttpClient.ResponseParser<List<ContactInfo>> RESPONSE_PARSER =
+      new LookupHttpClient.ResponseParser<List<ContactInfo>>() {
+        @Override
+        public List<ContactInfo> parse(InputStream in, Charset charset) throws IOException {
+          ArrayList<ContactInfo> details = new ArrayList<>();
+          JsonReader reader = new JsonReader(new InputStreamReader(in, charset));
+          try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+              if (!RESULT_ELEMENTS.equals(reader.nextName())) {
+                reader.skipValue();
+                continue;
+              }
+              reader.beginArray();
+              for (int i = 0; reader.hasNext(); i++) {
+                ContactInfo info = getEntry(readTags(reader));
+                if (info != null) {
+                  details.add(info);
+                } else {
+                  Log.e(TAG, "Skipping the suggestions at index " + i);
+                }
+              }
+              reader.endArray();
+            }
+            reader.endObject();
+          } catch (IllegalStateException e) {
+            throw new IOException("JSON error", e);
+          }
+          return details;
         }
-
-        // The address is split
-        String addressHouseNumber = tags.optString(TAG_HOUSENUMBER, null);
-        String addressStreet = tags.optString(TAG_STREET, null);
-        String addressCity = tags.optString(TAG_CITY, null);
-        String addressPostCode = tags.optString(TAG_POSTCODE, null);
-
-        String address = String.format("%s %s, %s %s",
-            addressHouseNumber != null ? addressHouseNumber : "",
-            addressStreet != null ? addressStreet : "",
-            addressCity != null ? addressCity : "",
-            addressPostCode != null ? addressPostCode : "");
-
-        address = address.trim().replaceAll("\\s+", " ");
-        if (address.isEmpty()) {
-            address = null;
+      };
+
+  /** Reads the string tags of an element, ignoring the rest of it. */
+  private static Map<String, String> readTags(JsonReader reader) throws IOException {
+    Map<String, String> tags = new HashMap<>();
+    reader.beginObject();
+    while (reader.hasNext()) {
+      if (!RESULT_TAGS.equals(reader.nextName())) {
+        reader.skipValue();
+        continue;
+      }
+      reader.beginObject();
+      while (reader.hasNext()) {
+        String name = reader.nextName();
+        if (reader.peek() == JsonToken.STRING) {
+          tags.put(name, reader.nextString());
+        } else {
+          reader.skipValue();
         }
+      }
+      reader.endObject();
+    }
+    reader.endObject();
+    return tags;
+  }
 
-        ContactBuilder builder = ContactBuilder.forForwardLookup(phoneNumber)
-            .setName(ContactBuilder.Name.createDisplayName(displayName))
-            .addPhoneNumber(ContactBuilder.PhoneNumber.createMainNumber(phoneNumber))
-            .setPhotoUri(ContactBuilder.PHOTO_URI_BUSINESS);
-
-        if (address != null) {
-            ContactBuilder.Address a = new ContactBuilder.Address();
-            a.formattedAddress = address;
-            a.city = addressCity;
-            a.street = addressStreet;
-            a.postCode = addressPostCode;
-            a.type = StructuredPostal.TYPE_WORK;
-            builder.addAddress(a);
-        }
+  private static ContactInfo getEntry(Map<String, String> tags) {
+    String displayName = tags.get(TAG_NAME);
+    String phoneNumber = tags.get(TAG_PHONE);
+    if (displayName == null || phoneNumber == null) {
+      return null;
+    }
 
-        String website = tags.optString(TAG_WEBSITE, null);
-        if (website != null) {
-            ContactBuilder.WebsiteUrl w = new ContactBuilder.WebsiteUrl();
-            w.url = website;
-            w.type = Website.TYPE_HOMEPAGE;
-            builder.addWebsite(w);
-        }
+    // Take the first number if there are multiple
+    if (phoneNumber.contains(";")) {
+      phoneNumber = phoneNumber.split(";")[0];
+      phoneNumber = phoneNumber.trim();
+    }
 
-        details.add(builder.build());
-      } catch (JSONException e) {
-        Log.e(TAG, "Skipping the suggestions at index " + i, e);
-      }
+    // The address is split
+    String addressHouseNumber = tags.get(TAG_HOUSENUMBER);
+    String addressStreet = tags.get(TAG_STREET);
+    String addressCity = tags.get(TAG_CITY);
+    String addressPostCode = tags.get(TAG_POSTCODE);
+
+    String address = String.format("%s %s, %s %s",
+        addressHouseNumber != null ? addressHouseNumber : "",
+        addressStreet != null ? addressStreet : "",
+        addressCity != null ? addressCity : "",
+        addressPostCode != null ? addressPostCode : "");
+
+    address = address.trim().replaceAll("\\s+", " ");
+    if (address.isEmpty()) {
+        address = null;
+    }
+
+    ContactBuilder builder = ContactBuilder.forForwardLookup(phoneNumber)
+        .setName(ContactBuilder.Name.createDisplayName(displayName))
+        .addPhoneNumber(ContactBuilder.PhoneNumber.createMainNumber(phoneNumber))
+        .setPhotoUri(ContactBuilder.PHOTO_URI_BUSINESS);
+
+    if (address != null) {
+        ContactBuilder.Address a = new ContactBuilder.Address();
+        a.formattedAddress = address;
+        a.city = addressCity;
+        a.street = addressStreet;
+        a.postCode = addressPostCode;
+        a.type = StructuredPostal.TYPE_WORK;
+        builder.addAddress(a);
+    }
+
+    String website = tags.get(TAG_WEBSITE);
+    if (website != null) {
+        ContactBuilder.WebsiteUrl w = new ContactBuilder.WebsiteUrl();
+        w.url = website;
+        w.type = Website.TYPE_HOMEPAGE;
+        builder.addWebsite(w);
     }
 
-    return details;
+    return builder.build();
   }
 }
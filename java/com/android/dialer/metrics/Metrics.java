@@ -55,6 +55,11 @@ public interface Metrics {
   String ON_SUCCESSFUL_FILL_EVENT_NAME = "RefreshAnnotatedCallLog.OnSuccessfulFill";
   String APPLY_MUTATIONS_EVENT_NAME = "RefreshAnnotatedCallLog.ApplyMutations";
 
+  // Events related to updating the smart dial database.
+  String SMART_DIAL_UPDATE_QUERY_CONTACTS_EVENT_NAME = "SmartDialDatabase.Update.QueryContacts";
+  String SMART_DIAL_UPDATE_WRITE_EVENT_NAME = "SmartDialDatabase.Update.Write";
+  String SMART_DIAL_UPDATE_ANALYZE_EVENT_NAME = "SmartDialDatabase.Update.Analyze";
+
   // These templates are prefixed with a CallLogDataSource or PhoneLookup simple class name.
   String INITIAL_FILL_TEMPLATE = "%s.Initial.Fill";
   String INITIAL_GET_MOST_RECENT_INFO_TEMPLATE = "%s.Initial.GetMostRecentInfo";
@@ -24,6 +24,7 @@ import com.android.dialer.phonelookup.cnap.CnapPhoneLookup;
 import com.android.dialer.phonelookup.cp2.Cp2DefaultDirectoryPhoneLookup;
 import com.android.dialer.phonelookup.cp2.Cp2ExtendedDirectoryPhoneLookup;
 import com.android.dialer.phonelookup.emergency.EmergencyPhoneLookup;
+import com.android.dialer.phonelookup.reverselookup.ReverseLookupPhoneLookup;
 import com.android.dialer.phonelookup.spam.SpamPhoneLookup;
 import com.google.common.collect.ImmutableList;
 import dagger.Module;
@@ -42,6 +43,7 @@ public abstract class PhoneLookupModule {
       Cp2DefaultDirectoryPhoneLookup cp2DefaultDirectoryPhoneLookup,
       Cp2ExtendedDirectoryPhoneLookup cp2ExtendedDirectoryPhoneLookup,
       EmergencyPhoneLookup emergencyPhoneLookup,
+      ReverseLookupPhoneLookup reverseLookupPhoneLookup,
       SystemBlockedNumberPhoneLookup systemBlockedNumberPhoneLookup,
       SpamPhoneLookup spamPhoneLookup) {
     return ImmutableList.of(
@@ -50,6 +52,7 @@ public abstract class PhoneLookupModule {
         cp2DefaultDirectoryPhoneLookup,
         cp2ExtendedDirectoryPhoneLookup,
         emergencyPhoneLookup,
+        reverseLookupPhoneLookup,
         systemBlockedNumberPhoneLookup,
         spamPhoneLookup);
   }
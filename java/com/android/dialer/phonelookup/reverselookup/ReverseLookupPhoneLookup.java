@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2018 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.dialer.phonelookup.reverselookup;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.support.annotation.WorkerThread;
+import android.text.TextUtils;
+import com.android.dialer.DialerPhoneNumber;
+import com.android.dialer.common.LogUtil;
+import com.android.dialer.common.concurrent.Annotations.BackgroundExecutor;
+import com.android.dialer.inject.ApplicationContext;
+import com.android.dialer.lookup.BatchReverseLookup;
+import com.android.dialer.lookup.ContactBuilder;
+import com.android.dialer.lookup.LookupCache;
+import com.android.dialer.lookup.LookupSettings;
+import com.android.dialer.phonelookup.PhoneLookup;
+import com.android.dialer.phonelookup.PhoneLookupInfo;
+import com.android.dialer.phonelookup.PhoneLookupInfo.PeopleApiInfo;
+import com.android.dialer.phonelookup.PhoneLookupInfo.PeopleApiInfo.InfoType;
+import com.android.dialer.phonelookup.consolidator.PhoneLookupInfoConsolidator;
+import com.android.dialer.phonelookup.database.contract.PhoneLookupHistoryContract.PhoneLookupHistory;
+import com.android.dialer.phonenumbercache.ContactInfo;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.protobuf.InvalidProtocolBufferException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.inject.Inject;
+
+/**
+ * PhoneLookup implementation for the reverse lookup providers.
+ *
+ * <p>Results are stored in the {@link PeopleApiInfo} sub-message, which is how the consolidator
+ * already treats remote lookup results.
+ *
+ * <p>Numbers of the call log which no phone lookup could name are backfilled with {@link
+ * BatchReverseLookup} in the background, at most {@link #MAX_BACKFILL_NUMBERS} per pass, so that
+ * the numbers of contacts are never sent to the provider and refreshing the call log never waits
+ * for the network. Every result is kept as soon as it arrives and makes {@link #isDirty} true, so
+ * that the next refresh picks it up in {@link #getMostRecentInfo}. A pass starts after every
+ * successful refresh, and whenever the call log checks whether it is dirty.
+ */
+public final class ReverseLookupPhoneLookup implements PhoneLookup<PeopleApiInfo> {
+
+  /** Maximum number of numbers sent to {@link BatchReverseLookup} by one backfill pass. */
+  private static final int MAX_BACKFILL_NUMBERS = 20;
+
+  private final Context appContext;
+  private final ListeningExecutorService backgroundExecutorService;
+
+  /** Backfilled results, keyed by E.164 number, which haven't been written to the call log yet. */
+  private final Map<String, PeopleApiInfo> backfilledInfo = new ConcurrentHashMap<>();
+
+  /** Results returned by the last {@link #getMostRecentInfo}, dropped once they are written. */
+  private final Map<String, PeopleApiInfo> appliedInfo = new ConcurrentHashMap<>();
+
+  private final AtomicBoolean isBackfilling = new AtomicBoolean();
+
+  @Inject
+  ReverseLookupPhoneLookup(
+      @ApplicationContext Context appContext,
+      @BackgroundExecutor ListeningExecutorService backgroundExecutorService) {
+    this.appContext = appContext;
+    this.backgroundExecutorService = backgroundExecutorService;
+  }
+
+  /**
+   * Only answers from {@link LookupCache}. This is also used for incoming and ongoing calls, whose
+   * number may be a contact's and which must not wait for the network. Numbers which stay unnamed
+   * are looked up by the backfill.
+   */
+  @Override
+  public ListenableFuture<PeopleApiInfo> lookup(DialerPhoneNumber dialerPhoneNumber) {
+    String number = getLookupNumber(dialerPhoneNumber);
+    if (number == null || !LookupSettings.isReverseLookupEnabled(appContext)) {
+      return Futures.immediateFuture(PeopleApiInfo.getDefaultInstance());
+    }
+    return backgroundExecutorService.submit(
+        () ->
+            toPeopleApiInfo(
+                LookupCache.hasCachedContact(appContext, number)
+                    ? LookupCache.getCachedContact(appContext, number)
+                    : null));
+  }
+
+  /** The call log is dirty if the backfill resolved some of its numbers. */
+  @Override
+  public ListenableFuture<Boolean> isDirty(ImmutableSet<DialerPhoneNumber> phoneNumbers) {
+    startBackfill();
+    for (DialerPhoneNumber dialerPhoneNumber : phoneNumbers) {
+      String number = getLookupNumber(dialerPhoneNumber);
+      if (number != null && backfilledInfo.containsKey(number)) {
+        return Futures.immediateFuture(true);
+      }
+    }
+    return Futures.immediateFuture(false);
+  }
+
+  /** Applies the backfilled results, without looking anything up. */
+  @Override
+  public ListenableFuture<ImmutableMap<DialerPhoneNumber, PeopleApiInfo>> getMostRecentInfo(
+      ImmutableMap<DialerPhoneNumber, PeopleApiInfo> existingInfoMap) {
+    appliedInfo.clear();
+    if (backfilledInfo.isEmpty()) {
+      return Futures.immediateFuture(existingInfoMap);
+    }
+
+    ImmutableMap.Builder<DialerPhoneNumber, PeopleApiInfo> newInfoMap = ImmutableMap.builder();
+    for (Entry<DialerPhoneNumber, PeopleApiInfo> entry : existingInfoMap.entrySet()) {
+      String number = getLookupNumber(entry.getKey());
+      PeopleApiInfo info = number != null ? backfilledInfo.get(number) : null;
+      if (info != null) {
+        appliedInfo.put(number, info);
+        newInfoMap.put(entry.getKey(), info);
+      } else {
+        newInfoMap.put(entry);
+      }
+    }
+    LogUtil.i(
+        "ReverseLookupPhoneLookup.getMostRecentInfo",
+        "applying %d backfilled numbers",
+        appliedInfo.size());
+    return Futures.immediateFuture(newInfoMap.build());
+  }
+
+  @Override
+  public void setSubMessage(PhoneLookupInfo.Builder destination, PeopleApiInfo subMessage) {
+    destination.setPeopleApiInfo(subMessage);
+  }
+
+  @Override
+  public PeopleApiInfo getSubMessage(PhoneLookupInfo phoneLookupInfo) {
+    return phoneLookupInfo.getPeopleApiInfo();
+  }
+
+  @Override
+  public ListenableFuture<Void> onSuccessfulBulkUpdate() {
+    for (Entry<String, PeopleApiInfo> entry : appliedInfo.entrySet()) {
+      backfilledInfo.remove(entry.getKey(), entry.getValue());
+    }
+    appliedInfo.clear();
+    startBackfill();
+    return Futures.immediateFuture(null);
+  }
+
+  /** Starts a backfill pass in the background, unless one is running already. */
+  private void startBackfill() {
+    if (!LookupSettings.isReverseLookupEnabled(appContext)
+        || !isBackfilling.compareAndSet(false, true)) {
+      return;
+    }
+    backgroundExecutorService.execute(
+        () -> {
+          try {
+            backfill();
+          } catch (RuntimeException e) {
+            LogUtil.e("ReverseLookupPhoneLookup.startBackfill", "backfill failed", e);
+          } finally {
+            isBackfilling.set(false);
+          }
+        });
+  }
+
+  /**
+   * Looks up the most recently updated numbers of PhoneLookupHistory which no phone lookup could
+   * name, keeping each result as it arrives.
+   */
+  @WorkerThread
+  private void backfill() {
+    BatchReverseLookup batchReverseLookup = BatchReverseLookup.getInstance(appContext);
+    List<String> unresolved = new ArrayList<>();
+    try (Cursor cursor =
+        appContext
+            .getContentResolver()
+            .query(
+                PhoneLookupHistory.CONTENT_URI,
+                new String[] {
+                  PhoneLookupHistory.NORMALIZED_NUMBER, PhoneLookupHistory.PHONE_LOOKUP_INFO
+                },
+                null,
+                null,
+                PhoneLookupHistory.LAST_MODIFIED + " DESC")) {
+      if (cursor == null) {
+        LogUtil.e("ReverseLookupPhoneLookup.backfill", "null cursor");
+        return;
+      }
+      while (cursor.moveToNext() && unresolved.size() < MAX_BACKFILL_NUMBERS) {
+        String number = cursor.getString(0);
+        if (number == null
+            || !number.startsWith("+")
+            || backfilledInfo.containsKey(number)
+            || batchReverseLookup.isRecentMiss(number)) {
+          continue;
+        }
+        PhoneLookupInfo phoneLookupInfo;
+        try {
+          phoneLookupInfo = PhoneLookupInfo.parseFrom(cursor.getBlob(1));
+        } catch (InvalidProtocolBufferException e) {
+          LogUtil.e("ReverseLookupPhoneLookup.backfill", "invalid PhoneLookupInfo", e);
+          continue;
+        }
+        if (new PhoneLookupInfoConsolidator(phoneLookupInfo).getName().isEmpty()) {
+          unresolved.add(number);
+        }
+      }
+    }
+    if (unresolved.isEmpty()) {
+      return;
+    }
+
+    Map<String, ContactInfo> results =
+        batchReverseLookup.lookupNumbers(
+            unresolved,
+            (number, info) -> {
+              PeopleApiInfo peopleApiInfo = toPeopleApiInfo(info);
+              if (!peopleApiInfo.getDisplayName().isEmpty()) {
+                backfilledInfo.put(number, peopleApiInfo);
+              }
+            });
+    LogUtil.i(
+        "ReverseLookupPhoneLookup.backfill",
+        "resolved %d of %d numbers",
+        results.size(),
+        unresolved.size());
+  }
+
+  @Override
+  public void registerContentObservers() {
+    // No content observers for reverse lookup results.
+  }
+
+  @Override
+  public void unregisterContentObservers() {
+    // No content observers for reverse lookup results.
+  }
+
+  @Override
+  public ListenableFuture<Void> clearData() {
+    // The lookup cache belongs to the lookup settings, it is cleared when lookups are disabled.
+    return Futures.immediateFuture(null);
+  }
+
+  @Override
+  public String getLoggingName() {
+    return "ReverseLookupPhoneLookup";
+  }
+
+  /** Returns the E.164 number to look up, or null if the number can't be looked up. */
+  private static String getLookupNumber(DialerPhoneNumber dialerPhoneNumber) {
+    String number = dialerPhoneNumber.getNormalizedNumber();
+    return number.startsWith("+") ? number : null;
+  }
+
+  private static PeopleApiInfo toPeopleApiInfo(ContactInfo info) {
+    if (info == null || TextUtils.isEmpty(info.name)) {
+      return PeopleApiInfo.getDefaultInstance();
+    }
+    PeopleApiInfo.Builder builder =
+        PeopleApiInfo.newBuilder()
+            .setDisplayName(info.name)
+            .setLookupUri(info.lookupUri != null ? info.lookupUri.toString() : "");
+    if (info.photoUri != null) {
+      builder.setImageUrl(info.photoUri.toString());
+      if (ContactBuilder.PHOTO_URI_BUSINESS.equals(info.photoUri.toString())) {
+        builder.setInfoType(InfoType.NEARBY_BUSINESS);
+      }
+    }
+    return builder.build();
+  }
+}
@@ -25,6 +25,7 @@ import android.database.DataSetObserver;
 import android.database.MatrixCursor;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.provider.ContactsContract.CommonDataKinds.Nickname;
 import android.provider.ContactsContract.CommonDataKinds.Organization;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
@@ -33,16 +34,19 @@ import android.support.annotation.Nullable;
 import android.support.v4.util.ArraySet;
 import android.text.TextUtils;
 import android.util.ArrayMap;
+import com.android.dialer.common.LogUtil;
 import com.android.dialer.searchfragment.common.Projections;
 import com.android.dialer.searchfragment.common.QueryFilteringUtil;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Wrapper for a cursor containing all on device contacts.
@@ -52,10 +56,20 @@ import java.util.Set;
  */
 final class ContactFilterCursor implements Cursor {
 
+  /** Filtering slower than a frame at 60fps is logged. */
+  private static final long SLOW_FILTER_NANOS = TimeUnit.MILLISECONDS.toNanos(16);
+
+  /** Maximum number of previous queries whose results are kept for backspace. */
+  private static final int MAX_PREVIOUS_RESULTS = 8;
+
   private final Cursor cursor;
-  // List of cursor ids that are valid for displaying after filtering.
-  private final List<Integer> queryFilteredPositions = new ArrayList<>();
+  // Cursor ids that are valid for displaying after filtering, in ascending order.
+  private int[] queryFilteredPositions;
+  // Cursor ids of all contacts, used when there is no query.
+  private final int[] allPositions;
   private final ContactTernarySearchTree contactTree;
+  // Results of previous queries, each one a prefix of the next one. The longest is at the head.
+  private final ArrayDeque<FilterResult> previousResults = new ArrayDeque<>();
 
   private int currentPosition = 0;
 
@@ -82,6 +96,10 @@ final class ContactFilterCursor implements Cursor {
   ContactFilterCursor(Cursor cursor, @Nullable String query, Context context) {
     this.cursor = createCursor(cursor);
     contactTree = buildContactSearchTree(context, this.cursor);
+    allPositions = new int[this.cursor.getCount()];
+    for (int i = 0; i < allPositions.length; i++) {
+      allPositions[i] = i;
+    }
     filter(query, context);
   }
 
@@ -247,6 +265,7 @@ final class ContactFilterCursor implements Cursor {
    * </ul>
    */
   private static ContactTernarySearchTree buildContactSearchTree(Context context, Cursor cursor) {
+    long startMillis = SystemClock.elapsedRealtime();
     ContactTernarySearchTree tree = new ContactTernarySearchTree();
     cursor.moveToPosition(-1);
     while (cursor.moveToNext()) {
@@ -259,15 +278,16 @@ final class ContactFilterCursor implements Cursor {
         tree.put(query, position);
       }
       String number = QueryFilteringUtil.digitsOnly(cursor.getString(Projections.PHONE_NUMBER));
-      Set<String> numberSubstrings = new ArraySet<>();
-      numberSubstrings.add(number);
-      for (int start = 0; start < number.length(); start++) {
-        numberSubstrings.add(number.substring(start, number.length()));
-      }
-      for (String substring : numberSubstrings) {
-        tree.put(substring, position);
-      }
+      tree.putSuffixes(number, position);
     }
+    tree.pack();
+    LogUtil.i(
+        "ContactFilterCursor.buildContactSearchTree",
+        "%d contacts, %d nodes, %d values, took %d ms",
+        cursor.getCount(),
+        tree.getNodeCount(),
+        tree.getValueCount(),
+        SystemClock.elapsedRealtime() - startMillis);
     return tree;
   }
 
@@ -317,29 +337,61 @@ final class ContactFilterCursor implements Cursor {
    *   <li>Its name contains the query
    *   <li>Its company contains the query
    * </ul>
+   *
+   * <p>Filtering is incremental: when the query extends a previous query, only the contacts that
+   * matched the previous query are considered, and the results of shorter queries are kept so that
+   * removing characters from the query doesn't filter again.
    */
   public void filter(@Nullable String query, Context context) {
+    long startNanos = SystemClock.elapsedRealtimeNanos();
     if (query == null) {
       query = "";
     }
-    queryFilteredPositions.clear();
-    if (TextUtils.isEmpty(query)) {
-      for (int i = 0; i < cursor.getCount(); i++) {
-        queryFilteredPositions.add(i);
-      }
-    } else {
-      queryFilteredPositions.addAll(contactTree.get(query.toLowerCase(Locale.getDefault())));
-    }
-    Collections.sort(queryFilteredPositions);
+    queryFilteredPositions = getFilteredPositions(query.toLowerCase(Locale.getDefault()));
     currentPosition = 0;
     cursor.moveToFirst();
+
+    long durationNanos = SystemClock.elapsedRealtimeNanos() - startNanos;
+    if (durationNanos > SLOW_FILTER_NANOS) {
+      LogUtil.i(
+          "ContactFilterCursor.filter",
+          "filtering %d contacts down to %d took %d ms",
+          allPositions.length,
+          queryFilteredPositions.length,
+          TimeUnit.NANOSECONDS.toMillis(durationNanos));
+    }
+  }
+
+  private int[] getFilteredPositions(String query) {
+    if (TextUtils.isEmpty(query)) {
+      return allPositions;
+    }
+
+    // Drop the queries which the new query doesn't extend, e.g. "bob" when the query is now "bo".
+    while (!previousResults.isEmpty() && !query.startsWith(previousResults.peek().query)) {
+      previousResults.pop();
+    }
+
+    FilterResult previous = previousResults.peek();
+    if (previous != null && previous.query.equals(query)) {
+      return previous.positions;
+    }
+    int[] positions =
+        previous == null
+            ? contactTree.getValues(query)
+            : contactTree.retainValues(query, previous.positions);
+    previousResults.push(new FilterResult(query, positions));
+    if (previousResults.size() > MAX_PREVIOUS_RESULTS) {
+      previousResults.removeLast();
+    }
+    return positions;
   }
 
   @Override
   public boolean moveToPosition(int position) {
     currentPosition = position;
     return currentPosition < getCount()
-        && cursor.moveToPosition(queryFilteredPositions.get(currentPosition));
+        && cursor.moveToPosition(queryFilteredPositions[currentPosition]);
   }
 
   @Override
@@ -350,7 +402,7 @@ final class ContactFilterCursor implements Cursor {
 
   @Override
   public int getCount() {
-    return queryFilteredPositions.size();
+    return queryFilteredPositions.length;
   }
 
   @Override
@@ -543,4 +595,14 @@ final class ContactFilterCursor implements Cursor {
   public Bundle respond(Bundle extras) {
     return cursor.respond(extras);
   }
+
+  private static final class FilterResult {
+    private final String query;
+    private final int[] positions;
+
+    FilterResult(String query, int[] positions) {
+      this.query = query;
+      this.positions = positions;
+    }
+  }
 }
@@ -18,80 +18,358 @@ package com.android.dialer.searchfragment.cp2;
 
 import android.support.v4.util.ArraySet;
 import android.text.TextUtils;
+import java.util.Arrays;
 import java.util.Set;
 
-/** Ternary Search Tree for searching a list of contacts. */
+/**
+ * Ternary Search Tree for searching a list of contacts.
+ *
+ * <p>The tree holds one node per character of every key, and each node stores every value put
+ * under a key passing through it. To keep the tree cheap to build for large address books, nodes
+ * are stored in parallel primitive arrays indexed by node number rather than as objects, and values
+ * are stored as plain ints:
+ *
+ * <ul>
+ *   <li>While the tree is being built, the values of each node are a linked list in a shared pool
+ *       ({@link #poolValues} and {@link #poolNext}).
+ *   <li>Once every value is put, {@link #pack()} moves the lists into a single sorted array
+ *       ({@link #postings}), with each node owning a range of it.
+ * </ul>
+ *
+ * <p>Lookups never modify the tree, so a packed tree can be searched from several threads. Lookups
+ * on a tree which isn't packed still work, but sort the values of the node on every call.
+ */
 public class ContactTernarySearchTree {
 
-  private Node root;
+  private static final int NONE = -1;
+  private static final int INITIAL_NODE_CAPACITY = 64;
+  private static final int INITIAL_POOL_CAPACITY = 256;
+
+  private int root = NONE;
+  private int nodeCount;
+
+  // Nodes, indexed by node number. Children are denoted as left, middle and right nodes.
+  private char[] keys = new char[INITIAL_NODE_CAPACITY];
+  private int[] left = new int[INITIAL_NODE_CAPACITY];
+  private int[] mid = new int[INITIAL_NODE_CAPACITY];
+  private int[] right = new int[INITIAL_NODE_CAPACITY];
+
+  // Values while building: the index in the pool of the most recently added value of each node.
+  private int[] poolHead = new int[INITIAL_NODE_CAPACITY];
+  private int[] poolValues = new int[INITIAL_POOL_CAPACITY];
+  private int[] poolNext = new int[INITIAL_POOL_CAPACITY];
+  private int poolSize;
+
+  // Values once packed: node n owns postings[postingStart[n], postingStart[n] + postingLength[n]).
+  private int[] postings;
+  private int[] postingStart;
+  private int[] postingLength;
 
   /**
-   * Add {@code value} to all middle and end {@link Node#values} that correspond to {@code key}.
+   * Add {@code value} to all middle and end nodes that correspond to {@code key}.
    *
    * <p>For example, if {@code key} were "FOO", {@code value} would be added to nodes "F", "O" and
-   * "O". But if the traversal required visiting {@link Node#left} or {@link Node#right}, {@code
-   * value} wouldn't be added to those nodes.
+   * "O". But if the traversal required visiting left or right nodes, {@code value} wouldn't be
+   * added to those nodes.
    */
   public void put(String key, int value) {
     if (TextUtils.isEmpty(key)) {
       return;
     }
-    root = put(root, key, value, 0);
+    unpack();
+    put(key, 0, value);
   }
 
-  private Node put(Node node, String key, int value, int position) {
-    char c = key.charAt(position);
-    if (node == null) {
-      node = new Node();
-      node.key = c;
+  /**
+   * Equivalent to calling {@link #put(String, int)} with every suffix of {@code key}, without
+   * creating the suffix strings.
+   *
+   * <p>Used for phone numbers, so that a query matches a number anywhere within it. Since a value
+   * is only stored once per node, suffixes sharing nodes (e.g. the repeated digits of "5555") only
+   * cost the nodes themselves.
+   */
+  public void putSuffixes(String key, int value) {
+    if (TextUtils.isEmpty(key)) {
+      return;
     }
-    if (c < node.key) {
-      node.left = put(node.left, key, value, position);
-    } else if (c > node.key) {
-      node.right = put(node.right, key, value, position);
-    } else if (position < key.length() - 1) {
-      node.values.add(value);
-      node.mid = put(node.mid, key, value, position + 1);
-    } else {
-      node.values.add(value);
+    unpack();
+    for (int start = 0; start < key.length(); start++) {
+      put(key, start, value);
+    }
+  }
+
+  private void put(String key, int start, int value) {
+    if (root == NONE) {
+      root = newNode(key.charAt(start));
+    }
+    int node = root;
+    int position = start;
+    while (true) {
+      char c = key.charAt(position);
+      if (c < keys[node]) {
+        if (left[node] == NONE) {
+          int child = newNode(c);
+          left[node] = child;
+        }
+        node = left[node];
+      } else if (c > keys[node]) {
+        if (right[node] == NONE) {
+          int child = newNode(c);
+          right[node] = child;
+        }
+        node = right[node];
+      } else {
+        addValue(node, value);
+        if (++position == key.length()) {
+          return;
+        }
+        if (mid[node] == NONE) {
+          int child = newNode(key.charAt(position));
+          mid[node] = child;
+        }
+        node = mid[node];
+      }
     }
-    return node;
   }
 
   /** Returns true if {@code key} is contained in the trie. */
   public boolean contains(String key) {
-    return !get(key).isEmpty();
+    int node = getNode(key);
+    if (node == NONE) {
+      return false;
+    }
+    return postings == null ? poolHead[node] != NONE : postingLength[node] > 0;
   }
 
   /** Return value stored at Node (in this case, a set of integers). */
   public Set<Integer> get(String key) {
-    Node x = get(root, key, 0);
-    return x == null ? new ArraySet<>() : x.values;
+    int[] values = getValues(key);
+    Set<Integer> set = new ArraySet<>(values.length);
+    for (int value : values) {
+      set.add(value);
+    }
+    return set;
   }
 
-  private Node get(Node node, String key, int position) {
-    if (node == null) {
-      return null;
+  /** Returns the values stored for {@code key} in ascending order, without duplicates. */
+  public int[] getValues(String key) {
+    int node = getNode(key);
+    if (node == NONE) {
+      return new int[0];
+    }
+    if (postings == null) {
+      return getPoolValues(node);
+    }
+    int start = postingStart[node];
+    return Arrays.copyOfRange(postings, start, start + postingLength[node]);
+  }
+
+  /**
+   * Returns the values of {@code candidates} which are also stored for {@code key}, in ascending
+   * order.
+   *
+   * <p>The values of a key are a subset of the values of any prefix of it, so passing the values of
+   * a prefix as {@code candidates} returns the same as {@link #getValues(String)}, but only costs a
+   * binary search per candidate instead of a copy of every value of {@code key}.
+   *
+   * @param candidates values in ascending order, without duplicates.
+   */
+  public int[] retainValues(String key, int[] candidates) {
+    int node = getNode(key);
+    if (node == NONE || candidates.length == 0) {
+      return new int[0];
     }
-    char c = key.charAt(position);
-    if (c < node.key) {
-      return get(node.left, key, position);
-    } else if (c > node.key) {
-      return get(node.right, key, position);
-    } else if (position < key.length() - 1) {
-      return get(node.mid, key, position + 1);
+    int[] values;
+    int low;
+    int end;
+    if (postings == null) {
+      values = getPoolValues(node);
+      low = 0;
+      end = values.length;
     } else {
-      return node;
+      values = postings;
+      low = postingStart[node];
+      end = low + postingLength[node];
+    }
+    int[] result = new int[Math.min(candidates.length, end - low)];
+    int count = 0;
+    for (int i = 0; i < candidates.length && low < end; i++) {
+      int index = Arrays.binarySearch(values, low, end, candidates[i]);
+      if (index >= 0) {
+        result[count++] = candidates[i];
+        low = index + 1;
+      } else {
+        low = -index - 1;
+      }
     }
+    return count == result.length ? result : Arrays.copyOf(result, count);
   }
 
-  /** Node in ternary search trie. Children are denoted as left, middle and right nodes. */
-  private static class Node {
-    private char key;
-    private final Set<Integer> values = new ArraySet<>();
+  /** Returns the number of nodes in the tree. */
+  public int getNodeCount() {
+    return nodeCount;
+  }
 
-    private Node left;
-    private Node mid;
-    private Node right;
+  /** Returns the number of values stored across all nodes. */
+  public int getValueCount() {
+    if (postings == null) {
+      return poolSize;
+    }
+    int count = 0;
+    for (int node = 0; node < nodeCount; node++) {
+      count += postingLength[node];
+    }
+    return count;
+  }
+
+  private int getNode(String key) {
+    if (TextUtils.isEmpty(key)) {
+      return NONE;
+    }
+    int node = root;
+    int position = 0;
+    while (node != NONE) {
+      char c = key.charAt(position);
+      if (c < keys[node]) {
+        node = left[node];
+      } else if (c > keys[node]) {
+        node = right[node];
+      } else if (position < key.length() - 1) {
+        node = mid[node];
+        position++;
+      } else {
+        return node;
+      }
+    }
+    return NONE;
+  }
+
+  private int newNode(char key) {
+    if (nodeCount == keys.length) {
+      int capacity = nodeCount * 2;
+      keys = Arrays.copyOf(keys, capacity);
+      left = Arrays.copyOf(left, capacity);
+      mid = Arrays.copyOf(mid, capacity);
+      right = Arrays.copyOf(right, capacity);
+      poolHead = Arrays.copyOf(poolHead, capacity);
+    }
+    int node = nodeCount++;
+    keys[node] = key;
+    left[node] = NONE;
+    mid[node] = NONE;
+    right[node] = NONE;
+    poolHead[node] = NONE;
+    return node;
+  }
+
+  private void addValue(int node, int value) {
+    int head = poolHead[node];
+    // Values are usually put in order, so this catches most duplicates. Any others are removed
+    // when packing.
+    if (head != NONE && poolValues[head] == value) {
+      return;
+    }
+    if (poolSize == poolValues.length) {
+      poolValues = Arrays.copyOf(poolValues, poolSize * 2);
+      poolNext = Arrays.copyOf(poolNext, poolSize * 2);
+    }
+    poolValues[poolSize] = value;
+    poolNext[poolSize] = head;
+    poolHead[node] = poolSize++;
+  }
+
+  /**
+   * Returns the values of {@code node} while the tree isn't packed, in ascending order and without
+   * duplicates.
+   */
+  private int[] getPoolValues(int node) {
+    int length = 0;
+    for (int entry = poolHead[node]; entry != NONE; entry = poolNext[entry]) {
+      length++;
+    }
+    int[] values = new int[length];
+    int offset = 0;
+    for (int entry = poolHead[node]; entry != NONE; entry = poolNext[entry]) {
+      values[offset++] = poolValues[entry];
+    }
+    int unique = sortUnique(values, 0, length);
+    return unique == length ? values : Arrays.copyOf(values, unique);
+  }
+
+  /**
+   * Moves the values of every node from the pool into a single sorted array and releases the
+   * spare capacity of the tree. Call once every value is put, before searching the tree.
+   *
+   * <p>Values can still be put afterwards, which unpacks the tree again.
+   */
+  public void pack() {
+    if (postings != null) {
+      return;
+    }
+    postings = new int[poolSize];
+    postingStart = new int[nodeCount];
+    postingLength = new int[nodeCount];
+    int offset = 0;
+    for (int node = 0; node < nodeCount; node++) {
+      int start = offset;
+      for (int entry = poolHead[node]; entry != NONE; entry = poolNext[entry]) {
+        postings[offset++] = poolValues[entry];
+      }
+      postingStart[node] = start;
+      postingLength[node] = sortUnique(postings, start, offset);
+    }
+
+    // The tree is usually complete once it is packed, release the spare capacity.
+    keys = Arrays.copyOf(keys, Math.max(nodeCount, 1));
+    left = Arrays.copyOf(left, keys.length);
+    mid = Arrays.copyOf(mid, keys.length);
+    right = Arrays.copyOf(right, keys.length);
+    poolHead = null;
+    poolValues = null;
+    poolNext = null;
+    poolSize = 0;
+  }
+
+  /**
+   * Sorts {@code values[start, end)} and moves its distinct values to the front of the range.
+   *
+   * @return the number of distinct values.
+   */
+  private static int sortUnique(int[] values, int start, int end) {
+    Arrays.sort(values, start, end);
+    int length = 0;
+    for (int i = start; i < end; i++) {
+      if (length == 0 || values[start + length - 1] != values[i]) {
+        values[start + length++] = values[i];
+      }
+    }
+    return length;
+  }
+
+  /** Moves the values of every node back into the pool, so that more values can be added. */
+  private void unpack() {
+    if (postings == null) {
+      return;
+    }
+    int capacity = Math.max(keys.length, INITIAL_NODE_CAPACITY);
+    keys = Arrays.copyOf(keys, capacity);
+    left = Arrays.copyOf(left, capacity);
+    mid = Arrays.copyOf(mid, capacity);
+    right = Arrays.copyOf(right, capacity);
+    poolHead = new int[capacity];
+    int poolCapacity = Math.max(postings.length, INITIAL_POOL_CAPACITY);
+    poolValues = new int[poolCapacity];
+    poolNext = new int[poolCapacity];
+    poolSize = 0;
+    for (int node = 0; node < nodeCount; node++) {
+      poolHead[node] = NONE;
+      int start = postingStart[node];
+      for (int i = start; i < start + postingLength[node]; i++) {
+        addValue(node, postings[i]);
+      }
+    }
+    postings = null;
+    postingStart = null;
+    postingLength = null;
   }
 }
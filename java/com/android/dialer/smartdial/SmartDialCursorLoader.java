@@ -82,11 +82,15 @@ public class SmartDialCursorLoader extends AsyncTaskLoader<Cursor> {
       return new MatrixCursor(PhoneQuery.PROJECTION_PRIMARY);
     }
 
-    /** Loads results from the database helper. */
+    /**
+     * Loads results from the database helper, narrowing the results of the previous query in
+     * memory when the new query extends it.
+     */
     final DialerDatabaseHelper dialerDatabaseHelper =
         Database.get(context).getDatabaseHelper(context);
-    final ArrayList<ContactNumber> allMatches =
-        dialerDatabaseHelper.getLooseMatches(query, nameMatcher);
+    final List<ContactNumber> allMatches =
+        SmartDialQueryCache.getInstance()
+            .getMatches(context, dialerDatabaseHelper, query, nameMatcher);
 
     if (DEBUG) {
       LogUtil.v(TAG, "Loaded matches " + allMatches.size());
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.smartdial;
+
+import android.content.Context;
+import android.support.annotation.WorkerThread;
+import com.android.dialer.common.LogUtil;
+import com.android.dialer.database.DialerDatabaseHelper;
+import com.android.dialer.database.DialerDatabaseHelper.ContactNumber;
+import com.android.dialer.database.DialerDatabaseHelper.LooseMatchRows;
+import com.android.dialer.smartdial.util.SmartDialNameMatcher;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Remembers the rows matching recent smart dial queries, so that successive keystrokes don't have
+ * to query the database again.
+ *
+ * <p>A row matching a query also matches every prefix of the query. So when the user types another
+ * digit, the rows matching the new query are found by running {@link SmartDialNameMatcher} over
+ * the rows of the previous query. The results of shorter queries are kept on a stack, so that
+ * backspace is answered without matching anything at all.
+ *
+ * <p>At most {@link #MAX_CACHED_ROWS} rows are kept per query. Since they are the first rows in
+ * sort order, narrowing a truncated entry still yields the first rows matching the longer query;
+ * the database is only queried again if they are not enough to fill {@link #MAX_ENTRIES} contacts.
+ */
+final class SmartDialQueryCache {
+
+  /** Maximum number of rows cached per query. */
+  private static final int MAX_CACHED_ROWS = 1000;
+
+  /** Maximum number of queries kept for backspace. */
+  private static final int MAX_STACK_SIZE = 8;
+
+  /** Maximum number of contacts returned by {@link #getMatches}. */
+  private static final int MAX_ENTRIES = 40;
+
+  private static SmartDialQueryCache instance;
+
+  /** Cached queries, each one a prefix of the next one. The longest query is at the head. */
+  private final ArrayDeque<Entry> stack = new ArrayDeque<>();
+
+  private int generation = -1;
+
+  static synchronized SmartDialQueryCache getInstance() {
+    if (instance == null) {
+      instance = new SmartDialQueryCache();
+    }
+    return instance;
+  }
+
+  /**
+   * Returns the top contacts matching the query, like {@link
+   * DialerDatabaseHelper#getLooseMatches(String, SmartDialNameMatcher)}.
+   */
+  @WorkerThread
+  synchronized List<ContactNumber> getMatches(
+      Context context,
+      DialerDatabaseHelper databaseHelper,
+      String query,
+      SmartDialNameMatcher nameMatcher) {
+    if (query.isEmpty()) {
+      return new ArrayList<>();
+    }
+
+    if (generation != databaseHelper.getSmartDialGeneration()) {
+      stack.clear();
+      generation = databaseHelper.getSmartDialGeneration();
+    }
+
+    // Drop the queries which the new query doesn't extend, e.g. "562" when the query is now "56".
+    while (!stack.isEmpty() && !query.startsWith(stack.peek().query)) {
+      stack.pop();
+    }
+
+    Entry top = stack.peek();
+    if (top != null && top.query.equals(query)) {
+      return distinctContacts(top.matches.rows);
+    }
+
+    if (top != null) {
+      LooseMatchRows narrowed = narrow(context, top.matches, query, nameMatcher);
+      List<ContactNumber> result = distinctContacts(narrowed.rows);
+      if (!narrowed.truncated || result.size() == MAX_ENTRIES) {
+        push(new Entry(query, narrowed));
+        return result;
+      }
+      LogUtil.i("SmartDialQueryCache.getMatches", "truncated rows exhausted, querying again");
+    }
+    LooseMatchRows matches =
+        databaseHelper.getAllLooseMatchRows(query, nameMatcher, MAX_CACHED_ROWS);
+    push(new Entry(query, matches));
+    return distinctContacts(matches.rows);
+  }
+
+  private void push(Entry entry) {
+    stack.push(entry);
+    if (stack.size() > MAX_STACK_SIZE) {
+      stack.removeLast();
+    }
+  }
+
+  /**
+   * Keeps the rows matching {@code query}, which extends the query of {@code matches}, following
+   * the rule of {@link DialerDatabaseHelper#getLooseMatches(String, SmartDialNameMatcher)}.
+   */
+  private static LooseMatchRows narrow(
+      Context context,
+      LooseMatchRows matches,
+      String query,
+      SmartDialNameMatcher nameMatcher) {
+    Map<Long, List<String>> tokens = null;
+    if (matches.tokens != null) {
+      tokens = new HashMap<>();
+      for (Map.Entry<Long, List<String>> entry : matches.tokens.entrySet()) {
+        List<String> contactTokens = new ArrayList<>();
+        for (String token : entry.getValue()) {
+          if (token.startsWith(query)) {
+            contactTokens.add(token);
+          }
+        }
+        if (!contactTokens.isEmpty()) {
+          tokens.put(entry.getKey(), contactTokens);
+        }
+      }
+    }
+
+    List<ContactNumber> rows = new ArrayList<>();
+    for (ContactNumber row : matches.rows) {
+      if (nameMatcher.matchesNumber(context, row.phoneNumber, query) != null
+          || ((tokens == null || tokens.containsKey(row.id))
+              && nameMatcher.matches(context, row.displayName, row.transliteratedName))) {
+        rows.add(row);
+      }
+    }
+    return new LooseMatchRows(rows, matches.truncated, tokens);
+  }
+
+  /** Keeps the first row of each contact, up to {@link #MAX_ENTRIES} contacts. */
+  private static List<ContactNumber> distinctContacts(List<ContactNumber> rows) {
+    List<ContactNumber> result = new ArrayList<>();
+    Set<ContactKey> contacts = new HashSet<>();
+    for (Iterator<ContactNumber> it = rows.iterator();
+        it.hasNext() && result.size() < MAX_ENTRIES; ) {
+      ContactNumber row = it.next();
+      if (contacts.add(new ContactKey(row.lookupKey, row.id))) {
+        result.add(row);
+      }
+    }
+    return result;
+  }
+
+  private static final class Entry {
+    final String query;
+    final LooseMatchRows matches;
+
+    Entry(String query, LooseMatchRows matches) {
+      this.query = query;
+      this.matches = matches;
+    }
+  }
+
+  /** Identifies a contact the same way the smart dial database does when removing duplicates. */
+  private static final class ContactKey {
+    private final String lookupKey;
+    private final long id;
+
+    ContactKey(String lookupKey, long id) {
+      this.lookupKey = lookupKey;
+      this.id = id;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(lookupKey, id);
+    }
+
+    @Override
+    public boolean equals(Object object) {
+      if (this == object) {
+        return true;
+      }
+      if (object instanceof ContactKey) {
+        ContactKey that = (ContactKey) object;
+        return Objects.equals(lookupKey, that.lookupKey) && id == that.id;
+      }
+      return false;
+    }
+  }
+}
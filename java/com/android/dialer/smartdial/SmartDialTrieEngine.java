@@ -0,0 +1,728 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.smartdial;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import android.text.TextUtils;
+import com.android.dialer.common.LogUtil;
+import com.android.dialer.smartdial.util.SmartDialNameMatcher;
+import com.android.dialer.smartdial.util.TransliteratedName;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * In-memory mirror of the smart dial tables that answers loose matches without querying SQLite.
+ *
+ * <p>A row of the smart dial table is a candidate for a query if
+ *
+ * <ul>
+ *   <li>its contact has a prefix table token starting with the query (see {@link
+ *       com.android.dialer.smartdial.util.SmartDialPrefix#generateNamePrefixes(Context, String)}
+ *       and {@link
+ *       com.android.dialer.smartdial.util.SmartDialPrefix#parseToNumberTokens(Context, String)}),
+ *       in which case it is a <em>token match</em>, or
+ *   <li>its normalized phone number contains the query.
+ * </ul>
+ *
+ * The caller then accepts a candidate if its number matches the query, or if it is a token match
+ * and its name matches the query.
+ *
+ * <p>Only the prefix table tokens are inserted into the token trie, so its size stays linear in the
+ * size of the prefix table. Numbers are indexed in a second trie by their substrings of at most
+ * {@link #NUMBER_GRAM_LENGTH} digits, which is at most a few thousand nodes. The rows whose number
+ * contains a query are among those of the node spelled by its first digits. Every node keeps the
+ * first {@link #TOP_K} rows reachable from it in sort order, so the first results of a query are
+ * read off a node without sorting its subtree.
+ *
+ * <p>The engine is updated incrementally as contacts are added to and removed from the smart dial
+ * database. Operations that can't be mirrored cheaply call {@link #invalidate()}, and the engine is
+ * reloaded from the database the next time it is queried. Writers hold the engine's lock from the
+ * start of their transaction until its changes are mirrored, so that a {@link #load} can't read
+ * them from the database and then have them mirrored again.
+ */
+public final class SmartDialTrieEngine {
+
+  /** Current contacts - those contacted within the last 3 days (in milliseconds) */
+  private static final long LAST_TIME_USED_CURRENT_MS = 3L * 24 * 60 * 60 * 1000;
+  /** Recent contacts - those contacted within the last 30 days (in milliseconds) */
+  private static final long LAST_TIME_USED_RECENT_MS = 30L * 24 * 60 * 60 * 1000;
+
+  /** Number of rows kept in sort order at every trie node. */
+  private static final int TOP_K = 64;
+
+  /** Length of the number substrings indexed in {@link #numberRoot}. */
+  private static final int NUMBER_GRAM_LENGTH = 3;
+
+  private static final Row[] EMPTY_ROWS = new Row[0];
+
+  private final Context context;
+
+  private Node root = new Node();
+  private Node numberRoot = new Node();
+  private final Map<Long, List<Row>> rowsByContact = new HashMap<>();
+  private final Map<Long, List<String>> tokensByContact = new HashMap<>();
+  private boolean loaded;
+
+  /**
+   * The sort order depends on the current time through the data usage buckets. The per-node rows
+   * are kept for {@link #order} until the first row moves to another bucket, when {@link
+   * #orderGeneration} is bumped to have them recomputed lazily.
+   */
+  private SortingOrder order = new SortingOrder(0);
+
+  private long orderValidUntil = Long.MIN_VALUE;
+  private int orderGeneration;
+
+  public SmartDialTrieEngine(Context context) {
+    this.context = context;
+  }
+
+  /** Returns true if the engine mirrors the database and can answer queries. */
+  public synchronized boolean isLoaded() {
+    return loaded;
+  }
+
+  /** Drops all in-memory state. The engine must be {@link #load(SQLiteDatabase) loaded} again. */
+  public synchronized void invalidate() {
+    root = new Node();
+    numberRoot = new Node();
+    rowsByContact.clear();
+    tokensByContact.clear();
+    orderValidUntil = Long.MIN_VALUE;
+    loaded = false;
+  }
+
+  /**
+   * Populates the engine from the smart dial table and the prefix table.
+   *
+   * @param db The smart dial database.
+   * @param smartDialQuery A query returning the columns described by {@link RowQuery}.
+   * @param prefixQuery A query returning the contact ID (column 0) and prefix (column 1) of every
+   *     row in the prefix table.
+   */
+  @WorkerThread
+  public synchronized void load(SQLiteDatabase db, String smartDialQuery, String prefixQuery) {
+    invalidate();
+    try (Cursor cursor = db.rawQuery(smartDialQuery, null)) {
+      if (cursor == null) {
+        return;
+      }
+      while (cursor.moveToNext()) {
+        addRow(
+            new Row(
+                cursor.getLong(RowQuery.ROW_ID),
+                cursor.getLong(RowQuery.DATA_ID),
+                cursor.getString(RowQuery.DISPLAY_NAME),
+                cursor.getLong(RowQuery.PHOTO_ID),
+                cursor.getString(RowQuery.NUMBER),
+                cursor.getLong(RowQuery.CONTACT_ID),
+                cursor.getString(RowQuery.LOOKUP_KEY),
+                cursor.getInt(RowQuery.CARRIER_PRESENCE),
+                cursor.getInt(RowQuery.STARRED),
+                cursor.getInt(RowQuery.IS_SUPER_PRIMARY),
+                cursor.getLong(RowQuery.LAST_TIME_USED),
+                cursor.getInt(RowQuery.TIMES_USED),
+                cursor.getInt(RowQuery.IN_VISIBLE_GROUP),
+                cursor.getInt(RowQuery.IS_PRIMARY),
+                TransliteratedName.fromStored(
+                    cursor.getString(RowQuery.TRANSLITERATED_NAME),
+                    cursor.getBlob(RowQuery.TRANSLITERATION_OFFSETS))));
+      }
+    }
+    try (Cursor cursor = db.rawQuery(prefixQuery, null)) {
+      if (cursor == null) {
+        return;
+      }
+      while (cursor.moveToNext()) {
+        if (!cursor.isNull(0)) {
+          addToken(cursor.getLong(0), cursor.getString(1));
+        }
+      }
+    }
+    loaded = true;
+    LogUtil.i(
+        "SmartDialTrieEngine.load",
+        "loaded %d contacts, %d trie nodes",
+        rowsByContact.size(),
+        root.countNodes());
+  }
+
+  /**
+   * Adds a row of the smart dial table. Its number is indexed by its substrings, and through the
+   * prefix table tokens.
+   */
+  public synchronized void addRow(@NonNull Row row) {
+    List<Row> rows = rowsByContact.get(row.contactId);
+    if (rows == null) {
+      rows = new ArrayList<>(1);
+      rowsByContact.put(row.contactId, rows);
+    }
+    rows.add(row);
+    orderValidUntil = Math.min(orderValidUntil, nextBucketChange(row, order.nowMillis));
+
+    if (!TextUtils.isEmpty(row.number)) {
+      row.normalizedNumber = SmartDialNameMatcher.normalizeNumber(context, row.number);
+      for (String gram : getNumberGrams(row.normalizedNumber)) {
+        getPath(numberRoot, gram, /* create = */ true).addContact(row.contactId);
+      }
+    }
+    // The contact's other numbers are indexed already, but their nodes keep the rows of the
+    // contact too.
+    for (Row other : rows) {
+      if (other != row && other.normalizedNumber != null) {
+        for (String gram : getNumberGrams(other.normalizedNumber)) {
+          getPath(numberRoot, gram, /* create = */ false);
+        }
+      }
+    }
+    List<String> tokens = tokensByContact.get(row.contactId);
+    if (tokens != null) {
+      for (String token : tokens) {
+        getPath(root, token, /* create = */ false);
+      }
+    }
+  }
+
+  /**
+   * Returns the substrings of {@code number} of {@link #NUMBER_GRAM_LENGTH} digits, and the shorter
+   * ones ending it, so that every substring of the number starts one of them or is a prefix of one.
+   */
+  private static Set<String> getNumberGrams(String number) {
+    Set<String> grams = new HashSet<>();
+    for (int i = 0; i < number.length(); i++) {
+      grams.add(number.substring(i, Math.min(number.length(), i + NUMBER_GRAM_LENGTH)));
+    }
+    return grams;
+  }
+
+  /** Adds a prefix table token for the given contact. */
+  public synchronized void addToken(long contactId, String token) {
+    if (TextUtils.isEmpty(token)) {
+      return;
+    }
+    if (getPath(root, token, /* create = */ true).addContact(contactId)) {
+      List<String> tokens = tokensByContact.get(contactId);
+      if (tokens == null) {
+        tokens = new ArrayList<>();
+        tokensByContact.put(contactId, tokens);
+      }
+      tokens.add(token);
+    }
+  }
+
+  /** Removes every row and token belonging to the given contact. */
+  public synchronized void removeContact(long contactId) {
+    List<Row> rows = rowsByContact.remove(contactId);
+    if (rows != null) {
+      for (Row row : rows) {
+        if (row.normalizedNumber != null) {
+          for (String gram : getNumberGrams(row.normalizedNumber)) {
+            Node node = getPath(numberRoot, gram, /* create = */ false);
+            if (node != null) {
+              node.removeContact(contactId);
+            }
+          }
+        }
+      }
+    }
+    List<String> tokens = tokensByContact.remove(contactId);
+    if (tokens != null) {
+      for (String token : tokens) {
+        Node node = getPath(root, token, /* create = */ false);
+        if (node != null) {
+          node.removeContact(contactId);
+        }
+      }
+    }
+  }
+
+  /**
+   * Walks the trie from {@code start} along {@code key}, discarding the rows kept by every node on
+   * the way since they are about to change.
+   *
+   * @param create Whether to create missing nodes.
+   * @return the node spelled by {@code key}, or null if it doesn't exist and {@code create} is
+   *     false.
+   */
+  @Nullable
+  private static Node getPath(Node start, String key, boolean create) {
+    Node node = start;
+    node.top = null;
+    for (int i = 0; i < key.length(); i++) {
+      Node child = create ? node.getOrCreateChild(key.charAt(i)) : node.getChild(key.charAt(i));
+      if (child == null) {
+        return null;
+      }
+      node = child;
+      node.top = null;
+    }
+    return node;
+  }
+
+  /**
+   * Visits the candidates for {@code query}, as defined by the class documentation, in the same
+   * order as the SQL sort order used by the smart dial database, until {@code visitor} asks to
+   * stop.
+   */
+  public synchronized void visitCandidates(
+      String query, long nowMillis, @NonNull CandidateVisitor visitor) {
+    updateOrder(nowMillis);
+
+    NodeCandidates tokenCandidates = new NodeCandidates(findNode(root, query));
+    NumberCandidates numberCandidates =
+        new NumberCandidates(
+            query,
+            findNode(numberRoot, query.substring(0, Math.min(query.length(), NUMBER_GRAM_LENGTH))));
+
+    Row tokenRow = tokenCandidates.next();
+    Row numberRow = numberCandidates.next();
+    while (tokenRow != null || numberRow != null) {
+      if (numberRow == null || (tokenRow != null && order.compare(tokenRow, numberRow) < 0)) {
+        if (!visitor.visit(tokenRow, /* tokenMatch = */ true)) {
+          return;
+        }
+        tokenRow = tokenCandidates.next();
+      } else {
+        if (!visitor.visit(numberRow, /* tokenMatch = */ false)) {
+          return;
+        }
+        numberRow = numberCandidates.next();
+      }
+    }
+  }
+
+  @Nullable
+  private static Node findNode(Node start, String key) {
+    Node node = start;
+    for (int i = 0; i < key.length() && node != null; i++) {
+      node = node.getChild(key.charAt(i));
+    }
+    return node;
+  }
+
+  /** Starts a new generation of per-node rows if a row changed data usage bucket. */
+  private void updateOrder(long nowMillis) {
+    if (nowMillis >= order.nowMillis && nowMillis < orderValidUntil) {
+      return;
+    }
+    order = new SortingOrder(nowMillis);
+    orderGeneration++;
+    orderValidUntil = Long.MAX_VALUE;
+    for (List<Row> rows : rowsByContact.values()) {
+      for (Row row : rows) {
+        orderValidUntil = Math.min(orderValidUntil, nextBucketChange(row, nowMillis));
+      }
+    }
+  }
+
+  /** Returns the time after {@code nowMillis} at which the row changes data usage bucket. */
+  private static long nextBucketChange(Row row, long nowMillis) {
+    if (nowMillis - row.lastTimeUsed < LAST_TIME_USED_CURRENT_MS) {
+      return row.lastTimeUsed + LAST_TIME_USED_CURRENT_MS;
+    } else if (nowMillis - row.lastTimeUsed < LAST_TIME_USED_RECENT_MS) {
+      return row.lastTimeUsed + LAST_TIME_USED_RECENT_MS;
+    }
+    return Long.MAX_VALUE;
+  }
+
+  /**
+   * Returns the first {@link #TOP_K} rows of the contacts reachable from {@code node} in sort
+   * order, merging the rows kept by its children.
+   */
+  private Row[] getTop(Node node) {
+    if (node.top != null && node.topGeneration == orderGeneration) {
+      return node.top;
+    }
+    List<Row> merged = new ArrayList<>();
+    for (int i = 0; i < node.contactCount; i++) {
+      List<Row> rows = rowsByContact.get(node.contactIds[i]);
+      if (rows != null) {
+        merged.addAll(rows);
+      }
+    }
+    for (int i = 0; i < node.childCount; i++) {
+      Collections.addAll(merged, getTop(node.children[i]));
+    }
+    Collections.sort(merged, order);
+
+    // A contact reachable through several tokens shows up once per token, next to itself.
+    List<Row> top = new ArrayList<>(Math.min(TOP_K, merged.size()));
+    for (Row row : merged) {
+      if (top.size() == TOP_K) {
+        break;
+      }
+      if (top.isEmpty() || top.get(top.size() - 1) != row) {
+        top.add(row);
+      }
+    }
+    node.top = top.isEmpty() ? EMPTY_ROWS : top.toArray(new Row[top.size()]);
+    node.topGeneration = orderGeneration;
+    return node.top;
+  }
+
+  /** Returns the tokens of the contact starting with {@code prefix}. */
+  public synchronized List<String> getTokens(long contactId, String prefix) {
+    List<String> result = new ArrayList<>();
+    List<String> tokens = tokensByContact.get(contactId);
+    if (tokens != null) {
+      for (String token : tokens) {
+        if (token.startsWith(prefix)) {
+          result.add(token);
+        }
+      }
+    }
+    return result;
+  }
+
+  /** Returns true if the contact has a token starting with {@code query}. */
+  private boolean hasTokenWithPrefix(long contactId, String query) {
+    List<String> tokens = tokensByContact.get(contactId);
+    if (tokens != null) {
+      for (String token : tokens) {
+        if (token.startsWith(query)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Rows of the contacts reachable from a trie node, in sort order. The rows kept by the node are
+   * returned first, and the rest of its subtree is only collected if they are exhausted.
+   */
+  private final class NodeCandidates {
+    @Nullable private final Node node;
+    private Row[] top = EMPTY_ROWS;
+    private int index;
+    @Nullable private PriorityQueue<Row> rest;
+
+    NodeCandidates(@Nullable Node node) {
+      this.node = node;
+      if (node != null) {
+        top = getTop(node);
+      }
+    }
+
+    @Nullable
+    Row next() {
+      if (index < top.length) {
+        return top[index++];
+      }
+      if (top.length < TOP_K) {
+        return null;
+      }
+      if (rest == null) {
+        rest = collectRest();
+      }
+      return rest.poll();
+    }
+
+    private PriorityQueue<Row> collectRest() {
+      Set<Long> contactIds = new HashSet<>();
+      ArrayDeque<Node> stack = new ArrayDeque<>();
+      stack.push(node);
+      while (!stack.isEmpty()) {
+        Node current = stack.pop();
+        for (int i = 0; i < current.contactCount; i++) {
+          contactIds.add(current.contactIds[i]);
+        }
+        for (int i = 0; i < current.childCount; i++) {
+          stack.push(current.children[i]);
+        }
+      }
+      Set<Row> returned = Collections.newSetFromMap(new IdentityHashMap<>());
+      Collections.addAll(returned, top);
+      PriorityQueue<Row> queue = new PriorityQueue<>(TOP_K, order);
+      for (long contactId : contactIds) {
+        List<Row> rows = rowsByContact.get(contactId);
+        if (rows != null) {
+          for (Row row : rows) {
+            if (!returned.contains(row)) {
+              queue.add(row);
+            }
+          }
+        }
+      }
+      return queue;
+    }
+  }
+
+  /**
+   * Rows whose normalized number contains the query, and whose contact isn't a token match, in
+   * sort order. They are filtered from the rows of the number trie node spelled by the first
+   * digits of the query.
+   */
+  private final class NumberCandidates {
+    private final String query;
+    private final NodeCandidates candidates;
+
+    NumberCandidates(String query, @Nullable Node node) {
+      this.query = query;
+      candidates = new NodeCandidates(node);
+    }
+
+    @Nullable
+    Row next() {
+      Row row;
+      while ((row = candidates.next()) != null) {
+        if (row.normalizedNumber != null
+            && row.normalizedNumber.contains(query)
+            && !hasTokenWithPrefix(row.contactId, query)) {
+          return row;
+        }
+      }
+      return null;
+    }
+  }
+
+  /** Receives the candidates of {@link #visitCandidates(String, long, CandidateVisitor)}. */
+  public interface CandidateVisitor {
+
+    /**
+     * @param tokenMatch Whether the contact has a prefix table token starting with the query, as
+     *     opposed to only the row's number containing it.
+     * @return false to stop visiting candidates.
+     */
+    boolean visit(Row row, boolean tokenMatch);
+  }
+
+  /** Column indexes of the query passed to {@link #load(SQLiteDatabase, String, String)}. */
+  public interface RowQuery {
+    int ROW_ID = 0;
+    int DATA_ID = 1;
+    int DISPLAY_NAME = 2;
+    int PHOTO_ID = 3;
+    int NUMBER = 4;
+    int CONTACT_ID = 5;
+    int LOOKUP_KEY = 6;
+    int CARRIER_PRESENCE = 7;
+    int STARRED = 8;
+    int IS_SUPER_PRIMARY = 9;
+    int LAST_TIME_USED = 10;
+    int TIMES_USED = 11;
+    int IN_VISIBLE_GROUP = 12;
+    int IS_PRIMARY = 13;
+    int TRANSLITERATED_NAME = 14;
+    int TRANSLITERATION_OFFSETS = 15;
+  }
+
+  /** A row of the smart dial table, holding the columns needed for matching and sorting. */
+  public static final class Row {
+    final long rowId;
+    public final long dataId;
+    public final String displayName;
+    public final long photoId;
+    public final String number;
+    public final long contactId;
+    public final String lookupKey;
+    public final int carrierPresence;
+    final int starred;
+    final int isSuperPrimary;
+    final long lastTimeUsed;
+    final int timesUsed;
+    final int inVisibleGroup;
+    final int isPrimary;
+    @Nullable public final TransliteratedName transliteratedName;
+    /** The number reduced to dialpad characters, set when the row is added to the engine. */
+    @Nullable String normalizedNumber;
+
+    public Row(
+        long rowId,
+        long dataId,
+        String displayName,
+        long photoId,
+        String number,
+        long contactId,
+        String lookupKey,
+        int carrierPresence,
+        int starred,
+        int isSuperPrimary,
+        long lastTimeUsed,
+        int timesUsed,
+        int inVisibleGroup,
+        int isPrimary,
+        @Nullable TransliteratedName transliteratedName) {
+      this.rowId = rowId;
+      this.dataId = dataId;
+      this.displayName = displayName;
+      this.photoId = photoId;
+      this.number = number;
+      this.contactId = contactId;
+      this.lookupKey = lookupKey;
+      this.carrierPresence = carrierPresence;
+      this.starred = starred;
+      this.isSuperPrimary = isSuperPrimary;
+      this.lastTimeUsed = lastTimeUsed;
+      this.timesUsed = timesUsed;
+      this.inVisibleGroup = inVisibleGroup;
+      this.isPrimary = isPrimary;
+      this.transliteratedName = transliteratedName;
+    }
+  }
+
+  /**
+   * Mirrors {@code DialerDatabaseHelper.SmartDialSortingOrder}: starred, super primary, data usage
+   * bucket, times used, visible group, display name, contact ID and primary, with the table row ID
+   * as the final tie breaker.
+   */
+  private static final class SortingOrder implements Comparator<Row> {
+    final long nowMillis;
+
+    SortingOrder(long nowMillis) {
+      this.nowMillis = nowMillis;
+    }
+
+    @Override
+    public int compare(Row a, Row b) {
+      int result = Integer.compare(b.starred, a.starred);
+      if (result == 0) {
+        result = Integer.compare(b.isSuperPrimary, a.isSuperPrimary);
+      }
+      if (result == 0) {
+        result = Integer.compare(dataUsageBucket(a), dataUsageBucket(b));
+      }
+      if (result == 0) {
+        result = Integer.compare(b.timesUsed, a.timesUsed);
+      }
+      if (result == 0) {
+        result = Integer.compare(b.inVisibleGroup, a.inVisibleGroup);
+      }
+      if (result == 0) {
+        result = compareNullable(a.displayName, b.displayName);
+      }
+      if (result == 0) {
+        result = Long.compare(a.contactId, b.contactId);
+      }
+      if (result == 0) {
+        result = Integer.compare(b.isPrimary, a.isPrimary);
+      }
+      if (result == 0) {
+        result = Long.compare(a.rowId, b.rowId);
+      }
+      return result;
+    }
+
+    private int dataUsageBucket(Row row) {
+      long timeSinceLastUsed = nowMillis - row.lastTimeUsed;
+      if (timeSinceLastUsed < LAST_TIME_USED_CURRENT_MS) {
+        return 0;
+      } else if (timeSinceLastUsed < LAST_TIME_USED_RECENT_MS) {
+        return 1;
+      }
+      return 2;
+    }
+
+    /** SQLite sorts NULL before any other value. */
+    private static int compareNullable(String a, String b) {
+      if (a == null || b == null) {
+        return a == null ? (b == null ? 0 : -1) : 1;
+      }
+      return a.compareTo(b);
+    }
+  }
+
+  /**
+   * A trie node keyed by dialpad characters, with a posting list of contacts ending here and the
+   * first rows reachable from it, or null if they must be recomputed.
+   */
+  private static final class Node {
+    private static final char[] EMPTY_KEYS = new char[0];
+    private static final Node[] EMPTY_CHILDREN = new Node[0];
+    private static final long[] EMPTY_CONTACTS = new long[0];
+
+    char[] keys = EMPTY_KEYS;
+    Node[] children = EMPTY_CHILDREN;
+    int childCount;
+    long[] contactIds = EMPTY_CONTACTS;
+    int contactCount;
+    @Nullable Row[] top;
+    int topGeneration;
+
+    Node getChild(char key) {
+      for (int i = 0; i < childCount; i++) {
+        if (keys[i] == key) {
+          return children[i];
+        }
+      }
+      return null;
+    }
+
+    Node getOrCreateChild(char key) {
+      Node child = getChild(key);
+      if (child != null) {
+        return child;
+      }
+      if (childCount == keys.length) {
+        int capacity = Math.max(2, childCount * 2);
+        keys = Arrays.copyOf(keys, capacity);
+        children = Arrays.copyOf(children, capacity);
+      }
+      child = new Node();
+      keys[childCount] = key;
+      children[childCount] = child;
+      childCount++;
+      return child;
+    }
+
+    /** Returns false if the contact was already present. */
+    boolean addContact(long contactId) {
+      for (int i = 0; i < contactCount; i++) {
+        if (contactIds[i] == contactId) {
+          return false;
+        }
+      }
+      if (contactCount == contactIds.length) {
+        contactIds = Arrays.copyOf(contactIds, Math.max(1, contactCount * 2));
+      }
+      contactIds[contactCount++] = contactId;
+      return true;
+    }
+
+    void removeContact(long contactId) {
+      for (int i = 0; i < contactCount; i++) {
+        if (contactIds[i] == contactId) {
+          contactIds[i] = contactIds[--contactCount];
+          return;
+        }
+      }
+    }
+
+    int countNodes() {
+      int count = 1;
+      for (int i = 0; i < childCount; i++) {
+        count += children[i].countNodes();
+      }
+      return count;
+    }
+  }
+}
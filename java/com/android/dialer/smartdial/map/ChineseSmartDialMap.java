@@ -18,17 +18,15 @@ package com.android.dialer.smartdial.map;
 
 import android.content.Context;
 import android.support.v4.util.SimpleArrayMap;
-import android.text.TextUtils;
 
 import com.android.dialer.dialpadview.DialpadCharMappings;
 import com.android.dialer.smartdial.util.SmartDialMatchPosition;
 import com.android.dialer.smartdial.util.SmartDialNameMatcher;
+import com.android.dialer.smartdial.util.TransliteratedName;
 import com.android.providers.contacts.HanziToPinyin;
 import com.google.common.base.Optional;
 
 import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.Set;
 
 public class ChineseSmartDialMap extends SmartDialMap {
 
@@ -758,22 +756,63 @@ public class ChineseSmartDialMap extends SmartDialMap {
      * Generates a space delimited string of pinyins
      */
     private String tokenizeToPinyins(String displayName) {
+        TransliteratedName transliteratedName = transliterate(displayName);
+        return transliteratedName == null ? displayName : transliteratedName.name;
+    }
+
+    @Override
+    public String transliterateName(String index) {
+        return tokenizeToPinyins(index);
+    }
+
+    /*
+     * Generates a space delimited string of pinyins, along with the offset in the display name of
+     * the hanzi each pinyin character came from. Returns an identity transliteration if the
+     * display name contains anything but hanzi.
+     */
+    @Override
+    public TransliteratedName transliterate(String displayName) {
         HanziToPinyin hanziToPinyin = HanziToPinyin.getInstance();
         ArrayList<HanziToPinyin.Token> tokens = hanziToPinyin.getTokens(displayName);
-        ArrayList<String> pinyins = new ArrayList<String>();
+        int length = 0;
         for (HanziToPinyin.Token token : tokens) {
             if (token.type != HanziToPinyin.Token.PINYIN) {
-                return displayName;
-            } else {
-                pinyins.add(token.target);
+                return TransliteratedName.identity(displayName);
             }
+            length += token.target.length() + 1;
+        }
+        if (tokens.isEmpty()) {
+            return TransliteratedName.identity(displayName);
         }
-        return TextUtils.join(" ", pinyins);
-    }
 
-    @Override
-    public String transliterateName(String index) {
-        return tokenizeToPinyins(index);
+        // For example, if:
+        //  displayName = 红霞李
+        //  pinyinName =  "hong xia li"
+        // then:
+        //  sourceOffsets = 0,0,0,0,-1,1,1,1,-1,2,2
+        StringBuilder pinyinName = new StringBuilder(length - 1);
+        int[] sourceOffsets = new int[length - 1];
+        int searchFrom = 0;
+        for (int i = 0; i < tokens.size(); ++i) {
+            HanziToPinyin.Token token = tokens.get(i);
+            if (i > 0) {
+                sourceOffsets[pinyinName.length()] = -1;
+                pinyinName.append(' ');
+            }
+            int sourceOffset = token.source == null
+                    ? -1 : displayName.indexOf(token.source, searchFrom);
+            if (sourceOffset < 0) {
+                // Fall back to the token index, which is the offset when every token is one hanzi.
+                sourceOffset = i;
+            } else {
+                searchFrom = sourceOffset + token.source.length();
+            }
+            for (int j = 0; j < token.target.length(); ++j) {
+                sourceOffsets[pinyinName.length()] = sourceOffset;
+                pinyinName.append(token.target.charAt(j));
+            }
+        }
+        return TransliteratedName.of(pinyinName.toString(), sourceOffsets);
     }
 
     /*
@@ -783,57 +822,49 @@ public class ChineseSmartDialMap extends SmartDialMap {
     @Override
     public boolean matchesCombination(Context context, SmartDialNameMatcher smartDialNameMatcher,
             String displayName, String query, ArrayList<SmartDialMatchPosition> matchList) {
+        return matchesCombination(context, smartDialNameMatcher, displayName,
+                transliterate(displayName), query, matchList);
+    }
 
-        String pinyinName = tokenizeToPinyins(displayName);
+    /*
+     * Same as above, but uses the transliteration stored in the smart dial database. Match
+     * positions are mapped back to the display name through the stored offsets.
+     */
+    @Override
+    public boolean matchesCombination(Context context, SmartDialNameMatcher smartDialNameMatcher,
+            String displayName, TransliteratedName transliteratedName, String query,
+            ArrayList<SmartDialMatchPosition> matchList) {
+        if (transliteratedName == null) {
+            transliteratedName = transliterate(displayName);
+        }
 
         ArrayList<SmartDialMatchPosition> computedMatchList = new ArrayList<>();
-        boolean matches = smartDialNameMatcher.matchesCombination(context, pinyinName, query, computedMatchList);
+        boolean matches = smartDialNameMatcher.matchesCombination(
+                context, transliteratedName.name, query, computedMatchList);
         if (!matches)
             return false;
 
-        // name was translated to pinyin before matching.  attempt to map the match positions
-        // back to the original display string
-        if (!displayName.equals(pinyinName)) {
-
-            // construct an array that maps each character of the pinyin name back to the index of
-            // the hanzi token from which it came
-            // For example, if:
-            //  displayName = 红霞李
-            //  pinyinName =  "hong xia li"
-            // then:
-            //  pinyinMapping = 0,0,0,0,-1,1,1,1,-1,2,2
-            int[] pinyinMapping = new int[pinyinName.length()];
-            int curToken = 0;
-            for (int i=0; i < pinyinName.length(); ++i) {
-                char c = pinyinName.charAt(i);
-                if (c == ' ') {
-                    ++curToken;
-                    pinyinMapping[i] = -1;
-                }
-                else {
-                    pinyinMapping[i] = curToken;
-                }
-            }
+        if (transliteratedName.isIdentity()) {
+            matchList.addAll(computedMatchList);
+            return true;
+        }
 
-            // calculate unique hanzi characters that are matched
-            Set<Integer> positionsToHighlight = new HashSet<>();
-            for (SmartDialMatchPosition matchPosition : computedMatchList) {
-                for (int pos = matchPosition.start; pos < matchPosition.end; ++pos) {
-                    int mappedPos = pinyinMapping[pos];
-                    if (mappedPos >= 0)
-                        positionsToHighlight.add(mappedPos);
-                }
+        // calculate unique hanzi characters that are matched
+        boolean[] positionsToHighlight = new boolean[displayName.length()];
+        for (SmartDialMatchPosition matchPosition : computedMatchList) {
+            for (int pos = matchPosition.start; pos < matchPosition.end; ++pos) {
+                int mappedPos = transliteratedName.getSourceOffset(pos);
+                if (mappedPos >= 0 && mappedPos < positionsToHighlight.length)
+                    positionsToHighlight[mappedPos] = true;
             }
+        }
 
-            // reset computed matches
-            computedMatchList = new ArrayList<>();
-            for (int matchPos : positionsToHighlight) {
+        for (int matchPos = 0; matchPos < positionsToHighlight.length; ++matchPos) {
+            if (positionsToHighlight[matchPos]) {
                 // use one object per position for simplicity
-                computedMatchList.add(new SmartDialMatchPosition(matchPos, matchPos+1));
+                matchList.add(new SmartDialMatchPosition(matchPos, matchPos + 1));
             }
         }
-
-        matchList.addAll(computedMatchList);
         return true;
     }
 
@@ -17,11 +17,13 @@
 package com.android.dialer.smartdial.map;
 
 import android.content.Context;
+import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
 import android.support.v4.util.SimpleArrayMap;
 import com.android.dialer.i18n.LocaleUtils;
 import com.android.dialer.smartdial.util.SmartDialMatchPosition;
 import com.android.dialer.smartdial.util.SmartDialNameMatcher;
+import com.android.dialer.smartdial.util.TransliteratedName;
 import com.google.common.base.Optional;
 
 import java.util.ArrayList;
@@ -176,4 +178,36 @@ public class CompositeSmartDialMap {
       return smartDialNameMatcher.matchesCombination(context, displayName, query, matchPositions);
     }
   }
+
+  /**
+   * Same as {@link #matchesCombination(Context, SmartDialNameMatcher, String, String, ArrayList)},
+   * but uses a transliteration previously returned by {@link #transliterate(Context, String)}.
+   */
+  public static boolean matchesCombination(
+      Context context,
+      SmartDialNameMatcher smartDialNameMatcher,
+      String displayName,
+      TransliteratedName transliteratedName,
+      String query,
+      ArrayList<SmartDialMatchPosition> matchPositions) {
+    Optional<SmartDialMap> extraMap = getExtraMap(context);
+    if (extraMap.isPresent()) {
+      return extraMap
+          .get()
+          .matchesCombination(
+              context, smartDialNameMatcher, displayName, transliteratedName, query, matchPositions);
+    } else {
+      return smartDialNameMatcher.matchesCombination(context, displayName, query, matchPositions);
+    }
+  }
+
+  /**
+   * Returns the transliteration of a display name to be stored in the smart dial database, or null
+   * if names are matched as they are for the current locale.
+   */
+  @Nullable
+  public static TransliteratedName transliterate(Context context, String displayName) {
+    Optional<SmartDialMap> extraMap = getExtraMap(context);
+    return extraMap.isPresent() ? extraMap.get().transliterate(displayName) : null;
+  }
 }
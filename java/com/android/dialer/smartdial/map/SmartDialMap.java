@@ -17,10 +17,12 @@
 package com.android.dialer.smartdial.map;
 
 import android.content.Context;
+import android.support.annotation.Nullable;
 import android.support.v4.util.SimpleArrayMap;
 
 import com.android.dialer.smartdial.util.SmartDialMatchPosition;
 import com.android.dialer.smartdial.util.SmartDialNameMatcher;
+import com.android.dialer.smartdial.util.TransliteratedName;
 import com.google.common.base.Optional;
 
 import java.util.ArrayList;
@@ -117,4 +119,28 @@ public abstract class SmartDialMap {
    */
   public abstract boolean matchesCombination(Context context, SmartDialNameMatcher smartDialNameMatcher, String displayName, String query,
                                       ArrayList<SmartDialMatchPosition> matchList);
+
+  /**
+   * Returns the transliteration of a display name to be stored along with the contact, or null if
+   * this map matches display names as they are.
+   */
+  @Nullable
+  public TransliteratedName transliterate(String displayName) {
+    return null;
+  }
+
+  /**
+   * Same as {@link #matchesCombination(Context, SmartDialNameMatcher, String, String, ArrayList)},
+   * but uses a transliteration previously returned by {@link #transliterate(String)} instead of
+   * computing it again.
+   */
+  public boolean matchesCombination(
+      Context context,
+      SmartDialNameMatcher smartDialNameMatcher,
+      String displayName,
+      TransliteratedName transliteratedName,
+      String query,
+      ArrayList<SmartDialMatchPosition> matchList) {
+    return matchesCombination(context, smartDialNameMatcher, displayName, query, matchList);
+  }
 }
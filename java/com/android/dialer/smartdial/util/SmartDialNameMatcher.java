@@ -406,6 +406,20 @@ public class SmartDialNameMatcher {
     return CompositeSmartDialMap.matchesCombination(context, this, displayName, query, matchPositions);
   }
 
+  /**
+   * Same as {@link #matches(Context, String)}, but uses the transliteration of the display name
+   * stored in the smart dial database when one is available, instead of computing it again.
+   */
+  public boolean matches(
+      Context context, String displayName, @Nullable TransliteratedName transliteratedName) {
+    if (transliteratedName == null) {
+      return matches(context, displayName);
+    }
+    matchPositions.clear();
+    return CompositeSmartDialMap.matchesCombination(
+        context, this, displayName, transliteratedName, query, matchPositions);
+  }
+
   public ArrayList<SmartDialMatchPosition> getMatchPositions() {
     // Return a clone of mMatchPositions so that the caller can use it without
     // worrying about it changing
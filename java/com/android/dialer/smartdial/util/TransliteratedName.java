@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.smartdial.util;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * A display name transliterated for smart dial matching (e.g. "红霞李" to "hong xia li"), together
+ * with the offset in the display name each transliterated character came from.
+ *
+ * <p>Transliterations are computed once when a contact is indexed and stored in the smart dial
+ * database, so that matching a query doesn't have to transliterate every candidate again.
+ */
+public final class TransliteratedName {
+
+  /** Stored offset of characters which don't come from the display name, e.g. separators. */
+  private static final int NO_SOURCE = 0xffff;
+
+  /** The transliterated name. */
+  @NonNull public final String name;
+
+  /**
+   * For each character of {@link #name}, the offset in the display name it was transliterated from,
+   * or -1. Null if the name is the display name itself.
+   */
+  @Nullable private final int[] sourceOffsets;
+
+  private TransliteratedName(@NonNull String name, @Nullable int[] sourceOffsets) {
+    this.name = name;
+    this.sourceOffsets = sourceOffsets;
+  }
+
+  /** Returns a transliteration of a display name which doesn't need to be transliterated. */
+  public static TransliteratedName identity(@NonNull String displayName) {
+    return new TransliteratedName(displayName, null);
+  }
+
+  /**
+   * @param sourceOffsets For each character of {@code name}, the offset in the display name it was
+   *     transliterated from, or -1.
+   */
+  public static TransliteratedName of(@NonNull String name, @NonNull int[] sourceOffsets) {
+    if (sourceOffsets.length != name.length()) {
+      throw new IllegalArgumentException("one offset is required per character");
+    }
+    return new TransliteratedName(name, sourceOffsets);
+  }
+
+  /**
+   * Restores a transliteration from the columns written with {@link #encodeSourceOffsets()}.
+   *
+   * @return null if no transliteration was stored.
+   */
+  @Nullable
+  public static TransliteratedName fromStored(
+      @Nullable String storedName, @Nullable byte[] storedOffsets) {
+    if (storedName == null) {
+      return null;
+    }
+    if (storedOffsets == null) {
+      return identity(storedName);
+    }
+    if (storedOffsets.length != storedName.length() * 2) {
+      return null;
+    }
+    int[] sourceOffsets = new int[storedName.length()];
+    for (int i = 0; i < sourceOffsets.length; i++) {
+      int offset = ((storedOffsets[2 * i] & 0xff) << 8) | (storedOffsets[2 * i + 1] & 0xff);
+      sourceOffsets[i] = offset == NO_SOURCE ? -1 : offset;
+    }
+    return new TransliteratedName(storedName, sourceOffsets);
+  }
+
+  /** Returns true if the name is the display name itself. */
+  public boolean isIdentity() {
+    return sourceOffsets == null;
+  }
+
+  /**
+   * Returns the offset in the display name the character at {@code index} of {@link #name} was
+   * transliterated from, or -1.
+   */
+  public int getSourceOffset(int index) {
+    return sourceOffsets == null ? index : sourceOffsets[index];
+  }
+
+  /**
+   * Encodes the source offsets as two bytes per character, or returns null for an {@link
+   * #identity(String)} transliteration.
+   */
+  @Nullable
+  public byte[] encodeSourceOffsets() {
+    if (sourceOffsets == null) {
+      return null;
+    }
+    byte[] encoded = new byte[sourceOffsets.length * 2];
+    for (int i = 0; i < sourceOffsets.length; i++) {
+      int offset =
+          sourceOffsets[i] < 0 || sourceOffsets[i] >= NO_SOURCE ? NO_SOURCE : sourceOffsets[i];
+      encoded[2 * i] = (byte) (offset >> 8);
+      encoded[2 * i + 1] = (byte) offset;
+    }
+    return encoded;
+  }
+}
@@ -16,8 +16,12 @@
 
 package com.android.dialer.util;
 
-import android.util.LruCache;
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import javax.annotation.concurrent.Immutable;
 import javax.annotation.concurrent.ThreadSafe;
 
@@ -76,11 +80,12 @@ import javax.annotation.concurrent.ThreadSafe;
  * {@link #getPossiblyExpired(Object)} method. If interested only in non-expired values, one should
  * use the {@link #get(Object)} method instead.
  *
- * <p>This class wraps around an {@link LruCache} instance: it follows the {@link LruCache} behavior
- * for evicting items when the cache is full. It is possible to supply your own subclass of LruCache
- * by using the {@link #create(LruCache)} method, which can define a custom expiration policy. Since
- * the underlying cache maps keys to cached values it can determine which items are expired and
- * which are not, allowing for an implementation that evicts expired items before non expired ones.
+ * <p>When the cache is full, the least recently used item is evicted, like in {@link
+ * android.util.LruCache}. Unlike {@link android.util.LruCache}, lookups don't take a lock: the
+ * items are kept in a {@link ConcurrentHashMap} and only record when they were last used, so that
+ * the UI thread is never blocked by background threads filling the cache. Puts of new keys into a
+ * full cache find the least recently used item by scanning the cache, which is cheap for caches of
+ * a few hundred items.
  *
  * <p>This class is thread-safe.
  *
@@ -99,27 +104,25 @@ public class ExpirableCache<K, V> {
    * @see ExpirableCache.CachedValue#isExpired()
    */
   private final AtomicInteger generation;
-  /** The underlying cache used to stored the cached values. */
-  private LruCache<K, CachedValue<V>> cache;
+  /** The cached values, with the time they were last used. */
+  private final ConcurrentHashMap<K, Entry<V>> cache;
+  /** Serializes evictions, so that concurrent puts don't evict more items than necessary. */
+  private final Object evictionLock = new Object();
 
-  private ExpirableCache(LruCache<K, CachedValue<V>> cache) {
-    this.cache = cache;
-    generation = new AtomicInteger(0);
-  }
+  private volatile int maxSize;
 
-  /**
-   * Creates a new {@link ExpirableCache} that wraps the given {@link LruCache}.
-   *
-   * <p>The created cache takes ownership of the cache passed in as an argument.
-   *
-   * @param <K> the type of the keys
-   * @param <V> the type of the values
-   * @param cache the cache to store the value in
-   * @return the newly created expirable cache
-   * @throws IllegalArgumentException if the cache is not empty
-   */
-  public static <K, V> ExpirableCache<K, V> create(LruCache<K, CachedValue<V>> cache) {
-    return new ExpirableCache<K, V>(cache);
+  private final LongAdder hitCount = new LongAdder();
+  private final LongAdder expiredHitCount = new LongAdder();
+  private final LongAdder missCount = new LongAdder();
+  private final LongAdder evictionCount = new LongAdder();
+
+  private ExpirableCache(int maxSize) {
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("maxSize <= 0");
+    }
+    this.maxSize = maxSize;
+    cache = new ConcurrentHashMap<>();
+    generation = new AtomicInteger(0);
   }
 
   /**
@@ -130,7 +133,7 @@ public class ExpirableCache<K, V> {
    * @return the newly created expirable cache
    */
   public static <K, V> ExpirableCache<K, V> create(int maxSize) {
-    return create(new LruCache<K, CachedValue<V>>(maxSize));
+    return new ExpirableCache<K, V>(maxSize);
   }
 
   /**
@@ -147,7 +150,18 @@ public class ExpirableCache<K, V> {
    * @param key the key to look up
    */
   public CachedValue<V> getCachedValue(K key) {
-    return cache.get(key);
+    Entry<V> entry = cache.get(key);
+    if (entry == null) {
+      missCount.increment();
+      return null;
+    }
+    entry.lastUsed = System.nanoTime();
+    if (entry.cachedValue.isExpired()) {
+      expiredHitCount.increment();
+    } else {
+      hitCount.increment();
+    }
+    return entry.cachedValue;
   }
 
   /**
@@ -181,6 +195,25 @@ public class ExpirableCache<K, V> {
     return cachedValue == null || cachedValue.isExpired() ? null : cachedValue.getValue();
   }
 
+  /**
+   * Changes the maximum number of items in the cache, evicting the least recently used items if
+   * the cache holds more than that.
+   *
+   * @param maxSize the new maximum size
+   */
+  public void resize(int maxSize) {
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("maxSize <= 0");
+    }
+    this.maxSize = maxSize;
+    trimToSize();
+  }
+
+  /** Returns the maximum number of items in the cache. */
+  public int maxSize() {
+    return maxSize;
+  }
+
   /**
    * Puts an item in the cache.
    *
@@ -190,7 +223,30 @@ public class ExpirableCache<K, V> {
    * @param value the value to associate with the key
    */
   public void put(K key, V value) {
-    cache.put(key, newCachedValue(value));
+    Entry<V> previous = cache.put(key, new Entry<>(newCachedValue(value)));
+    if (previous == null && cache.size() > maxSize) {
+      trimToSize();
+    }
+  }
+
+  /** Evicts the least recently used items until the cache is within its maximum size. */
+  private void trimToSize() {
+    synchronized (evictionLock) {
+      while (cache.size() > maxSize) {
+        Map.Entry<K, Entry<V>> eldest = null;
+        for (Map.Entry<K, Entry<V>> candidate : cache.entrySet()) {
+          if (eldest == null || candidate.getValue().lastUsed - eldest.getValue().lastUsed < 0) {
+            eldest = candidate;
+          }
+        }
+        if (eldest == null) {
+          return;
+        }
+        if (cache.remove(eldest.getKey(), eldest.getValue())) {
+          evictionCount.increment();
+        }
+      }
+    }
   }
 
   /**
@@ -205,10 +261,36 @@ public class ExpirableCache<K, V> {
   }
 
   /**
-   * Creates a new {@link CachedValue} instance to be stored in this cache.
-   *
-   * <p>Implementation of {@link LruCache#create(K)} can use this method to create a new entry.
+   * Prints the number of items in the cache and how often lookups found a value, an expired value
+   * or nothing.
    */
+  public void dump(PrintWriter writer) {
+    writer.println("ExpirableCache:");
+    writer.println("  size: " + cache.size() + "/" + maxSize);
+    writer.println("  hits: " + hitCount.sum());
+    writer.println("  expired hits: " + expiredHitCount.sum());
+    writer.println("  misses: " + missCount.sum());
+    writer.println("  evictions: " + evictionCount.sum());
+  }
+
+  @Override
+  public String toString() {
+    long hits = hitCount.sum();
+    long expiredHits = expiredHitCount.sum();
+    long accesses = hits + expiredHits + missCount.sum();
+    int hitPercent = accesses != 0 ? (int) (100 * (hits + expiredHits) / accesses) : 0;
+    return String.format(
+        Locale.US,
+        "ExpirableCache[maxSize=%d,hits=%d,expiredHits=%d,misses=%d,evictions=%d,hitRate=%d%%]",
+        maxSize,
+        hits,
+        expiredHits,
+        missCount.sum(),
+        evictionCount.sum(),
+        hitPercent);
+  }
+
+  /** Creates a new {@link CachedValue} instance to be stored in this cache. */
   public CachedValue<V> newCachedValue(V value) {
     return new GenerationalCachedValue<V>(value, generation);
   }
@@ -234,6 +316,18 @@ public class ExpirableCache<K, V> {
     boolean isExpired();
   }
 
+  /** A value in the cache, and the {@link System#nanoTime()} at which it was last used. */
+  private static final class Entry<V> {
+
+    final CachedValue<V> cachedValue;
+    /** Written without synchronization, a lost update only makes the eviction order approximate. */
+    volatile long lastUsed = System.nanoTime();
+
+    Entry(CachedValue<V> cachedValue) {
+      this.cachedValue = cachedValue;
+    }
+  }
+
   /** Cached values storing the generation at which they were added. */
   @Immutable
   private static class GenerationalCachedValue<V> implements ExpirableCache.CachedValue<V> {
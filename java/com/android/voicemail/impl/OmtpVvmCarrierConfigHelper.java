@@ -91,6 +91,15 @@ public class OmtpVvmCarrierConfigHelper {
   public static final String KEY_VVM_CLIENT_PREFIX_STRING = "vvm_client_prefix_string";
   private static final String KEY_IGNORE_TRANSCRIPTION_BOOL = "vvm_ignore_transcription";
 
+  /** @see #getImapSessionIdleMillis() */
+  public static final String KEY_VVM_IMAP_SESSION_IDLE_MILLIS_INT =
+      "vvm_imap_session_idle_millis_int";
+
+  /** @see #isImapIdleEnabled() */
+  public static final String KEY_VVM_IMAP_IDLE_BOOL = "vvm_imap_idle_bool";
+
+  private static final int DEFAULT_IMAP_SESSION_IDLE_MILLIS = 60_000;
+
   @Nullable private static PersistableBundle overrideConfigForTest;
 
   private final Context context;
@@ -523,6 +532,25 @@ public class OmtpVvmCarrierConfigHelper {
     return false;
   }
 
+  /**
+   * @return How long the IMAP session of a task is kept open after the task is done, so that the
+   *     tasks which follow, e.g. for a burst of voicemail SMSs, don't have to connect and log in
+   *     again. 0 closes the session as soon as the task is done.
+   */
+  public int getImapSessionIdleMillis() {
+    Assert.checkArgument(isValid());
+    return (int) getValue(KEY_VVM_IMAP_SESSION_IDLE_MILLIS_INT, DEFAULT_IMAP_SESSION_IDLE_MILLIS);
+  }
+
+  /**
+   * @return Whether an IMAP session kept open is put in IDLE, if the server supports it, so that
+   *     new voicemails are synced without waiting for the SMS notification. Default to false.
+   */
+  public boolean isImapIdleEnabled() {
+    Assert.checkArgument(isValid());
+    return (boolean) getValue(KEY_VVM_IMAP_IDLE_BOOL, false);
+  }
+
   /**
    * Suppress the behavior of treating any text attachment with MIME "text/*" as transcription,
    * default to false.
@@ -28,6 +28,7 @@ import com.android.dialer.common.concurrent.ThreadUtil;
 import com.android.voicemail.impl.R;
 import com.android.voicemail.impl.VvmLog;
 import com.android.voicemail.impl.imap.VoicemailPayload;
+import com.android.voicemail.impl.mail.MessagingException;
 import com.android.voicemail.impl.transcribe.TranscriptionService;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -45,6 +46,15 @@ public class VoicemailFetchedCallback {
   private final Uri uri;
   private final PhoneAccountHandle phoneAccountHandle;
 
+  /**
+   * Writes the content of a voicemail, e.g. as it is downloaded.
+   *
+   * @param <E> the exception thrown if getting the content fails
+   */
+  public interface ContentWriter<E extends Exception> {
+    void writeTo(OutputStream outputStream) throws IOException, E;
+  }
+
   public VoicemailFetchedCallback(Context context, Uri uri, PhoneAccountHandle phoneAccountHandle) {
     this.context = context;
     contentResolver = context.getContentResolver();
@@ -59,40 +69,59 @@ public class VoicemailFetchedCallback {
    * @param voicemailPayload The object containing the content data for the voicemail
    */
   public void setVoicemailContent(@Nullable VoicemailPayload voicemailPayload) {
-    Assert.isWorkerThread();
     if (voicemailPayload == null) {
-      VvmLog.i(TAG, "Payload not found, message has unsupported format");
-      ContentValues values = new ContentValues();
-      values.put(
-          Voicemails.TRANSCRIPTION,
-          context.getString(
-              R.string.vvm_unsupported_message_format,
-              context
-                  .getSystemService(TelecomManager.class)
-                  .getVoiceMailNumber(phoneAccountHandle)));
-      updateVoicemail(values);
+      setUnsupportedMessageFormat();
+      return;
+    }
+    setVoicemailContent(
+        voicemailPayload.getMimeType(),
+        outputStream -> {
+          byte[] inputBytes = voicemailPayload.getBytes();
+          if (inputBytes != null) {
+            outputStream.write(inputBytes);
+          }
+        });
+  }
+
+  /**
+   * Saves the voicemail content written by {@code contentWriter} into the voicemail provider then
+   * sets the "has_content" bit of the voicemail to "1". The content goes straight to the provider's
+   * file, so it doesn't have to be held in memory.
+   *
+   * @param mimeType the MIME type of the content, or null if the message has an unsupported format
+   * @param contentWriter writes the content, or null if the message has an unsupported format
+   * @throws E if {@code contentWriter} failed to get the content, e.g. a {@link
+   *     MessagingException} from the server, in which case the voicemail is left without content
+   */
+  public <E extends Exception> void setVoicemailContent(
+      @Nullable String mimeType, @Nullable ContentWriter<E> contentWriter) throws E {
+    Assert.isWorkerThread();
+    if (contentWriter == null) {
+      setUnsupportedMessageFormat();
       return;
     }
 
     VvmLog.d(TAG, String.format("Writing new voicemail content: %s", uri));
     OutputStream outputStream = null;
+    boolean written = false;
 
     try {
       outputStream = contentResolver.openOutputStream(uri);
-      byte[] inputBytes = voicemailPayload.getBytes();
-      if (inputBytes != null) {
-        outputStream.write(inputBytes);
-      }
+      contentWriter.writeTo(outputStream);
+      written = true;
     } catch (IOException e) {
-      VvmLog.w(TAG, String.format("File not found for %s", uri));
+      VvmLog.w(TAG, String.format("Failed to write content for %s", uri), e);
       return;
     } finally {
       IOUtils.closeQuietly(outputStream);
+      if (!written && outputStream != null) {
+        discardContent();
+      }
     }
 
     // Update mime_type & has_content after we are done with file update.
     ContentValues values = new ContentValues();
-    values.put(Voicemails.MIME_TYPE, voicemailPayload.getMimeType());
+    values.put(Voicemails.MIME_TYPE, mimeType);
     values.put(Voicemails.HAS_CONTENT, true);
     if (updateVoicemail(values)) {
       ThreadUtil.postOnUiThread(
@@ -105,6 +134,27 @@ public class VoicemailFetchedCallback {
     }
   }
 
+  /** Truncates the content written so far, so that a partial download isn't left in the file. */
+  private void discardContent() {
+    try {
+      IOUtils.closeQuietly(contentResolver.openOutputStream(uri, "wt"));
+    } catch (IOException e) {
+      VvmLog.w(TAG, String.format("Failed to discard partial content of %s", uri), e);
+    }
+  }
+
+  private void setUnsupportedMessageFormat() {
+    Assert.isWorkerThread();
+    VvmLog.i(TAG, "Payload not found, message has unsupported format");
+    ContentValues values = new ContentValues();
+    values.put(
+        Voicemails.TRANSCRIPTION,
+        context.getString(
+            R.string.vvm_unsupported_message_format,
+            context.getSystemService(TelecomManager.class).getVoiceMailNumber(phoneAccountHandle)));
+    updateVoicemail(values);
+  }
+
   private boolean updateVoicemail(ContentValues values) {
     int updatedCount = contentResolver.update(uri, values, null, null);
     if (updatedCount != 1) {
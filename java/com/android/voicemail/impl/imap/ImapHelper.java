@@ -21,6 +21,7 @@ import android.net.Network;
 import android.net.NetworkInfo;
 import android.support.annotation.Nullable;
 import android.telecom.PhoneAccountHandle;
+import android.util.ArraySet;
 import android.util.Base64;
 import com.android.voicemail.PinChanger;
 import com.android.voicemail.PinChanger.ChangePinResult;
@@ -42,6 +43,7 @@ import com.android.voicemail.impl.mail.Message;
 import com.android.voicemail.impl.mail.MessagingException;
 import com.android.voicemail.impl.mail.Multipart;
 import com.android.voicemail.impl.mail.TempDirectory;
+import com.android.voicemail.impl.mail.internet.MimeHeader;
 import com.android.voicemail.impl.mail.internet.MimeMessage;
 import com.android.voicemail.impl.mail.store.ImapConnection;
 import com.android.voicemail.impl.mail.store.ImapFolder;
@@ -57,8 +59,11 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 import org.apache.commons.io.IOUtils;
 
 /** A helper interface to abstract commands sent across IMAP interface for a given account. */
@@ -66,8 +71,13 @@ public class ImapHelper implements Closeable {
 
   private static final String TAG = "ImapHelper";
 
+  /** Number of messages whose structure is fetched with one command. */
+  private static final int STRUCTURE_FETCH_BATCH_SIZE = 50;
+
   private ImapFolder folder;
   private ImapStore imapStore;
+  /** The state of the folder when it was last opened. */
+  @Nullable private MailboxState mailboxState;
 
   private final Context context;
   private final PhoneAccountHandle phoneAccount;
@@ -200,11 +210,16 @@ public class ImapHelper implements Closeable {
   /**
    * Fetch a list of voicemails from the server.
    *
+   * <p>The structure of all messages is fetched with one command per {@link
+   * #STRUCTURE_FETCH_BATCH_SIZE} messages, and their transcriptions with one more command, rather
+   * than with a few commands per message.
+   *
    * @return A list of voicemail objects containing data about voicemails stored on the server.
    */
   public List<Voicemail> fetchAllVoicemails() {
-    List<Voicemail> result = new ArrayList<Voicemail>();
     Message[] messages;
+    ImapConnection connection = imapStore.getConnection();
+    int startRoundTrips = connection.getRoundTripCount();
     try {
       folder = openImapFolder(ImapFolder.MODE_READ_WRITE);
       if (folder == null) {
@@ -215,14 +230,84 @@ public class ImapHelper implements Closeable {
       // This method retrieves lightweight messages containing only the uid of the message.
       messages = folder.getMessages(null);
 
+      List<Voicemail> result = fetchVoicemails(messages);
+      VvmLog.i(
+          TAG,
+          "fetchAllVoicemails: "
+              + result.size()
+              + " voicemails in "
+              + (connection.getRoundTripCount() - startRoundTrips)
+              + " round trips");
+      return result;
+    } catch (MessagingException e) {
+      LogUtils.e(TAG, e, "Messaging Exception");
+      return null;
+    } finally {
+      closeImapFolder();
+    }
+  }
+
+  /**
+   * Fetches what changed in the voicemail folder since {@code lastState}: the voicemails which are
+   * not stored locally yet, the messages which were deleted, and the messages which were read. Only
+   * the flags of messages which changed since are fetched if the server supports CONDSTORE, and
+   * nothing at all is fetched if the folder didn't change.
+   *
+   * @param lastState The state of the folder at the last sync
+   * @param localUids The UIDs of the voicemails stored locally
+   * @return The changes, or null if they couldn't be fetched
+   */
+  @Nullable
+  public MailboxChanges fetchChangedVoicemails(MailboxState lastState, Set<String> localUids) {
+    ImapConnection connection = imapStore.getConnection();
+    int startRoundTrips = connection.getRoundTripCount();
+    try {
+      folder = openImapFolder(ImapFolder.MODE_READ_WRITE);
+      if (folder == null) {
+        // This means we were unable to successfully open the folder.
+        return null;
+      }
+      MailboxState state = mailboxState;
+      if (!state.hasSameUids(lastState)) {
+        VvmLog.i(TAG, "fetchChangedVoicemails: UIDs changed from " + lastState + " to " + state);
+        return new MailboxChanges(state, null, null, null);
+      }
+      if (state.isUnchangedSince(lastState)) {
+        VvmLog.i(TAG, "fetchChangedVoicemails: unchanged since last sync");
+        return new MailboxChanges(state, null, new ArrayList<>(), new ArraySet<>());
+      }
+
+      Message[] messages = folder.getMessages(null);
+      Set<String> uids = new ArraySet<>(messages.length);
+      List<Message> newMessages = new ArrayList<>();
+      List<Message> knownMessages = new ArrayList<>();
       for (Message message : messages) {
-        // Get the voicemail details (message structure).
-        MessageStructureWrapper messageStructureWrapper = fetchMessageStructure(message);
-        if (messageStructureWrapper != null) {
-          result.add(getVoicemailFromMessageStructure(messageStructureWrapper));
-        }
+        uids.add(message.getUid());
+        (localUids.contains(message.getUid()) ? knownMessages : newMessages).add(message);
       }
-      return result;
+
+      List<Voicemail> newVoicemails =
+          fetchVoicemails(newMessages.toArray(new Message[newMessages.size()]));
+
+      ReadFlagsFetchedListener listener = new ReadFlagsFetchedListener();
+      // Without CONDSTORE, the flags of all known messages are fetched.
+      long changedSince =
+          state.highestModSeq != MailboxState.UNKNOWN
+              ? lastState.highestModSeq
+              : MailboxState.UNKNOWN;
+      folder.fetchFlags(
+          knownMessages.toArray(new Message[knownMessages.size()]), changedSince, listener);
+
+      VvmLog.i(
+          TAG,
+          "fetchChangedVoicemails: "
+              + newVoicemails.size()
+              + " new voicemails of "
+              + messages.length
+              + " in "
+              + (connection.getRoundTripCount() - startRoundTrips)
+              + " round trips");
+      return new MailboxChanges(state, uids, newVoicemails, listener.getReadUids());
     } catch (MessagingException e) {
       LogUtils.e(TAG, e, "Messaging Exception");
       return null;
@@ -232,20 +317,84 @@ public class ImapHelper implements Closeable {
   }
 
   /**
-   * Extract voicemail details from the message structure. Also fetch transcription if a
-   * transcription exists.
+   * Returns the state of the voicemail folder when it was last opened, or null if it wasn't
+   * opened.
    */
-  private Voicemail getVoicemailFromMessageStructure(
-      MessageStructureWrapper messageStructureWrapper) throws MessagingException {
-    Message messageDetails = messageStructureWrapper.messageStructure;
+  @Nullable
+  public MailboxState getMailboxState() {
+    return mailboxState;
+  }
+
+  /**
+   * Fetches the voicemails among the given messages, with one command per {@link
+   * #STRUCTURE_FETCH_BATCH_SIZE} messages for their structure and a few more for their
+   * transcriptions.
+   */
+  private List<Voicemail> fetchVoicemails(Message[] messages) throws MessagingException {
+    List<MessageStructureWrapper> messageStructures = new ArrayList<>();
+    for (int start = 0; start < messages.length; start += STRUCTURE_FETCH_BATCH_SIZE) {
+      messageStructures.addAll(
+          fetchMessageStructures(
+              Arrays.copyOfRange(
+                  messages, start, Math.min(messages.length, start + STRUCTURE_FETCH_BATCH_SIZE))));
+    }
+    Map<String, String> transcriptions = fetchTranscriptions(messageStructures);
+
+    List<Voicemail> result = new ArrayList<>(messageStructures.size());
+    for (MessageStructureWrapper messageStructureWrapper : messageStructures) {
+      result.add(
+          getVoicemailFromMessageStructure(
+              messageStructureWrapper,
+              transcriptions.get(messageStructureWrapper.messageStructure.getUid())));
+    }
+    return result;
+  }
+
+  /**
+   * Fetches the transcriptions of the given messages, with one command for all messages whose
+   * transcription is stored in the same body part.
+   *
+   * @return The transcriptions, by message UID
+   */
+  private Map<String, String> fetchTranscriptions(List<MessageStructureWrapper> messageStructures)
+      throws MessagingException {
+    // The part to fetch is given by the first message of a fetch, so only messages with the same
+    // part ID and encoding can share one.
+    Map<String, List<MessageStructureWrapper>> groups = new LinkedHashMap<>();
+    for (MessageStructureWrapper messageStructureWrapper : messageStructures) {
+      BodyPart part = messageStructureWrapper.transcriptionBodyPart;
+      if (part == null) {
+        continue;
+      }
+      String key =
+          Arrays.toString(part.getHeader(MimeHeader.HEADER_ANDROID_ATTACHMENT_STORE_DATA))
+              + Arrays.toString(part.getHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING));
+      List<MessageStructureWrapper> group = groups.get(key);
+      if (group == null) {
+        group = new ArrayList<>();
+        groups.put(key, group);
+      }
+      group.add(messageStructureWrapper);
+    }
 
     TranscriptionFetchedListener listener = new TranscriptionFetchedListener();
-    if (messageStructureWrapper.transcriptionBodyPart != null) {
+    for (List<MessageStructureWrapper> group : groups.values()) {
+      Message[] messages = new Message[group.size()];
+      for (int i = 0; i < messages.length; i++) {
+        messages[i] = group.get(i).messageStructure;
+      }
       FetchProfile fetchProfile = new FetchProfile();
-      fetchProfile.add(messageStructureWrapper.transcriptionBodyPart);
-
-      folder.fetch(new Message[] {messageDetails}, fetchProfile, listener);
+      fetchProfile.add(group.get(0).transcriptionBodyPart);
+      folder.fetch(messages, fetchProfile, listener);
     }
+    return listener.getVoicemailTranscriptions();
+  }
+
+  /** Extract voicemail details from the message structure. */
+  private Voicemail getVoicemailFromMessageStructure(
+      MessageStructureWrapper messageStructureWrapper, @Nullable String transcription)
+      throws MessagingException {
+    Message messageDetails = messageStructureWrapper.messageStructure;
 
     // Found an audio attachment, this is a valid voicemail.
     long time = messageDetails.getSentDate().getTime();
@@ -258,7 +407,7 @@ public class ImapHelper implements Closeable {
             .setSourcePackage(context.getPackageName())
             .setSourceData(messageDetails.getUid())
             .setIsRead(isRead)
-            .setTranscription(listener.getVoicemailTranscription());
+            .setTranscription(transcription);
     if (duration != null) {
       builder.setDuration(duration);
     }
@@ -295,7 +444,20 @@ public class ImapHelper implements Closeable {
    * @throws MessagingException if fetching the structure of the message fails
    */
   private MessageStructureWrapper fetchMessageStructure(Message message) throws MessagingException {
-    LogUtils.d(TAG, "Fetching message structure for " + message.getUid());
+    List<MessageStructureWrapper> messageStructures =
+        fetchMessageStructures(new Message[] {message});
+    return messageStructures.isEmpty() ? null : messageStructures.get(0);
+  }
+
+  /**
+   * Fetches the structure of the given messages with a single command.
+   *
+   * @return The structures of the messages which are voicemails
+   * @throws MessagingException if fetching the structure of the messages fails
+   */
+  private List<MessageStructureWrapper> fetchMessageStructures(Message[] messages)
+      throws MessagingException {
+    LogUtils.d(TAG, "Fetching message structure for " + messages.length + " messages");
 
     MessageStructureFetchedListener listener = new MessageStructureFetchedListener();
 
@@ -304,10 +466,10 @@ public class ImapHelper implements Closeable {
         Arrays.asList(
             FetchProfile.Item.FLAGS, FetchProfile.Item.ENVELOPE, FetchProfile.Item.STRUCTURE));
 
-    // The IMAP folder fetch method will call "messageRetrieved" on the listener when the
+    // The IMAP folder fetch method will call "messageRetrieved" on the listener when each
     // message is successfully retrieved.
-    folder.fetch(new Message[] {message}, fetchProfile, listener);
-    return listener.getMessageStructure();
+    folder.fetch(messages, fetchProfile, listener);
+    return listener.getMessageStructures();
   }
 
   public boolean fetchVoicemailPayload(VoicemailFetchedCallback callback, final String uid) {
@@ -321,33 +483,29 @@ public class ImapHelper implements Closeable {
       if (message == null) {
         return false;
       }
-      VoicemailPayload voicemailPayload = fetchVoicemailPayload(message);
-      callback.setVoicemailContent(voicemailPayload);
+      // Only the structure is fetched with the message, the audio is streamed to the provider.
+      MessageStructureWrapper messageStructureWrapper = fetchMessageStructure(message);
+      if (messageStructureWrapper == null) {
+        LogUtils.e(TAG, "No audio attachment found on this voicemail");
+        callback.setVoicemailContent(null);
+        return true;
+      }
+      BodyPart audioBodyPart = messageStructureWrapper.audioBodyPart;
+      callback.setVoicemailContent(
+          audioBodyPart.getMimeType().toLowerCase(),
+          outputStream -> {
+            long bytes = folder.fetchPart(message, audioBodyPart, outputStream);
+            LogUtils.d(TAG, String.format("Fetched %s bytes of data", bytes));
+          });
       return true;
     } catch (MessagingException e) {
+      LogUtils.e(TAG, e, "Messaging Exception");
     } finally {
       closeImapFolder();
     }
     return false;
   }
 
-  /**
-   * Fetches the body of the given message and returns the parsed voicemail payload.
-   *
-   * @throws MessagingException if fetching the body of the message fails
-   */
-  private VoicemailPayload fetchVoicemailPayload(Message message) throws MessagingException {
-    LogUtils.d(TAG, "Fetching message body for " + message.getUid());
-
-    MessageBodyFetchedListener listener = new MessageBodyFetchedListener();
-
-    FetchProfile fetchProfile = new FetchProfile();
-    fetchProfile.add(FetchProfile.Item.BODY);
-
-    folder.fetch(new Message[] {message}, fetchProfile, listener);
-    return listener.getVoicemailPayload();
-  }
-
   public boolean fetchTranscription(TranscriptionFetchedCallback callback, String uid) {
     try {
       folder = openImapFolder(ImapFolder.MODE_READ_WRITE);
@@ -515,21 +673,52 @@ public class ImapHelper implements Closeable {
   public static class MessageStructureWrapper {
 
     public Message messageStructure;
+    public BodyPart audioBodyPart;
     public BodyPart transcriptionBodyPart;
 
     public MessageStructureWrapper() {}
   }
 
+  /** What changed in the voicemail folder since the last sync. */
+  public static class MailboxChanges {
+
+    /** The state of the folder the changes were fetched at. */
+    public final MailboxState state;
+    /** The UIDs of all messages in the folder, or null if they weren't fetched. */
+    @Nullable public final Set<String> uids;
+    /** The voicemails which aren't stored locally, or null if a full sync is needed. */
+    @Nullable public final List<Voicemail> newVoicemails;
+    /** The UIDs of the known messages which are read, or null if a full sync is needed. */
+    @Nullable public final Set<String> readUids;
+
+    MailboxChanges(
+        MailboxState state,
+        @Nullable Set<String> uids,
+        @Nullable List<Voicemail> newVoicemails,
+        @Nullable Set<String> readUids) {
+      this.state = state;
+      this.uids = uids;
+      this.newVoicemails = newVoicemails;
+      this.readUids = readUids;
+    }
+
+    /** Returns whether the UIDs changed meaning, so that the folder has to be synced in full. */
+    public boolean isFullSyncRequired() {
+      return newVoicemails == null;
+    }
+  }
+
   /** Listener for the message structure being fetched. */
   private final class MessageStructureFetchedListener
       implements ImapFolder.MessageRetrievalListener {
 
-    private MessageStructureWrapper messageStructure;
+    private final List<MessageStructureWrapper> messageStructures = new ArrayList<>();
 
     public MessageStructureFetchedListener() {}
 
-    public MessageStructureWrapper getMessageStructure() {
-      return messageStructure;
+    /** Returns the structures of the retrieved messages which are voicemails. */
+    public List<MessageStructureWrapper> getMessageStructures() {
+      return messageStructures;
     }
 
     @Override
@@ -537,11 +726,12 @@ public class ImapHelper implements Closeable {
       LogUtils.d(TAG, "Fetched message structure for " + message.getUid());
       LogUtils.d(TAG, "Message retrieved: " + message);
       try {
-        messageStructure = getMessageOrNull(message);
+        MessageStructureWrapper messageStructure = getMessageOrNull(message);
         if (messageStructure == null) {
           LogUtils.d(TAG, "This voicemail does not have an attachment...");
           return;
         }
+        messageStructures.add(messageStructure);
       } catch (MessagingException e) {
         LogUtils.e(TAG, e, "Messaging Exception");
         closeImapFolder();
@@ -571,6 +761,7 @@ public class ImapHelper implements Closeable {
 
         if (bodyPartMimeType.startsWith("audio/")) {
           messageStructureWrapper.messageStructure = message;
+          messageStructureWrapper.audioBodyPart = bodyPart;
         } else if (!config.ignoreTranscription() && bodyPartMimeType.startsWith("text/")) {
           messageStructureWrapper.transcriptionBodyPart = bodyPart;
         } else {
@@ -587,63 +778,46 @@ public class ImapHelper implements Closeable {
     }
   }
 
-  /** Listener for the message body being fetched. */
-  private final class MessageBodyFetchedListener implements ImapFolder.MessageRetrievalListener {
+  /** Listener for the flags of messages being fetched, which collects the read ones. */
+  private static final class ReadFlagsFetchedListener
+      implements ImapFolder.MessageRetrievalListener {
 
-    private VoicemailPayload voicemailPayload;
+    private final Set<String> readUids = new ArraySet<>();
 
-    /** Returns the fetch voicemail payload. */
-    public VoicemailPayload getVoicemailPayload() {
-      return voicemailPayload;
+    public Set<String> getReadUids() {
+      return readUids;
     }
 
     @Override
     public void messageRetrieved(Message message) {
-      LogUtils.d(TAG, "Fetched message body for " + message.getUid());
-      LogUtils.d(TAG, "Message retrieved: " + message);
-      try {
-        voicemailPayload = getVoicemailPayloadFromMessage(message);
-      } catch (MessagingException e) {
-        LogUtils.e(TAG, "Messaging Exception:", e);
-      } catch (IOException e) {
-        LogUtils.e(TAG, "IO Exception:", e);
+      if (message.isSet(Flag.SEEN)) {
+        readUids.add(message.getUid());
       }
     }
-
-    private VoicemailPayload getVoicemailPayloadFromMessage(Message message)
-        throws MessagingException, IOException {
-      Multipart multipart = (Multipart) message.getBody();
-      List<String> mimeTypes = new ArrayList<>();
-      for (int i = 0; i < multipart.getCount(); ++i) {
-        BodyPart bodyPart = multipart.getBodyPart(i);
-        String bodyPartMimeType = bodyPart.getMimeType().toLowerCase();
-        mimeTypes.add(bodyPartMimeType);
-        if (bodyPartMimeType.startsWith("audio/")) {
-          byte[] bytes = getDataFromBody(bodyPart.getBody());
-          LogUtils.d(TAG, String.format("Fetched %s bytes of data", bytes.length));
-          return new VoicemailPayload(bodyPartMimeType, bytes);
-        }
-      }
-      LogUtils.e(TAG, "No audio attachment found on this voicemail, mimeTypes:" + mimeTypes);
-      return null;
-    }
   }
 
   /** Listener for the transcription being fetched. */
   private final class TranscriptionFetchedListener implements ImapFolder.MessageRetrievalListener {
 
     private String voicemailTranscription;
+    private final Map<String, String> voicemailTranscriptions = new LinkedHashMap<>();
 
-    /** Returns the fetched voicemail transcription. */
+    /** Returns the most recently fetched voicemail transcription. */
     public String getVoicemailTranscription() {
       return voicemailTranscription;
     }
 
+    /** Returns all fetched voicemail transcriptions, by message UID. */
+    public Map<String, String> getVoicemailTranscriptions() {
+      return voicemailTranscriptions;
+    }
+
     @Override
     public void messageRetrieved(Message message) {
       LogUtils.d(TAG, "Fetched transcription for " + message.getUid());
       try {
         voicemailTranscription = new String(getDataFromBody(message.getBody()));
+        voicemailTranscriptions.put(message.getUid(), voicemailTranscription);
       } catch (MessagingException e) {
         LogUtils.e(TAG, "Messaging Exception:", e);
       } catch (IOException e) {
@@ -659,6 +833,12 @@ public class ImapHelper implements Closeable {
       }
       ImapFolder folder = new ImapFolder(imapStore, ImapConstants.INBOX);
       folder.open(modeReadWrite);
+      mailboxState =
+          new MailboxState(
+              folder.getUidValidity(),
+              folder.getUidNext(),
+              folder.getHighestModSeq(),
+              folder.getMessageCount());
       return folder;
     } catch (MessagingException e) {
       LogUtils.e(TAG, e, "Messaging Exception");
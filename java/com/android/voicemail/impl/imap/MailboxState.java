@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.voicemail.impl.imap;
+
+import android.support.annotation.Nullable;
+import com.android.voicemail.impl.VisualVoicemailPreferences;
+import com.android.voicemail.impl.mail.store.ImapFolder;
+
+/**
+ * The UIDVALIDITY, UIDNEXT, HIGHESTMODSEQ and message count of the voicemail folder, as reported
+ * when it was opened. The state at the last successful sync is stored per account, so that the
+ * next sync only has to fetch what changed since.
+ */
+public class MailboxState {
+
+  public static final long UNKNOWN = ImapFolder.UNKNOWN;
+
+  private static final String PREF_UID_VALIDITY = "mailbox_uid_validity";
+  private static final String PREF_UID_NEXT = "mailbox_uid_next";
+  private static final String PREF_HIGHEST_MOD_SEQ = "mailbox_highest_mod_seq";
+  private static final String PREF_MESSAGE_COUNT = "mailbox_message_count";
+
+  public final long uidValidity;
+  public final long uidNext;
+  public final long highestModSeq;
+  public final int messageCount;
+
+  public MailboxState(long uidValidity, long uidNext, long highestModSeq, int messageCount) {
+    this.uidValidity = uidValidity;
+    this.uidNext = uidNext;
+    this.highestModSeq = highestModSeq;
+    this.messageCount = messageCount;
+  }
+
+  /** Returns the state stored at the last successful sync, or null if there is none. */
+  @Nullable
+  public static MailboxState load(VisualVoicemailPreferences prefs) {
+    long uidValidity = prefs.getLong(PREF_UID_VALIDITY, UNKNOWN);
+    if (uidValidity == UNKNOWN) {
+      return null;
+    }
+    return new MailboxState(
+        uidValidity,
+        prefs.getLong(PREF_UID_NEXT, UNKNOWN),
+        prefs.getLong(PREF_HIGHEST_MOD_SEQ, UNKNOWN),
+        prefs.getInt(PREF_MESSAGE_COUNT, -1));
+  }
+
+  /**
+   * Stores this state, or forgets the stored one if UIDs can't be relied on, so that the next sync
+   * is a full one.
+   */
+  public void save(VisualVoicemailPreferences prefs) {
+    prefs
+        .edit()
+        .putLong(PREF_UID_VALIDITY, uidValidity)
+        .putLong(PREF_UID_NEXT, uidNext)
+        .putLong(PREF_HIGHEST_MOD_SEQ, highestModSeq)
+        .putInt(PREF_MESSAGE_COUNT, messageCount)
+        .apply();
+  }
+
+  /** Forgets the stored state, so that the next sync is a full one. */
+  public static void clear(VisualVoicemailPreferences prefs) {
+    prefs.edit().putLong(PREF_UID_VALIDITY, UNKNOWN).apply();
+  }
+
+  /**
+   * Returns whether the UIDs of {@code lastState} still refer to the same messages. If not, the
+   * mailbox has to be synced in full.
+   */
+  public boolean hasSameUids(MailboxState lastState) {
+    return uidValidity != UNKNOWN && uidValidity == lastState.uidValidity;
+  }
+
+  /**
+   * Returns whether nothing was added to the mailbox, and no flags changed or messages were
+   * expunged, since {@code lastState}. This can only be told with CONDSTORE. Expunges don't
+   * necessarily change HIGHESTMODSEQ, but they do change the message count unless a message was
+   * added too, which changes UIDNEXT.
+   */
+  public boolean isUnchangedSince(MailboxState lastState) {
+    return hasSameUids(lastState)
+        && uidNext != UNKNOWN
+        && uidNext == lastState.uidNext
+        && highestModSeq != UNKNOWN
+        && highestModSeq == lastState.highestModSeq
+        && messageCount == lastState.messageCount;
+  }
+
+  @Override
+  public String toString() {
+    return "MailboxState{uidValidity="
+        + uidValidity
+        + ", uidNext="
+        + uidNext
+        + ", highestModSeq="
+        + highestModSeq
+        + ", messageCount="
+        + messageCount
+        + "}";
+  }
+}
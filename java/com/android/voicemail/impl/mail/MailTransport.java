@@ -32,7 +32,9 @@ import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.HttpsURLConnection;
@@ -270,6 +272,19 @@ public class MailTransport {
         && !socket.isClosed());
   }
 
+  /** Sets how long reads block before they time out, see {@link Socket#setSoTimeout(int)}. */
+  public void setSoTimeout(int timeoutMillis) throws SocketException {
+    socket.setSoTimeout(timeoutMillis);
+  }
+
+  /**
+   * Returns a key which is equal for the transports to the same server, over the same network and
+   * with the same security.
+   */
+  public Object getServerKey() {
+    return Arrays.asList(network, host, port, flags);
+  }
+
   /** Close the connection. MUST NOT return any exceptions - must be "best effort" and safe. */
   public void close() {
     try {
@@ -15,6 +15,7 @@
  */
 package com.android.voicemail.impl.mail.store;
 
+import android.support.annotation.Nullable;
 import android.util.ArraySet;
 import android.util.Base64;
 import com.android.voicemail.impl.OmtpEvents;
@@ -26,7 +27,9 @@ import com.android.voicemail.impl.mail.MessagingException;
 import com.android.voicemail.impl.mail.store.ImapStore.ImapException;
 import com.android.voicemail.impl.mail.store.imap.DigestMd5Utils;
 import com.android.voicemail.impl.mail.store.imap.ImapConstants;
+import com.android.voicemail.impl.mail.store.imap.ImapList;
 import com.android.voicemail.impl.mail.store.imap.ImapResponse;
+import com.android.voicemail.impl.mail.store.imap.ImapResponseCursor;
 import com.android.voicemail.impl.mail.store.imap.ImapResponseParser;
 import com.android.voicemail.impl.mail.store.imap.ImapUtility;
 import com.android.voicemail.impl.mail.utils.LogUtils;
@@ -57,6 +60,15 @@ public class ImapConnection {
    */
   private final AtomicInteger nextCommandTag = new AtomicInteger(0);
 
+  /** Number of commands and continuation responses sent, i.e. round trips to the server. */
+  private int roundTripCount;
+
+  /**
+   * Tag of the last command sent, until its tagged response is read. Responses may be left unread
+   * on the connection meanwhile, so it can't be used for another command.
+   */
+  @Nullable private String pendingTag;
+
   ImapConnection(ImapStore store) {
     setStore(store);
   }
@@ -163,6 +175,7 @@ public class ImapConnection {
     destroyResponses();
     parser = null;
     imapStore = null;
+    pendingTag = null;
   }
 
   /** Attempts to convert the connection into secure connection. */
@@ -184,7 +197,7 @@ public class ImapConnection {
       if (capabilities.contains(ImapConstants.CAPABILITY_AUTH_DIGEST_MD5)) {
         doDigestMd5Auth();
       } else {
-        executeSimpleCommand(getLoginPhrase(), true);
+        updateCapabilities(executeSimpleCommand(getLoginPhrase(), true));
       }
     } catch (ImapException ie) {
       LogUtils.d(TAG, "ImapException", ie);
@@ -268,7 +281,7 @@ public class ImapConnection {
     //
     //  C: (empty)
     //  S: a OK User logged in
-    executeContinuationResponse("", false);
+    updateCapabilities(executeContinuationResponse("", false));
   }
 
   private static String decodeBase64(String string) {
@@ -282,30 +295,69 @@ public class ImapConnection {
   private void queryCapability() throws IOException, MessagingException {
     List<ImapResponse> responses = executeSimpleCommand(ImapConstants.CAPABILITY);
     capabilities.clear();
-    Set<String> disabledCapabilities =
-        imapStore.getImapHelper().getConfig().getDisabledCapabilities();
     for (ImapResponse response : responses) {
       if (response.isTagged()) {
         continue;
       }
-      for (int i = 0; i < response.size(); i++) {
-        String capability = response.getStringOrEmpty(i).getString();
-        if (disabledCapabilities != null) {
-          if (!disabledCapabilities.contains(capability)) {
-            capabilities.add(capability);
-          }
-        } else {
-          capabilities.add(capability);
+      addCapabilities(response, 0);
+    }
+
+    LogUtils.d(TAG, "Capabilities: " + capabilities.toString());
+  }
+
+  /**
+   * Many servers advertise more capabilities, e.g. CONDSTORE, once logged in. Those which send
+   * them with the login response, either as its response code, e.g. "1 OK [CAPABILITY IMAP4rev1
+   * CONDSTORE]", or as an untagged "* CAPABILITY" response before it, are picked up without another
+   * CAPABILITY command.
+   */
+  private void updateCapabilities(List<ImapResponse> loginResponses) {
+    for (ImapResponse response : loginResponses) {
+      ImapList list;
+      if (response.isTagged()) {
+        if (!response.isOk() || !response.getResponseCodeOrEmpty().is(ImapConstants.CAPABILITY)) {
+          continue;
         }
+        list = response.getListOrEmpty(1);
+      } else if (response.is(0, ImapConstants.CAPABILITY)) {
+        list = response;
+      } else {
+        continue;
       }
+      capabilities.clear();
+      // Skip the CAPABILITY keyword itself.
+      addCapabilities(list, 1);
+      LogUtils.d(TAG, "Capabilities after login: " + capabilities.toString());
     }
+  }
 
-    LogUtils.d(TAG, "Capabilities: " + capabilities.toString());
+  private void addCapabilities(ImapList list, int start) {
+    Set<String> disabledCapabilities =
+        imapStore.getImapHelper().getConfig().getDisabledCapabilities();
+    for (int i = start; i < list.size(); i++) {
+      String capability = list.getStringOrEmpty(i).getString();
+      if (disabledCapabilities != null) {
+        if (!disabledCapabilities.contains(capability)) {
+          capabilities.add(capability);
+        }
+      } else {
+        capabilities.add(capability);
+      }
+    }
   }
 
-  private boolean hasCapability(String capability) {
+  boolean hasCapability(String capability) {
     return capabilities.contains(capability);
   }
+
+  /**
+   * Returns whether the server supports CONDSTORE, so that the changes to a mailbox can be fetched
+   * incrementally. Opens the connection if needed, as capabilities are only known once open.
+   */
+  public boolean isCondstoreSupported() throws IOException, MessagingException {
+    open();
+    return hasCapability(ImapConstants.CAPABILITY_CONDSTORE);
+  }
   /**
    * Create an {@link ImapResponseParser} from {@code mTransport.getInputStream()} and set it to
    * {@link #parser}.
@@ -318,14 +370,89 @@ public class ImapConnection {
     parser = new ImapResponseParser(transport.getInputStream());
   }
 
+  /**
+   * Sets the handler for the literals of the responses read from now on, or stops handling them if
+   * null. See {@link ImapResponseParser#setLiteralHandler}.
+   */
+  void setLiteralHandler(@Nullable ImapResponseParser.LiteralHandler literalHandler) {
+    if (parser != null) {
+      parser.setLiteralHandler(literalHandler);
+    }
+  }
+
   public void destroyResponses() {
     if (parser != null) {
       parser.destroyResponses();
     }
   }
 
+  /**
+   * Returns the number of round trips to the server so far, including the ones to open the
+   * connection.
+   */
+  public int getRoundTripCount() {
+    return roundTripCount;
+  }
+
+  /** Returns whether the connection is open, so that it can be used without logging in again. */
+  boolean isTransportOpen() {
+    return transport != null && transport.isOpen();
+  }
+
+  /**
+   * Returns whether all the responses to the commands sent were read, i.e. the tagged response to
+   * the last one. Otherwise, e.g. if reading them failed, the next command would read them instead
+   * of its own.
+   */
+  boolean isBetweenCommands() {
+    return pendingTag == null;
+  }
+
+  /**
+   * Starts IDLE (RFC 2177) on the selected mailbox, and waits for the server to accept it. Until
+   * {@link #stopIdle()} is called, the server sends untagged responses for changes to the mailbox,
+   * which are read with {@link #readResponse()} until the tagged response to IDLE.
+   */
+  void startIdle() throws IOException, MessagingException {
+    sendCommand(ImapConstants.IDLE, false);
+    ImapResponse response;
+    do {
+      response = readResponse();
+      if (response.isTagged()) {
+        throw new MessagingException(
+            "IDLE rejected: " + response.getStatusResponseTextOrEmpty().getString());
+      }
+    } while (!response.isContinuationRequest());
+  }
+
+  /** Ends IDLE. May be called from another thread than the one reading the responses. */
+  void stopIdle() throws IOException {
+    transport.writeLine(ImapConstants.DONE, null);
+  }
+
+  /** Sets how long reading a response may block, or restores the default if 0. */
+  void setReadTimeout(int timeoutMillis) throws IOException {
+    transport.setSoTimeout(timeoutMillis > 0 ? timeoutMillis : MailTransport.SOCKET_READ_TIMEOUT);
+  }
+
   public ImapResponse readResponse() throws IOException, MessagingException {
-    return parser.readResponse(false);
+    ImapResponse response = parser.readResponse(false);
+    if (response.hasTag(pendingTag)) {
+      pendingTag = null;
+    }
+    return response;
+  }
+
+  /**
+   * Reads the next response as a cursor, which is only valid until the next response is read. See
+   * {@link ImapResponseParser#readResponseCursor}.
+   */
+  public ImapResponseCursor readResponseCursor() throws IOException, MessagingException {
+    ImapResponseCursor response = parser.readResponseCursor(false);
+    if (response.hasTag(pendingTag)) {
+      pendingTag = null;
+    }
+    return response;
   }
 
   public List<ImapResponse> executeSimpleCommand(String command)
@@ -360,19 +487,23 @@ public class ImapConnection {
       throw new IOException("Null transport");
     }
     String tag = Integer.toString(nextCommandTag.incrementAndGet());
+    pendingTag = tag;
     String commandToSend = tag + " " + command;
     transport.writeLine(commandToSend, (sensitive ? IMAP_REDACTED_LOG : command));
+    roundTripCount++;
     return tag;
   }
 
   List<ImapResponse> executeContinuationResponse(String response, boolean sensitive)
       throws IOException, MessagingException {
     transport.writeLine(response, (sensitive ? IMAP_REDACTED_LOG : response));
+    roundTripCount++;
     return getCommandResponses();
   }
 
   /**
-   * Read and return all of the responses from the most recent command sent to the server
+   * Read and return all of the responses from the most recent command sent to the server, up to its
+   * tagged response or a continuation request.
    *
    * @return a list of ImapResponses
    * @throws IOException
@@ -384,7 +515,14 @@ public class ImapConnection {
     do {
       response = parser.readResponse(false);
       responses.add(response);
+      if (response.isTagged() && !response.hasTag(pendingTag)) {
+        destroyResponses();
+        throw new MessagingException("Tagged response to another command than " + pendingTag);
+      }
     } while (!(response.isTagged() || response.isContinuationRequest()));
+    if (response.isTagged()) {
+      pendingTag = null;
+    }
 
     if (!(response.isOk() || response.isContinuationRequest())) {
       final String toString = response.toString();
@@ -41,6 +41,7 @@ import com.android.voicemail.impl.mail.store.imap.ImapConstants;
 import com.android.voicemail.impl.mail.store.imap.ImapElement;
 import com.android.voicemail.impl.mail.store.imap.ImapList;
 import com.android.voicemail.impl.mail.store.imap.ImapResponse;
+import com.android.voicemail.impl.mail.store.imap.ImapResponseCursor;
 import com.android.voicemail.impl.mail.store.imap.ImapString;
 import com.android.voicemail.impl.mail.utils.Utility;
 import java.io.IOException;
@@ -65,12 +66,18 @@ public class ImapFolder {
   private ImapConnection connection;
   private String mode;
   private boolean exists;
+  private long uidValidity = UNKNOWN;
+  private long uidNext = UNKNOWN;
+  private long highestModSeq = UNKNOWN;
   /** A set of hashes that can be used to track dirtiness */
   Object[] hash;
 
   public static final String MODE_READ_ONLY = "mode_read_only";
   public static final String MODE_READ_WRITE = "mode_read_write";
 
+  /** Value of {@link #getUidValidity()} etc. when the server didn't report it. */
+  public static final long UNKNOWN = -1;
+
   public ImapFolder(ImapStore store, String name) {
     this.store = store;
     this.name = name;
@@ -149,6 +156,24 @@ public class ImapFolder {
     return messageCount;
   }
 
+  /** Returns the UIDVALIDITY reported when the folder was opened, or {@link #UNKNOWN}. */
+  public long getUidValidity() {
+    return uidValidity;
+  }
+
+  /** Returns the UIDNEXT reported when the folder was opened, or {@link #UNKNOWN}. */
+  public long getUidNext() {
+    return uidNext;
+  }
+
+  /**
+   * Returns the HIGHESTMODSEQ reported when the folder was opened, or {@link #UNKNOWN} if the
+   * server or the mailbox doesn't support CONDSTORE.
+   */
+  public long getHighestModSeq() {
+    return highestModSeq;
+  }
+
   String[] getSearchUids(List<ImapResponse> responses) {
     // S: * SEARCH 2 3 6
     final ArrayList<String> uids = new ArrayList<String>();
@@ -240,6 +265,111 @@ public class ImapFolder {
     }
   }
 
+  /**
+   * Fetches the flags of the given messages. If {@code changedSinceModSeq} is not {@link #UNKNOWN},
+   * only the messages whose flags changed since that mod-sequence are retrieved (RFC 7162).
+   *
+   * <p>There is a response for each message of the folder on a full sync, so they are read with a
+   * {@link ImapResponseCursor} rather than parsed into {@link ImapResponse}s.
+   */
+  public void fetchFlags(
+      Message[] messages, long changedSinceModSeq, MessageRetrievalListener listener)
+      throws MessagingException {
+    if (messages.length == 0) {
+      return;
+    }
+    checkOpen();
+    ArrayMap<String, Message> messageMap = new ArrayMap<String, Message>();
+    for (Message m : messages) {
+      messageMap.put(m.getUid(), m);
+    }
+
+    try {
+      connection.sendCommand(
+          String.format(
+                  Locale.US,
+                  ImapConstants.UID_FETCH + " %s (%s %s)",
+                  ImapStore.joinMessageUids(messages),
+                  ImapConstants.UID,
+                  ImapConstants.FLAGS)
+              + (changedSinceModSeq == UNKNOWN
+                  ? ""
+                  : " (" + ImapConstants.CHANGEDSINCE + " " + changedSinceModSeq + ")"),
+          false);
+      ImapResponseCursor response;
+      do {
+        response = connection.readResponseCursor();
+        ImapMessage message = readFetchedFlags(response, messageMap);
+        if (message != null && listener != null) {
+          listener.messageRetrieved(message);
+        }
+      } while (!response.isTagged());
+    } catch (IOException ioe) {
+      store.getImapHelper().handleEvent(OmtpEvents.DATA_GENERIC_IMAP_IOE);
+      throw ioExceptionHandler(connection, ioe);
+    } catch (RuntimeException e) { // Probably a parser error.
+      VvmLog.w(TAG, "Exception detected: " + e.getMessage());
+      throw e;
+    }
+  }
+
+  /**
+   * Sets the flags of the message a response like "* 12 FETCH (UID 34 FLAGS (\Seen) MODSEQ (56))"
+   * is about.
+   *
+   * @return the message, or null if the response isn't about one of {@code messageMap}
+   */
+  @Nullable
+  private static ImapMessage readFetchedFlags(
+      ImapResponseCursor response, ArrayMap<String, Message> messageMap)
+      throws MessagingException {
+    if (response.isTagged()
+        || response.next() != ImapResponseCursor.TYPE_ATOM // Message sequence number
+        || response.next() != ImapResponseCursor.TYPE_ATOM
+        || !response.is(ImapConstants.FETCH)
+        || response.next() != ImapResponseCursor.TYPE_LIST_START) {
+      return null; // Ignore
+    }
+    String uid = null;
+    boolean deleted = false;
+    boolean answered = false;
+    boolean seen = false;
+    boolean flagged = false;
+    while (response.next() == ImapResponseCursor.TYPE_ATOM) {
+      if (response.is(ImapConstants.UID)) {
+        response.next();
+        uid = response.getString();
+      } else if (response.is(ImapConstants.FLAGS)) {
+        if (response.next() != ImapResponseCursor.TYPE_LIST_START) {
+          continue;
+        }
+        while (response.next() == ImapResponseCursor.TYPE_ATOM) {
+          if (response.is(ImapConstants.FLAG_DELETED)) {
+            deleted = true;
+          } else if (response.is(ImapConstants.FLAG_ANSWERED)) {
+            answered = true;
+          } else if (response.is(ImapConstants.FLAG_SEEN)) {
+            seen = true;
+          } else if (response.is(ImapConstants.FLAG_FLAGGED)) {
+            flagged = true;
+          }
+        }
+      } else if (response.next() == ImapResponseCursor.TYPE_LIST_START) {
+        response.skipList(); // e.g. MODSEQ (56)
+      }
+    }
+
+    ImapMessage message = uid == null ? null : (ImapMessage) messageMap.get(uid);
+    if (message == null) {
+      return null;
+    }
+    message.setFlagInternal(Flag.DELETED, deleted);
+    message.setFlagInternal(Flag.ANSWERED, answered);
+    message.setFlagInternal(Flag.SEEN, seen);
+    message.setFlagInternal(Flag.FLAGGED, flagged);
+    return message;
+  }
+
   public void fetchInternal(Message[] messages, FetchProfile fp, MessageRetrievalListener listener)
       throws MessagingException {
     if (messages.length == 0) {
@@ -377,16 +507,7 @@ public class ImapFolder {
           }
           if (fetchPart != null) {
             InputStream bodyStream = fetchList.getKeyedStringOrEmpty("BODY[", true).getAsStream();
-            String[] encodings = fetchPart.getHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING);
-
-            String contentTransferEncoding = null;
-            if (encodings != null && encodings.length > 0) {
-              contentTransferEncoding = encodings[0];
-            } else {
-              // According to http://tools.ietf.org/html/rfc2045#section-6.1
-              // "7bit" is the default.
-              contentTransferEncoding = "7bit";
-            }
+            String contentTransferEncoding = getContentTransferEncoding(fetchPart);
 
             try {
               // TODO Don't create 2 temp files.
@@ -422,6 +543,97 @@ public class ImapFolder {
     }
   }
 
+  /**
+   * Fetches the content of {@code part}, removes its content transfer encoding and writes it to
+   * {@code out} as it is read from the socket. Unlike fetching the part with {@link #fetch}, the
+   * content is never held in memory or in a temp file, only {@link #COPY_BUFFER_SIZE} bytes of it
+   * at a time.
+   *
+   * @param part a part of the structure of {@code message}, see {@link FetchProfile.Item#STRUCTURE}
+   * @return the number of bytes written to {@code out}
+   * @throws MessagingException if the part couldn't be fetched, decoded or written to {@code out}
+   */
+  public long fetchPart(Message message, Part part, OutputStream out) throws MessagingException {
+    checkOpen();
+    final String[] partIds = part.getHeader(MimeHeader.HEADER_ANDROID_ATTACHMENT_STORE_DATA);
+    if (partIds == null) {
+      throw new MessagingException("Part of message " + message.getUid() + " has no ID");
+    }
+    final String contentTransferEncoding = getContentTransferEncoding(part);
+    final long[] written = {-1};
+    final IOException[] writeError = {null};
+
+    // Only the part is fetched, so its content is the only literal of the FETCH response.
+    connection.setLiteralHandler(
+        in -> {
+          if (written[0] >= 0) {
+            return null;
+          }
+          written[0] = 0;
+          InputStream decoded =
+              MimeUtility.getInputStreamForContentTransferEncoding(in, contentTransferEncoding);
+          try {
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            int n;
+            while (-1 != (n = decoded.read(buffer))) {
+              out.write(buffer, 0, n);
+              written[0] += n;
+            }
+          } catch (IOException e) {
+            // The content is corrupted or out failed. Had the socket failed instead, skipping the
+            // rest of the literal fails too and the connection is closed.
+            writeError[0] = e;
+          }
+          return ImapString.EMPTY;
+        });
+    try {
+      connection.sendCommand(
+          String.format(
+              Locale.US,
+              ImapConstants.UID_FETCH + " %s (%s %s[%s])",
+              message.getUid(),
+              ImapConstants.UID,
+              ImapConstants.FETCH_FIELD_BODY_PEEK_BARE,
+              partIds[0]),
+          false);
+      ImapResponse response;
+      do {
+        response = connection.readResponse();
+        if (response.isTagged() && !response.isOk()) {
+          throw new MessagingException(
+              "Fetching part failed: " + response.getStatusResponseTextOrEmpty().getString());
+        }
+        destroyResponses();
+      } while (!response.isTagged());
+    } catch (IOException ioe) {
+      store.getImapHelper().handleEvent(OmtpEvents.DATA_GENERIC_IMAP_IOE);
+      throw ioExceptionHandler(connection, ioe);
+    } finally {
+      if (connection != null) {
+        connection.setLiteralHandler(null);
+      }
+      destroyResponses();
+    }
+    if (writeError[0] != null) {
+      throw new MessagingException(
+          "Failed to write part of message " + message.getUid(), writeError[0]);
+    }
+    if (written[0] < 0) {
+      throw new MessagingException("Part of message " + message.getUid() + " not returned");
+    }
+    return written[0];
+  }
+
+  private static String getContentTransferEncoding(Part part) throws MessagingException {
+    String[] encodings = part.getHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING);
+    if (encodings != null && encodings.length > 0) {
+      return encodings[0];
+    }
+    // According to http://tools.ietf.org/html/rfc2045#section-6.1
+    // "7bit" is the default.
+    return "7bit";
+  }
+
   /**
    * Removes any content transfer encoding from the stream and returns a Body. This code is
    * taken/condensed from MimeUtility.decodeBody
@@ -713,13 +925,18 @@ public class ImapFolder {
    * selected.
    */
   private void doSelect() throws IOException, MessagingException {
-    final List<ImapResponse> responses =
-        connection.executeSimpleCommand(
-            String.format(Locale.US, ImapConstants.SELECT + " \"%s\"", name));
+    // Asking for CONDSTORE makes the server report HIGHESTMODSEQ, see RFC 7162.
+    final String command =
+        String.format(Locale.US, ImapConstants.SELECT + " \"%s\"", name)
+            + (connection.isCondstoreSupported() ? " (" + ImapConstants.CONDSTORE + ")" : "");
+    final List<ImapResponse> responses = connection.executeSimpleCommand(command);
 
     // Assume the folder is opened read-write; unless we are notified otherwise
     mode = MODE_READ_WRITE;
     int messageCount = -1;
+    uidValidity = UNKNOWN;
+    uidNext = UNKNOWN;
+    highestModSeq = UNKNOWN;
     for (ImapResponse response : responses) {
       if (response.isDataResponse(1, ImapConstants.EXISTS)) {
         messageCount = response.getStringOrEmpty(0).getNumberOrZero();
@@ -729,6 +946,12 @@ public class ImapFolder {
           mode = MODE_READ_ONLY;
         } else if (responseCode.is(ImapConstants.READ_WRITE)) {
           mode = MODE_READ_WRITE;
+        } else if (responseCode.is(ImapConstants.UIDVALIDITY)) {
+          uidValidity = getResponseCodeValue(response);
+        } else if (responseCode.is(ImapConstants.UIDNEXT)) {
+          uidNext = getResponseCodeValue(response);
+        } else if (responseCode.is(ImapConstants.HIGHESTMODSEQ)) {
+          highestModSeq = getResponseCodeValue(response);
         }
       } else if (response.isTagged()) { // Not OK
         store.getImapHelper().handleEvent(OmtpEvents.DATA_MAILBOX_OPEN_FAILED);
@@ -743,6 +966,18 @@ public class ImapFolder {
     exists = true;
   }
 
+  /**
+   * Returns the number in a response code like "[UIDNEXT 57576]", or {@link #UNKNOWN}. These are
+   * unsigned 32 or 63 bit numbers, so they don't fit {@link ImapString#getNumberOrZero()}.
+   */
+  private static long getResponseCodeValue(ImapResponse response) {
+    try {
+      return Long.parseLong(response.getListOrEmpty(1).getStringOrEmpty(1).getString());
+    } catch (NumberFormatException e) {
+      return UNKNOWN;
+    }
+  }
+
   public class Quota {
 
     public final int occupied;
@@ -0,0 +1,357 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.voicemail.impl.mail.store;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+import android.telecom.PhoneAccountHandle;
+import android.util.ArrayMap;
+import com.android.voicemail.impl.OmtpVvmCarrierConfigHelper;
+import com.android.voicemail.impl.VvmLog;
+import com.android.voicemail.impl.mail.MessagingException;
+import com.android.voicemail.impl.mail.store.imap.ImapConstants;
+import com.android.voicemail.impl.mail.store.imap.ImapResponse;
+import com.android.voicemail.impl.sync.SyncTask;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps the IMAP session of each account open for a while after a task is done with it, so that
+ * the tasks which follow, e.g. for a burst of voicemail SMSs, reuse it rather than each connecting,
+ * negotiating TLS and logging in again.
+ *
+ * <p>A session is used by one {@link ImapStore} at a time: {@link #acquire} waits until the store
+ * using it calls {@link #release}, so the commands of concurrent tasks are serialized. A session
+ * which isn't used for {@link OmtpVvmCarrierConfigHelper#getImapSessionIdleMillis()} is logged out.
+ * Meanwhile, if {@link OmtpVvmCarrierConfigHelper#isImapIdleEnabled()} and the server supports it,
+ * the session is put in IDLE, and a sync is started as soon as the server reports a new message.
+ */
+public final class ImapSessionManager {
+
+  private static final String TAG = "ImapSessionManager";
+
+  /** How much longer than the idle window an IDLE read may block, in case DONE got lost. */
+  private static final int IDLE_READ_TIMEOUT_MARGIN_MILLIS = 30_000;
+
+  private static final long KEEP_ALIVE_SECONDS = 10;
+
+  /**
+   * How long {@link #acquire} waits for the store using the session, e.g. one stuck on a slow
+   * download, before connecting on its own instead.
+   */
+  private static final long ACQUIRE_TIMEOUT_SECONDS = 30;
+
+  private static ImapSessionManager instance;
+
+  private final Map<Object, Session> sessions = new ArrayMap<>();
+  private final ScheduledThreadPoolExecutor expiryExecutor = new ScheduledThreadPoolExecutor(1);
+  /** Runs {@link #idle}, which blocks reading from the server for the whole idle window. */
+  private final ExecutorService idleExecutor =
+      Executors.newCachedThreadPool(runnable -> new Thread(runnable, "VvmImapIdle"));
+
+  private int sessionsCreated;
+  private int handshakesSaved;
+
+  public static synchronized ImapSessionManager getInstance() {
+    if (instance == null) {
+      instance = new ImapSessionManager();
+    }
+    return instance;
+  }
+
+  private ImapSessionManager() {
+    expiryExecutor.setKeepAliveTime(KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+    expiryExecutor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Returns the connection of the session of {@code store}'s account, waiting until no other store
+   * is using it. The connection is already logged in if the session was kept open. If the session
+   * isn't released in time, a connection of its own is returned, which is closed once released.
+   */
+  ImapConnection acquire(ImapStore store) {
+    Session session = getSession(store.getSessionKey());
+    if (session.lock.isHeldByCurrentThread()) {
+      // Another store on this thread is using the session, it can't wait for itself.
+      return new ImapConnection(store);
+    }
+    if (!session.lockForUse(ACQUIRE_TIMEOUT_SECONDS)) {
+      VvmLog.w(TAG, "acquire: session still in use, not sharing it");
+      return new ImapConnection(store);
+    }
+
+    ImapConnection connection = session.connection;
+    if (connection != null) {
+      connection.setStore(store);
+      if (isAlive(connection)) {
+        int saved;
+        int total;
+        synchronized (this) {
+          saved = ++handshakesSaved;
+          total = saved + sessionsCreated;
+        }
+        VvmLog.i(TAG, "acquire: reusing session, saved " + saved + " of " + total + " handshakes");
+        return connection;
+      }
+      connection.close();
+    }
+    connection = new ImapConnection(store);
+    session.connection = connection;
+    synchronized (this) {
+      sessionsCreated++;
+    }
+    return connection;
+  }
+
+  /**
+   * Takes back the connection returned by {@link #acquire}, and keeps it open for the next store
+   * of the same account unless sessions aren't kept for the account. It is closed instead if the
+   * last command sent didn't complete, e.g. because reading its responses failed or was given up,
+   * as its remaining responses would be mistaken for those of the next command.
+   */
+  void release(ImapStore store, ImapConnection connection) {
+    Session session;
+    synchronized (this) {
+      session = sessions.get(store.getSessionKey());
+    }
+    if (session == null
+        || session.connection != connection
+        || !session.lock.isHeldByCurrentThread()) {
+      connection.close();
+      return;
+    }
+    try {
+      OmtpVvmCarrierConfigHelper config = store.getImapHelper().getConfig();
+      int idleMillis = config.isValid() ? config.getImapSessionIdleMillis() : 0;
+      if (idleMillis <= 0 || !connection.isTransportOpen()) {
+        closeSession(session);
+        return;
+      }
+      if (!connection.isBetweenCommands()) {
+        VvmLog.i(TAG, "release: command not completed, closing session");
+        closeSession(session);
+        return;
+      }
+      connection.destroyResponses();
+      session.expiry = SystemClock.elapsedRealtime() + idleMillis;
+      expiryExecutor.schedule(() -> expire(session), idleMillis, TimeUnit.MILLISECONDS);
+
+      if (config.isImapIdleEnabled() && connection.hasCapability(ImapConstants.CAPABILITY_IDLE)) {
+        Context context = store.getContext();
+        PhoneAccountHandle phoneAccountHandle = config.getPhoneAccountHandle();
+        idleExecutor.execute(() -> idle(session, idleMillis, context, phoneAccountHandle));
+      }
+    } finally {
+      session.lock.unlock();
+    }
+  }
+
+  private synchronized Session getSession(Object key) {
+    Session session = sessions.get(key);
+    if (session == null) {
+      session = new Session(key);
+      sessions.put(key, session);
+    }
+    return session;
+  }
+
+  /** Checks that a session kept open wasn't closed by the server or the network meanwhile. */
+  private static boolean isAlive(ImapConnection connection) {
+    if (!connection.isTransportOpen()) {
+      return false;
+    }
+    try {
+      connection.executeSimpleCommand(ImapConstants.NOOP);
+      return true;
+    } catch (IOException | MessagingException e) {
+      VvmLog.i(TAG, "isAlive: session was closed, " + e);
+      return false;
+    } finally {
+      connection.destroyResponses();
+    }
+  }
+
+  /** Logs out of the session if it wasn't used since the idle window was set. */
+  private void expire(Session session) {
+    if (SystemClock.elapsedRealtime() < session.expiry) {
+      return; // Used again meanwhile.
+    }
+    // If idling, the idle thread closes the session once the server ended IDLE.
+    session.stopIdle();
+    if (!session.lock.tryLock()) {
+      return; // Idling, or in use again and expires once released.
+    }
+    try {
+      if (session.connection != null && SystemClock.elapsedRealtime() >= session.expiry) {
+        VvmLog.i(TAG, "expire: closing session");
+        closeSession(session);
+      }
+    } finally {
+      session.lock.unlock();
+    }
+  }
+
+  /**
+   * Puts the session in IDLE until it is used again or expires, and starts a sync if a message is
+   * added to the mailbox meanwhile. Runs on {@link #idleExecutor}, as it blocks reading from the
+   * server.
+   */
+  private void idle(
+      Session session, int idleMillis, Context context, PhoneAccountHandle phoneAccountHandle) {
+    if (!session.lock.tryLock()) {
+      return; // In use again, idles again once released.
+    }
+    ImapConnection connection = session.connection;
+    try {
+      if (connection == null || !session.startIdle()) {
+        return;
+      }
+      connection.setReadTimeout(idleMillis + IDLE_READ_TIMEOUT_MARGIN_MILLIS);
+      boolean syncStarted = false;
+      ImapResponse response;
+      while (!(response = connection.readResponse()).isTagged()) {
+        if (!syncStarted && response.isDataResponse(1, ImapConstants.EXISTS)) {
+          VvmLog.i(TAG, "idle: new message on server, starting sync");
+          SyncTask.start(context, phoneAccountHandle);
+          syncStarted = true;
+        }
+      }
+      connection.setReadTimeout(0);
+      if (SystemClock.elapsedRealtime() >= session.expiry) {
+        VvmLog.i(TAG, "idle: closing expired session");
+        closeSession(session);
+      }
+    } catch (IOException | MessagingException e) {
+      VvmLog.w(TAG, "idle: failed, closing session", e);
+      closeSession(session);
+    } finally {
+      session.endIdle();
+      if (session.connection != null) {
+        session.connection.destroyResponses();
+      }
+      session.lock.unlock();
+    }
+  }
+
+  /** Logs out and forgets the session. Must be called with the session lock held. */
+  private void closeSession(Session session) {
+    if (session.connection != null) {
+      session.connection.close();
+      session.connection = null;
+    }
+    synchronized (this) {
+      if (sessions.get(session.key) == session) {
+        sessions.remove(session.key);
+      }
+    }
+  }
+
+  /** The session of an account, on a given server and network. */
+  private static final class Session {
+
+    final Object key;
+    /** Held by the store using the session, or by the thread idling on it. */
+    final ReentrantLock lock = new ReentrantLock();
+
+    /** Guarded by {@link #lock}. */
+    @Nullable ImapConnection connection;
+
+    /** When the session is closed unless it is used again. */
+    volatile long expiry;
+
+    /** Number of threads waiting for {@link #lock}. Guarded by this. */
+    private int waiters;
+    /** Whether IDLE was accepted and DONE wasn't sent yet. Guarded by this. */
+    private boolean idling;
+
+    Session(Object key) {
+      this.key = key;
+    }
+
+    /**
+     * Waits for the session, ending IDLE if it is idling.
+     *
+     * @return whether the session was locked within {@code timeoutSeconds}
+     */
+    boolean lockForUse(long timeoutSeconds) {
+      synchronized (this) {
+        waiters++;
+        stopIdle();
+      }
+      try {
+        return lock.tryLock(timeoutSeconds, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      } finally {
+        synchronized (this) {
+          waiters--;
+        }
+      }
+    }
+
+    /**
+     * Starts IDLE, unless the session is wanted or expired. Must be called with {@link #lock}
+     * held.
+     *
+     * @return whether IDLE was started, in which case responses must be read until the tagged one
+     */
+    boolean startIdle() throws IOException, MessagingException {
+      synchronized (this) {
+        if (waiters > 0 || isExpired()) {
+          return false;
+        }
+      }
+      connection.startIdle();
+      synchronized (this) {
+        idling = true;
+        if (waiters > 0 || isExpired()) {
+          // Wanted or expired while IDLE was being started.
+          stopIdle();
+        }
+      }
+      return true;
+    }
+
+    /** Sends DONE if idling, so that the idle thread lets go of the session. */
+    synchronized void stopIdle() {
+      if (!idling) {
+        return;
+      }
+      idling = false;
+      try {
+        connection.stopIdle();
+      } catch (IOException e) {
+        // The idle thread will fail to read too, and close the session.
+        VvmLog.w(TAG, "stopIdle: failed to send DONE", e);
+      }
+    }
+
+    synchronized void endIdle() {
+      idling = false;
+    }
+
+    private boolean isExpired() {
+      return SystemClock.elapsedRealtime() >= expiry;
+    }
+  }
+}
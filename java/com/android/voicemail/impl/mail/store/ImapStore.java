@@ -25,6 +25,7 @@ import com.android.voicemail.impl.mail.MessagingException;
 import com.android.voicemail.impl.mail.internet.MimeMessage;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 import org.apache.james.mime4j.MimeException;
 
 public class ImapStore {
@@ -166,16 +167,33 @@ public class ImapStore {
     }
   }
 
+  /**
+   * Returns a key which is equal for the stores which may share a session: those of the same
+   * account, logging in to the same server with the same credentials over the same network.
+   */
+  Object getSessionKey() {
+    return Arrays.asList(
+        helper.getConfig().getPhoneAccountHandle(), username, password, transport.getServerKey());
+  }
+
+  /**
+   * Returns the connection to {@link ImapSessionManager}, which keeps it open for the next store
+   * of the same account for a while.
+   */
   public void closeConnection() {
     if (connection != null) {
-      connection.close();
+      ImapSessionManager.getInstance().release(this, connection);
       connection = null;
     }
   }
 
+  /**
+   * Returns the connection of this store. The first call takes the session of the account from
+   * {@link ImapSessionManager}, waiting for any other store using it to be closed.
+   */
   public ImapConnection getConnection() {
     if (connection == null) {
-      connection = new ImapConnection(this);
+      connection = ImapSessionManager.getInstance().acquire(this);
     }
     return connection;
   }
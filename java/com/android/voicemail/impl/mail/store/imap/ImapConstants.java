@@ -16,7 +16,9 @@
 
 package com.android.voicemail.impl.mail.store.imap;
 
+import android.support.annotation.Nullable;
 import com.android.voicemail.impl.mail.store.ImapStore;
+import java.util.Arrays;
 import java.util.Locale;
 
 public final class ImapConstants {
@@ -39,11 +41,14 @@ public final class ImapConstants {
   public static final String BODYSTRUCTURE = "BODYSTRUCTURE";
   public static final String BYE = "BYE";
   public static final String CAPABILITY = "CAPABILITY";
+  public static final String CHANGEDSINCE = "CHANGEDSINCE";
   public static final String CHECK = "CHECK";
   public static final String CLOSE = "CLOSE";
+  public static final String CONDSTORE = "CONDSTORE";
   public static final String COPY = "COPY";
   public static final String COPYUID = "COPYUID";
   public static final String CREATE = "CREATE";
+  public static final String DONE = "DONE";
   public static final String DELETE = "DELETE";
   public static final String EXAMINE = "EXAMINE";
   public static final String EXISTS = "EXISTS";
@@ -56,13 +61,16 @@ public final class ImapConstants {
   public static final String FLAG_SEEN = "\\SEEN";
   public static final String FLAGS = "FLAGS";
   public static final String FLAGS_SILENT = "FLAGS.SILENT";
+  public static final String HIGHESTMODSEQ = "HIGHESTMODSEQ";
   public static final String ID = "ID";
+  public static final String IDLE = "IDLE";
   public static final String INBOX = "INBOX";
   public static final String INTERNALDATE = "INTERNALDATE";
   public static final String LIST = "LIST";
   public static final String LOGIN = "LOGIN";
   public static final String LOGOUT = "LOGOUT";
   public static final String LSUB = "LSUB";
+  public static final String MODSEQ = "MODSEQ";
   public static final String NAMESPACE = "NAMESPACE";
   public static final String NO = "NO";
   public static final String NOOP = "NOOP";
@@ -133,6 +141,105 @@ public final class ImapConstants {
 
   public static final String CAPABILITY_STARTTLS = "STARTTLS";
 
+  /** Conditional STORE and FETCH, RFC 7162. */
+  public static final String CAPABILITY_CONDSTORE = "CONDSTORE";
+
+  /** Push of mailbox changes, RFC 2177. */
+  public static final String CAPABILITY_IDLE = "IDLE";
+
   /** authentication */
   public static final String AUTH_DIGEST_MD5 = "DIGEST-MD5";
+
+  /**
+   * Atoms and strings found in most responses, as servers usually spell them. Parsers return these
+   * instances rather than a new string for each occurrence, see {@link #getInternedAtom}.
+   */
+  private static final String[] COMMON_ATOMS = {
+    BAD,
+    BODY,
+    BODYSTRUCTURE,
+    BYE,
+    EXISTS,
+    EXPUNGE,
+    FETCH,
+    FLAGS,
+    HIGHESTMODSEQ,
+    INTERNALDATE,
+    MODSEQ,
+    NIL,
+    NO,
+    OK,
+    PERMANENTFLAGS,
+    READ_ONLY,
+    READ_WRITE,
+    RFC822_SIZE,
+    TEXT,
+    UID,
+    UIDNEXT,
+    UIDVALIDITY,
+    UNSEEN,
+    "RECENT",
+    "\\Answered",
+    "\\Deleted",
+    "\\Draft",
+    "\\Flagged",
+    "\\Recent",
+    "\\Seen",
+    "\\*",
+    // BODYSTRUCTURE
+    "7BIT",
+    "8BIT",
+    "AMR",
+    "AUDIO",
+    "BASE64",
+    "CHARSET",
+    "MIXED",
+    "PLAIN",
+    "US-ASCII",
+    "UTF-8",
+    "WAV",
+  };
+
+  /** {@link #COMMON_ATOMS} by length, so that looking one up compares a few at most. */
+  private static final String[][] COMMON_ATOMS_BY_LENGTH;
+
+  static {
+    int maxLength = 0;
+    for (String atom : COMMON_ATOMS) {
+      maxLength = Math.max(maxLength, atom.length());
+    }
+    COMMON_ATOMS_BY_LENGTH = new String[maxLength + 1][];
+    for (String atom : COMMON_ATOMS) {
+      String[] atoms = COMMON_ATOMS_BY_LENGTH[atom.length()];
+      if (atoms == null) {
+        atoms = new String[] {atom};
+      } else {
+        atoms = Arrays.copyOf(atoms, atoms.length + 1);
+        atoms[atoms.length - 1] = atom;
+      }
+      COMMON_ATOMS_BY_LENGTH[atom.length()] = atoms;
+    }
+  }
+
+  /**
+   * Returns the shared instance of {@code atom} if it is a common one, or null. Doesn't allocate,
+   * so that parsers can look an atom up before turning it into a string.
+   */
+  @Nullable
+  public static String getInternedAtom(CharSequence atom) {
+    int length = atom.length();
+    if (length >= COMMON_ATOMS_BY_LENGTH.length || COMMON_ATOMS_BY_LENGTH[length] == null) {
+      return null;
+    }
+    candidates:
+    for (String candidate : COMMON_ATOMS_BY_LENGTH[length]) {
+      for (int i = 0; i < length; i++) {
+        if (candidate.charAt(i) != atom.charAt(i)) {
+          continue candidates;
+        }
+      }
+      return candidate;
+    }
+    return null;
+  }
 }
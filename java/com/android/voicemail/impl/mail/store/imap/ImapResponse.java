@@ -16,6 +16,8 @@
 
 package com.android.voicemail.impl.mail.store.imap;
 
+import android.support.annotation.Nullable;
+
 /** Class represents an IMAP response. */
 public class ImapResponse extends ImapList {
   private final String tag;
@@ -39,6 +41,11 @@ public class ImapResponse extends ImapList {
     return tag != null;
   }
 
+  /** @return whether it's the tagged response to the command tagged {@code tag}. */
+  public boolean hasTag(@Nullable String tag) {
+    return this.tag != null && this.tag.equals(tag);
+  }
+
   /** @return whether it's a continuation request. */
   public boolean isContinuationRequest() {
     return isContinuationRequest;
@@ -0,0 +1,527 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.voicemail.impl.mail.store.imap;
+
+import android.support.annotation.Nullable;
+import com.android.voicemail.impl.mail.MessagingException;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A response read by {@link ImapResponseParser#readResponseCursor}, for callers which only read a
+ * few fields of many responses, e.g. the flags of a bulk FETCH.
+ *
+ * <p>Unlike {@link ImapResponse}, no element is built for the response: its bytes are read into a
+ * buffer reused for the next response, and its tokens are walked through with {@link #next()}.
+ * Only the values the caller asks for are turned into strings, and common atoms aren't even then,
+ * see {@link ImapConstants#getInternedAtom}. A cursor is only valid until the next response is read
+ * from the parser, and there is nothing to destroy.
+ *
+ * <p>Tokens are split like {@link ImapResponseParser} splits elements: the text of a status
+ * response after its response code is a single {@link #TYPE_TEXT}, and so is everything after "+"
+ * in a continuation request.
+ */
+public final class ImapResponseCursor {
+
+  public static final int TYPE_END = 0;
+  public static final int TYPE_ATOM = 1;
+  public static final int TYPE_QUOTED = 2;
+  public static final int TYPE_LITERAL = 3;
+  public static final int TYPE_LIST_START = 4;
+  public static final int TYPE_LIST_END = 5;
+  public static final int TYPE_TEXT = 6;
+
+  private static final int INITIAL_BUFFER_SIZE = 1024;
+
+  /** After the first token of a status response, where a response code may be. */
+  private static final int STATE_STATUS_CODE = 1;
+  /** In the response code of a status response. */
+  private static final int STATE_STATUS_CODE_LIST = 2;
+  /** After the response code of a status response, only free-form text is left. */
+  private static final int STATE_STATUS_TEXT = 3;
+
+  private final TokenChars tokenChars = new TokenChars();
+
+  /** The bytes of the response, including the CRLF which ends it. */
+  private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+  /** Number of bytes of {@link #buffer} used by the response. */
+  private int length;
+  /** Where the response ends, excluding the final CRLF. */
+  private int end;
+  /** Where the next token starts. */
+  private int position;
+
+  private boolean tagged;
+  /** Length of the tag at the start of {@link #buffer}, if tagged. */
+  private int tagLength;
+  private boolean continuationRequest;
+  private boolean statusResponse;
+  private boolean ok;
+  private boolean bye;
+  private int state;
+  private int depth;
+
+  private int type;
+  private int tokenStart;
+  private int tokenLength;
+  private boolean nil;
+
+  /* package */ ImapResponseCursor() {}
+
+  /**
+   * Reads the next response, literals included, and positions the cursor before its first token.
+   * Like {@link ImapResponseParser#readResponse}, the lines are read byte by byte through {@code
+   * parser}, and the content of literals straight from {@code in}.
+   *
+   * @param parser the parser reading from {@code in}
+   * @param maxLiteralSize literals larger than this are skipped, and fail the response
+   */
+  /* package */ void read(ImapResponseParser parser, InputStream in, int maxLiteralSize)
+      throws IOException, MessagingException {
+    length = 0;
+    boolean literalTooLarge = false;
+    for (; ; ) {
+      int lineStart = length;
+      for (; ; ) {
+        int b = parser.readByte();
+        append((byte) b);
+        if (b == '\n' && length - lineStart >= 2 && buffer[length - 2] == '\r') {
+          break;
+        }
+      }
+      // A line ending with {size} is followed by a literal, and the response goes on after it.
+      int literalSize = getLiteralSizeAtEndOfLine(lineStart, length - 2);
+      if (literalSize < 0) {
+        break;
+      }
+      if (literalSize > maxLiteralSize) {
+        literalTooLarge = true;
+        skipFully(in, literalSize);
+      } else {
+        ensureCapacity(length + literalSize);
+        readFully(in, literalSize);
+      }
+    }
+    if (literalTooLarge) {
+      throw new MessagingException("Literal too large to be read with a cursor");
+    }
+    end = length - 2;
+    readHeader();
+  }
+
+  /** Returns whether it's a tagged response, i.e. the end of a command. */
+  public boolean isTagged() {
+    return tagged;
+  }
+
+  /** Returns whether it's the tagged response to the command tagged {@code tag}. */
+  public boolean hasTag(@Nullable String tag) {
+    if (!tagged || tag == null || tag.length() != tagLength) {
+      return false;
+    }
+    for (int i = 0; i < tagLength; i++) {
+      if (buffer[i] != tag.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public boolean isContinuationRequest() {
+    return continuationRequest;
+  }
+
+  /** Returns whether it's an OK, NO, BAD, PREAUTH or BYE response. */
+  public boolean isStatusResponse() {
+    return statusResponse;
+  }
+
+  /** Returns whether it's an OK response. */
+  public boolean isOk() {
+    return ok;
+  }
+
+  /**
+   * Moves to the next token of the response, and returns its type. Once all tokens were read, it
+   * returns {@link #TYPE_END}.
+   *
+   * @throws MessagingException if the response is malformed
+   */
+  public int next() throws MessagingException {
+    nil = false;
+    skipSpaces();
+    if (position >= end) {
+      return setEnd();
+    }
+    if (state == STATE_STATUS_TEXT || (state == STATE_STATUS_CODE && buffer[position] != '[')) {
+      state = STATE_STATUS_TEXT;
+      int start = position;
+      position = end;
+      return setToken(TYPE_TEXT, start, end - start);
+    }
+
+    final byte ch = buffer[position];
+    switch (ch) {
+      case '(':
+      case '[':
+        if (state == STATE_STATUS_CODE) {
+          state = STATE_STATUS_CODE_LIST;
+        }
+        depth++;
+        return setToken(TYPE_LIST_START, position++, 1);
+      case ')':
+      case ']':
+        depth--;
+        if (state == STATE_STATUS_CODE_LIST && depth == 0) {
+          state = STATE_STATUS_TEXT;
+        }
+        return setToken(TYPE_LIST_END, position++, 1);
+      case '"':
+        {
+          int start = position + 1;
+          int close = indexOf('"', start);
+          if (close < 0) {
+            throw new MessagingException("Unterminated quoted string");
+          }
+          position = close + 1;
+          return setToken(TYPE_QUOTED, start, close - start);
+        }
+      case '{':
+        {
+          int close = indexOf('}', position);
+          if (close < 0 || close + 2 >= length || buffer[close + 1] != '\r') {
+            throw new MessagingException("Invalid literal");
+          }
+          int size = parseSize(position + 1, close);
+          int start = close + 3; // Skip "}\r\n".
+          if (size < 0 || start + size > end) {
+            throw new MessagingException("Invalid length in literal");
+          }
+          position = start + size;
+          return setToken(TYPE_LITERAL, start, size);
+        }
+      default:
+        return readAtom();
+    }
+  }
+
+  /** Returns the type of the current token. */
+  public int getType() {
+    return type;
+  }
+
+  /** Returns whether the current token case-insensitively equals {@code s}. */
+  public boolean is(String s) {
+    if (type == TYPE_LIST_START || type == TYPE_LIST_END || type == TYPE_END) {
+      return false;
+    }
+    if (nil) {
+      return s.isEmpty();
+    }
+    if (tokenLength != s.length()) {
+      return false;
+    }
+    for (int i = 0; i < tokenLength; i++) {
+      char a = (char) (buffer[tokenStart + i] & 0xff);
+      char b = s.charAt(i);
+      if (a != b && Character.toUpperCase(a) != Character.toUpperCase(b)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the current token as a string. Like {@link ImapResponseParser}, it returns an empty
+   * string for the atom NIL and for lists.
+   */
+  public String getString() {
+    if (nil || type == TYPE_LIST_START || type == TYPE_LIST_END || type == TYPE_END) {
+      return "";
+    }
+    String interned = ImapConstants.getInternedAtom(tokenChars);
+    if (interned != null) {
+      return interned;
+    }
+    return new String(buffer, tokenStart, tokenLength, StandardCharsets.ISO_8859_1);
+  }
+
+  /** Returns the current token parsed as a number, or 0 if it isn't a number. */
+  public long getNumberOrZero() {
+    if (nil || tokenLength == 0 || tokenLength > 18) {
+      return 0;
+    }
+    long value = 0;
+    for (int i = tokenStart; i < tokenStart + tokenLength; i++) {
+      byte b = buffer[i];
+      if (b < '0' || b > '9') {
+        return 0;
+      }
+      value = value * 10 + (b - '0');
+    }
+    return value;
+  }
+
+  /**
+   * Returns the current token as a stream over the buffer, e.g. to parse a literal. Only valid
+   * until the next response is read.
+   */
+  public InputStream getAsStream() {
+    return new ByteArrayInputStream(buffer, tokenStart, nil ? 0 : tokenLength);
+  }
+
+  /**
+   * Skips the tokens of the list the cursor is at the start of, up to and including its end.
+   *
+   * @throws MessagingException if the response is malformed
+   */
+  public void skipList() throws MessagingException {
+    if (type != TYPE_LIST_START) {
+      return;
+    }
+    int listDepth = depth - 1;
+    while (depth > listDepth) {
+      if (next() == TYPE_END) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Parses the response into an {@link ImapResponse}, for a caller which needs more of it than the
+   * cursor makes convenient. The cursor is left as is. The caller must destroy the response.
+   */
+  public ImapResponse toResponse() throws IOException, MessagingException {
+    return new ImapResponseParser(new ByteArrayInputStream(buffer, 0, length)).readResponse(true);
+  }
+
+  @Override
+  public String toString() {
+    return new String(buffer, 0, end, StandardCharsets.ISO_8859_1);
+  }
+
+  private void readHeader() throws MessagingException {
+    position = 0;
+    depth = 0;
+    state = 0;
+    tagged = false;
+    continuationRequest = false;
+    statusResponse = false;
+    ok = false;
+    bye = false;
+    setEnd();
+    if (end <= 0) {
+      throw new MessagingException("Empty response");
+    }
+    if (buffer[0] == '+') {
+      continuationRequest = true;
+      position = 1;
+      // If it's continuation request, we don't really care what's in it.
+      state = STATE_STATUS_TEXT;
+      return;
+    }
+    if (buffer[0] == '*') {
+      position = 1;
+    } else {
+      tagged = true;
+      position = indexOf(' ', 0);
+      if (position < 0) {
+        throw new MessagingException("Expected tag, none found.");
+      }
+      tagLength = position;
+    }
+
+    // Look at the first token, to know whether the rest of the response is free-form text.
+    int start = position;
+    skipSpaces();
+    int firstEnd = position;
+    while (firstEnd < end && buffer[firstEnd] != ' ') {
+      firstEnd++;
+    }
+    setToken(TYPE_ATOM, position, firstEnd - position);
+    ok = is(ImapConstants.OK);
+    bye = is(ImapConstants.BYE);
+    statusResponse =
+        ok || bye || is(ImapConstants.NO) || is(ImapConstants.BAD) || is(ImapConstants.PREAUTH);
+    position = start;
+    setEnd();
+  }
+
+  /** Returns whether it's a BYE response, which {@link ImapResponseParser} handles. */
+  /* package */ boolean isBye() {
+    return bye;
+  }
+
+  /**
+   * Reads an atom. Like {@link ImapResponseParser}, everything between '[' and the next ']' is part
+   * of it, e.g. "BODY[HEADER.FIELDS (DATE)]" is a single atom.
+   */
+  private int readAtom() throws MessagingException {
+    int start = position;
+    while (position < end) {
+      int ch = buffer[position] & 0xff;
+      if (ch == '('
+          || ch == ')'
+          || ch == '{'
+          || ch == ' '
+          || ch == ']'
+          || ch == '%'
+          || ch == '"'
+          || ch <= 0x1f
+          || ch == 0x7f) {
+        break;
+      }
+      if (ch == '[') {
+        int close = indexOf(']', position);
+        position = close < 0 ? end : close + 1;
+      } else {
+        position++;
+      }
+    }
+    if (position == start) {
+      throw new MessagingException("Expected string, none found.");
+    }
+    setToken(TYPE_ATOM, start, position - start);
+    nil = is(ImapConstants.NIL);
+    if (statusResponse && state == 0) {
+      // The status itself, a response code or free-form text may follow.
+      state = STATE_STATUS_CODE;
+    }
+    return type;
+  }
+
+  private int setToken(int type, int start, int length) {
+    this.type = type;
+    tokenStart = start;
+    tokenLength = length;
+    return type;
+  }
+
+  private int setEnd() {
+    nil = false;
+    return setToken(TYPE_END, end, 0);
+  }
+
+  private void skipSpaces() {
+    while (position < end && buffer[position] == ' ') {
+      position++;
+    }
+  }
+
+  private int indexOf(char c, int from) {
+    for (int i = from; i < end; i++) {
+      if (buffer[i] == c) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private int parseSize(int from, int to) {
+    if (from == to || to - from > 9) {
+      return -1;
+    }
+    int size = 0;
+    for (int i = from; i < to; i++) {
+      byte b = buffer[i];
+      if (b < '0' || b > '9') {
+        return -1;
+      }
+      size = size * 10 + (b - '0');
+    }
+    return size;
+  }
+
+  /**
+   * Returns the size of the literal announced at the end of the line between {@code lineStart}
+   * and {@code lineEnd}, or -1 if there is none.
+   */
+  private int getLiteralSizeAtEndOfLine(int lineStart, int lineEnd) {
+    if (lineEnd - lineStart < 3 || buffer[lineEnd - 1] != '}') {
+      return -1;
+    }
+    int open = lineEnd - 2;
+    while (open >= lineStart && buffer[open] >= '0' && buffer[open] <= '9') {
+      open--;
+    }
+    if (open < lineStart || buffer[open] != '{') {
+      return -1;
+    }
+    return parseSize(open + 1, lineEnd - 1);
+  }
+
+  private void append(byte b) {
+    ensureCapacity(length + 1);
+    buffer[length++] = b;
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (capacity > buffer.length) {
+      buffer = Arrays.copyOf(buffer, Math.max(capacity, buffer.length * 2));
+    }
+  }
+
+  private void readFully(InputStream in, int size) throws IOException {
+    int target = length + size;
+    while (length < target) {
+      int read = in.read(buffer, length, target - length);
+      if (read < 0) {
+        throw new IOException("End of stream reached");
+      }
+      length += read;
+    }
+  }
+
+  private static void skipFully(InputStream in, int size) throws IOException {
+    while (size > 0) {
+      long skipped = in.skip(size);
+      if (skipped <= 0) {
+        if (in.read() < 0) {
+          throw new IOException("End of stream reached");
+        }
+        skipped = 1;
+      }
+      size -= skipped;
+    }
+  }
+
+  /** The current token, as looked up by {@link ImapConstants#getInternedAtom}. */
+  private final class TokenChars implements CharSequence {
+
+    @Override
+    public int length() {
+      return tokenLength;
+    }
+
+    @Override
+    public char charAt(int index) {
+      return (char) (buffer[tokenStart + index] & 0xff);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+      return toString().substring(start, end);
+    }
+
+    @Override
+    public String toString() {
+      return new String(buffer, tokenStart, tokenLength, StandardCharsets.ISO_8859_1);
+    }
+  }
+}
@@ -16,6 +16,7 @@
 
 package com.android.voicemail.impl.mail.store.imap;
 
+import android.support.annotation.Nullable;
 import android.text.TextUtils;
 import com.android.voicemail.impl.VvmLog;
 import com.android.voicemail.impl.mail.FixedLengthInputStream;
@@ -49,6 +50,29 @@ public class ImapResponseParser {
    */
   private final ArrayList<ImapResponse> responsesToDestroy = new ArrayList<ImapResponse>();
 
+  /** Reused by {@link #readResponseCursor}, created on first use. */
+  @Nullable private ImapResponseCursor cursor;
+
+  /** Consumes literals as they are read, instead of them being stored. */
+  @Nullable private LiteralHandler literalHandler;
+
+  /**
+   * Consumes the content of literals straight from the input stream, e.g. to decode a large body
+   * part into its destination without keeping it in memory or in a temp file.
+   */
+  public interface LiteralHandler {
+
+    /**
+     * Called when a literal is about to be read.
+     *
+     * @param in the content of the literal, whatever isn't read from it is skipped afterwards
+     * @return the value to put in the response in place of the literal, or null to read the
+     *     literal as usual, in which case nothing may be read from {@code in}
+     */
+    @Nullable
+    ImapString handleLiteral(FixedLengthInputStream in) throws IOException;
+  }
+
   /**
    * Exception thrown when we receive BYE. It derives from IOException, so it'll be treated in the
    * same way EOF does.
@@ -72,6 +96,11 @@ public class ImapResponseParser {
     this.literalKeepInMemoryThreshold = literalKeepInMemoryThreshold;
   }
 
+  /** Sets the handler for the literals read from now on, or stops handling them if null. */
+  public void setLiteralHandler(@Nullable LiteralHandler literalHandler) {
+    this.literalHandler = literalHandler;
+  }
+
   private static IOException newEOSException() {
     final String message = "End of stream reached";
     VvmLog.d(TAG, message);
@@ -98,7 +127,7 @@ public class ImapResponseParser {
    * <p>Throws IOException() if reaches EOF. As long as logical response lines end with \r\n, we
    * shouldn't see EOF during parsing.
    */
-  private int readByte() throws IOException {
+  /* package */ int readByte() throws IOException {
     int next = in.read();
     if (next == -1) {
       throw newEOSException();
@@ -155,6 +184,40 @@ public class ImapResponseParser {
     return response;
   }
 
+  /**
+   * Reads the next response available on the stream, like {@link #readResponse}, but returns a
+   * cursor over it instead of building an {@link ImapResponse}. See {@link ImapResponseCursor}.
+   *
+   * <p>The cursor is reused for the next response, so it is only valid until then. Literals are
+   * kept in memory, a response with a literal over the threshold for that fails.
+   *
+   * @param byeExpected is a untagged BYE response expected? If not {@link ByeException} will be
+   *     thrown.
+   * @exception ByeException when detects BYE and <code>byeExpected</code> is false.
+   */
+  public ImapResponseCursor readResponseCursor(boolean byeExpected)
+      throws IOException, MessagingException {
+    if (cursor == null) {
+      cursor = new ImapResponseCursor();
+    }
+    try {
+      cursor.read(this, in, literalKeepInMemoryThreshold);
+    } catch (RuntimeException e) {
+      // Parser crash -- log network activities.
+      onParseError(e);
+      throw e;
+    } catch (IOException e) {
+      // Network error, or received an unexpected char.
+      onParseError(e);
+      throw e;
+    }
+    if (!byeExpected && cursor.isBye()) {
+      VvmLog.w(TAG, ByeException.MESSAGE);
+      throw new ByeException();
+    }
+    return cursor;
+  }
+
   private void onParseError(Exception e) {
     // Read a few more bytes, so that the log will contain some more context, even if the parser
     // crashes in the middle of a response.
@@ -192,17 +255,28 @@ public class ImapResponseParser {
    * (rather than peeked) and won't be included in the result.
    */
   /* package for test */ String readUntil(char end) throws IOException {
+    return readUntilBuffer(end).toString();
+  }
+
+  /** Like {@link #readUntil}, but returns the bytes read in a buffer reused by the next call. */
+  private CharSequence readUntilBuffer(char end) throws IOException {
     bufferReadUntil.setLength(0);
     for (; ; ) {
       final int ch = readByte();
       if (ch != end) {
         bufferReadUntil.append((char) ch);
       } else {
-        return bufferReadUntil.toString();
+        return bufferReadUntil;
       }
     }
   }
 
+  /** Returns {@code s} as a string, without allocating one if it is a common atom. */
+  private static String toInternedString(CharSequence s) {
+    String interned = ImapConstants.getInternedAtom(s);
+    return interned != null ? interned : s.toString();
+  }
+
   /** Read all bytes until \r\n. */
   /* package */ String readUntilEol() throws IOException {
     String ret = readUntil('\r');
@@ -302,7 +376,7 @@ public class ImapResponseParser {
         return parseList('[', ']');
       case '"':
         readByte(); // Skip "
-        return new ImapSimpleString(readUntil('"'));
+        return new ImapSimpleString(toInternedString(readUntilBuffer('"')));
       case '{':
         return parseLiteral();
       case '\r': // CR
@@ -354,7 +428,7 @@ public class ImapResponseParser {
         if (parseBareString.length() == 0) {
           throw new MessagingException("Expected string, none found.");
         }
-        String s = parseBareString.toString();
+        String s = toInternedString(parseBareString);
 
         // NIL will be always converted into the empty string.
         if (ImapConstants.NIL.equalsIgnoreCase(s)) {
@@ -415,6 +489,18 @@ public class ImapResponseParser {
     expect('\r');
     expect('\n');
     FixedLengthInputStream in = new FixedLengthInputStream(this.in, size);
+    if (literalHandler != null) {
+      ImapString literal = literalHandler.handleLiteral(in);
+      if (literal != null) {
+        // Skip what the handler left, so that the response goes on being parsed after it.
+        while (in.available() > 0) {
+          if (in.skip(in.available()) <= 0) {
+            throw newEOSException();
+          }
+        }
+        return literal;
+      }
+    }
     if (size > literalKeepInMemoryThreshold) {
       return new ImapTempFileLiteral(in);
     } else {
@@ -30,12 +30,15 @@ import com.android.voicemail.impl.ActivationTask;
 import com.android.voicemail.impl.Assert;
 import com.android.voicemail.impl.OmtpEvents;
 import com.android.voicemail.impl.OmtpVvmCarrierConfigHelper;
+import com.android.voicemail.impl.VisualVoicemailPreferences;
 import com.android.voicemail.impl.Voicemail;
 import com.android.voicemail.impl.VoicemailStatus;
 import com.android.voicemail.impl.VvmLog;
 import com.android.voicemail.impl.fetch.VoicemailFetchedCallback;
 import com.android.voicemail.impl.imap.ImapHelper;
 import com.android.voicemail.impl.imap.ImapHelper.InitializingException;
+import com.android.voicemail.impl.imap.ImapHelper.MailboxChanges;
+import com.android.voicemail.impl.imap.MailboxState;
 import com.android.voicemail.impl.mail.store.ImapFolder.Quota;
 import com.android.voicemail.impl.scheduling.BaseTask;
 import com.android.voicemail.impl.settings.VisualVoicemailSettingsUtil;
@@ -44,6 +47,7 @@ import com.android.voicemail.impl.sync.VvmNetworkRequest.RequestFailedException;
 import com.android.voicemail.impl.utils.LoggerUtils;
 import com.android.voicemail.impl.utils.VoicemailDatabaseUtil;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
@@ -208,9 +212,83 @@ public class OmtpVvmSyncService {
     }
   }
 
+  /**
+   * Syncs the voicemail folder with the local voicemails. Only what changed since the last sync is
+   * fetched, unless the UIDs of the folder changed meaning (its UIDVALIDITY changed) since.
+   */
   private boolean syncAll(ImapHelper imapHelper, PhoneAccountHandle account) {
+    VisualVoicemailPreferences prefs = new VisualVoicemailPreferences(context, account);
+    MailboxState lastState = MailboxState.load(prefs);
+    if (lastState == null) {
+      return syncEverything(imapHelper, account, prefs);
+    }
+
+    boolean succeeded = true;
+    List<Voicemail> deletedVoicemails = queryHelper.getDeletedVoicemails(account);
+    List<Voicemail> readVoicemails = queryHelper.getDirtyReadVoicemails(account);
+    if (deletedVoicemails == null || readVoicemails == null) {
+      VvmLog.e(TAG, "syncAll: query failed");
+      return false;
+    }
+    if (deletedVoicemails.size() > 0) {
+      if (imapHelper.markMessagesAsDeleted(deletedVoicemails)) {
+        queryHelper.deleteFromDatabase(deletedVoicemails);
+      } else {
+        succeeded = false;
+      }
+    }
+    if (readVoicemails.size() > 0) {
+      VvmLog.i(TAG, "Marking voicemails as read");
+      if (imapHelper.markMessagesAsRead(readVoicemails)) {
+        VvmLog.i(TAG, "Marking voicemails as clean");
+        queryHelper.markCleanInDatabase(readVoicemails);
+      } else {
+        return false;
+      }
+    }
+
+    // Fetched after pushing the local changes, so that the state saved below includes them.
+    List<Voicemail> localVoicemails = queryHelper.getAllVoicemails(account);
+    if (localVoicemails == null) {
+      VvmLog.e(TAG, "syncAll: query failed");
+      return false;
+    }
+    Map<String, Voicemail> localMap = buildMap(localVoicemails);
+    MailboxChanges changes = imapHelper.fetchChangedVoicemails(lastState, localMap.keySet());
+    if (changes == null) {
+      return false;
+    }
+    if (changes.isFullSyncRequired()) {
+      MailboxState.clear(prefs);
+      return syncEverything(imapHelper, account, prefs) && succeeded;
+    }
+
+    if (changes.uids != null) {
+      // Voicemails that were removed automatically from the server are archived and kept, see
+      // syncEverything().
+      for (Voicemail localVoicemail : localVoicemails) {
+        if (!changes.uids.contains(localVoicemail.getSourceData())) {
+          queryHelper.deleteNonArchivedFromDatabase(localVoicemail);
+        } else if (changes.readUids.contains(localVoicemail.getSourceData())
+            && !localVoicemail.isRead()) {
+          queryHelper.markReadInDatabase(localVoicemail);
+        }
+      }
+    }
+    insertVoicemails(imapHelper, account, changes.newVoicemails);
+
+    if (succeeded) {
+      changes.state.save(prefs);
+    }
+    return succeeded;
+  }
+
+  /** Syncs the voicemail folder by comparing all messages on the server with the local ones. */
+  private boolean syncEverything(
+      ImapHelper imapHelper, PhoneAccountHandle account, VisualVoicemailPreferences prefs) {
 
     List<Voicemail> serverVoicemails = imapHelper.fetchAllVoicemails();
+    MailboxState serverState = imapHelper.getMailboxState();
     List<Voicemail> localVoicemails = queryHelper.getAllVoicemails(account);
     List<Voicemail> deletedVoicemails = queryHelper.getDeletedVoicemails(account);
     boolean succeeded = true;
@@ -277,8 +355,22 @@ public class OmtpVvmSyncService {
     }
 
     // The leftover messages are messages that exist on the server but not locally.
+    insertVoicemails(imapHelper, account, remoteMap.values());
+
+    if (succeeded && serverState != null) {
+      serverState.save(prefs);
+    }
+    return succeeded;
+  }
+
+  /** Inserts voicemails which exist on the server but not locally. */
+  private void insertVoicemails(
+      ImapHelper imapHelper, PhoneAccountHandle account, Collection<Voicemail> remoteVoicemails) {
+    if (remoteVoicemails.isEmpty()) {
+      return;
+    }
     boolean prefetchEnabled = shouldPerformPrefetch(account, imapHelper);
-    for (Voicemail remoteVoicemail : remoteMap.values()) {
+    for (Voicemail remoteVoicemail : remoteVoicemails) {
       if (!TextUtils.isEmpty(remoteVoicemail.getTranscription())) {
         LoggerUtils.logImpressionOnMainThread(
             context, DialerImpression.Type.VVM_TRANSCRIPTION_DOWNLOADED);
@@ -290,8 +382,6 @@ public class OmtpVvmSyncService {
         imapHelper.fetchVoicemailPayload(fetchedCallback, remoteVoicemail.getSourceData());
       }
     }
-
-    return succeeded;
   }
 
   private boolean downloadOneVoicemail(
@@ -49,6 +49,8 @@ public class VoicemailsQueryHelper {
 
   static final String DELETED_SELECTION = Voicemails.DELETED + "=1";
   static final String ARCHIVED_SELECTION = Voicemails.ARCHIVED + "=0";
+  static final String DIRTY_READ_SELECTION =
+      Voicemails.DIRTY + "=1 AND " + Voicemails.IS_READ + "=1 AND " + Voicemails.DELETED + "=0";
 
   private Context context;
   private ContentResolver contentResolver;
@@ -69,6 +71,15 @@ public class VoicemailsQueryHelper {
     return getLocalVoicemails(phoneAccountHandle, DELETED_SELECTION);
   }
 
+  /**
+   * Get all the voicemails read locally whose read state has not been synced to the server.
+   *
+   * @return A list of read voicemails.
+   */
+  public List<Voicemail> getDirtyReadVoicemails(@NonNull PhoneAccountHandle phoneAccountHandle) {
+    return getLocalVoicemails(phoneAccountHandle, DIRTY_READ_SELECTION);
+  }
+
   /**
    * Get all voicemails locally stored.
    *
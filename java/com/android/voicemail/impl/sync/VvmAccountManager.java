@@ -33,6 +33,7 @@ import com.android.voicemail.VoicemailClient.ActivationStateListener;
 import com.android.voicemail.impl.OmtpConstants;
 import com.android.voicemail.impl.VisualVoicemailPreferences;
 import com.android.voicemail.impl.VoicemailStatus;
+import com.android.voicemail.impl.imap.MailboxState;
 import com.android.voicemail.impl.sms.StatusMessage;
 import java.util.ArrayList;
 import java.util.List;
@@ -79,6 +80,8 @@ public class VvmAccountManager {
         .putString(OmtpConstants.IMAP_USER_NAME, null)
         .putString(OmtpConstants.IMAP_PASSWORD, null)
         .apply();
+    // The account may be activated with another mailbox, which is synced in full.
+    MailboxState.clear(preferences);
     ThreadUtil.postOnUiThread(
         () -> {
           for (ActivationStateListener listener : listeners) {